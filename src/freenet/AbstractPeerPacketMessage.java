@@ -67,18 +67,35 @@ public abstract class AbstractPeerPacketMessage implements PeerPacketMessage {
 	 * @return
 	 */
 	protected int fillInHeader(byte[] buf, int len) {
+		return fillInHeader(buf, 0, len);
+	}
+
+	/**
+	 * Fill in the header bytes, starting at offset in buf.
+	 */
+	protected int fillInHeader(byte[] buf, int offset, int len) {
 		len += 2;
 		if(len > 65535 || len < 0)
 			throw new IllegalArgumentException("invalid payload length: "+len);
-		buf[0] = (byte)(len >> 8);
-		buf[1] = (byte)(len & 0xff);
+		buf[offset] = (byte)(len >> 8);
+		buf[offset+1] = (byte)(len & 0xff);
 		int type = getTypeCode();
 		if(type > 65535 || type < 0)
 			throw new IllegalArgumentException("invalid payload type: "+type);
-		buf[2] = (byte)(type >> 8);
-		buf[3] = (byte)(type & 0xff);
+		buf[offset+2] = (byte)(type >> 8);
+		buf[offset+3] = (byte)(type & 0xff);
 		return 4;
 	}
+
+	/**
+	 * Copy getContent() into buf. Messages carrying a lot of data should
+	 * override this to write straight into buf.
+	 */
+	public int getContent(byte[] buf, int offset) {
+		byte[] content = getContent();
+		System.arraycopy(content, 0, buf, offset, content.length);
+		return content.length;
+	}
     public String toString() {
         return super.toString() + "@" + peerHandler;
     }
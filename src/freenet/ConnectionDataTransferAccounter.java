@@ -9,6 +9,8 @@ public class ConnectionDataTransferAccounter {
 	private long totalDataSent = 0;
 	private long receiveQueueSize = 0;
 	private long totalDataReceived = 0;
+	private long writes = 0;
+	private final long created = System.currentTimeMillis();
 
 	/** The total amount of data sent over this connection so far. */
 	synchronized long totalDataSent() {
@@ -19,6 +21,35 @@ public class ConnectionDataTransferAccounter {
 		totalDataSent += len;
 	}
 	
+	/** Count a write to the socket, i.e. a system call */
+	synchronized void registerWrite() {
+		writes++;
+	}
+	
+	/** The number of writes to the socket so far. */
+	synchronized long writes() {
+		return writes;
+	}
+	
+	/**
+	 * @return the average rate data has been sent at over the life of the
+	 *         connection, in bytes per second.
+	 */
+	synchronized long sendRate() {
+		long age = System.currentTimeMillis() - created;
+		return age <= 0 ? 0 : totalDataSent * 1000 / age;
+	}
+	
+	/**
+	 * @return the number of writes per MiB sent, or -1 if nothing has been
+	 *         sent yet.
+	 */
+	synchronized long writesPerMiB() {
+		if (totalDataSent == 0)
+			return -1;
+		return (writes << 20) / totalDataSent;
+	}
+	
 	synchronized void registerReceivedData(int len) {
 		totalDataReceived += len;
 	}
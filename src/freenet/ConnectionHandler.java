@@ -379,7 +379,12 @@ public final class ConnectionHandler
     /***try to fight the OOMS***/
     //this should be the same as the Connection buffer which should be exported
     private static final int DECRYPT_SIZE=16*1024; 
-    private static final byte[] ciphertext = new byte[DECRYPT_SIZE];
+    // One per reading thread, as there may be several
+    private static final ThreadLocal ciphertexts = new ThreadLocal() {
+        protected Object initialValue() {
+            return new byte[DECRYPT_SIZE];
+        }
+    };
     
     private boolean movingTrailingFields = false;
     private boolean doneMovingTrailingFields = false;
@@ -881,6 +886,7 @@ public final class ConnectionHandler
 		}
 		//if(b == null) b = rawAccumulator; Why should _we_ care.. it is someone else that has made the mistake
 		if(b.limit() > 0) {
+			byte[] ciphertext = (byte[]) ciphertexts.get();
 			int initialLimit = b.limit();
 			if (initialLimit > DECRYPT_SIZE)
 				throw new Error(
@@ -1544,6 +1550,7 @@ public final class ConnectionHandler
 	int lastSizeDone = 0;
 	
 	public void jobPartDone(int size) {
+		transferAccounter.registerWrite();
 		if (logDEBUG)
 			Core.logger.log(
 				this,
@@ -1570,6 +1577,7 @@ public final class ConnectionHandler
 	
 	public void jobDone(int size, boolean jobSucceeded) {
 		lastActiveTime = System.currentTimeMillis();
+		transferAccounter.registerWrite();
 		boolean logMINOR = Core.logger.shouldLog(Logger.MINOR, this);
 		if (logDEBUG)
 			logDEBUG(
@@ -1866,6 +1874,18 @@ public final class ConnectionHandler
 			ConnectionHandler.this.writeTrailing(id, block, offset, length, cb);
 		}
 		
+		public void writeTrailing(ByteBuffer block, TrailerWriteCallback cb)
+			throws
+				UnknownTrailerSendIDException,
+				TrailerSendFinishedException,
+				AlreadySendingTrailerChunkException,
+				IOException {
+			// Encrypted in place, so it has to be a copy
+			byte[] b = new byte[block.remaining()];
+			block.duplicate().get(b);
+			ConnectionHandler.this.writeTrailing(id, b, 0, b.length, cb);
+		}
+		
 		public void close() {
 		    closed = true;
 			closeTrailer(id, false);
@@ -29,6 +29,8 @@ import freenet.node.NodeReference;
 			public static final int PEER_NODE_VERSION = 17;
 			public static final int PEER_ARK_REVISION = 18;
 			public static final int LOCAL_PORT = 19;
+			public static final int SEND_RATE = 20;
+			public static final int WRITES_PER_MIB = 21;
 			
 			
 			
@@ -127,6 +129,10 @@ import freenet.node.NodeReference;
 					}
 					case LOCAL_PORT:
 						return secondaryCompare(iSign,new Long(ch1.getLocalPort()).compareTo(new Long(ch2.getLocalPort())),ch1,ch2);
+					case SEND_RATE:
+						return secondaryCompare(iSign,new Long(ch1.getTransferAccounter().sendRate()).compareTo(new Long(ch2.getTransferAccounter().sendRate())),ch1,ch2);
+					case WRITES_PER_MIB:
+						return secondaryCompare(iSign,new Long(ch1.getTransferAccounter().writesPerMiB()).compareTo(new Long(ch2.getTransferAccounter().writesPerMiB())),ch1,ch2);
 					default:
 						return 0;	
 				}
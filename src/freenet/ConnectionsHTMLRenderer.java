@@ -169,6 +169,14 @@ class ConnectionsHTMLRenderer extends HTMLRenderer {
 						+ renderQueueSize(
 							viewLevel > 1,
 							acc.totalDataReceived()));
+				long sendRate = acc.sendRate();
+				buffer.append(
+					sepAlignRight
+						+ (sendRate == 0 ? "-" : format(sendRate) + "/s"));
+				long writesPerMiB = acc.writesPerMiB();
+				buffer.append(
+					sepAlignRight
+						+ (writesPerMiB < 0 ? "-" : String.valueOf(writesPerMiB)));
 			} else {
 				if (ch.blockedSendingTrailer() || ch.receiving())
 					buffer.append(
@@ -270,6 +278,18 @@ class ConnectionsHTMLRenderer extends HTMLRenderer {
 					iSortingMode,
 					ConnectionHandlerComparator.DATARECEIVED,
 					"Data received"));
+			pw.print(
+				renderConnectionsTableColumnHeader(
+					req.getRequestURI(),
+					iSortingMode,
+					ConnectionHandlerComparator.SEND_RATE,
+					"Send rate"));
+			pw.print(
+				renderConnectionsTableColumnHeader(
+					req.getRequestURI(),
+					iSortingMode,
+					ConnectionHandlerComparator.WRITES_PER_MIB,
+					"Writes per MiB"));
 		} else {
 			pw.print(
 				renderConnectionsTableColumnHeader(
@@ -61,6 +61,8 @@ public class Core {
         config.addOption("maximumThreads",         1, 120,    3251);
         config.addOption("tfTolerableQueueDelay",  1, 200,    3252);
 		config.addOption("tfAbsoluteMaxThreads",   1, 500,    3253); // 500 threads
+        config.addOption("clientThreads",          1, 0,      3254);
+        config.addOption("clientThreadStackSize",  1, 128,    3255); // 128 KiB
         config.addOption("blockSize",              1, 4096,   3300); // 4k
         config.addOption("streamBufferSize",       1, 16384,  3350); // 16 k
         config.addOption("maximumPadding",         1, 65536,  3400); // 64 k
@@ -101,13 +103,14 @@ public class Core {
         
         // threadFactory
         config.setExpert ("threadFactory", true);
-        config.argDesc   ("threadFactory", "<Q or F or Y or ...>");
+        config.argDesc   ("threadFactory", "<Q or F or Y or W>");
         config.shortDesc ("threadFactory", "Select which implementation of ThreadFactory to use.");
         config.longDesc  ("threadFactory",
                           "Select which implementation of ThreadFactory to use.  " + 
                           "Q: QThreadFactory. " + 
                           "F: FastThreadFactory. " +
-                          "Y: YetAnotherThreadFactory (default)."
+                          "Y: YetAnotherThreadFactory (default). " +
+                          "W: WThreadFactory, a fixed maximum of targetMaxThreads work-stealing threads."
                           );
         
         // targetMaxThreads
@@ -145,6 +148,24 @@ public class Core {
         config.longDesc  ("tfAbsoluteMaxThreads",
                           "Thread factories which queue jobs before creating new threads can actually limit the number of threads.  The required wait time tfTolerableQueueDelay is multiplied by tfAbsoluteMaxThreads and divided by the number allowed but not created yet.  Thus, if 90% of the allowed threads exist, the delay is increased 10 fold.  If all of the allowed threads exist, no more threads will be created.  A value of zero means no limit.");
         
+        // clientThreads
+        config.setExpert ("clientThreads", true);
+        config.argDesc   ("clientThreads", "<integer>");
+        config.shortDesc ("clientThreads", "max. no. of threads for FCP and HTTP clients");
+        config.longDesc  ("clientThreads",
+                          "If non-zero, FCP connections and the HTTP services (fproxy etc.) run in their own pool of up to this many threads, with small stacks (see clientThreadStackSize), instead of the node's threadFactory.  " +
+                          "Client requests block a thread for as long as they run, so this lets the node serve thousands of concurrent fetches without them competing with the node's own message handling for threads.  " +
+                          "The HTTP services then accept up to this many connections at once rather than maximumThreads/3.  0 means share the node's threads."
+                          );
+        
+        // clientThreadStackSize
+        config.setExpert ("clientThreadStackSize", true);
+        config.argDesc   ("clientThreadStackSize", "<KiB>");
+        config.shortDesc ("clientThreadStackSize", "stack size of client threads");
+        config.longDesc  ("clientThreadStackSize",
+                          "The stack size, in KiB, of the threads in the pool enabled by clientThreads.  Smaller stacks mean less memory per concurrent client request; too small and requests will fail with StackOverflowError.  0 means the JVM's default."
+                          );
+        
         // blockSize
         config.setExpert ("blockSize", true);
         config.argDesc   ("blockSize", "<bytes>");
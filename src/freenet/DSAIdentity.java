@@ -6,7 +6,7 @@ import java.math.BigInteger;
 
 import freenet.crypt.CryptoElement;
 import freenet.crypt.CryptoKey;
-import freenet.crypt.DSA;
+import freenet.crypt.DSAVerifier;
 import freenet.crypt.DSAGroup;
 import freenet.crypt.DSAPublicKey;
 import freenet.crypt.DSASignature;
@@ -97,7 +97,7 @@ public class DSAIdentity extends DSAPublicKey implements Identity {
 
 	public boolean verify(String sig, BigInteger digest) {
 		try {
-			return DSA.verify(this, new DSASignature(sig), digest);
+			return DSAVerifier.verify(this, new DSASignature(sig), digest);
 
 		} catch (NumberFormatException e) {
 			Core.logger.log(
@@ -112,7 +112,7 @@ public class DSAIdentity extends DSAPublicKey implements Identity {
 
 	public boolean verify(CryptoElement sig, BigInteger digest) {
 		if (sig instanceof DSASignature) {
-			return DSA.verify(this, (DSASignature) sig, digest);
+			return DSAVerifier.verify(this, (DSASignature) sig, digest);
 		} else {
 			// above could be another nodes fault, but if we created a
 			// signature element of the wrong type we are fucking up.
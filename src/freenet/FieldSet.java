@@ -50,8 +50,36 @@ public class FieldSet extends AbstractMap {
 	private static final byte HASH_EQUALS = (byte) 0xFE; // Typically =
 	private static final byte HASH_NEWLINE = (byte) 0xFF; // Typically \n
 
+	private static final byte[] HEX_DIGITS = {
+		'0', '1', '2', '3', '4', '5', '6', '7',
+		'8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
 	private final Map fields;
 
+	/**
+	 * Whether any values are HexValues rather than Strings. They are turned
+	 * into Strings before anything outside sees the values as Objects.
+	 */
+	private boolean hasHexValues;
+
+	/**
+	 * A number that will be written as hex, so that numeric fields can go
+	 * from the wire to a message and back without a String in between. Only
+	 * created for values whose hex form is exactly Long.toHexString(value),
+	 * so getString() returns what was read.
+	 */
+	private static final class HexValue {
+		final long value;
+
+		HexValue(long value) {
+			this.value = value;
+		}
+
+		public String toString() {
+			return Long.toHexString(value);
+		}
+	}
+
 	/**
 	 * Interface to filter field names and values when parsing.
 	 */
@@ -89,6 +117,7 @@ public class FieldSet extends AbstractMap {
 	protected FieldSet(FieldSet fs) {
 		logDEBUG = Core.logger.shouldLog(Logger.DEBUG, this);
 		this.fields = new HashMap(fs.fields);
+		this.hasHexValues = fs.hasHexValues;
 	}
 
 	/**
@@ -103,7 +132,12 @@ public class FieldSet extends AbstractMap {
 	 * @return The field interpreted as a string
 	 */
 	public Object get(Object name) {
-		return fields.get(name);
+		Object o = fields.get(name);
+		if (o instanceof HexValue) {
+			o = o.toString();
+			fields.put(name, o);
+		}
+		return o;
 	}
 
 	/**
@@ -118,9 +152,63 @@ public class FieldSet extends AbstractMap {
 		if (o != null && o instanceof String) {
 			return (String) o;
 		}
+		if (o instanceof HexValue) {
+			String s = o.toString();
+			fields.put(name, s);
+			return s;
+		}
 		return null;
 	}
 
+	/**
+	 * @return true if there is a field of that name which isn't a subset or
+	 *         an empty string.
+	 */
+	public boolean hasValue(String name) {
+		Object o = fields.get(name);
+		return o instanceof HexValue
+			|| (o instanceof String && ((String) o).length() > 0);
+	}
+
+	/**
+	 * Get a numeric value, written in hex. This doesn't create a String if
+	 * the value was put() as a number or read by parseCompressed().
+	 * 
+	 * @param name
+	 *            the name of the field
+	 * @return The field interpreted as a hex number
+	 * @exception NumberFormatException
+	 *                if there is no such field, or it isn't a hex number.
+	 */
+	public long getLong(String name) throws NumberFormatException {
+		Object o = fields.get(name);
+		if (o instanceof HexValue)
+			return ((HexValue) o).value;
+		if (!(o instanceof String) || ((String) o).length() == 0)
+			throw new NumberFormatException("No value for " + name);
+		return Fields.hexToLong((String) o);
+	}
+
+	/**
+	 * Get a numeric value, written in hex.
+	 * 
+	 * @param name
+	 *            the name of the field
+	 * @param def
+	 *            The value to return if there is no such field.
+	 * @return The field interpreted as a hex number
+	 * @exception NumberFormatException
+	 *                if the field isn't a hex number.
+	 */
+	public long getLong(String name, long def) throws NumberFormatException {
+		Object o = fields.get(name);
+		if (o instanceof HexValue)
+			return ((HexValue) o).value;
+		if (!(o instanceof String))
+			return def;
+		return Fields.hexToLong((String) o);
+	}
+
 	/**
 	 * Get a field subset.
 	 * 
@@ -152,7 +240,8 @@ public class FieldSet extends AbstractMap {
 	 *            The name of the field to remove
 	 */
 	public final Object remove(String name) {
-		return fields.remove(name);
+		Object o = fields.remove(name);
+		return o instanceof HexValue ? o.toString() : o;
 	}
 
 	/**
@@ -167,6 +256,20 @@ public class FieldSet extends AbstractMap {
 		fields.put(name, value);
 	}
 
+	/**
+	 * Add a numeric value, which is written as Long.toHexString(value) would
+	 * write it. This will overwrite any old values for this field.
+	 * 
+	 * @param name
+	 *            The name of the field.
+	 * @param value
+	 *            The value to set to the field.
+	 */
+	public final void put(String name, long value) {
+		fields.put(name, new HexValue(value));
+		hasHexValues = true;
+	}
+
 	/**
 	 * Add a subset. This will overwrite any old values for this field.
 	 * 
@@ -193,10 +296,18 @@ public class FieldSet extends AbstractMap {
 		return fields.keySet();
 	}
 
+	/**
+	 * @see java.util.AbstractMap#keySet()
+	 */
+	public Set keySet() {
+		return fields.keySet();
+	}
+
 	/**
 	 * @see java.util.AbstractMap#entrySet()
 	 */
 	public Set entrySet() {
+		toStrings();
 		return fields.entrySet();
 	}
 
@@ -204,9 +315,25 @@ public class FieldSet extends AbstractMap {
 	 * @return the String and FieldSet objects stored as values
 	 */
 	public final Collection values() {
+		toStrings();
 		return fields.values();
 	}
 
+	/**
+	 * Replace any HexValues with their Strings, before the values are
+	 * handed out.
+	 */
+	private void toStrings() {
+		if (!hasHexValues)
+			return;
+		for (Iterator i = fields.entrySet().iterator(); i.hasNext();) {
+			Map.Entry e = (Map.Entry) i.next();
+			if (e.getValue() instanceof HexValue)
+				e.setValue(e.getValue().toString());
+		}
+		hasHexValues = false;
+	}
+
 	/**
 	 * @return The number of Fields in this FieldSet (not recursive)
 	 */
@@ -295,6 +422,11 @@ public class FieldSet extends AbstractMap {
 					w.writeUTF(pre);
 					w.writeUTF(name, equal);
 						w.writeUTF((String) o, sep1);
+				} else if (o instanceof HexValue) {
+					w.writeUTF(pre);
+					w.writeUTF(name, equal);
+					writeHex(w, ((HexValue) o).value);
+					UTF8.write(w, sep1);
 				} else if (o instanceof FieldSet) {
 					((FieldSet) o).inWriteFields(
 						w,
@@ -311,6 +443,31 @@ public class FieldSet extends AbstractMap {
 		}
 	}
 
+	/**
+	 * Writes the digits of Long.toHexString(value) without making the
+	 * String.
+	 */
+	private static void writeHex(WriteOutputStream w, long value)
+		throws IOException {
+		int shift = 60;
+		while (shift > 0 && (value >>> shift) == 0)
+			shift -= 4;
+		for (; shift >= 0; shift -= 4)
+			w.write(HEX_DIGITS[(int) (value >>> shift) & 0xf]);
+	}
+
+	/**
+	 * Writes the fields in the FNC compressed format. Fields in the code
+	 * table are written as their code, followed by the value in binary if
+	 * the table gives it a boxed numeric type, or as text otherwise. Other
+	 * fields are written as name=value lines. Numbers that were put() as
+	 * numbers are written without making Strings of them.
+	 * 
+	 * @param w
+	 *            The stream to write to.
+	 * @param ctable
+	 *            Maps field names to FieldDefinitionsTable.FieldIDAndFieldType
+	 */
 	public void writeCompressed(WriteOutputStream w, Hashtable ctable)
 		throws IOException {
 		inWriteCompressed(w, ctable, "");
@@ -324,33 +481,34 @@ public class FieldSet extends AbstractMap {
 	//Hashtable may be too heavyweight for the small number of elements
 		for (Iterator e = keySet().iterator(); e.hasNext();) {
 			String name = (String) e.next();
+			Object o = fields.get(name);
 
-			FieldSet fs = getSet(name);
-			if (fs != null) {
-				fs.inWriteCompressed(w, ctable, pre + name + ".");
+			if (o instanceof FieldSet) {
+				((FieldSet) o).inWriteCompressed(w, ctable, pre + name + ".");
 			} else { //(isString(name))
 				String var = pre + name;
 				FieldDefinitionsTable.FieldIDAndFieldType fieldInfo =
-					(FieldDefinitionsTable.FieldIDAndFieldType) ctable.get(var);
+					ctable == null
+						? null
+						: (FieldDefinitionsTable.FieldIDAndFieldType) ctable.get(var);
 				if (fieldInfo == null) {
 					Core.logger.log(this, "FNC unknown field: " + var, Logger.MINOR);
 					w.writeUTF(pre);
 					w.writeUTF(name, '=');
-					w.writeUTF(getString(name), '\n');
+					writeText(w, o);
 				} else {
 					w.write((byte) (fieldInfo.fieldID | 128));
-					String data = getString(name);
 					if (fieldInfo.fieldType == Byte.class) {
-						byte cdata = (byte) Fields.hexToInt(data);
+						byte cdata = (byte) numericValue(o);
 						w.write(cdata);
 					} else if (fieldInfo.fieldType == Integer.class) {
-						int cdata = Fields.hexToInt(data);
+						int cdata = (int) numericValue(o);
 						w.write((byte) (cdata >> 24));
 						w.write((byte) (cdata >> 16));
 						w.write((byte) (cdata >> 8));
 						w.write((byte) cdata);
 					} else if (fieldInfo.fieldType == Long.class) {
-						long cdata = Fields.hexToLong(data);
+						long cdata = numericValue(o);
 						w.write((byte) (cdata >> 56));
 						w.write((byte) (cdata >> 48));
 						w.write((byte) (cdata >> 40));
@@ -360,14 +518,13 @@ public class FieldSet extends AbstractMap {
 						w.write((byte) (cdata >> 8));
 						w.write((byte) cdata);
 					} else if (fieldInfo.fieldType == BigInteger.class) {
-						byte[] cdata = freenet.support.HexUtil.hexToBytes(data);
+						byte[] cdata =
+							freenet.support.HexUtil.hexToBytes(o.toString());
 						w.write((byte) cdata.length);
 						w.write(cdata);
-					} else if (fieldInfo.fieldType == String.class) {
-						w.writeUTF(data, '\n');
 					} else {
-						//couldn't compress the value
-						w.writeUTF(data, '\n');
+						//String, or couldn't compress the value
+						writeText(w, o);
 					}
 				}
 
@@ -375,6 +532,22 @@ public class FieldSet extends AbstractMap {
 		}
 	}
 
+	private static long numericValue(Object o) throws NumberFormatException {
+		if (o instanceof HexValue)
+			return ((HexValue) o).value;
+		return Fields.hexToLong((String) o);
+	}
+
+	private static void writeText(WriteOutputStream w, Object o)
+		throws IOException {
+		if (o instanceof HexValue) {
+			writeHex(w, ((HexValue) o).value);
+			w.write('\n');
+		} else {
+			w.writeUTF((String) o, '\n');
+		}
+	}
+
 	/**
 	 * Parses fields from a stream using the standard separators.
 	 * 
@@ -538,6 +711,19 @@ public class FieldSet extends AbstractMap {
 		}
 	}
 
+	/**
+	 * Parses fields written by writeCompressed(). Fields that the code table
+	 * gives a numeric type are read straight into numbers, rather than
+	 * Strings that have to be parsed again by the messages; use getLong() to
+	 * get them.
+	 * 
+	 * @param in
+	 *            The stream to read.
+	 * @param ctable
+	 *            The field names and types, indexed by field code.
+	 * @return The trailing field name, or <code>null</code> if the stream
+	 *         ended first.
+	 */
 	public String parseCompressed(
 		ReadInputStream in,
 		freenet
@@ -548,13 +734,15 @@ public class FieldSet extends AbstractMap {
 		while (true) {
 			int s;
 			String name;
-			String data;
+			Object data;
 			try {
 				s = in.read();
 			} catch (EOFException e) {
 				Core.logger.log(this, "EOF before fieldset name: readToEOF threw " + e, e, Logger.MINOR);
 				return null;
 			}
+			if (s == -1)
+				return null;
 			int code = s & 0x7f; //strip the high bit
 			if (s == code) { // no high bit -> regular field format
 				String s2 = in.readToEOF('\n', '\r');
@@ -566,15 +754,18 @@ public class FieldSet extends AbstractMap {
 					return (char) s + s2; //return the trailing field name
 				}
 			} else {
+				if (ctable == null || code >= ctable.length)
+					throw new IOException("Unknown field code " + code);
 				name = ctable[code].fieldName;
+				Class type = ctable[code].fieldType;
 
 				try {
-					if (ctable[code].fieldType == Byte.class) {
+					if (type == Byte.class) {
 						int cdata = in.read();
 						if (cdata == -1)
 							throw new EOFException("expecting byte");
-						data = Integer.toHexString(cdata);
-					} else if (ctable[code].fieldType == Integer.class) {
+						data = new HexValue(cdata);
+					} else if (type == Integer.class) {
 						int cdata = 0;
 						for (int i = 0; i < 4; i++) {
 							cdata <<= 8;
@@ -584,8 +775,8 @@ public class FieldSet extends AbstractMap {
 									"expecting byte " + i + " of int");
 							cdata |= b;
 						}
-						data = Integer.toHexString(cdata);
-					} else if (ctable[code].fieldType == Long.class) {
+						data = new HexValue(cdata & 0xffffffffL);
+					} else if (type == Long.class) {
 						long cdata = 0;
 						for (int i = 0; i < 8; i++) {
 							cdata <<= 8;
@@ -595,8 +786,8 @@ public class FieldSet extends AbstractMap {
 									"expecting byte " + i + " of long");
 							cdata |= b;
 						}
-						data = Long.toHexString(cdata);
-					} else if (ctable[code].fieldType == BigInteger.class) {
+						data = new HexValue(cdata);
+					} else if (type == BigInteger.class) {
 						int len = in.read();
 						byte[] cdata = new byte[len];
 						for (int i = 0; i < len; i++) {
@@ -607,8 +798,13 @@ public class FieldSet extends AbstractMap {
 							cdata[i] = (byte) b;
 						}
 						data = HexUtil.bytesToHex(cdata);
-					} else if (ctable[code].fieldType == String.class) {
-						data = in.readToEOF('\n');
+					} else if (
+						type == Long.TYPE
+							|| type == Integer.TYPE
+							|| type == Short.TYPE
+							|| type == Byte.TYPE) {
+						// Written as hex text
+						data = readHex(in);
 					} else {
 						data = in.readToEOF('\n');
 					}
@@ -621,11 +817,55 @@ public class FieldSet extends AbstractMap {
 					return null;
 				}
 			}
-			readField(name, data, '.', voidF);
+			putValue(name, data, '.', voidF);
 		} //while loop loops forever; normal exit path is the "return (char) s
 		// + s2" line
 	}
 
+	/**
+	 * Reads a line of hex text into a HexValue, if it is exactly what
+	 * Long.toHexString() would have written. Otherwise returns the line as
+	 * a String, as readToEOF('\n') would.
+	 */
+	private static Object readHex(ReadInputStream in) throws IOException {
+		long value = 0;
+		int digits = 0;
+		char c;
+		while (true) {
+			try {
+				c = in.readUTFChar();
+			} catch (EOFException e) {
+				if (digits == 0)
+					throw e;
+				return new HexValue(value);
+			}
+			if (c == '\n') {
+				if (digits == 0)
+					return "";
+				return new HexValue(value);
+			}
+			int d = Character.digit(c, 16);
+			if (d < 0
+				|| (c >= 'A' && c <= 'F')
+				|| digits == 16
+				|| (digits == 1 && value == 0))
+				break;
+			value = (value << 4) | d;
+			digits++;
+		}
+		// Not canonical hex, keep the text as it was
+		StringBuffer sb = new StringBuffer(digits + 1);
+		if (digits > 0)
+			sb.append(Long.toHexString(value));
+		sb.append(c);
+		try {
+			sb.append(in.readToEOF('\n'));
+		} catch (EOFException e) {
+			// Ended with c
+		}
+		return sb.toString();
+	}
+
 	/**
 	 * Hashes the FieldSet without ignoring any strings.
 	 * 
@@ -678,7 +918,7 @@ public class FieldSet extends AbstractMap {
 				ctx.update(prefix);
 				ctx.update(f);
 				ctx.update(HASH_EQUALS);
-				ctx.update(UTF8.encode((String) data));
+				ctx.update(UTF8.encode(data.toString()));
 				ctx.update(HASH_NEWLINE);
 			}
 		}
@@ -725,9 +965,15 @@ public class FieldSet extends AbstractMap {
 	 * Reads a field off a name and value
 	 */
 	protected void readField(String name, String value, char sep, Filter f) {
+		putValue(name, value, sep, f);
+	}
+
+	private void putValue(String name, Object value, char sep, Filter f) {
 		int dot = name.indexOf(sep);
 		if (dot < 0) { // value
 			fields.put(f.filter(name), value);
+			if (value instanceof HexValue)
+				hasHexValues = true;
 		} else { // subset
 			String fname = f.filter(name.substring(0, dot));
 			FieldSet fs = getSet(fname);
@@ -735,7 +981,7 @@ public class FieldSet extends AbstractMap {
 				fs = newFieldSet();
 				fields.put(fname, fs);
 			}
-			fs.readField(name.substring(dot + 1), value, sep, f);
+			fs.putValue(name.substring(dot + 1), value, sep, f);
 		}
 	}
 
@@ -754,13 +1000,45 @@ public class FieldSet extends AbstractMap {
 		} else if (other == null || !(other instanceof FieldSet)) {
 			return false;
 		} else {
-			FieldSet otherSet = (FieldSet) other;
-			return fields.equals(otherSet.fields);
+			// A HexValue equals the String it would be written as. The
+			// values are compared as they are, so that neither set changes
+			Map otherFields = ((FieldSet) other).fields;
+			if (fields.size() != otherFields.size())
+				return false;
+			for (Iterator i = fields.entrySet().iterator(); i.hasNext();) {
+				Map.Entry e = (Map.Entry) i.next();
+				Object a = e.getValue();
+				Object b = otherFields.get(e.getKey());
+				if (b == null)
+					return false;
+				if (a instanceof HexValue && b instanceof HexValue) {
+					if (((HexValue) a).value != ((HexValue) b).value)
+						return false;
+				} else if (a instanceof HexValue || b instanceof HexValue) {
+					if (!a.toString().equals(b.toString()))
+						return false;
+				} else if (!a.equals(b)) {
+					return false;
+				}
+			}
+			return true;
 		}
 	}
 
+	/**
+	 * The same as the hash code of the Map with any HexValues written as
+	 * Strings, without changing the map.
+	 */
 	public int hashCode() {
-		return fields.hashCode();
+		int h = 0;
+		for (Iterator i = fields.entrySet().iterator(); i.hasNext();) {
+			Map.Entry e = (Map.Entry) i.next();
+			Object v = e.getValue();
+			int vh =
+				v instanceof HexValue ? v.toString().hashCode() : v.hashCode();
+			h += e.getKey().hashCode() ^ vh;
+		}
+		return h;
 	}
 
     /**
@@ -1,12 +1,20 @@
 package freenet;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Method;
 
+import freenet.presentation.FNCRawMessage;
+import freenet.presentation.FNPRawMessage;
+import freenet.presentation.FreenetProtocol;
 import freenet.support.io.ReadInputStream;
 
 /**
- * Simple benchmark for FieldSet.
+ * Simple benchmark for FieldSet. Also parses and writes a DataRequest as
+ * FNP text and as FNC compressed, reading the numeric fields the way the
+ * messages do, and shows the bytes allocated per message where the JVM can
+ * tell us.
  * 
  * @author syoung
  */
@@ -15,7 +23,7 @@ public class FieldSetBenchmark {
 	/** Approximately how many milliseconds to run the tests for. */
 	private final static long runtime = 5 * 1000;
 
-	public static void main(String[] args) throws IOException {
+	public static void main(String[] args) throws Exception {
 		System.out.println("Running...");
 
 		// Create a test field set.
@@ -94,6 +102,146 @@ public class FieldSetBenchmark {
 			iterations += 1000;
 		} while ((duration = System.currentTimeMillis() - start) < runtime);
 		System.out.println("put: " + iterations / duration + " operations/s");
+
+		benchmarkMessages();
+	}
+
+	/** Something to run over and over */
+	private interface Op {
+		void run() throws IOException;
+	}
+
+	private static long sink;
+
+	private static void benchmarkMessages() throws Exception {
+		final long id = 0x5d2c8e1fa7b34c09L;
+		final String key =
+			"e1a2b3c4d5e6f708192a3b4c5d6e7f8091a2b3c4d5e6f70302";
+		FieldSet fs = new FieldSet();
+		fs.put("UniqueID", id);
+		fs.put("HopsToLive", 0x14L);
+		fs.put("SearchKey", key);
+
+		final RawMessage fnp =
+			new FreenetProtocol().newMessage(
+				"DataRequest", false, false, fs, 0, null, null, 0);
+		final RawMessage fnc =
+			new FNCRawMessage("DataRequest", false, false, fs, 0, null, null);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+		fnp.writeMessage(out);
+		final byte[] fnpBytes = out.toByteArray();
+		out.reset();
+		fnc.writeMessage(out);
+		final byte[] fncBytes = out.toByteArray();
+
+		// Check that both come back as they went
+		RawMessage[] read =
+			{
+				new FNPRawMessage(new ByteArrayInputStream(fnpBytes)),
+				new FNCRawMessage(new ReadInputStream(
+					new ByteArrayInputStream(fncBytes)))};
+		for (int i = 0; i < read.length; i++) {
+			if (!read[i].messageType.equals("DataRequest")
+				|| read[i].fs.getLong("UniqueID") != id
+				|| read[i].fs.getLong("HopsToLive") != 0x14
+				|| !key.equals(read[i].fs.getString("SearchKey")))
+				throw new IllegalStateException("Bad round trip: " + read[i]);
+		}
+
+		time("FNP write", fnpBytes.length, new Op() {
+			public void run() throws IOException {
+				out.reset();
+				fnp.writeMessage(out);
+			}
+		});
+		time("FNP parse", fnpBytes.length, new Op() {
+			public void run() throws IOException {
+				RawMessage m =
+					new FNPRawMessage(new ByteArrayInputStream(fnpBytes));
+				sink += m.fs.getLong("UniqueID") + m.fs.getLong("HopsToLive");
+			}
+		});
+		time("FNC write", fncBytes.length, new Op() {
+			public void run() throws IOException {
+				out.reset();
+				fnc.writeMessage(out);
+			}
+		});
+		time("FNC parse", fncBytes.length, new Op() {
+			public void run() throws IOException {
+				RawMessage m;
+				try {
+					m =
+						new FNCRawMessage(new ReadInputStream(
+							new ByteArrayInputStream(fncBytes)));
+				} catch (FNCRawMessage.UnknownEncodingException e) {
+					throw new IOException(e.toString());
+				}
+				sink += m.fs.getLong("UniqueID") + m.fs.getLong("HopsToLive");
+			}
+		});
+	}
+
+	private static void time(String name, int size, Op op)
+		throws IOException {
+		// Warm up
+		for (int i = 0; i < 10000; i++)
+			op.run();
+		int iterations = 0;
+		long duration;
+		long start = System.currentTimeMillis();
+		do {
+			for (int i = 0; i < 1000; i++)
+				op.run();
+			iterations += 1000;
+		} while ((duration = System.currentTimeMillis() - start) < runtime);
+		long before = allocatedBytes();
+		for (int i = 0; i < 10000; i++)
+			op.run();
+		long allocated = allocatedBytes() - before;
+		System.out.println(
+			name
+				+ ": "
+				+ (iterations * 1000L / duration)
+				+ " messages/s, "
+				+ size
+				+ " bytes on the wire, "
+				+ (before < 0 ? "unknown" : Long.toString(allocated / 10000))
+				+ " bytes allocated per message");
+	}
+
+	private static Object threadBean;
+
+	private static Method getThreadAllocatedBytes;
+
+	private static Method getId;
+
+	/**
+	 * @return how many bytes this thread has allocated, or -1 if this isn't
+	 *         a JVM with com.sun.management.ThreadMXBean.
+	 */
+	private static long allocatedBytes() {
+		try {
+			if (threadBean == null) {
+				threadBean =
+					Class
+						.forName("java.lang.management.ManagementFactory")
+						.getMethod("getThreadMXBean", new Class[0])
+						.invoke(null, new Object[0]);
+				getThreadAllocatedBytes =
+					Class.forName("com.sun.management.ThreadMXBean").getMethod(
+						"getThreadAllocatedBytes",
+						new Class[] { Long.TYPE });
+				getId = Thread.class.getMethod("getId", new Class[0]);
+			}
+			Object tid = getId.invoke(Thread.currentThread(), new Object[0]);
+			return ((Long) getThreadAllocatedBytes
+				.invoke(threadBean, new Object[] { tid }))
+				.longValue();
+		} catch (Exception e) {
+			return -1;
+		}
 	}
 
 }
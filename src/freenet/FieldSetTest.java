@@ -1,9 +1,13 @@
 package freenet;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.HashMap;
 
+import freenet.presentation.FNCRawMessage;
 import freenet.support.io.ReadInputStream;
+import freenet.support.io.WriteOutputStream;
 
 import junit.framework.TestCase;
 
@@ -114,4 +118,171 @@ public class FieldSetTest extends TestCase {
 		assertTrue(str.length() > 100);
 	}
 
+	/**
+	 * Numbers put as longs come back the same, from the FieldSet and after
+	 * being written out and read back, and read as the hex text they
+	 * stand for.
+	 */
+	public void testLongs() throws IOException {
+		long[] values =
+			{ 0, 1, 0x14, -1, -0x1234L, Long.MAX_VALUE, Long.MIN_VALUE };
+		FieldSet fs = new FieldSet();
+		for (int i = 0; i < values.length; i++)
+			fs.put("v" + i, values[i]);
+		for (int i = 0; i < values.length; i++) {
+			assertTrue(fs.hasValue("v" + i));
+			assertEquals(values[i], fs.getLong("v" + i));
+		}
+
+		FieldSet read = writeAndParse(fs);
+		assertEquals(values.length, read.size());
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(values[i], read.getLong("v" + i));
+			assertEquals(Long.toHexString(values[i]), read.getString("v" + i));
+		}
+
+		// Asking for a String doesn't lose the number
+		assertEquals("ffffffffffffffff", fs.get("v3"));
+		assertEquals(-1, fs.getLong("v3"));
+		assertEquals(7, fs.getLong("missing", 7));
+	}
+
+	/**
+	 * A number equals the hex text it is written as, in either order and
+	 * in subsets, and hashes the same as a Map of the text would.
+	 */
+	public void testEqualsAsText() {
+		FieldSet n = new FieldSet();
+		n.put("a", 0x1fL);
+		FieldSet ns = new FieldSet();
+		ns.put("b", -1L);
+		n.put("s", ns);
+		FieldSet t = new FieldSet();
+		t.put("a", "1f");
+		FieldSet ts = new FieldSet();
+		ts.put("b", "ffffffffffffffff");
+		t.put("s", ts);
+
+		assertEquals(n, t);
+		assertEquals(t, n);
+		assertEquals(t.hashCode(), n.hashCode());
+		HashMap m = new HashMap();
+		m.put("b", "ffffffffffffffff");
+		assertEquals(m.hashCode(), ns.hashCode());
+		// Still numbers afterwards
+		assertEquals(0x1f, n.getLong("a"));
+
+		t.put("a", "01f");
+		assertFalse(n.equals(t));
+		assertFalse(t.equals(n));
+		n.put("a", 0x2fL);
+		t.put("a", 0x1fL);
+		assertFalse(n.equals(t));
+	}
+
+	/**
+	 * Hex that isn't what Long.toHexString() would write, with leading
+	 * zeros or capitals, still reads as a number, and is written back
+	 * exactly as it came.
+	 */
+	public void testNonCanonicalHex() throws IOException {
+		String[] text = { "00ff", "0", "00", "FF", "aB", "0fF", "0000000000000001" };
+		long[] values = { 0xff, 0, 0, 0xff, 0xab, 0xff, 1 };
+		FieldSet fs = new FieldSet();
+		for (int i = 0; i < text.length; i++)
+			fs.put("v" + i, text[i]);
+		FieldSet read = writeAndParse(fs);
+		for (int i = 0; i < text.length; i++) {
+			assertEquals(text[i], values[i], read.getLong("v" + i));
+			assertEquals(text[i], read.getString("v" + i));
+		}
+
+		// The same through FNC, where HopsToLive is parsed as a number
+		for (int i = 0; i < text.length; i++) {
+			fs = new FieldSet();
+			fs.put("UniqueID", 1);
+			fs.put("HopsToLive", text[i]);
+			read = fncRoundTrip("DataRequest", fs).fs;
+			assertEquals(text[i], values[i], read.getLong("HopsToLive"));
+			assertEquals(text[i], read.getString("HopsToLive"));
+		}
+	}
+
+	/**
+	 * An FNC message with nested sets, fields in and out of the code table,
+	 * and long values at the extremes, reads back as it was written. This
+	 * includes message code 0 and the close and sustain flags.
+	 */
+	public void testFNCRoundTrip() throws IOException {
+		FieldSet fs = new FieldSet();
+		fs.put("UniqueID", Long.MIN_VALUE);
+		fs.put("HopsSinceReset", 3);
+		fs.put("RequestRate", "3f1");
+		FieldSet ref = fs.makeSet("DataSource");
+		ref.put("sessions", "1");
+		ref.put("presentations", "3,1");
+		ref.makeSet("physical").put("tcp", "node.example.com:52296");
+		ref.makeSet("ARK").put("revision", 0x12);
+		ref.getSet("ARK").put("encryption", "1234567890abcdef");
+		fs.makeSet("Extra").makeSet("a").put("b", -1);
+
+		RawMessage m = fncRoundTrip("StoreData", fs);
+		assertEquals("StoreData", m.messageType);
+		assertEquals("EndMessage", m.trailingFieldName);
+		assertEquals(Long.MIN_VALUE, m.fs.getLong("UniqueID"));
+		assertEquals(3, m.fs.getLong("HopsSinceReset"));
+		assertEquals("3f1", m.fs.getString("RequestRate"));
+		FieldSet readRef = m.fs.getSet("DataSource");
+		assertNotNull(readRef);
+		assertEquals("1", readRef.getString("sessions"));
+		assertEquals("3,1", readRef.getString("presentations"));
+		assertEquals(
+			"node.example.com:52296",
+			readRef.getSet("physical").getString("tcp"));
+		assertEquals(0x12, readRef.getSet("ARK").getLong("revision"));
+		assertEquals(
+			"1234567890abcdef",
+			readRef.getSet("ARK").getString("encryption"));
+		assertEquals(-1, m.fs.getSet("Extra").getSet("a").getLong("b"));
+		assertEquals(fs, m.fs);
+
+		fs = new FieldSet();
+		fs.put("UniqueID", Long.MAX_VALUE);
+		m = fncRoundTrip("Accepted", fs, true, true);
+		assertEquals("Accepted", m.messageType);
+		assertEquals(Long.MAX_VALUE, m.fs.getLong("UniqueID"));
+		assertTrue(m.close);
+		assertTrue(m.sustain);
+	}
+
+	private static FieldSet writeAndParse(FieldSet fs) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		WriteOutputStream w = new WriteOutputStream(out);
+		fs.writeFields(w);
+		w.flush();
+		return new FieldSet(
+			new ReadInputStream(new ByteArrayInputStream(out.toByteArray())));
+	}
+
+	private static RawMessage fncRoundTrip(String type, FieldSet fs)
+		throws IOException {
+		return fncRoundTrip(type, fs, false, false);
+	}
+
+	private static RawMessage fncRoundTrip(
+		String type,
+		FieldSet fs,
+		boolean close,
+		boolean sustain)
+		throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new FNCRawMessage(type, close, sustain, fs, 0, null, null).writeMessage(
+			out);
+		try {
+			return new FNCRawMessage(
+				new ReadInputStream(new ByteArrayInputStream(out.toByteArray())));
+		} catch (FNCRawMessage.UnknownEncodingException e) {
+			throw new IOException(e.toString());
+		}
+	}
 }
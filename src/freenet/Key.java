@@ -215,6 +215,10 @@ public class Key implements Measurable, Serializable { //Cloneable {
 			this.val = new byte[KEYBYTES];
 			System.arraycopy(b, b.length - KEYBYTES, val, 0, KEYBYTES);
 			//Strip the byte containing the signum bit
+		} else if (b.length < KEYBYTES) {
+			// Pad on the left, so the bytes have the same value
+			this.val = new byte[KEYBYTES];
+			System.arraycopy(b, 0, val, KEYBYTES - b.length, b.length);
 		} else {
 			this.val = b;
 		}
@@ -226,6 +230,33 @@ public class Key implements Measurable, Serializable { //Cloneable {
 	    return doubleValue;
 	}
 	
+	/**
+	 * @return bits 183 to 120 of toBigInteger(), as an unsigned long.
+	 *         Together with keyspaceLow() a fixed width position in the
+	 *         keyspace that routing can use without a BigInteger.
+	 */
+	public long keyspaceHigh() {
+		return keyspaceBits(0);
+	}
+
+	/**
+	 * @return bits 119 to 56 of toBigInteger(), as an unsigned long.
+	 */
+	public long keyspaceLow() {
+		return keyspaceBits(8);
+	}
+
+	private long keyspaceBits(int offset) {
+		byte[] b = getVal();
+		long l = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			l <<= 8;
+			if (i < b.length && i < KEYBYTES)
+				l |= b[i] & 0xff;
+		}
+		return l;
+	}
+
 	public final BigInteger toBigInteger() {
 	    return toBigInteger(false);
 	}
@@ -61,13 +61,20 @@ public class MuxConnectionHandler
 	private final Irreversible receiveClosed = new Irreversible(false);
 	
 	// Sending...
-	private PeerPacket sendingPacket;
+	private PeerPacketBatch sendingPackets;
 	private final Object sendingPacketLock = new Object();
 	
 	// Receiving
 	private final PeerPacketParser messageParser;
-	private final static Object decryptBufferLock = new Object();
-	private final static byte[] decryptBuffer = new byte[tcpConnection.BUFFER_SIZE];
+	/** One per reading thread, as there may be several (see SelectorLoopGroup) */
+	private final static ThreadLocal decryptBuffers = new ThreadLocal() {
+		protected Object initialValue() {
+			return new byte[tcpConnection.BUFFER_SIZE];
+		}
+	};
+	/** Leased from tcpConnection's pool while it has data, see getBuf() */
+	private ByteBuffer readBuffer;
+	private final Object readBufferLock = new Object();
 	final Ticker t;
 
 	// Termination
@@ -84,6 +91,10 @@ public class MuxConnectionHandler
 	int messagesReceived;
 	private final ConnectionDataTransferAccounter accounter;
 	private static final long MINIMUM_ACCEPTABLE_CONNECTION_LIFETIME = 20000;
+	
+	/** Limits on the packets sent with one write */
+	private static final int MAX_BATCH_PACKETS = 16;
+	private static final int MAX_BATCH_BYTES = 16384;
 
 	long lastToString = -1;
 	
@@ -152,8 +163,59 @@ public class MuxConnectionHandler
 	}
 	}
 
+	/**
+	 * @return the buffer the RSL should read into, or null once we have
+	 *         terminated. Until it is empty, that is the buffer the
+	 *         connection was negotiated with, which may have our first
+	 *         bytes in it. After that, a buffer is leased from
+	 *         tcpConnection's pool when the RSL is about to read, and given
+	 *         back as soon as process() has emptied it, so an idle
+	 *         connection holds no buffer. Only called by the RSL thread.
+	 */
 	public ByteBuffer getBuf() {
-		return conn.getInputBuffer();
+		synchronized(readBufferLock) {
+			if(terminated.state())
+				// Anything read now would be thrown away anyway
+				return null;
+			if(readBuffer != null) return readBuffer;
+			tcpConnection c = conn;
+			if(c != null) {
+				ByteBuffer b = c.getInputBuffer();
+				if(b != null) {
+					if(b.hasRemaining())
+						return b;
+					c.releaseInputBuffer();
+				}
+			}
+			readBuffer = tcpConnection.leaseBuffer(tcpConnection.BUFFER_SIZE);
+			readBuffer.limit(0);
+			return readBuffer;
+		}
+	}
+
+	/**
+	 * Give back the read buffer if process() has emptied it.
+	 */
+	private void releaseReadBuffer(ByteBuffer b) {
+		synchronized(readBufferLock) {
+			if(b != readBuffer || b.hasRemaining()) return;
+			readBuffer = null;
+		}
+		tcpConnection.releaseBuffer(b);
+	}
+
+	/**
+	 * Give up the read buffer on termination. The RSL may still be using it,
+	 * so it can't go back to the pool.
+	 */
+	private void forgetReadBuffer() {
+		ByteBuffer b;
+		synchronized(readBufferLock) {
+			b = readBuffer;
+			readBuffer = null;
+		}
+		if(b != null)
+			tcpConnection.forgetBuffer(b);
 	}
 
 	public boolean shouldThrottle() {
@@ -195,13 +257,12 @@ public class MuxConnectionHandler
 		synchronized(sendingPacketLock) {
 			if (terminated.state() || sendClosed.state())
 				return false;
-			if(sendingPacket != null) {
+			if(sendingPackets != null) {
 				return false;
 			} else {
 				// Not sending a packet!
-				sendingPacket =
-					peerHandler.getPacket(p, identity, ppm, null, false, true);
-				if (sendingPacket == null){
+				sendingPackets = getPackets(ppm, null);
+				if (sendingPackets == null){
 					if(ppm != null)
 					Core.logger.log(this, "Asked to send " + ppm + " on " + this + ", but packet did not exist",
 							Logger.ERROR);
@@ -209,7 +270,7 @@ public class MuxConnectionHandler
 				}
 				// nothing to do, prevent caller from spinning.
 				if(logDEBUG)
-					Core.logger.log(this, "Sending " + sendingPacket + " on " + this + ".forceSendPacket()",
+					Core.logger.log(this, "Sending " + sendingPackets + " on " + this + ".forceSendPacket()",
 						Logger.DEBUG);
 			}
 		} // can only be changed in synched
@@ -218,18 +279,49 @@ public class MuxConnectionHandler
 	}
 	
 	/**
-	 * Send the packet in sendingPacket.
+	 * Get packets to send: the first from the given messages and whatever
+	 * is queued, as PeerHandler.getPacket() does, then more packets of
+	 * queued messages until we have MAX_BATCH_BYTES or MAX_BATCH_PACKETS.
+	 * They go out in one gathering write. Call with sendingPacketLock held.
 	 * 
-	 * @return true if we sent sendingPacket, false if something broke
+	 * @return null if there is nothing to send.
+	 */
+	private PeerPacketBatch getPackets(PeerPacketMessage m, PeerPacketMessage m2) {
+		PeerPacket packet = peerHandler.getPacket(p, identity, m, m2, false, true);
+		if (packet == null)
+			return null;
+		PeerPacket[] packets = new PeerPacket[MAX_BATCH_PACKETS];
+		packets[0] = packet;
+		int count = 1;
+		int bytes = packet.getLength();
+		while (count < MAX_BATCH_PACKETS && bytes < MAX_BATCH_BYTES
+				&& !packet.hasCloseMessage()) {
+			packet = peerHandler.getPacket(p, identity, null, null, false, true);
+			if (packet == null)
+				break;
+			packets[count++] = packet;
+			bytes += packet.getLength();
+		}
+		if (count < MAX_BATCH_PACKETS) {
+			PeerPacket[] shorter = new PeerPacket[count];
+			System.arraycopy(packets, 0, shorter, 0, count);
+			packets = shorter;
+		}
+		return new PeerPacketBatch(packets);
+	}
+
+	/**
+	 * Send the packets in sendingPackets.
+	 * 
+	 * @return true if we sent sendingPackets, false if something broke
 	 */
 	private boolean sendPacket() {
 		lastAccessTime = System.currentTimeMillis();
-		PeerPacket packet = sendingPacket;
-		if(packet == null) {
-			Core.logger.log(this, "sendingPacket NULL in sendPacket", new Exception("debug"), Logger.ERROR);
+		PeerPacketBatch packets = sendingPackets;
+		if(packets == null) {
+			Core.logger.log(this, "sendingPackets NULL in sendPacket", new Exception("debug"), Logger.ERROR);
 		    return false;
 		}
-		byte[] toSend = packet.getBytes();
 		if (sendClosed.state()) {
 		    Core.logger.log(this, "sendPacket() returning false because sendClosed",
 		            Logger.DEBUG);
@@ -242,27 +334,27 @@ public class MuxConnectionHandler
 			return false;
 		}
 		try {
-			link.encryptBytes(toSend, 0, toSend.length);
+			packets.encrypt(link);
 		} catch (IOException e) {
-			Core.logger.log(this, "Couldn't encrypt " + sendingPacket + " for " + link + ": " + e, e, Logger.MINOR);
+			Core.logger.log(this, "Couldn't encrypt " + packets + " for " + link + ": " + e, e, Logger.MINOR);
 			terminate();
 			return false;
 		}
 		synchronized(statsLock) {
-			messagesSent += packet.countMessages();
+			messagesSent += packets.countMessages();
 		}
 		try {
-			if (!wsl.send(toSend, 0, toSend.length, chan, this, packet.priority())) {
-				Core.logger.log(this, "Cannot write " + packet + " to " + this
+			if (!wsl.send(packets.buffers(), chan, this, packets.priority())) {
+				Core.logger.log(this, "Cannot write " + packets + " to " + this
 						+ ": WSL returned false i.e. send in progress!", Logger.NORMAL);
 				return false;
 			}
 		} catch (IOException e) {
-			Core.logger.log(this, "Caught " + e + " sending " + sendingPacket + " on " + this, Logger.MINOR);
+			Core.logger.log(this, "Caught " + e + " sending " + packets + " on " + this, Logger.MINOR);
 			terminate();
 			return false;
 		}
-		accounter.registerSentData(toSend.length);
+		accounter.registerSentData(packets.getLength());
 		return true;
 	}
 	
@@ -293,6 +385,7 @@ public class MuxConnectionHandler
 		    if(logDEBUG) logDEBUG("Already terminated");
 			return;
 		}
+		forgetReadBuffer();
 		if(identity != null) {
 			if (logDEBUG)
 				logDEBUG("Scheduling connection opener");
@@ -332,16 +425,16 @@ public class MuxConnectionHandler
 		sendClosed.tryChange(); //TODO: Should we care about the returned value?
 		receiveClosed.tryChange(); //TODO: Should we care about the returned value?
 		
-		PeerPacket packet = null;
+		PeerPacketBatch packet = null;
 		synchronized(sendingPacketLock) {
-			if(sendingPacket != null) {
-				packet = sendingPacket;
-				sendingPacket = null;
+			if(sendingPackets != null) {
+				packet = sendingPackets;
+				sendingPackets = null;
 				// TODO: review locking here
 			}
 		}
 		if(packet != null)
-			packet.jobDone(true, 0, peer, null, peerHandler);
+			packet.jobDone(true, 0, peer, peerHandler);
 		
 		try {
 			link.close();
@@ -381,51 +474,52 @@ public class MuxConnectionHandler
 	
 	public void jobDone(int size, boolean status) {
 		lastAccessTime = System.currentTimeMillis();
+		accounter.registerWrite();
 		if(status) {
-			PeerPacket packet = null;
+			PeerPacketBatch packet = null;
 			peerHandler.setResetSendPacket();
 			synchronized(sendingPacketLock) {
-				packet = sendingPacket;
-				sendingPacket = null;
+				packet = sendingPackets;
+				sendingPackets = null;
 			}
 			if(packet != null) {
-				packet.jobDone(true, size, peer, null, peerHandler);
+				packet.jobDone(true, size, peer, peerHandler);
 				if(packet.hasCloseMessage()) {
 					sendClosed.tryChange(); //TODO: Should we care about the returned value?
 					return;
 				}
 			}else{
-				Core.logger.log(this, "jobDone(" + size + ","+status+") on " + this + " but sendingPacket == null!", Logger.ERROR);
+				Core.logger.log(this, "jobDone(" + size + ","+status+") on " + this + " but sendingPackets == null!", Logger.ERROR);
 			}
 			// Send the next packet, if possible
 			synchronized(sendingPacketLock) {
 				if (terminated.state() || sendClosed.state())
 					return;
-				if (sendingPacket != null)
+				if (sendingPackets != null)
 					return;
 				// Not sending a packet!
-				sendingPacket = peerHandler.getPacket(p, identity, null, null, false, true);
-				if (sendingPacket == null)
+				sendingPackets = getPackets(null, null);
+				if (sendingPackets == null)
 					return;
 				if(logDEBUG)
-					Core.logger.log(this, "Sending " + sendingPacket + " on " + this + ".forceSendPacket()", Logger.DEBUG);
+					Core.logger.log(this, "Sending " + sendingPackets + " on " + this + ".forceSendPacket()", Logger.DEBUG);
 			} // can only be changed in synched
 			// But can now be used outside synch
-			if (sendingPacket != null)
+			if (sendingPackets != null)
 				sendPacket();
 		} else {
 			// It failed. Uh oh.
 			// Prevent any more being sent
 			sendClosed.tryChange(); //TODO: Should we care about the returned value?
 			// Now notify the messages
-			PeerPacket packet = null;
+			PeerPacketBatch packet = null;
 			synchronized(sendingPacketLock) {
-				packet = sendingPacket;
-				sendingPacket = null;
+				packet = sendingPackets;
+				sendingPackets = null;
 			}
 			if (packet != null) //FIXME was == null which is obviously
 				// wrong...
-				packet.jobDone(true, size, peer, null, peerHandler);
+				packet.jobDone(true, size, peer, peerHandler);
 		}
 		if (sendClosed.state() && receiveClosed.state()) {
 			if (logDEBUG)
@@ -436,10 +530,11 @@ public class MuxConnectionHandler
 
 	public void jobPartDone(int size) {
 		lastAccessTime = System.currentTimeMillis();
-		if(sendingPacket != null) {
-			sendingPacket.jobDone(false, size, peer, null, peerHandler);
+		accounter.registerWrite();
+		if(sendingPackets != null) {
+			sendingPackets.jobDone(false, size, peer, peerHandler);
 		} else {
-			Core.logger.log(this, "jobPartDone(" + size + ") on " + this + " but sendingPacket == null!", Logger.ERROR);
+			Core.logger.log(this, "jobPartDone(" + size + ") on " + this + " but sendingPackets == null!", Logger.ERROR);
 		}
 	}
 
@@ -459,19 +554,18 @@ public class MuxConnectionHandler
 			int len = b.remaining();
 			if(len > 0)
 				accounter.registerReceivedData(len);
-			synchronized(decryptBufferLock) {
-				// Accumulator is kept in a ready to read state by RSL
-				if(len > 0) {
-					b.get(decryptBuffer, 0, len);
-					b.limit(0); // consumed all data
-					link.decryptBytes(decryptBuffer, 0, len);
-					if(logDEBUG)
-						Core.logger.log(
-							this,
-							"Decrypted " + len + " bytes, processing...",
-								Logger.DEBUG);
-					kill = messageParser.process(decryptBuffer, 0, len);
-				}
+			// Accumulator is kept in a ready to read state by RSL
+			if(len > 0) {
+				byte[] decryptBuffer = (byte[]) decryptBuffers.get();
+				b.get(decryptBuffer, 0, len);
+				b.limit(0); // consumed all data
+				link.decryptBytes(decryptBuffer, 0, len);
+				if(logDEBUG)
+					Core.logger.log(
+						this,
+						"Decrypted " + len + " bytes, processing...",
+							Logger.DEBUG);
+				kill = messageParser.process(decryptBuffer, 0, len);
 			}
 		} catch (IOException e) {
 			// It broke :(
@@ -482,6 +576,7 @@ public class MuxConnectionHandler
 				return -1;
 			}
 		}
+		releaseReadBuffer(b);
 		if(kill) {
 			Core.logger.log(this, "Terminating corrupt mux connection " + this, Logger.NORMAL);
 		    terminate();
@@ -585,16 +680,15 @@ public class MuxConnectionHandler
         }
 		boolean send = false;
 		synchronized(sendingPacketLock) {
-			if(sendingPacket == null) {
-				sendingPacket =
-					peerHandler.getPacket(p, identity, im, dm, false, true);
+			if(sendingPackets == null) {
+				sendingPackets = getPackets(im, dm);
 				send = true;
 			}
 		}
 		if(send) {
 			if ((!sendPacket()) && (!terminated.state())) {
 				Core.logger.log(this, "registerOCM failed to send packet " + 
-				        sendingPacket + " on " + this, Logger.NORMAL);
+				        sendingPackets + " on " + this, Logger.NORMAL);
 				terminate();
 			}
 		}
@@ -619,7 +713,7 @@ public class MuxConnectionHandler
 	}
 
 	public boolean isSendingPacket() {
-		return sendingPacket != null;
+		return sendingPackets != null;
 	}
 
 	public ConnectionDataTransferAccounter getTransferAccounter() {
@@ -681,7 +775,7 @@ public class MuxConnectionHandler
     }
 
     public boolean inFlightMessagesWithMRI() {
-        PeerPacket packet = sendingPacket;
+        PeerPacketBatch packet = sendingPackets;
         if(packet == null) return false;
         return packet.messagesWithMRI();
     }
@@ -1,6 +1,7 @@
 package freenet;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 
 import freenet.support.Logger;
@@ -53,6 +54,28 @@ public class MuxTrailerWriter implements TrailerWriter {
 							  TrailerWriteCallback cb) 
 		throws AlreadySendingTrailerChunkException,
 			IOException {
+		startWrite();
+		TrailerChunkPacketMessage tcpm =
+			new TrailerChunkPacketMessage(this, block, offset, length, cb, written);
+		writeManager.write(tcpm);
+	}
+
+	/**
+	 * Write a chunk straight from the buffer; it is only copied when the
+	 * packet containing it is put together.
+	 */
+	public synchronized void writeTrailing(ByteBuffer block,
+							  TrailerWriteCallback cb) 
+		throws AlreadySendingTrailerChunkException,
+			IOException {
+		startWrite();
+		TrailerChunkPacketMessage tcpm =
+			new TrailerChunkPacketMessage(this, block, cb, written);
+		writeManager.write(tcpm);
+	}
+
+	private void startWrite() throws AlreadySendingTrailerChunkException,
+			IOException {
 	    long now = System.currentTimeMillis();
 	    if(now - lastSentTime > MAX_IDLETIME_BETWEEN_WRITES) {
 	        Core.logger.log(this, "Took more than 5 minutes to get next chunk to send ("+(now-lastSentTime)/1000+" seconds): killing "+this,
@@ -67,9 +90,6 @@ public class MuxTrailerWriter implements TrailerWriter {
 			throw new AlreadySendingTrailerChunkException();
 		}
 		writingPacket = true;
-		TrailerChunkPacketMessage tcpm =
-			new TrailerChunkPacketMessage(this, block, offset, length, cb, written);
-		writeManager.write(tcpm);
 	}
 
 	public boolean isClosed() {
@@ -1,6 +1,7 @@
 package freenet;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import freenet.support.Logger;
 
@@ -29,6 +30,13 @@ public class OutputStreamTrailerWriter implements TrailerWriter {
 	}
     }
     
+    public void writeTrailing(ByteBuffer block, TrailerWriteCallback cb)
+	throws IOException {
+	byte[] b = new byte[block.remaining()];
+	block.duplicate().get(b);
+	writeTrailing(b, 0, b.length, cb);
+    }
+    
     public void close() {
         closed = true;
 	try {
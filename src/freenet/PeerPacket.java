@@ -92,9 +92,7 @@ class PeerPacket {
         for (int i = 0; i < v.size(); i++) {
             PeerPacketMessage m = (PeerPacketMessage)(v.get(i));
             messages[i] = m;
-            byte[] msgBytes = m.getContent();
-            System.arraycopy(msgBytes, 0, data, x, msgBytes.length);
-            x += msgBytes.length;
+            x += m.getContent(data, x);
         }
         if(x != totalLength) throw new IllegalStateException("Inconsistent length: totalLength="+
                 totalLength+", x="+x);
@@ -0,0 +1,126 @@
+package freenet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import freenet.session.Link;
+
+/**
+ * Packets sent together with one gathering write, so that a busy connection
+ * makes one system call for several packets rather than one each. Each
+ * packet is still put together and encrypted on its own, in the order they
+ * go on the wire, and its messages are told how they got on as the bytes
+ * covering them are written.
+ */
+final class PeerPacketBatch {
+
+	final PeerPacket[] packets;
+
+	/** Offset of each packet in the batch */
+	private final int[] starts;
+
+	private final int length;
+
+	/** Packets before this have been told they are finished with */
+	private int done = 0;
+
+	PeerPacketBatch(PeerPacket[] packets) {
+		this.packets = packets;
+		starts = new int[packets.length];
+		int x = 0;
+		for (int i = 0; i < packets.length; i++) {
+			starts[i] = x;
+			x += packets[i].getLength();
+		}
+		length = x;
+	}
+
+	public String toString() {
+		return super.toString() + ": " + packets.length + " packets, "
+				+ length + " bytes, first " + packets[0];
+	}
+
+	int getLength() {
+		return length;
+	}
+
+	int countPackets() {
+		return packets.length;
+	}
+
+	int countMessages() {
+		int x = 0;
+		for (int i = 0; i < packets.length; i++)
+			x += packets[i].countMessages();
+		return x;
+	}
+
+	boolean hasCloseMessage() {
+		for (int i = 0; i < packets.length; i++)
+			if (packets[i].hasCloseMessage()) return true;
+		return false;
+	}
+
+	boolean messagesWithMRI() {
+		for (int i = 0; i < packets.length; i++)
+			if (packets[i].messagesWithMRI()) return true;
+		return false;
+	}
+
+	/**
+	 * @return the most urgent priority of any packet
+	 */
+	int priority() {
+		int prio = packets[0].priority();
+		for (int i = 1; i < packets.length; i++)
+			prio = Math.min(prio, packets[i].priority());
+		return prio;
+	}
+
+	/**
+	 * Encrypt every packet in place, in order.
+	 */
+	void encrypt(Link link) throws IOException {
+		for (int i = 0; i < packets.length; i++) {
+			byte[] b = packets[i].getBytes();
+			link.encryptBytes(b, 0, b.length);
+		}
+	}
+
+	/**
+	 * @return a buffer for each packet, for a gathering write.
+	 */
+	ByteBuffer[] buffers() {
+		ByteBuffer[] buf = new ByteBuffer[packets.length];
+		for (int i = 0; i < packets.length; i++)
+			buf[i] = ByteBuffer.wrap(packets[i].getBytes());
+		return buf;
+	}
+
+	/**
+	 * Tell each packet how much of it has been sent, as
+	 * PeerPacket.jobDone() does for its messages.
+	 *
+	 * @param finished
+	 *            whether we have finished sending the batch.
+	 * @param successfullySentBytes
+	 *            the number of bytes of the batch known to be sent.
+	 */
+	synchronized void jobDone(boolean finished, int successfullySentBytes,
+			Peer sentTo, PeerHandler ph) {
+		for (int i = done; i < packets.length; i++) {
+			int sent = successfullySentBytes - starts[i];
+			if (sent <= 0 && !finished) break;
+			if (sent < 0) sent = 0;
+			int len = packets[i].getLength();
+			if (sent >= len) {
+				packets[i].jobDone(true, len, sentTo, null, ph);
+				done = i + 1;
+			} else {
+				packets[i].jobDone(finished, sent, sentTo, null, ph);
+				if (!finished) break;
+				done = i + 1;
+			}
+		}
+	}
+}
@@ -79,6 +79,12 @@ public interface PeerPacketMessage {
 	 */
 	byte[] getContent();
 
+	/**
+	 * Write the message, exactly as getContent() would return it, into buf.
+	 * @return the number of bytes written, which is getLength().
+	 */
+	int getContent(byte[] buf, int offset);
+
 	/**
 	 * Notify that the message send succeeded.
 	 * @param tw the TrailerWriter to write the trailing field to, IF we are
@@ -9,10 +9,10 @@ import freenet.crypt.DSA;
 import freenet.crypt.DSAGroup;
 import freenet.crypt.DSAPrivateKey;
 import freenet.crypt.DSAPublicKey;
+import freenet.crypt.DSAVerifier;
 import freenet.crypt.DSASignature;
 import freenet.crypt.Digest;
 import freenet.crypt.SHA1;
-import freenet.crypt.Util;
 import freenet.support.HexUtil;
 
 /** A simple wrapper around a FieldSet for dealing with the Storable.*
@@ -96,9 +96,8 @@ public class Storables extends FieldSet {
 		setPublicKey(p);
 		Digest ctx = SHA1.getInstance();
 		hashUpdate(ctx, new String[] {"Signature"});
-		BigInteger k = Util.generateLargeRandom(80, 160, r);
 		BigInteger m = new NativeBigInteger(1, ctx.digest()); 
-		setSignature(DSA.sign(p.getGroup(), sk, k, m));
+		setSignature(DSA.sign(p.getGroup(), sk, m, r));
     }
 
     /** Checks the Signature using the Public-key.
@@ -108,7 +107,7 @@ public class Storables extends FieldSet {
         Digest ctx = SHA1.getInstance();
         hashUpdate(ctx, new String[] {"Signature"});
         BigInteger m = new NativeBigInteger(1, ctx.digest()); 
-        return DSA.verify(getPublicKey(), getSignature(), m);
+        return DSAVerifier.verify(getPublicKey(), getSignature(), m);
     }
     
     
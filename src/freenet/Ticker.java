@@ -1,19 +1,23 @@
 package freenet;
 
 import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Vector;
 
 import freenet.diagnostics.ExternalContinuous;
 import freenet.support.BlockingQueue;
-import freenet.support.Heap;
+import freenet.support.DoublyLinkedListImpl;
 import freenet.support.Logger;
 import freenet.support.Schedulable;
 import freenet.support.TickerToken;
 import freenet.support.sort.ArraySorter;
 import freenet.support.sort.QuickSorter;
+import freenet.thread.JobPriority;
 import freenet.thread.ThreadFactory;
+import freenet.thread.WThreadFactory;
 
 /*
  * This code is part of the Java Adaptive Network Client by Ian Clarke. It is
@@ -26,15 +30,34 @@ import freenet.thread.ThreadFactory;
  * on time.
  * 
  * <p>
- * It's now based on a heap (so it should be pretty fast), but you have to
- * handle keeping track of objects you may wish to cancel yourself (I didn't
- * want another fucking hashtable). Since this makes it Freenet specific, I'm
- * moving it to the root (and Freenet's main instance. of it is an instance,
- * rather than a static, variable in freenet.Core).
+ * Pending events are kept in hierarchical timing wheels (see Varghese and
+ * Lauck, "Hashed and Hierarchical Timing Wheels"), so scheduling and
+ * cancelling an event are constant time rather than log(n) in a heap. Each
+ * wheel has LEVELS levels of SLOTS slots; a slot on level 0 holds the events
+ * due in one tick of TICK milliseconds, a slot on level 1 those due in SLOTS
+ * ticks, and so on. When the lower level wraps round, the next slot of the
+ * level above is cascaded down into it. There are SHARDS independent wheels,
+ * each with its own lock, so threads scheduling and cancelling events don't
+ * all contend on the Ticker. The ticker thread is only woken when an event
+ * is due before it was going to wake up anyway.
  * </p>
  * 
  * <p>
- * BTW, it doesn't tick anymore (sigh...)
+ * Events run when the whole of the tick they fall in has passed, so they may
+ * run up to TICK milliseconds late (never early). Events scheduled for now
+ * or earlier skip the wheel and run as soon as the ticker thread gets to
+ * them.
+ * </p>
+ * 
+ * <p>
+ * You have to handle keeping track of objects you may wish to cancel
+ * yourself (I didn't want another fucking hashtable). Since this makes it
+ * Freenet specific, I'm moving it to the root (and Freenet's main instance.
+ * of it is an instance, rather than a static, variable in freenet.Core).
+ * </p>
+ * 
+ * <p>
+ * BTW, it ticks again (sigh...)
  * </p>
  * 
  * @author oskar
@@ -42,7 +65,44 @@ import freenet.thread.ThreadFactory;
  */
 public class Ticker implements Runnable {
 
-	private final Heap events = new Heap();
+	/** log2 of the length of a tick in milliseconds */
+	private static final int TICK_SHIFT = 2;
+
+	/** Resolution of the Ticker in milliseconds */
+	public static final int TICK = 1 << TICK_SHIFT;
+
+	/** log2 of the number of slots on each level of a wheel */
+	private static final int SLOT_BITS = 6;
+
+	private static final int SLOTS = 1 << SLOT_BITS;
+
+	private static final int SLOT_MASK = SLOTS - 1;
+
+	/**
+	 * With 4ms ticks, 4 levels of 64 slots cover 18 hours. Events further
+	 * out go in the last slot of the top level and get cascaded round again.
+	 */
+	private static final int LEVELS = 4;
+
+	private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+
+	/** Number of wheels, must be a power of 2 */
+	private static final int SHARDS = 8;
+
+	private final Wheel[] wheels = new Wheel[SHARDS];
+
+	/** Not synchronized, it only spreads events over the wheels */
+	private int nextShard = 0;
+
+	/**
+	 * When the ticker thread will next look at the wheels. Anything due
+	 * before then has to wake it up. Long.MAX_VALUE while it is looking, so
+	 * that anything added to a wheel it has already looked at wakes it.
+	 */
+	private volatile long wakeTime = Long.MAX_VALUE;
+
+	/** Set, under the Ticker lock, when woken, so the wakeup isn't lost */
+	private boolean kicked = false;
 
 	private final MessageHandler mh;
 
@@ -71,6 +131,9 @@ public class Ticker implements Runnable {
 	public Ticker(MessageHandler mh, ThreadFactory tf) {
 		this.mh = mh;
 		this.tf = tf;
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < SHARDS; i++)
+			wheels[i] = new Wheel(i, now >> TICK_SHIFT);
 		immediateExecutionThread.start();
 	}
 
@@ -145,125 +208,184 @@ public class Ticker implements Runnable {
 		long x = System.currentTimeMillis();
         if (time < x) time = x;
 
-		Event evt = new Event(mo, time);
+		Wheel w = wheels[(nextShard++) & (SHARDS - 1)];
+		Event evt = new Event(mo, time, w);
 
 		if (Core.logger.shouldLog(Logger.DEBUG, this))
                 Core.logger.log(this, "scheduling " + evt + " to run at " + time + " at " + x, new Exception("debug"), Logger.DEBUG);
-		synchronized (this) {
-			evt.heapElement = events.put(evt);
+		synchronized (w) {
+			evt.id = w.nextId++ * SHARDS + w.index;
+			if (time <= x)
+				w.addDue(evt);
+			else
+				w.insert(evt);
 
 			if (mo instanceof Schedulable) {
 				((Schedulable) mo).getToken(evt);
 			}
-			this.notify(); // wake up ticker thread
+		}
+		if (time < wakeTime) {
+			synchronized (this) {
+				kicked = true;
+				this.notify(); // wake up ticker thread
+			}
 		}
 	}
 
 	public void run() {
+		// Running an event here would hold up all the others
+		WThreadFactory.neverRunOnCaller();
 		Vector jobs = new Vector();
 		while (true) {
 			boolean logDEBUG = Core.logger.shouldLog(Logger.DEBUG, this);
             if (logDEBUG) timeLog("Running Ticker loop");
+			// prepare ready events for immediate execution
+			wakeTime = Long.MAX_VALUE;
+			long wake = collectDue(System.currentTimeMillis(), jobs);
+			wakeTime = wake;
+            if (logDEBUG) timeLog("Got " + jobs.size() + " jobs, next wakeup at " + wake);
+			if (!jobs.isEmpty()) {
+				// then execute the events *after* releasing the wheels
+				execute(jobs, logDEBUG);
+				jobs.setSize(0);
+			}
+			// if nothing else is ready, sleep until something is
 			synchronized (this) {
-                if (logDEBUG) timeLog("Synchronized in Ticker loop");
-				// prepare ready events for immediate execution
-                while (events.size() > 0 && ((Event) events.top()).time() <= System.currentTimeMillis()) {
-                    if (logDEBUG) timeLog("Popping events from Ticker loop");
-					Event e = (Event) events.pop();
-					jobs.addElement(e);
+				if (kicked) {
+					kicked = false;
+					continue;
 				}
-                if (logDEBUG) timeLog("No more events");
-				// if none were ready, sleep until one is
-				if (jobs.isEmpty()) {
-                    if (logDEBUG) timeLog("Jobs empty");
+				long wait = wake - System.currentTimeMillis();
+				if (wait > 0) {
+                    if (logDEBUG) timeLog("Waiting for next event in " + wait + " ms");
 					try {
-						if (events.size() > 0) {
-                            if (logDEBUG) timeLog("Waiting for next event");
-                            long wait = ((Event) events.top()).time() - System.currentTimeMillis();
-                            if (logDEBUG) timeLog("Waiting for next event in " + wait + " ms");
-                            if (wait > 0) wait(wait);
-						} else {
-                            if (logDEBUG) timeLog("Waiting for more jobs");
-							wait(1000);
-						}
+						wait(Math.min(wait, 1000));
 					} catch (InterruptedException e) {
                         if (logDEBUG) timeLog("Interrupted");
 					}
-                    if (logDEBUG) timeLog("Continuing Ticker loop");
-					continue; // and jump back to preparing ready events
 				}
+				kicked = false;
 			}
-            if (logDEBUG) timeLog("Released monitor");
-			// then execute the events *after* releasing the monitor
-			Enumeration e = jobs.elements();
-			do {
-				Event v = ((Event) e.nextElement());
-				boolean executed = false;
-				for (int x = 0; x < 5 && !executed; x++) {
-                    if (logDEBUG) timeLog("Executing " + v);
-					try {
-						v.execute();
-                        if (logDEBUG) timeLog("Executed " + v);
-						executed = true;
-					} catch (Throwable t) {
-						if (t instanceof OutOfMemoryError) {
-                            // Don't bother logging it
-							System.gc();
-							System.runFinalization();
-							Thread.yield();
-							try {
-								Thread.sleep(500);
-							} catch (InterruptedException ie) {
-                                // Who cares?
-                            }
-							System.gc();
-							System.runFinalization();
-						}
-                        Core.logger.log(this, "Could not execute " + v + ": " + t, t, Logger.ERROR);
-						System.err.println("Could not execute " + v + ": " + t);
-						t.printStackTrace(System.err);
-                        if (!(t instanceof OutOfMemoryError)) break;
-					}
-				}
-				if (!executed) {
-                    Core.logger.log(this, "Failed to execute " + e, Logger.ERROR);
-					System.err.println("Failed to execute " + e);
-				}
-			} while (e.hasMoreElements());
-            if (logDEBUG) timeLog("Executed jobs");
-			jobs.setSize(0);
             if (logDEBUG) timeLog("Looping outer Ticker loop");
 		}
 	}
 
+	/** Earliest first; stable sorting keeps each wheel's order for ties */
+	private static final Comparator DUE_ORDER = new Comparator() {
+		public int compare(Object o1, Object o2) {
+			long t1 = ((Event) o1).time;
+			long t2 = ((Event) o2).time;
+			return t1 < t2 ? -1 : (t1 > t2 ? 1 : 0);
+		}
+	};
+
+	/**
+	 * Takes every event due by now off the wheels and adds them to jobs,
+	 * earliest first. Events due at the same time stay in the order they
+	 * were scheduled, if they were scheduled on the same wheel.
+	 * 
+	 * @return when the next event will be due, 0 if one already is, or
+	 *         Long.MAX_VALUE if there are none.
+	 */
+	long collectDue(long now, Vector jobs) {
+		long wake = Long.MAX_VALUE;
+		int n = jobs.size();
+		for (int i = 0; i < SHARDS; i++) {
+			Wheel w = wheels[i];
+			synchronized (w) {
+				w.advance(now, jobs);
+				long t = w.nextWake();
+				if (t < wake) wake = t;
+			}
+		}
+		if (jobs.size() - n > 1)
+			Collections.sort(jobs.subList(n, jobs.size()), DUE_ORDER);
+		return wake;
+	}
+
+	private void execute(Vector jobs, boolean logDEBUG) {
+		Enumeration e = jobs.elements();
+		do {
+			Event v = ((Event) e.nextElement());
+			boolean executed = false;
+			for (int x = 0; x < 5 && !executed; x++) {
+                if (logDEBUG) timeLog("Executing " + v);
+				try {
+					v.execute();
+                    if (logDEBUG) timeLog("Executed " + v);
+					executed = true;
+				} catch (Throwable t) {
+					if (t instanceof OutOfMemoryError) {
+                        // Don't bother logging it
+						System.gc();
+						System.runFinalization();
+						Thread.yield();
+						try {
+							Thread.sleep(500);
+						} catch (InterruptedException ie) {
+                            // Who cares?
+                        }
+						System.gc();
+						System.runFinalization();
+					}
+                    Core.logger.log(this, "Could not execute " + v + ": " + t, t, Logger.ERROR);
+					System.err.println("Could not execute " + v + ": " + t);
+					t.printStackTrace(System.err);
+                    if (!(t instanceof OutOfMemoryError)) break;
+				}
+			}
+			if (!executed) {
+                Core.logger.log(this, "Failed to execute " + e, Logger.ERROR);
+				System.err.println("Failed to execute " + e);
+			}
+		} while (e.hasMoreElements());
+        if (logDEBUG) timeLog("Executed jobs");
+	}
+
 	protected void timeLog(String s) {
         if (Core.logger.shouldLog(Logger.DEBUG, this)) Core.logger.log(this, s + " at " + System.currentTimeMillis(), Logger.DEBUG);
 	}
 
-	public synchronized String toString() {
+	/**
+	 * @return all the pending events, latest first. Locks each wheel in turn,
+	 *         so it's only a snapshot.
+	 */
+	private Event[] pendingEvents() {
+		Vector v = new Vector();
+		for (int i = 0; i < SHARDS; i++) {
+			synchronized (wheels[i]) {
+				wheels[i].getEvents(v);
+			}
+		}
+		Event[] el = new Event[v.size()];
+		v.copyInto(el);
+		QuickSorter.quickSort(new ArraySorter(el));
+		return el;
+	}
+
+	public String toString() {
 		StringBuffer sb = new StringBuffer();
-		Enumeration e = events.elements();
-		while (e.hasMoreElements()) {
-			Event evt = (Event) e.nextElement();
+		Event[] el = pendingEvents();
+		for (int i = 0; i < el.length; i++) {
+			Event evt = el[i];
             sb.append(evt.time()).append(" - ").append(Long.toHexString(evt.getOwner().id())).append(" : ").append(
                     evt.getOwner().getClass().getName()).append('\n');
 		}
 		return sb.toString();
 	}
 
-	public synchronized void writeEventsHtml(PrintWriter pw) {
+	public void writeEventsHtml(PrintWriter pw) {
 		pw.println("<h2>Fred Ticker Contents</h2> <b>At date:");
 		pw.println(new Date());
         pw.println("</b><br />");
 		immediateExecutionThread.writeEventsHtml(pw);
 
-        pw.println("<br /><b>Pending tasks (" + events.size() + ")</b><table border=\"1\">");
+		Event[] el = pendingEvents();
+        pw.println("<br /><b>Pending tasks (" + el.length + ")</b><table border=\"1\">");
 		pw.println("<tr><th>Time</th><th>Event</th></tr>");
-		Heap.Element[] el = events.elementArray();
-		QuickSorter.quickSort(new ArraySorter(el));
 		for (int i = 0; i < el.length; i++) {
 			pw.print("<tr><td>");
-			Event ev = (Event) el[i].content();
+			Event ev = el[i];
 			pw.print(new Date(ev.time()).toString().replaceAll(" ","&nbsp;"));
 			pw.print("</td><td>");
 			pw.print(ev.mo);
@@ -272,26 +394,179 @@ public class Ticker implements Runnable {
 		pw.println("</table>");
 	}
 
-	private static long eventCounter = 0;
+	/**
+	 * One hierarchical timing wheel. All access must be synchronized on the
+	 * Wheel.
+	 */
+	private final class Wheel {
+
+		/** slots[level][slot] is a list of Events */
+		private final DoublyLinkedListImpl[][] slots =
+			new DoublyLinkedListImpl[LEVELS][SLOTS];
+
+		/** Events scheduled for a tick we have already passed */
+		private final DoublyLinkedListImpl due = new DoublyLinkedListImpl();
+
+		/** The next tick to process */
+		private long current;
+
+		/** Events in slots, on any level */
+		private int size = 0;
+
+		/** Events in slots on level 0 */
+		private int level0 = 0;
+
+		private long nextId = 0;
+
+		private final int index;
+
+		private Wheel(int index, long tick) {
+			this.index = index;
+			current = tick;
+			for (int i = 0; i < LEVELS; i++)
+				for (int j = 0; j < SLOTS; j++)
+					slots[i][j] = new DoublyLinkedListImpl();
+		}
+
+		private void addDue(Event e) {
+			e.list = due;
+			e.level = -1;
+			due.push(e);
+		}
+
+		private void insert(Event e) {
+			long t = e.time >> TICK_SHIFT;
+			long d = t - current;
+			if (d < 0) {
+				addDue(e);
+				return;
+			}
+			int level = 0;
+			while (level < LEVELS - 1 && d >= (1L << (SLOT_BITS * (level + 1))))
+				level++;
+			// Too far out for the wheel: park it where it will be cascaded last
+			if (d >= SPAN) t = current + SPAN - 1;
+			DoublyLinkedListImpl l =
+				slots[level][(int) (t >> (SLOT_BITS * level)) & SLOT_MASK];
+			e.list = l;
+			e.level = level;
+			l.push(e);
+			size++;
+			if (level == 0) level0++;
+		}
+
+		private boolean remove(Event e) {
+			if (e.list == null) return false;
+			e.list.remove(e);
+			e.list = null;
+			if (e.level >= 0) {
+				size--;
+				if (e.level == 0) level0--;
+			}
+			return true;
+		}
+
+		/**
+		 * Take everything due at or before now, i.e. every tick that has
+		 * completely passed, and put it on jobs.
+		 */
+		private void advance(long now, Vector jobs) {
+			Event e;
+			while ((e = (Event) due.shift()) != null) {
+				e.list = null;
+				jobs.addElement(e);
+			}
+			long target = (now + 1) >> TICK_SHIFT;
+			while (current < target) {
+				if (size == 0) {
+					current = target;
+					break;
+				}
+				int idx = (int) current & SLOT_MASK;
+				if (idx == 0) {
+					// Cascade each level that has wrapped round into the one
+					// below it
+					for (int level = 1; level < LEVELS; level++) {
+						int i = (int) (current >> (SLOT_BITS * level)) & SLOT_MASK;
+						cascade(slots[level][i]);
+						if (i != 0) break;
+					}
+				}
+				DoublyLinkedListImpl l = slots[0][idx];
+				while ((e = (Event) l.shift()) != null) {
+					e.list = null;
+					size--;
+					level0--;
+					jobs.addElement(e);
+				}
+				current++;
+				// Nothing on level 0, skip to the next cascade
+				if (level0 == 0 && (current & SLOT_MASK) != 0)
+					current = Math.min(target, (current | SLOT_MASK) + 1);
+			}
+		}
+
+		private void cascade(DoublyLinkedListImpl l) {
+			int n = l.size();
+			if (n == 0) return;
+			Event[] el = new Event[n];
+			for (int i = 0; i < n; i++) {
+				el[i] = (Event) l.shift();
+				size--;
+			}
+			for (int i = 0; i < n; i++)
+				insert(el[i]);
+		}
+
+		/**
+		 * @return the time at which advance() will next find something to
+		 *         do, or Long.MAX_VALUE if the wheel is empty.
+		 */
+		private long nextWake() {
+			if (!due.isEmpty()) return 0;
+			if (size == 0) return Long.MAX_VALUE;
+			long t = current;
+			if (level0 == 0) {
+				t = (t + SLOT_MASK) & ~((long) SLOT_MASK);
+			} else {
+				while ((t & SLOT_MASK) != 0
+					&& slots[0][(int) t & SLOT_MASK].isEmpty())
+					t++;
+			}
+			// Tick t is processed once all of it has passed
+			return ((t + 1) << TICK_SHIFT) - 1;
+		}
 
-	private static Object eventCounterSync = new Object();
+		private void getEvents(Vector v) {
+			for (Enumeration e = due.elements(); e.hasMoreElements();)
+				v.addElement(e.nextElement());
+			for (int i = 0; i < LEVELS; i++)
+				for (int j = 0; j < SLOTS; j++)
+					for (Enumeration e = slots[i][j].elements(); e.hasMoreElements();)
+						v.addElement(e.nextElement());
+		}
+	}
 
-	private class Event implements Runnable, TickerToken, Comparable {
+	private class Event extends DoublyLinkedListImpl.Item implements Runnable, TickerToken, Comparable, JobPriority {
 
 		private MessageObject mo;
 
 		private final long time;
 
-		private Heap.Element heapElement;
+		private final Wheel wheel;
+
+		/** The list this is on, or null if it has been run or cancelled */
+		private DoublyLinkedListImpl list;
+
+		/** The level of the wheel it's on, -1 if due */
+		private int level;
 
 		private long id;
 
-		private Event(MessageObject mo, long time) {
+		private Event(MessageObject mo, long time, Wheel wheel) {
 			this.mo = mo;
 			this.time = time;
-			synchronized (eventCounterSync) {
-				id = eventCounter++;
-			}
+			this.wheel = wheel;
 		}
 
 		private final void execute() {
@@ -300,8 +575,8 @@ public class Ticker implements Runnable {
 
 		public final boolean cancel() {
 			boolean ret;
-			synchronized (Ticker.this) {
-				ret = heapElement.remove();
+			synchronized (wheel) {
+				ret = wheel.remove(this);
 			}
 			if (Core.logger.shouldLog(Logger.DEBUG, this))
                     Core.logger.log(Ticker.this, (ret ? "cancelled " : "failed to cancel ") + this, Logger.DEBUG);
@@ -349,6 +624,10 @@ public class Ticker implements Runnable {
 		public final MessageObject getOwner() {
 			return mo;
 		}
+
+		public final boolean isMaintenance() {
+			return mo instanceof JobPriority && ((JobPriority) mo).isMaintenance();
+		}
 	}
 
 	protected class ImmediateMessageExecutionThread extends Thread {
@@ -382,6 +661,7 @@ public class Ticker implements Runnable {
 		}
 
 		public void run() {
+			WThreadFactory.neverRunOnCaller();
 			while (true) {
 				try {
 					Object o = immediateExecutionQueue.dequeue();
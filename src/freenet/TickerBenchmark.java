@@ -0,0 +1,226 @@
+package freenet;
+
+import java.io.PrintStream;
+import java.util.Random;
+
+import freenet.support.Heap;
+import freenet.support.Schedulable;
+import freenet.support.TickerToken;
+import freenet.thread.ThreadFactory;
+
+/**
+ * Schedule and cancel throughput of the Ticker, compared with the single
+ * lock and heap it used to have, with 1 to 32 threads. Each operation
+ * schedules an event a random time up to a minute away and cancels the one
+ * it scheduled a few operations before, so the Ticker holds a steady
+ * backlog like a busy node's timeouts. Then checks that events actually run
+ * on time, and that cancelled ones don't run at all.
+ * <p>
+ * Usage: TickerBenchmark [seconds per run] [backlog per thread]
+ * </p>
+ */
+public class TickerBenchmark {
+
+    private static final int[] THREADS = { 1, 2, 4, 8, 16, 32 };
+
+    /** Runs everything on the ticker thread */
+    private static final ThreadFactory inline = new ThreadFactory() {
+        public void configUpdater(int a, int b, int c) {
+        }
+        public int maximumThreads() {
+            return 1;
+        }
+        public int availableThreads() {
+            return 1;
+        }
+        public int activeThreads() {
+            return 0;
+        }
+        public Thread getThread(Runnable r) {
+            r.run();
+            return null;
+        }
+    };
+
+    private static class Job implements Schedulable {
+        final long time;
+        volatile TickerToken token;
+        volatile long ranAt = -1;
+        Job(long time) {
+            this.time = time;
+        }
+        public long id() {
+            return 0;
+        }
+        public void getToken(TickerToken tt) {
+            token = tt;
+        }
+    }
+
+    private static final MessageHandler handler = new MessageHandler() {
+        public boolean handle(MessageObject m, boolean onlyIfCanRunFast) {
+            ((Job) m).ranAt = System.currentTimeMillis();
+            return true;
+        }
+        public void printChainInfo(long id, PrintStream ps) {
+        }
+    };
+
+    private interface Scheduler {
+        void addAbs(long time, Job j);
+    }
+
+    /** What Ticker used to do, without a thread to run the events */
+    private static class HeapScheduler implements Scheduler {
+        private final Heap events = new Heap();
+
+        private class Event implements TickerToken, Comparable {
+            final Job job;
+            final long time;
+            Heap.Element heapElement;
+            Event(Job job, long time) {
+                this.job = job;
+                this.time = time;
+            }
+            public boolean cancel() {
+                synchronized (HeapScheduler.this) {
+                    return heapElement.remove();
+                }
+            }
+            public MessageObject getOwner() {
+                return job;
+            }
+            public int compareTo(Object o) {
+                long m = ((Event) o).time;
+                return time < m ? 1 : time > m ? -1 : 0;
+            }
+        }
+
+        public synchronized void addAbs(long time, Job j) {
+            Event e = new Event(j, time);
+            e.heapElement = events.put(e);
+            j.getToken(e);
+            notify();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        final int backlog = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        final Ticker ticker = new Ticker(handler, inline);
+        Thread t = new Thread(ticker, "Ticker");
+        t.setDaemon(true);
+        t.start();
+
+        Scheduler[] schedulers = new Scheduler[2];
+        schedulers[0] = new HeapScheduler();
+        schedulers[1] = new Scheduler() {
+            public void addAbs(long time, Job j) {
+                ticker.addAbs(time, j);
+            }
+        };
+        for (int s = 0; s < schedulers.length; s++) {
+            for (int n = 0; n < THREADS.length; n++) {
+                long rate = run(schedulers[s], THREADS[n], backlog, seconds);
+                System.out.println(
+                    (s == 0 ? "heap" : "timing wheel")
+                        + " with "
+                        + THREADS[n]
+                        + " threads: "
+                        + rate
+                        + " schedule+cancel/sec");
+            }
+        }
+
+        // Now check that what's left runs when it should
+        Random r = new Random(42);
+        Job[] jobs = new Job[20000];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = new Job(System.currentTimeMillis() + r.nextInt(3000));
+            ticker.addAbs(jobs[i].time, jobs[i]);
+        }
+        int cancelled = 0;
+        for (int i = 0; i < jobs.length; i += 3)
+            if (jobs[i].token.cancel())
+                cancelled++;
+        Thread.sleep(3000 + 200);
+        long late = 0;
+        long maxLate = 0;
+        int ran = 0;
+        for (int i = 0; i < jobs.length; i++) {
+            Job j = jobs[i];
+            if (i % 3 == 0 && j.ranAt != -1 && j.token.cancel())
+                throw new IllegalStateException("Cancelled job ran: " + i);
+            if (j.ranAt == -1)
+                continue;
+            if (j.ranAt < j.time)
+                throw new IllegalStateException(
+                    "Job ran early: " + i + " " + j.ranAt + " < " + j.time);
+            ran++;
+            late += j.ranAt - j.time;
+            maxLate = Math.max(maxLate, j.ranAt - j.time);
+        }
+        if (ran + cancelled != jobs.length)
+            throw new IllegalStateException(
+                "Lost jobs: ran " + ran + ", cancelled " + cancelled);
+        System.out.println(
+            ran
+                + " events ran, average "
+                + ((double) late / ran)
+                + "ms late, at most "
+                + maxLate
+                + "ms (tick is "
+                + Ticker.TICK
+                + "ms)");
+    }
+
+    private static long run(
+        final Scheduler sched,
+        int n,
+        final int backlog,
+        int seconds)
+        throws InterruptedException {
+        final long[] ops = new long[n];
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            final int me = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    Random r = new Random(me);
+                    Job[] pending = new Job[backlog];
+                    long count = 0;
+                    while ((count & 255) != 0
+                        || System.currentTimeMillis() < end) {
+                        int slot = (int) (count % backlog);
+                        if (pending[slot] != null)
+                            pending[slot].token.cancel();
+                        Job j =
+                            new Job(
+                                System.currentTimeMillis()
+                                    + 1000
+                                    + r.nextInt(60000));
+                        sched.addAbs(j.time, j);
+                        pending[slot] = j;
+                        count++;
+                    }
+                    for (int k = 0; k < backlog; k++)
+                        if (pending[k] != null)
+                            pending[k].token.cancel();
+                    ops[me] = count;
+                }
+            };
+        }
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < n; i++)
+            threads[i].start();
+        for (int i = 0; i < n; i++)
+            threads[i].join();
+        long time = System.currentTimeMillis() - start;
+        long total = 0;
+        for (int i = 0; i < n; i++)
+            total += ops[i];
+        return total * 1000 / time;
+    }
+}
@@ -0,0 +1,192 @@
+package freenet;
+
+import java.util.Vector;
+
+import freenet.support.Schedulable;
+import freenet.support.TickerToken;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the Ticker's timing wheels, by taking due events off them at made
+ * up times rather than running the ticker thread.
+ */
+public class TickerTest extends TestCase {
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(TickerTest.class);
+	}
+
+	private static final class Event implements Schedulable {
+
+		private final long id;
+
+		TickerToken token;
+
+		Event(long id) {
+			this.id = id;
+		}
+
+		public long id() {
+			return id;
+		}
+
+		public void getToken(TickerToken tt) {
+			token = tt;
+		}
+
+		public String toString() {
+			return "Event " + id;
+		}
+	}
+
+	private Ticker ticker;
+
+	/** A time a little ahead of the clock, at the start of a tick */
+	private long base;
+
+	protected void setUp() {
+		ticker = new Ticker(null, null);
+		base = ((System.currentTimeMillis() + 1000) / Ticker.TICK) * Ticker.TICK;
+	}
+
+	/**
+	 * @return the last millisecond of the tick time falls in, when an
+	 *         event for time becomes due.
+	 */
+	private static long due(long time) {
+		return (time / Ticker.TICK + 1) * Ticker.TICK - 1;
+	}
+
+	/**
+	 * @return the MessageObjects of the events due by now, in order.
+	 */
+	private Vector collect(long now) {
+		Vector jobs = new Vector();
+		ticker.collectDue(now, jobs);
+		Vector v = new Vector();
+		for (int i = 0; i < jobs.size(); i++)
+			v.addElement(((TickerToken) jobs.elementAt(i)).getOwner());
+		return v;
+	}
+
+	/**
+	 * Events further out than level 0 are cascaded down a level at a time,
+	 * and come out in the tick they are due, not before or after.
+	 */
+	public void testCascade() {
+		long[] delays = {
+			Ticker.TICK * 100, // level 1
+			Ticker.TICK * 5000, // level 2
+			Ticker.TICK * 300000, // level 3
+		};
+		for (int i = 0; i < delays.length; i++) {
+			Event e = new Event(i);
+			long time = base + delays[i] + 1;
+			ticker.addAbs(time, e);
+			assertTrue(collect(due(time) - Ticker.TICK).isEmpty());
+			Vector v = collect(due(time));
+			assertEquals(1, v.size());
+			assertSame(e, v.elementAt(0));
+		}
+	}
+
+	/**
+	 * An event further out than the top level can cover is parked there,
+	 * goes round again, and still comes out when it is due.
+	 */
+	public void testFarFuture() {
+		Event e = new Event(1);
+		long time = base + 30L * 60 * 60 * 1000;
+		ticker.addAbs(time, e);
+		// Past where it was parked, about 18 hours out
+		assertTrue(collect(base + 20L * 60 * 60 * 1000).isEmpty());
+		assertTrue(collect(due(time) - Ticker.TICK).isEmpty());
+		Vector v = collect(due(time));
+		assertEquals(1, v.size());
+		assertSame(e, v.elementAt(0));
+	}
+
+	/**
+	 * Events due in the same tick come out in order of time, and in the
+	 * order they were scheduled when due at the same time, even after
+	 * being cascaded.
+	 */
+	public void testSameTickOrder() {
+		long t = base + Ticker.TICK * 1000;
+		Event a = new Event(1), b = new Event(2), c = new Event(3), d =
+			new Event(4);
+		ticker.addAbs(t + 3, a);
+		ticker.addAbs(t + 1, b);
+		ticker.addAbs(t + 2, c);
+		ticker.addAbs(t + 1, d);
+		Vector v = collect(due(t));
+		assertEquals(4, v.size());
+		assertSame(b, v.elementAt(0));
+		assertSame(d, v.elementAt(1));
+		assertSame(c, v.elementAt(2));
+		assertSame(a, v.elementAt(3));
+	}
+
+	/**
+	 * A cancelled event never comes out, and an event can't be cancelled
+	 * once it has come out.
+	 */
+	public void testCancel() {
+		Event before = new Event(1), after = new Event(2);
+		long time = base + Ticker.TICK * 200;
+		ticker.addAbs(time, before);
+		ticker.addAbs(time, after);
+		assertTrue(before.token.cancel());
+		assertFalse(before.token.cancel());
+		Vector v = collect(due(time));
+		assertEquals(1, v.size());
+		assertSame(after, v.elementAt(0));
+		assertFalse(after.token.cancel());
+		assertTrue(collect(due(time) + Ticker.TICK * 1000).isEmpty());
+	}
+
+	/**
+	 * An empty Ticker never needs waking. One with a single event far out
+	 * wakes only to cascade it, never every tick, and never after it is
+	 * due.
+	 */
+	public void testNextWake() {
+		Vector jobs = new Vector();
+		assertEquals(Long.MAX_VALUE, ticker.collectDue(base, jobs));
+		assertTrue(jobs.isEmpty());
+
+		Event e = new Event(1);
+		long ticks = 5000;
+		long time = base + Ticker.TICK * ticks;
+		ticker.addAbs(time, e);
+		long now = base;
+		int wakes = 0;
+		while (jobs.isEmpty()) {
+			long wake = ticker.collectDue(now, jobs);
+			if (!jobs.isEmpty())
+				break;
+			assertTrue(wake > now);
+			assertTrue(wake <= due(time));
+			now = wake;
+			// At most once per round of level 0, plus a wake per tick at
+			// the end
+			assertTrue(++wakes <= ticks / 64 + 64);
+		}
+		assertEquals(due(time), now);
+		assertEquals(1, jobs.size());
+		assertEquals(Long.MAX_VALUE, ticker.collectDue(now, jobs));
+
+	}
+
+	/**
+	 * An event scheduled for now, or the past, comes out straight away.
+	 */
+	public void testDueNow() {
+		Event e = new Event(1);
+		ticker.addAbs(0, e);
+		Vector v = collect(System.currentTimeMillis());
+		assertEquals(1, v.size());
+		assertSame(e, v.elementAt(0));
+	}
+}
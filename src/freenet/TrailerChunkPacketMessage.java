@@ -1,5 +1,7 @@
 package freenet;
 
+import java.nio.ByteBuffer;
+
 import freenet.presentation.MuxProtocol;
 import freenet.support.Logger;
 
@@ -31,6 +33,8 @@ public class TrailerChunkPacketMessage extends AbstractPeerPacketMessage {
 	final byte[] data;
 	final int offset;
 	final int length;
+	/** The data, from position to limit, if data is null. Sent chunks only. */
+	final ByteBuffer buf;
 	
 	final int id; // trailer id
 	MuxTrailerWriteManager writeManager;
@@ -51,12 +55,18 @@ public class TrailerChunkPacketMessage extends AbstractPeerPacketMessage {
 	 */
 	public TrailerChunkPacketMessage(PeerHandler ph,int id,byte[] block,int offset, int length, int keyOffset,
 	        boolean fromInsert) {
+		this(ph, id, block, offset, length, null, keyOffset, fromInsert);
+	}
+
+	private TrailerChunkPacketMessage(PeerHandler ph,int id,byte[] block,int offset, int length, 
+	        ByteBuffer buf, int keyOffset, boolean fromInsert) {
 		super(ph,MESSAGE_LIFETIME);
 		logDebug = Core.logger.shouldLog(Logger.DEBUG,this);
 		this.id = id;
 		this.data = block;
 		this.offset = offset;
 		this.length = length;
+		this.buf = buf;
 		this.keyOffset = keyOffset;
 		this.fromInsert = fromInsert;
 	}
@@ -71,7 +81,23 @@ public class TrailerChunkPacketMessage extends AbstractPeerPacketMessage {
 	 */
 	public TrailerChunkPacketMessage(MuxTrailerWriter writer, byte[] block, 
 									 int offset, int length, TrailerWriteCallback cb, int keyOffset) {
-		this(writer.writeManager.ph,writer.id,block,offset,length,keyOffset, writer.fromInsert());
+		this(writer, block, offset, length, null, cb, keyOffset);
+	}
+
+	/**
+	 * Create a trailer chunk packet to be written to the network, sending
+	 * the bytes between the position and the limit of a buffer. They are
+	 * copied straight into the packet when it is put together, so they
+	 * must not change until cb is called.
+	 */
+	public TrailerChunkPacketMessage(MuxTrailerWriter writer, ByteBuffer block,
+									 TrailerWriteCallback cb, int keyOffset) {
+		this(writer, null, 0, block.remaining(), block.slice(), cb, keyOffset);
+	}
+
+	private TrailerChunkPacketMessage(MuxTrailerWriter writer, byte[] block, int offset, 
+									 int length, ByteBuffer buf, TrailerWriteCallback cb, int keyOffset) {
+		this(writer.writeManager.ph,writer.id,block,offset,length,buf,keyOffset, writer.fromInsert());
 		this.writer = writer;
 		this.cb = cb;
 		this.writeManager = writer.writeManager;
@@ -164,18 +190,32 @@ public class TrailerChunkPacketMessage extends AbstractPeerPacketMessage {
 
 	public byte[] getContent() {
 		// Not likely to be called often, and we don't need to getContent to getLength
+		byte[] content = new byte[super.headerLength() + 2 + 4 + length];
+		getContent(content, 0);
+		return content;
+	}
+
+	/**
+	 * Write the message straight into the packet, saving a copy of the
+	 * data.
+	 */
+	public int getContent(byte[] content, int start) {
 		int baseHeaderLength = super.headerLength();
-		byte[] content = new byte[baseHeaderLength + 2 + 4 + length];
-		super.fillInHeader(content, length + 2 + 4);
-		content[baseHeaderLength] = (byte) (id >> 8);
-		content[baseHeaderLength+1] = (byte) (id & 0xff);
+		super.fillInHeader(content, start, length + 2 + 4);
+		int x = start + baseHeaderLength;
+		content[x] = (byte) (id >> 8);
+		content[x+1] = (byte) (id & 0xff);
 		
-		content[baseHeaderLength+2] = (byte) ((keyOffset >> 24) & 0xff);
-		content[baseHeaderLength+3] = (byte) ((keyOffset >> 16) & 0xff);
-		content[baseHeaderLength+4] = (byte) ((keyOffset >> 8) & 0xff);
-		content[baseHeaderLength+5] = (byte) (keyOffset & 0xff);
-		System.arraycopy(data, offset, content, baseHeaderLength+6, length);
-		return content;
+		content[x+2] = (byte) ((keyOffset >> 24) & 0xff);
+		content[x+3] = (byte) ((keyOffset >> 16) & 0xff);
+		content[x+4] = (byte) ((keyOffset >> 8) & 0xff);
+		content[x+5] = (byte) (keyOffset & 0xff);
+		if(buf == null)
+			System.arraycopy(data, offset, content, x+6, length);
+		else
+			// May be put into a packet again if it has to be resent
+			buf.duplicate().get(content, x+6, length);
+		return baseHeaderLength + 6 + length;
 	}
 
 	public void execute() {
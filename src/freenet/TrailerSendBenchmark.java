@@ -0,0 +1,195 @@
+package freenet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import freenet.crypt.PCFBMode;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.fs.dir.LossyDirectory;
+import freenet.fs.dir.NativeFSDirectory;
+import freenet.node.Node;
+import freenet.node.ds.FSDataStore;
+import freenet.node.ds.KeyInputStream;
+import freenet.node.ds.KeyOutputStream;
+import freenet.support.DirectBufferPool;
+
+/**
+ * Measures how fast data can be served from the store, i.e. read from a
+ * KeyInputStream, cut into trailer chunks the way SendData does, put into
+ * packets and optionally encrypted with the link cipher. Compares reading
+ * each chunk into an array, as we used to, with reading ahead into a direct
+ * buffer and writing the chunks straight into the packets. Single threaded,
+ * so the figures are per core.
+ * <p>
+ * Usage: TrailerSendBenchmark [directory] [keys] [key size in KiB]
+ * [seconds per run]
+ * </p>
+ */
+public class TrailerSendBenchmark {
+
+    private static final int PACKET_SIZE =
+        Node.minPaddingChunkSize()
+            - (TrailerChunkPacketMessage.headerSize() + MRIPacketMessage.length());
+
+    private static final TrailerWriteCallback nullCallback =
+        new TrailerWriteCallback() {
+        public void written() {
+        }
+        public void closed() {
+        }
+        public long bytesAvailable() {
+            return -1;
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        File root = new File(args.length > 0 ? args[0] : "sendbench");
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int keySize =
+            (args.length > 2 ? Integer.parseInt(args[2]) : 256) * 1024;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        NativeFSDirectory dir =
+            new NativeFSDirectory(
+                root,
+                (long) keys * (keySize + 8192) * 2,
+                4096,
+                false,
+                0.1F,
+                256);
+        FSDataStore ds = new FSDataStore(new LossyDirectory(0x0001, dir), 0);
+        Random r = new Random(42);
+        Key[] k = new Key[keys];
+        byte[] data = new byte[keySize];
+        r.nextBytes(data);
+        for (int i = 0; i < keys; i++) {
+            byte[] b = new byte[Key.KEYBYTES];
+            r.nextBytes(b);
+            k[i] = new Key(b);
+            KeyInputStream in = ds.getData(k[i]);
+            if (in != null) {
+                in.close();
+                continue;
+            }
+            Storables st = new Storables();
+            st.setPartSize(keySize);
+            KeyOutputStream out = ds.putData(k[i], keySize, st, true);
+            out.write(data);
+            out.close();
+            out.commit();
+        }
+
+        PeerHandler ph = new PeerHandler(null, null, null, 65536, 1024, null);
+        MuxTrailerWriter tw =
+            new MuxTrailerWriter(ph.trailerWriteManager, 1, false);
+        Rijndael c = new Rijndael(128);
+        byte[] key = new byte[16];
+        r.nextBytes(key);
+        c.initialize(key);
+        PCFBMode ctx = new PCFBMode(c);
+        DirectBufferPool pool = new DirectBufferPool(16384, 1);
+
+        System.out.println(
+            "Serving "
+                + keys
+                + " keys of "
+                + keySize
+                + " bytes in "
+                + PACKET_SIZE
+                + " byte chunks");
+        for (int crypt = 0; crypt < 2; crypt++) {
+            for (int mode = 0; mode < 2; mode++) {
+                boolean direct = mode == 1;
+                long bytes = 0;
+                long start = System.currentTimeMillis();
+                long end = start + seconds * 1000L;
+                for (int i = 0; System.currentTimeMillis() < end; i++) {
+                    KeyInputStream in = ds.getData(k[i % keys]);
+                    if (direct)
+                        bytes += sendDirect(in, tw, crypt == 1 ? ctx : null, pool);
+                    else
+                        bytes += sendStream(in, tw, crypt == 1 ? ctx : null);
+                    in.close();
+                }
+                long time = System.currentTimeMillis() - start;
+                System.out.println(
+                    (direct ? "read-ahead into direct buffer" : "stream into array")
+                        + (crypt == 1 ? ", encrypted" : "")
+                        + ": "
+                        + (bytes * 1000 / 1024 / 1024 / time)
+                        + " MB/s");
+            }
+        }
+    }
+
+    /** What we used to do: one array per chunk, copied via getContent() */
+    private static long sendStream(
+        KeyInputStream in,
+        MuxTrailerWriter tw,
+        PCFBMode ctx)
+        throws IOException {
+        long length = in.length();
+        long moved = 0;
+        byte[] buffer = new byte[PACKET_SIZE];
+        while (moved < length) {
+            int readLength = (int) Math.min(length - moved, PACKET_SIZE);
+            int countRead = 0;
+            while (countRead < readLength) {
+                int x = in.read(buffer, countRead, readLength - countRead);
+                if (x == -1)
+                    throw new IOException("Short read");
+                countRead += x;
+            }
+            TrailerChunkPacketMessage m =
+                new TrailerChunkPacketMessage(
+                    tw, buffer, 0, countRead, nullCallback, (int) moved);
+            byte[] packet = new byte[Node.padPacketSize(m.getLength())];
+            byte[] content = m.getContent();
+            System.arraycopy(content, 0, packet, 0, content.length);
+            if (ctx != null)
+                ctx.blockEncipher(packet, 0, packet.length);
+            moved += countRead;
+        }
+        return moved;
+    }
+
+    /** What SendData does now */
+    private static long sendDirect(
+        KeyInputStream in,
+        MuxTrailerWriter tw,
+        PCFBMode ctx,
+        DirectBufferPool pool)
+        throws IOException {
+        long length = in.length();
+        long moved = 0;
+        ByteBuffer buffer = pool.allocate();
+        buffer.limit(0);
+        while (moved < length) {
+            int readLength = (int) Math.min(length - moved, PACKET_SIZE);
+            if (buffer.remaining() < readLength) {
+                buffer.compact();
+                buffer.limit((int) Math.min(buffer.capacity(), length - moved));
+                while (buffer.position() < readLength) {
+                    if (in.read(buffer) == -1)
+                        throw new IOException("Short read");
+                }
+                buffer.flip();
+            }
+            ByteBuffer chunk = buffer.slice();
+            chunk.limit(readLength);
+            TrailerChunkPacketMessage m =
+                new TrailerChunkPacketMessage(
+                    tw, chunk, nullCallback, (int) moved);
+            byte[] packet = new byte[Node.padPacketSize(m.getLength())];
+            m.getContent(packet, 0);
+            if (ctx != null)
+                ctx.blockEncipher(packet, 0, packet.length);
+            buffer.position(buffer.position() + readLength);
+            moved += readLength;
+        }
+        pool.release(buffer);
+        return moved;
+    }
+}
@@ -1,6 +1,7 @@
 package freenet;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface TrailerWriter {
     /**
@@ -18,6 +19,18 @@ public interface TrailerWriter {
     public void writeTrailing(byte[] block, int offset, int length,
 			      TrailerWriteCallback cb)
 	throws UnknownTrailerSendIDException, TrailerSendFinishedException, AlreadySendingTrailerChunkException, IOException;
+
+    /**
+     * Write a block of a trailing field from a ByteBuffer, copying it as
+     * little as possible on the way to the connection.
+     * @param block the bytes from the position to the limit are written.
+     * The position is not changed. They must not be changed until cb has
+     * been called.
+     * @param cb the write callback to call when the write is completed
+     * @see #writeTrailing(byte[], int, int, TrailerWriteCallback)
+     */
+    public void writeTrailing(ByteBuffer block, TrailerWriteCallback cb)
+	throws UnknownTrailerSendIDException, TrailerSendFinishedException, AlreadySendingTrailerChunkException, IOException;
     
     /**
      * @return true if the transfer is now closed
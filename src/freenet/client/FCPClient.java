@@ -1193,7 +1193,7 @@ public class FCPClient implements ClientFactory {
                     try { headerData.close(); } catch (Exception e) {}
                 }
                 if (headerBucket != null) {
-                    headerBucket.getFile().delete();
+                    bf.freeBucket(headerBucket);
                 }
             }
         }
@@ -1336,7 +1336,7 @@ public class FCPClient implements ClientFactory {
                     try { headerData.close(); } catch (Exception e) {}
                 }
                 if (headerBucket != null) {
-                    headerBucket.getFile().delete();
+                    bf.freeBucket(headerBucket);
                 }
             }
         }
@@ -1422,7 +1422,7 @@ public class FCPClient implements ClientFactory {
                     try { metaDataOut.close(); } catch (Exception e) {}
                 }
                 if (dataBucket != null) {
-                    dataBucket.getFile().delete();
+                    bf.freeBucket(dataBucket);
                 }
             }
         }
@@ -77,6 +77,10 @@ public class FECTools {
 	//
 	// --gj
 	//
+	// maxConcurrentCodecs <= 0 allows one for each thread in
+	// FECWorkers, i.e. one per CPU. The built in codec uses at
+	// most 3Mb each.
+	//
 	public FECTools(
 		Params params,
 		BucketFactory bf,
@@ -86,7 +90,10 @@ public class FECTools {
 		this.fecFactory = new FECFactory();
 		this.bf = bf;
 		this.codecCacheSize = codecCacheSize;
-		this.maxCodecs = maxConcurrentCodecs;
+		this.maxCodecs =
+			maxConcurrentCodecs > 0
+				? maxConcurrentCodecs
+				: FECWorkers.threads();
 		loadFECPlugins(params);
 	}
 
@@ -214,6 +221,13 @@ public class FECTools {
 			}
 		}
 
+		// The built in codec can always decode, but it is not registered as
+		// an encoder: its check blocks are not OnionFEC_a_1_2 compatible,
+		// so splitfiles inserted with it could only be fetched by nodes
+		// that have it too.
+		if (!fecFactory.isRegistered(RSFECEncoder.NAME, false)) {
+			fecFactory.registerDecoder(RSFECDecoder.class.getName());
+		}
 	}
 
 	// algorithm == null, is allowed. It causes the default encodername to be
@@ -335,6 +349,91 @@ public class FECTools {
 
 	}
 
+	/**
+	 * Makes all the check blocks for several segments, as encodeSegment()
+	 * does, working on as many at once as the codec limit and FECWorkers
+	 * allow. Each segment gets a codec instance of its own, so this works
+	 * with any plugin, not just the built in codec.
+	 * 
+	 * @return the check blocks for each segment. On exception, any that
+	 *         were made are freed.
+	 */
+	public Bucket[][] encodeSegments(
+		final SegmentHeader[] headers,
+		final Bucket[][] blocks)
+		throws IOException {
+		final Bucket[][] ret = new Bucket[headers.length][];
+		FECWorkers.Job[] jobs = new FECWorkers.Job[headers.length];
+		for (int i = 0; i < headers.length; i++) {
+			final int segment = i;
+			jobs[i] = new FECWorkers.Job() {
+				public void run() throws IOException {
+					ret[segment] =
+						encodeSegment(headers[segment], null, blocks[segment]);
+				}
+			};
+		}
+		boolean groovy = false;
+		try {
+			FECWorkers.run(jobs);
+			groovy = true;
+		} finally {
+			if (!groovy) {
+				for (int i = 0; i < ret.length; i++) {
+					BucketTools.freeBuckets(bf, ret[i]);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Decodes several segments, as decodeSegment() does, working on as
+	 * many at once as the codec limit and FECWorkers allow. The arguments
+	 * are those of decodeSegment() for each segment.
+	 * 
+	 * @return the decoded blocks for each segment. On exception, any that
+	 *         were made are freed.
+	 */
+	public Bucket[][] decodeSegments(
+		final SegmentHeader[] headers,
+		final int[][] dataBlocks,
+		final int[][] checkBlocks,
+		final int[][] requestedBlocks,
+		final Bucket[][] blocks)
+		throws IOException {
+		final Bucket[][] ret = new Bucket[headers.length][];
+		FECWorkers.Job[] jobs = new FECWorkers.Job[headers.length];
+		for (int i = 0; i < headers.length; i++) {
+			final int segment = i;
+			jobs[i] = new FECWorkers.Job() {
+				public void run() throws IOException {
+					ret[segment] =
+						decodeSegment(
+							headers[segment],
+							dataBlocks[segment],
+							checkBlocks[segment],
+							requestedBlocks == null
+								? null
+								: requestedBlocks[segment],
+							blocks[segment]);
+				}
+			};
+		}
+		boolean groovy = false;
+		try {
+			FECWorkers.run(jobs);
+			groovy = true;
+		} finally {
+			if (!groovy) {
+				for (int i = 0; i < ret.length; i++) {
+					BucketTools.freeBuckets(bf, ret[i]);
+				}
+			}
+		}
+		return ret;
+	}
+
 	// REDFLAG: remove eventually
 	private static final String arrayToString(int[] array) {
 		StringBuffer ret = new StringBuffer();
@@ -409,6 +508,7 @@ public class FECTools {
 					}
 				}
 				// hmmm... no points for style.
+				requestedDataBlocks = requestedBlocks;
 			}
 
 			// Check to see if check blocks were requested too
@@ -0,0 +1,136 @@
+package freenet.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import freenet.config.Params;
+import freenet.message.client.FEC.SegmentHeader;
+import freenet.support.ArrayBucket;
+import freenet.support.Bucket;
+import freenet.support.BucketFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that FECTools codes several segments at once with a plugin codec.
+ */
+public class FECToolsTest extends TestCase {
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(FECToolsTest.class);
+	}
+
+	private static final BucketFactory bf = new BucketFactory() {
+		public Bucket makeBucket(long size) {
+			return new ArrayBucket();
+		}
+		public void freeBucket(Bucket b) {
+		}
+	};
+
+	private static final int SEGMENTS = 4;
+
+	private static final int BLOCK_SIZE = 16;
+
+	/** How many SlowEncoders are encoding now, and the most there have been */
+	private static int running, mostRunning;
+
+	/**
+	 * A plugin encoder that takes a while over each segment. Its check
+	 * block is filled with the segment number.
+	 */
+	public static class SlowEncoder implements FECEncoder {
+
+		public String getName() {
+			return "SlowTest";
+		}
+
+		public boolean init(long len, BucketFactory factory) {
+			return true;
+		}
+
+		public void release() {
+		}
+
+		public int getBlockSize(int segment) {
+			return BLOCK_SIZE;
+		}
+
+		public int getCheckBlockSize(int segment) {
+			return BLOCK_SIZE;
+		}
+
+		public int getN(int segment) {
+			return 3;
+		}
+
+		public int getK(int segment) {
+			return 2;
+		}
+
+		public int getSegmentCount() {
+			return SEGMENTS;
+		}
+
+		public int getSegmentSize(int segment) {
+			return 2 * BLOCK_SIZE;
+		}
+
+		public Bucket[] encode(int segmentNumber, Bucket[] blocks,
+				int[] requestedCheckBlocks) throws IOException {
+			synchronized (FECToolsTest.class) {
+				running++;
+				mostRunning = Math.max(mostRunning, running);
+			}
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+			} finally {
+				synchronized (FECToolsTest.class) {
+					running--;
+				}
+			}
+			byte[] b = new byte[BLOCK_SIZE];
+			for (int i = 0; i < b.length; i++)
+				b[i] = (byte) segmentNumber;
+			return new Bucket[] { new ArrayBucket(b) };
+		}
+	}
+
+	protected void tearDown() {
+		FECWorkers.setThreads(0);
+	}
+
+	public void testEncodeSegmentsInParallel() throws IOException {
+		FECWorkers.setThreads(SEGMENTS);
+		Params zero = new Params();
+		zero.put("class", SlowEncoder.class.getName());
+		Params encoders = new Params();
+		encoders.put("0", zero);
+		Params fec = new Params();
+		fec.put("Encoders", encoders);
+		Params params = new Params();
+		params.put("FEC", fec);
+		// 0 is one codec for each FECWorkers thread
+		FECTools tools = new FECTools(params, bf, 1, 0);
+
+		SegmentHeader[] headers =
+			tools.segmentFile(-1, null, SEGMENTS * 2 * BLOCK_SIZE);
+		assertEquals(SEGMENTS, headers.length);
+		Bucket[][] data = new Bucket[SEGMENTS][];
+		for (int s = 0; s < SEGMENTS; s++)
+			data[s] = new Bucket[] { new ArrayBucket(new byte[BLOCK_SIZE]),
+					new ArrayBucket(new byte[BLOCK_SIZE]) };
+		mostRunning = 0;
+		Bucket[][] checks = tools.encodeSegments(headers, data);
+
+		assertTrue("At most " + mostRunning + " segments at once",
+				mostRunning > 1);
+		for (int s = 0; s < SEGMENTS; s++) {
+			assertEquals(1, checks[s].length);
+			InputStream in = checks[s][0].getInputStream();
+			assertEquals(s, in.read());
+			in.close();
+		}
+	}
+}
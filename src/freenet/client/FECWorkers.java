@@ -0,0 +1,175 @@
+package freenet.client;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+/*
+ * This code is distributed under the GNU Public Licence (GPL) version 2. See
+ * http://www.gnu.org/ for further details of the GPL.
+ */
+
+/**
+ * A pool of threads, one for each CPU, shared by everything that does FEC
+ * work: several segments at once from FECTools.encodeSegments() and
+ * decodeSegments(), with whatever codec they use, and parts of a stripe
+ * from RSFECCode. A thread that hands the pool some jobs works on them itself
+ * while it waits, so jobs can hand out jobs of their own without
+ * deadlocking however busy the pool is, and the number of threads doing
+ * FEC work never goes above the pool size plus the callers.
+ */
+final class FECWorkers {
+
+	/** Some work that can be done on any thread */
+	interface Job {
+		void run() throws IOException;
+	}
+
+	private static final class Batch {
+		final Job[] jobs;
+
+		int next = 0;
+
+		int done = 0;
+
+		Throwable failure = null;
+
+		Batch(Job[] jobs) {
+			this.jobs = jobs;
+		}
+	}
+
+	/** Batches with jobs that haven't been started */
+	private static final LinkedList batches = new LinkedList();
+
+	private static int threads = Runtime.getRuntime().availableProcessors();
+
+	/** Threads started so far, not counting callers */
+	private static int started = 0;
+
+	private FECWorkers() {
+	}
+
+	/**
+	 * Sets how many threads do FEC work at once, counting the caller.
+	 * 0 or less means one for each CPU. Extra threads that were started
+	 * before the pool shrank sit idle.
+	 */
+	static synchronized void setThreads(int n) {
+		threads = n > 0 ? n : Runtime.getRuntime().availableProcessors();
+	}
+
+	static synchronized int threads() {
+		return threads;
+	}
+
+	/**
+	 * Runs the jobs, on the pool and on this thread, and returns when all
+	 * of them have finished.
+	 * @throws IOException the first IOException a job threw, once all
+	 * the jobs have finished. RuntimeExceptions and Errors are passed on
+	 * the same way.
+	 */
+	static void run(Job[] jobs) throws IOException {
+		if (jobs.length == 0)
+			return;
+		if (jobs.length == 1 || threads() <= 1) {
+			for (int i = 0; i < jobs.length; i++)
+				jobs[i].run();
+			return;
+		}
+		Batch b = new Batch(jobs);
+		synchronized (FECWorkers.class) {
+			batches.addLast(b);
+			while (started < threads - 1 && started < jobs.length - 1) {
+				started++;
+				Thread t = new Worker(started);
+				t.start();
+			}
+			FECWorkers.class.notifyAll();
+		}
+		while (true) {
+			Job j;
+			synchronized (FECWorkers.class) {
+				j = take(b);
+			}
+			if (j == null)
+				break;
+			execute(b, j);
+		}
+		synchronized (FECWorkers.class) {
+			while (b.done < jobs.length) {
+				try {
+					FECWorkers.class.wait();
+				} catch (InterruptedException e) {
+					// Ignore, the jobs can't be stopped halfway
+				}
+			}
+		}
+		if (b.failure instanceof IOException)
+			throw (IOException) b.failure;
+		if (b.failure instanceof RuntimeException)
+			throw (RuntimeException) b.failure;
+		if (b.failure instanceof Error)
+			throw (Error) b.failure;
+	}
+
+	/**
+	 * @return the next job from the batch, or null if they have all been
+	 * started.
+	 * REQUIRES: FECWorkers.class lock
+	 */
+	private static Job take(Batch b) {
+		if (b.next == b.jobs.length)
+			return null;
+		Job j = b.jobs[b.next++];
+		if (b.next == b.jobs.length)
+			batches.remove(b);
+		return j;
+	}
+
+	private static void execute(Batch b, Job j) {
+		Throwable failure = null;
+		try {
+			j.run();
+		} catch (Throwable t) {
+			failure = t;
+		}
+		synchronized (FECWorkers.class) {
+			if (b.failure == null)
+				b.failure = failure;
+			b.done++;
+			if (b.done == b.jobs.length)
+				FECWorkers.class.notifyAll();
+		}
+	}
+
+	private static class Worker extends Thread {
+
+		private final int number;
+
+		Worker(int number) {
+			super("FEC worker " + number);
+			this.number = number;
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (true) {
+				Batch b;
+				Job j;
+				synchronized (FECWorkers.class) {
+					while (number >= threads || batches.isEmpty()) {
+						try {
+							FECWorkers.class.wait();
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+					}
+					b = (Batch) batches.getFirst();
+					j = take(b);
+				}
+				execute(b, j);
+			}
+		}
+	}
+}
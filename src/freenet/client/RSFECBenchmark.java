@@ -0,0 +1,99 @@
+package freenet.client;
+
+import java.util.Random;
+
+import freenet.support.ArrayBucket;
+import freenet.support.Bucket;
+import freenet.support.BucketFactory;
+import freenet.support.NullBucket;
+
+/**
+ * Reports MB/s of data for RSFECEncoder and RSFECDecoder on a full
+ * segment of 128 data blocks, at each of the block sizes splitfiles use.
+ * Encoding makes all 64 check blocks. Decoding is the worst case: half
+ * the data blocks are missing, and are made from the other half and all
+ * the check blocks. The blocks are in memory and the results are thrown
+ * away, so this is the codec alone.
+ * <p>
+ * Usage: RSFECBenchmark [milliseconds per test] [block sizes in KiB...]
+ * </p>
+ */
+public class RSFECBenchmark {
+
+	private static final BucketFactory nullFactory = new BucketFactory() {
+		public Bucket makeBucket(long size) {
+			return new NullBucket();
+		}
+		public void freeBucket(Bucket b) {
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		long runtime = args.length > 0 ? Long.parseLong(args[0]) : 5000;
+		int[] sizes = { 128, 256, 512, 1024 };
+		if (args.length > 1) {
+			sizes = new int[args.length - 1];
+			for (int i = 0; i < sizes.length; i++)
+				sizes[i] = Integer.parseInt(args[i + 1]);
+		}
+		for (int i = 0; i < sizes.length; i++)
+			time(sizes[i] * 1024, runtime);
+	}
+
+	private static void time(int blockSize, long runtime) throws Exception {
+		// A file that fills exactly one segment at this block size
+		long length = (long) RSFECCode.MAX_K * blockSize;
+		RSFECEncoder encoder = new RSFECEncoder();
+		encoder.init(length, nullFactory);
+		if (encoder.getBlockSize(0) != blockSize)
+			throw new IllegalArgumentException("Not a splitfile block size: "
+					+ blockSize);
+		int k = encoder.getK(0);
+		int n = encoder.getN(0);
+
+		// The content makes no difference to the speed, so a few distinct
+		// blocks are used over and over to save memory.
+		Random r = new Random(blockSize);
+		byte[][] content = new byte[8][blockSize];
+		for (int i = 0; i < content.length; i++)
+			r.nextBytes(content[i]);
+		Bucket[] data = new Bucket[k];
+		for (int i = 0; i < k; i++)
+			data[i] = new ArrayBucket(content[i % content.length]);
+
+		long start = System.currentTimeMillis();
+		long count = 0;
+		long duration;
+		do {
+			encoder.encode(0, data, null);
+			count++;
+		} while ((duration = System.currentTimeMillis() - start) < runtime);
+		long encodeRate = count * length * 1000 / duration / (1024 * 1024);
+		long encodeTime = duration / count;
+
+		int[] requested = new int[n - k];
+		for (int i = 0; i < requested.length; i++)
+			requested[i] = 2 * i;
+		RSFECDecoder decoder = new RSFECDecoder();
+		decoder.init(length, nullFactory);
+		start = System.currentTimeMillis();
+		count = 0;
+		do {
+			for (int i = 0; i < k; i++) {
+				if (i % 2 == 1)
+					decoder.putBucket(data[i], i);
+			}
+			for (int i = k; i < n; i++)
+				decoder.putBucket(data[i % content.length], i);
+			decoder.decode(requested, new Bucket[requested.length]);
+			count++;
+		} while ((duration = System.currentTimeMillis() - start) < runtime);
+		long decodeRate = count * length * 1000 / duration / (1024 * 1024);
+		long decodeTime = duration / count;
+
+		System.out.println((blockSize / 1024) + "K blocks, " + k + "+"
+				+ (n - k) + ": encode " + encodeRate + " MB/s (" + encodeTime
+				+ " ms/segment), decode " + decodeRate + " MB/s ("
+				+ decodeTime + " ms/segment)");
+	}
+}
@@ -0,0 +1,327 @@
+package freenet.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/*
+ * This code is distributed under the GNU Public Licence (GPL) version 2. See
+ * http://www.gnu.org/ for further details of the GPL.
+ */
+
+/**
+ * The arithmetic and segment layout shared by RSFECEncoder and RSFECDecoder:
+ * a systematic Reed-Solomon code over GF(2^8), with a Cauchy matrix for the
+ * check blocks so that any k of the n blocks in a segment give back the
+ * data.
+ * <p>
+ * Blocks are coded a stripe at a time, so a codec needs at most 3M of
+ * memory whatever the block size: a stripe of each input and each output.
+ * The inner loop works on eight bytes at a time in a long; see addMul().
+ * </p>
+ */
+final class RSFECCode {
+
+	/** Largest number of data blocks in a segment */
+	static final int MAX_K = 128;
+
+	static final int MIN_BLOCK_SIZE = 128 * 1024;
+
+	static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+	/** Bytes of each block coded at a time */
+	static final int STRIPE = 16 * 1024;
+
+	/** The least of a stripe to hand to another thread */
+	private static final int MIN_PART = 1024;
+
+	/** x^8 + x^4 + x^3 + x^2 + 1 */
+	private static final int POLYNOMIAL = 0x11d;
+
+	static final int[] EXP = new int[510];
+
+	static final int[] LOG = new int[256];
+
+	/** MUL[a][b] = a * b */
+	static final byte[][] MUL = new byte[256][256];
+
+	/** BITS[c][b] = c * 2^b */
+	static final int[][] BITS = new int[256][8];
+
+	/** The lowest bit of each byte of a word */
+	private static final long LOW_BITS = 0x0101010101010101L;
+
+	static {
+		int x = 1;
+		for (int i = 0; i < 255; i++) {
+			EXP[i] = EXP[i + 255] = x;
+			LOG[x] = i;
+			x <<= 1;
+			if (x >= 256)
+				x ^= POLYNOMIAL;
+		}
+		for (int a = 1; a < 256; a++)
+			for (int b = 1; b < 256; b++)
+				MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+		for (int c = 0; c < 256; c++)
+			for (int b = 0; b < 8; b++)
+				BITS[c][b] = MUL[c][1 << b] & 0xff;
+	}
+
+	private RSFECCode() {
+	}
+
+	static int mul(int a, int b) {
+		return MUL[a][b] & 0xff;
+	}
+
+	static int inverse(int a) {
+		if (a == 0)
+			throw new ArithmeticException("Zero has no inverse");
+		return EXP[255 - LOG[a]];
+	}
+
+	/**
+	 * dst[from..to) ^= c * src[from..to), eight bytes to a word. Multiplying
+	 * by c is linear over the bits of each byte, so c * x is the xor of
+	 * c * 2^b for each bit b set in x. For a word, bit b of every byte is
+	 * picked out at once as 0 or 1 in each byte, and multiplying that by
+	 * c * 2^b gives c * 2^b in just the bytes that have the bit set.
+	 */
+	static void addMul(long[] dst, long[] src, int c, int from, int to) {
+		if (c == 0)
+			return;
+		if (c == 1) {
+			for (int i = from; i < to; i++)
+				dst[i] ^= src[i];
+			return;
+		}
+		int[] t = BITS[c];
+		long t0 = t[0], t1 = t[1], t2 = t[2], t3 = t[3];
+		long t4 = t[4], t5 = t[5], t6 = t[6], t7 = t[7];
+		for (int i = from; i < to; i++) {
+			long x = src[i];
+			dst[i] ^= (x & LOW_BITS) * t0
+				^ ((x >>> 1) & LOW_BITS) * t1
+				^ ((x >>> 2) & LOW_BITS) * t2
+				^ ((x >>> 3) & LOW_BITS) * t3
+				^ ((x >>> 4) & LOW_BITS) * t4
+				^ ((x >>> 5) & LOW_BITS) * t5
+				^ ((x >>> 6) & LOW_BITS) * t6
+				^ ((x >>> 7) & LOW_BITS) * t7;
+		}
+	}
+
+	/**
+	 * @return the coefficients of check block k + i on the data blocks:
+	 * 1 / (x_i + y_j), with x_i = k + i and y_j = j. Every square submatrix
+	 * of a Cauchy matrix is invertible, which is what makes any k blocks
+	 * enough.
+	 */
+	static int[] checkRow(int k, int i) {
+		int[] row = new int[k];
+		for (int j = 0; j < k; j++)
+			row[j] = inverse((k + i) ^ j);
+		return row;
+	}
+
+	/**
+	 * @return the coefficients of block number on the data blocks.
+	 */
+	static int[] row(int k, int number) {
+		if (number >= k)
+			return checkRow(k, number - k);
+		int[] row = new int[k];
+		row[number] = 1;
+		return row;
+	}
+
+	/**
+	 * Inverts a square matrix by Gauss-Jordan elimination.
+	 * @throws IllegalArgumentException if it is singular
+	 */
+	static int[][] invert(int[][] m) {
+		int k = m.length;
+		int[][] a = new int[k][];
+		int[][] b = new int[k][k];
+		for (int i = 0; i < k; i++) {
+			a[i] = (int[]) m[i].clone();
+			b[i][i] = 1;
+		}
+		for (int col = 0; col < k; col++) {
+			int pivot = col;
+			while (pivot < k && a[pivot][col] == 0)
+				pivot++;
+			if (pivot == k)
+				throw new IllegalArgumentException("Singular matrix");
+			int[] t = a[pivot]; a[pivot] = a[col]; a[col] = t;
+			t = b[pivot]; b[pivot] = b[col]; b[col] = t;
+			int inv = inverse(a[col][col]);
+			for (int j = 0; j < k; j++) {
+				a[col][j] = mul(a[col][j], inv);
+				b[col][j] = mul(b[col][j], inv);
+			}
+			for (int i = 0; i < k; i++) {
+				int f = a[i][col];
+				if (i == col || f == 0)
+					continue;
+				for (int j = 0; j < k; j++) {
+					a[i][j] ^= mul(f, a[col][j]);
+					b[i][j] ^= mul(f, b[col][j]);
+				}
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Makes out[i] = sum over j of coefficients[i][j] * in[j], blockSize
+	 * bytes of each, a stripe at a time. Inputs that are short are taken
+	 * to be zero padded. Each stripe is cut into parts that are worked out
+	 * on the FECWorkers at once.
+	 */
+	static void code(InputStream[] in, final int[][] coefficients,
+			OutputStream[] out, int blockSize) throws IOException {
+		byte[] buf = new byte[STRIPE];
+		final long[][] src = new long[in.length][STRIPE / 8];
+		final long[][] dst = new long[out.length][STRIPE / 8];
+		int parts = Math.min(FECWorkers.threads(), STRIPE / MIN_PART);
+		for (int done = 0; done < blockSize; done += STRIPE) {
+			if (Thread.interrupted())
+				throw new InterruptedIOException("FEC coding interrupted");
+			int len = Math.min(STRIPE, blockSize - done);
+			int words = (len + 7) / 8;
+			for (int j = 0; j < in.length; j++) {
+				readFully(in[j], buf, len);
+				toWords(buf, src[j], len);
+			}
+			FECWorkers.Job[] jobs = new FECWorkers.Job[parts];
+			for (int p = 0; p < parts; p++) {
+				final int from = words * p / parts;
+				final int to = words * (p + 1) / parts;
+				jobs[p] = new FECWorkers.Job() {
+					public void run() {
+						combine(src, coefficients, dst, from, to);
+					}
+				};
+			}
+			FECWorkers.run(jobs);
+			for (int i = 0; i < out.length; i++) {
+				toBytes(dst[i], buf, len);
+				out[i].write(buf, 0, len);
+			}
+		}
+	}
+
+	/**
+	 * dst[i][from..to) = sum over j of coefficients[i][j] * src[j][from..to)
+	 */
+	private static void combine(long[][] src, int[][] coefficients,
+			long[][] dst, int from, int to) {
+		for (int i = 0; i < dst.length; i++) {
+			Arrays.fill(dst[i], from, to, 0);
+			int[] c = coefficients[i];
+			for (int j = 0; j < src.length; j++)
+				addMul(dst[i], src[j], c[j], from, to);
+		}
+	}
+
+	private static void toWords(byte[] b, long[] w, int len) {
+		for (int i = 0, j = 0; i < len; i += 8, j++) {
+			long x = 0;
+			for (int k = Math.min(8, len - i) - 1; k >= 0; k--)
+				x = (x << 8) | (b[i + k] & 0xff);
+			w[j] = x;
+		}
+	}
+
+	private static void toBytes(long[] w, byte[] b, int len) {
+		for (int i = 0, j = 0; i < len; i += 8, j++) {
+			long x = w[j];
+			for (int k = 0; k < 8 && i + k < len; k++, x >>>= 8)
+				b[i + k] = (byte) x;
+		}
+	}
+
+	/**
+	 * Reads len bytes, or zeros after the end of the stream.
+	 */
+	private static void readFully(InputStream in, byte[] buf, int len)
+			throws IOException {
+		int off = 0;
+		while (off < len) {
+			int read = in.read(buf, off, len - off);
+			if (read < 0)
+				break;
+			off += read;
+		}
+		for (int i = off; i < len; i++)
+			buf[i] = 0;
+	}
+
+	////////////////////////////////////////////////////////////
+	// Segment layout. Blocks are 128K, doubled up to 1M until a
+	// segment of 128 data blocks holds the whole file. Bigger
+	// files are cut into segments of 128 1M data blocks, with a
+	// shorter one at the end. There is a check block for every
+	// two data blocks, and check blocks are as big as data
+	// blocks.
+	////////////////////////////////////////////////////////////
+
+	static int blockSize(long length) {
+		int blockSize = MIN_BLOCK_SIZE;
+		while (blockSize < MAX_BLOCK_SIZE
+				&& length > (long) MAX_K * blockSize)
+			blockSize *= 2;
+		return blockSize;
+	}
+
+	static int segmentCount(long length) {
+		long segmentSize = (long) MAX_K * blockSize(length);
+		return (int) Math.max(1, (length + segmentSize - 1) / segmentSize);
+	}
+
+	/**
+	 * @return how many bytes of the file the segment holds
+	 */
+	static int segmentSize(long length, int segment) {
+		long segmentSize = (long) MAX_K * blockSize(length);
+		long start = segment * segmentSize;
+		return (int) Math.max(0, Math.min(segmentSize, length - start));
+	}
+
+	static int k(long length, int segment) {
+		int blockSize = blockSize(length);
+		return Math.max(1, (segmentSize(length, segment) + blockSize - 1)
+				/ blockSize);
+	}
+
+	static int n(long length, int segment) {
+		int k = k(length, segment);
+		return k + (k + 1) / 2;
+	}
+
+	/**
+	 * Closes the streams, ignoring errors.
+	 */
+	static void close(InputStream[] in, OutputStream[] out) {
+		for (int i = 0; in != null && i < in.length; i++) {
+			try {
+				if (in[i] != null)
+					in[i].close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+		for (int i = 0; out != null && i < out.length; i++) {
+			try {
+				if (out[i] != null)
+					out[i].close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+}
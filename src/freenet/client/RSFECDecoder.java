@@ -0,0 +1,159 @@
+package freenet.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.support.Bucket;
+import freenet.support.BucketFactory;
+import freenet.support.BucketTools;
+
+/*
+ * This code is distributed under the GNU Public Licence (GPL) version 2. See
+ * http://www.gnu.org/ for further details of the GPL.
+ */
+
+/**
+ * Decodes segments made by RSFECEncoder. Only the data blocks that were
+ * asked for are reconstructed, each from the first k blocks that were put,
+ * data blocks first since they are cheapest.
+ * <p>
+ * decode() and setSegment() let go of the put buckets but don't free them;
+ * FECTools and SplitFileDownloader still use them afterwards.
+ * </p>
+ *
+ * @see freenet.client.RSFECCode
+ * @see freenet.client.RSFECEncoder
+ */
+public class RSFECDecoder implements FECDecoder {
+
+	private long length = -1;
+
+	private BucketFactory bf;
+
+	private int segment;
+
+	/** The put buckets, by block number */
+	private Bucket[] blocks;
+
+	private int count;
+
+	public String getName() {
+		return RSFECEncoder.NAME;
+	}
+
+	public boolean init(long len, BucketFactory factory) {
+		if (len <= 0 || factory == null)
+			return false;
+		length = len;
+		bf = factory;
+		return setSegment(0);
+	}
+
+	public boolean decode(int[] requestedBlocks, Bucket[] decodedBlocks)
+		throws IOException {
+		if (!isDecodable())
+			return false;
+		int k = getK();
+		int[] have = new int[k];
+		int used = 0;
+		for (int i = 0; i < blocks.length && used < k; i++) {
+			if (blocks[i] != null)
+				have[used++] = i;
+		}
+		int[][] m = new int[k][];
+		for (int i = 0; i < k; i++)
+			m[i] = RSFECCode.row(k, have[i]);
+		int[][] inverse = RSFECCode.invert(m);
+		int[][] coefficients = new int[requestedBlocks.length][];
+		for (int i = 0; i < requestedBlocks.length; i++) {
+			if (requestedBlocks[i] < 0 || requestedBlocks[i] >= k)
+				throw new IllegalArgumentException(
+					"Bad data block number: " + requestedBlocks[i]);
+			coefficients[i] = inverse[requestedBlocks[i]];
+		}
+
+		int blockSize = getBlockSize();
+		InputStream[] in = new InputStream[k];
+		OutputStream[] out = new OutputStream[requestedBlocks.length];
+		boolean groovy = false;
+		try {
+			for (int i = 0; i < k; i++)
+				in[i] = blocks[have[i]].getInputStream();
+			for (int i = 0; i < out.length; i++) {
+				decodedBlocks[i] = bf.makeBucket(blockSize);
+				out[i] = decodedBlocks[i].getOutputStream();
+			}
+			RSFECCode.code(in, coefficients, out, blockSize);
+			for (int i = 0; i < out.length; i++) {
+				out[i].close();
+				out[i] = null;
+			}
+			groovy = true;
+		} finally {
+			RSFECCode.close(in, out);
+			if (!groovy)
+				BucketTools.freeBuckets(bf, decodedBlocks);
+		}
+		forget();
+		return true;
+	}
+
+	public void release() {
+		length = -1;
+		bf = null;
+		blocks = null;
+		count = 0;
+	}
+
+	public int getBlockSize() {
+		return RSFECCode.blockSize(length);
+	}
+
+	public int getCheckBlockSize() {
+		return RSFECCode.blockSize(length);
+	}
+
+	public int getN() {
+		return RSFECCode.n(length, segment);
+	}
+
+	public int getK() {
+		return RSFECCode.k(length, segment);
+	}
+
+	public int getCurrentSegment() {
+		return segment;
+	}
+
+	public boolean setSegment(int segment) {
+		if (length < 0 || segment < 0 || segment >= getSegmentCount())
+			return false;
+		this.segment = segment;
+		forget();
+		return true;
+	}
+
+	public int getSegmentCount() {
+		return RSFECCode.segmentCount(length);
+	}
+
+	public void putBucket(Bucket bucket, int number) throws IOException {
+		if (blocks == null)
+			throw new IllegalStateException("Not initialized");
+		if (number < 0 || number >= blocks.length)
+			throw new IllegalArgumentException("Bad block number: " + number);
+		if (blocks[number] == null)
+			count++;
+		blocks[number] = bucket;
+	}
+
+	public boolean isDecodable() {
+		return blocks != null && count >= getK();
+	}
+
+	private void forget() {
+		blocks = new Bucket[getN()];
+		count = 0;
+	}
+}
@@ -0,0 +1,125 @@
+package freenet.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.support.Bucket;
+import freenet.support.BucketFactory;
+import freenet.support.BucketTools;
+
+/*
+ * This code is distributed under the GNU Public Licence (GPL) version 2. See
+ * http://www.gnu.org/ for further details of the GPL.
+ */
+
+/**
+ * The built in FECEncoder, a Reed-Solomon code over GF(2^8). FECTools only
+ * registers the matching decoder: the check blocks differ from those of
+ * OnionFEC_a_1_2, so this encoder has to be configured explicitly, and
+ * only where every fetcher has RSFECDecoder.
+ *
+ * @see freenet.client.RSFECCode
+ * @see freenet.client.RSFECDecoder
+ */
+public class RSFECEncoder implements FECEncoder {
+
+	public static final String NAME = "RSFEC_a_1_2";
+
+	private long length = -1;
+
+	private BucketFactory bf;
+
+	public String getName() {
+		return NAME;
+	}
+
+	public boolean init(long len, BucketFactory factory) {
+		if (len <= 0 || factory == null)
+			return false;
+		length = len;
+		bf = factory;
+		return true;
+	}
+
+	public void release() {
+		length = -1;
+		bf = null;
+	}
+
+	public int getBlockSize(int segment) {
+		return RSFECCode.blockSize(length);
+	}
+
+	public int getCheckBlockSize(int segment) {
+		return RSFECCode.blockSize(length);
+	}
+
+	public int getN(int segment) {
+		return RSFECCode.n(length, segment);
+	}
+
+	public int getK(int segment) {
+		return RSFECCode.k(length, segment);
+	}
+
+	public int getSegmentCount() {
+		return RSFECCode.segmentCount(length);
+	}
+
+	public int getSegmentSize(int segment) {
+		return RSFECCode.segmentSize(length, segment);
+	}
+
+	public Bucket[] encode(
+		int segmentNumber,
+		Bucket[] blocks,
+		int[] requestedCheckBlocks)
+		throws IOException {
+		if (length < 0)
+			throw new IllegalStateException("Not initialized");
+		int k = getK(segmentNumber);
+		int n = getN(segmentNumber);
+		if (blocks.length != k)
+			throw new IllegalArgumentException(
+				"Expecting " + k + " data blocks.  Got " + blocks.length + ".");
+		if (requestedCheckBlocks == null) {
+			requestedCheckBlocks = new int[n - k];
+			for (int i = 0; i < requestedCheckBlocks.length; i++)
+				requestedCheckBlocks[i] = k + i;
+		}
+		int[][] coefficients = new int[requestedCheckBlocks.length][];
+		for (int i = 0; i < requestedCheckBlocks.length; i++) {
+			int number = requestedCheckBlocks[i];
+			if (number < k || number >= n)
+				throw new IllegalArgumentException(
+					"Bad check block number: " + number);
+			coefficients[i] = RSFECCode.checkRow(k, number - k);
+		}
+
+		int blockSize = getCheckBlockSize(segmentNumber);
+		Bucket[] checks = new Bucket[requestedCheckBlocks.length];
+		InputStream[] in = new InputStream[k];
+		OutputStream[] out = new OutputStream[checks.length];
+		boolean groovy = false;
+		try {
+			for (int i = 0; i < k; i++)
+				in[i] = blocks[i].getInputStream();
+			for (int i = 0; i < checks.length; i++) {
+				checks[i] = bf.makeBucket(blockSize);
+				out[i] = checks[i].getOutputStream();
+			}
+			RSFECCode.code(in, coefficients, out, blockSize);
+			for (int i = 0; i < out.length; i++) {
+				out[i].close();
+				out[i] = null;
+			}
+			groovy = true;
+		} finally {
+			RSFECCode.close(in, out);
+			if (!groovy)
+				BucketTools.freeBuckets(bf, checks);
+		}
+		return checks;
+	}
+}
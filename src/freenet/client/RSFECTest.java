@@ -0,0 +1,134 @@
+package freenet.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.ArrayBucket;
+import freenet.support.Bucket;
+import freenet.support.BucketFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the built in Reed-Solomon FEC codec.
+ */
+public class RSFECTest extends TestCase {
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(RSFECTest.class);
+	}
+
+	private static final BucketFactory bf = new BucketFactory() {
+		public Bucket makeBucket(long size) {
+			return new ArrayBucket();
+		}
+		public void freeBucket(Bucket b) {
+		}
+	};
+
+	public void testField() {
+		for (int a = 1; a < 256; a++) {
+			assertEquals(1, RSFECCode.mul(a, RSFECCode.inverse(a)));
+			assertEquals(a, RSFECCode.mul(a, 1));
+			assertEquals(0, RSFECCode.mul(a, 0));
+		}
+	}
+
+	public void testLayout() {
+		assertEquals(128 * 1024, RSFECCode.blockSize(1));
+		assertEquals(1, RSFECCode.segmentCount(1));
+		assertEquals(1, RSFECCode.k(1, 0));
+		assertEquals(2, RSFECCode.n(1, 0));
+		long len = 128L * 1024 * 1024 * 2 + 1;
+		assertEquals(1024 * 1024, RSFECCode.blockSize(len));
+		assertEquals(3, RSFECCode.segmentCount(len));
+		assertEquals(128, RSFECCode.k(len, 0));
+		assertEquals(192, RSFECCode.n(len, 0));
+		assertEquals(1, RSFECCode.k(len, 2));
+		assertEquals(1, RSFECCode.segmentSize(len, 2));
+	}
+
+	/**
+	 * Encodes a segment, then decodes the missing data blocks from
+	 * the rest of the data blocks and all the check blocks.
+	 */
+	public void testRoundTrip() throws IOException {
+		roundTrip();
+	}
+
+	/**
+	 * Does the same with each stripe split between several threads.
+	 */
+	public void testParallel() throws IOException {
+		FECWorkers.setThreads(4);
+		try {
+			roundTrip();
+		} finally {
+			FECWorkers.setThreads(0);
+		}
+	}
+
+	private void roundTrip() throws IOException {
+		long length = 128 * 1024 * 5 + 1000;
+		RSFECEncoder encoder = new RSFECEncoder();
+		assertTrue(encoder.init(length, bf));
+		int k = encoder.getK(0);
+		int n = encoder.getN(0);
+		int blockSize = encoder.getBlockSize(0);
+		assertEquals(6, k);
+		assertEquals(9, n);
+		Random r = new Random(1234);
+		Bucket[] all = new Bucket[n];
+		for (int i = 0; i < k; i++) {
+			// The last data block is short, and taken to be zero padded
+			byte[] data = new byte[i == k - 1 ? 1000 : blockSize];
+			r.nextBytes(data);
+			all[i] = new ArrayBucket(data);
+		}
+		Bucket[] data = new Bucket[k];
+		System.arraycopy(all, 0, data, 0, k);
+		Bucket[] checks = encoder.encode(0, data, null);
+		assertEquals(n - k, checks.length);
+		System.arraycopy(checks, 0, all, k, n - k);
+
+		Bucket[] some = encoder.encode(0, data, new int[] { k + 2 });
+		assertTrue(Arrays.equals(read(checks[2], blockSize),
+			read(some[0], blockSize)));
+
+		RSFECDecoder decoder = new RSFECDecoder();
+		assertTrue(decoder.init(length, bf));
+		int[] requested = new int[] { 1, 3, 5 };
+		int[] have = new int[] { 0, 2, 4, 6, 7, 8 };
+		for (int i = 0; i < have.length; i++) {
+			assertFalse(decoder.isDecodable());
+			decoder.putBucket(all[have[i]], have[i]);
+		}
+		assertTrue(decoder.isDecodable());
+		Bucket[] decoded = new Bucket[requested.length];
+		assertTrue(decoder.decode(requested, decoded));
+		for (int i = 0; i < requested.length; i++)
+			assertTrue("Block " + requested[i],
+				Arrays.equals(read(all[requested[i]], blockSize),
+					read(decoded[i], blockSize)));
+	}
+
+	/**
+	 * @return the block, zero padded to blockSize
+	 */
+	private static byte[] read(Bucket b, int blockSize) throws IOException {
+		byte[] buf = new byte[blockSize];
+		InputStream in = b.getInputStream();
+		try {
+			int off = 0;
+			int read;
+			while (off < blockSize
+					&& (read = in.read(buf, off, blockSize - off)) > 0)
+				off += read;
+		} finally {
+			in.close();
+		}
+		return buf;
+	}
+}
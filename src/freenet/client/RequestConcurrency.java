@@ -0,0 +1,205 @@
+package freenet.client;
+
+import freenet.Core;
+
+/*
+ * This code is distributed under the GNU Public Licence (GPL) version 2. See
+ * http://www.gnu.org/ for further details of the GPL.
+ */
+
+/**
+ * Decides how many block requests a splitfile download may have running at
+ * once, instead of always running as many as it has threads.
+ * <p>
+ * Each download has a window, which works like TCP's. It starts small and
+ * grows by one for each block fetched until the first sign of trouble, and
+ * after that by one for each window's worth of blocks. A RouteNotFound
+ * means our node or its peers can't take any more, so the window is
+ * halved, once for each round of requests. The window also stops growing
+ * while blocks are taking much longer to arrive than they usually do. A
+ * DataNotFound says nothing about load, so it doesn't change the window.
+ * </p>
+ * <p>
+ * All the downloads on the node share a global budget of running requests,
+ * split evenly between them, so that one huge download can't take every
+ * request the node has room for and starve everything else.
+ * </p>
+ */
+public final class RequestConcurrency {
+
+	/** The block was fetched */
+	static final int SUCCEEDED = 0;
+
+	/** The request failed in a way that says nothing about load, e.g. DNF */
+	static final int FAILED = 1;
+
+	/** The request failed because there was no room for it, i.e. RNF */
+	static final int OVERLOADED = 2;
+
+	/** The request was cancelled, or never really started */
+	static final int CANCELLED = 3;
+
+	static final int INITIAL_WINDOW = 4;
+
+	/**
+	 * The window stops growing while recent blocks take this many times as
+	 * long as usual.
+	 */
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	private static int globalLimit = 64;
+
+	private static int globalRunning = 0;
+
+	/** Downloads that haven't been closed */
+	private static int downloads = 0;
+
+	private final int maxRequests;
+
+	private double window;
+
+	private boolean slowStart = true;
+
+	private int running = 0;
+
+	/** When the window was last halved */
+	private long lastDecrease = 0;
+
+	/** Moving averages of the time taken to fetch a block, in ms */
+	private double recentLatency = -1;
+
+	private double usualLatency = -1;
+
+	private boolean closed = false;
+
+	/**
+	 * @param maxRequests the most requests the download may ever have
+	 * running, e.g. its thread count.
+	 */
+	RequestConcurrency(int maxRequests) {
+		this.maxRequests = Math.max(1, maxRequests);
+		window = Math.min(INITIAL_WINDOW, this.maxRequests);
+		synchronized (RequestConcurrency.class) {
+			downloads++;
+		}
+	}
+
+	/**
+	 * Sets the most block requests all the splitfile downloads on the node
+	 * may have running between them. 0 or less means no limit.
+	 */
+	public static synchronized void setGlobalLimit(int n) {
+		globalLimit = n;
+	}
+
+	public static synchronized int globalLimit() {
+		return globalLimit;
+	}
+
+	/**
+	 * @return the block requests running for all splitfile downloads
+	 */
+	public static synchronized int globalRunning() {
+		return globalRunning;
+	}
+
+	/**
+	 * @return how many requests this download may have running now
+	 */
+	int limit() {
+		synchronized (RequestConcurrency.class) {
+			int n = Math.min(maxRequests, (int) window);
+			if (globalLimit > 0)
+				n = Math.min(n, Math.max(1, globalLimit / Math.max(1, downloads)));
+			return n;
+		}
+	}
+
+	/**
+	 * @return true if another request may be started now
+	 */
+	boolean mayStart() {
+		synchronized (RequestConcurrency.class) {
+			return !closed && running < limit()
+				&& (globalLimit <= 0 || globalRunning < globalLimit);
+		}
+	}
+
+	/**
+	 * Counts a request as running. Call this just before starting it, and
+	 * finished() exactly once when it has finished.
+	 */
+	void started() {
+		int n;
+		synchronized (RequestConcurrency.class) {
+			if (closed)
+				return;
+			running++;
+			n = ++globalRunning;
+		}
+		if (Core.diagnostics != null)
+			Core.diagnostics.occurrenceContinuous("splitFileRequestsRunning", n);
+	}
+
+	/**
+	 * Counts a request as no longer running, and adjusts the window.
+	 * @param startTime when the request was started
+	 * @param outcome SUCCEEDED, FAILED, OVERLOADED or CANCELLED
+	 */
+	void finished(long startTime, int outcome) {
+		int n;
+		synchronized (RequestConcurrency.class) {
+			if (closed || running == 0)
+				return;
+			running--;
+			globalRunning--;
+			long now = System.currentTimeMillis();
+			if (outcome == SUCCEEDED) {
+				double latency = now - startTime;
+				if (recentLatency < 0) {
+					recentLatency = usualLatency = latency;
+				} else {
+					recentLatency += (latency - recentLatency) / 8;
+					usualLatency += (latency - usualLatency) / 64;
+				}
+				if (recentLatency > LATENCY_TOLERANCE * usualLatency) {
+					// Blocks are slowing down, so more requests would
+					// probably only queue up somewhere.
+					slowStart = false;
+				} else if (slowStart) {
+					window += 1;
+				} else {
+					window += 1 / window;
+				}
+				window = Math.min(window, maxRequests);
+			} else if (outcome == OVERLOADED) {
+				slowStart = false;
+				// Requests started before the last cut are from the
+				// bigger window, so don't cut again for them.
+				if (startTime >= lastDecrease) {
+					window = Math.max(1, window / 2);
+					lastDecrease = now;
+				}
+			}
+			n = limit();
+		}
+		if (Core.diagnostics != null)
+			Core.diagnostics.occurrenceContinuous("splitFileRequestLimit", n);
+	}
+
+	/**
+	 * Gives back any requests still counted as running to the global
+	 * budget, and stops sharing the budget. Call this when the download
+	 * has finished, however it finished.
+	 */
+	void close() {
+		synchronized (RequestConcurrency.class) {
+			if (closed)
+				return;
+			closed = true;
+			globalRunning -= running;
+			running = 0;
+			downloads--;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package freenet.client;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the splitfile block request concurrency controller.
+ */
+public class RequestConcurrencyTest extends TestCase {
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(RequestConcurrencyTest.class);
+	}
+
+	private int oldLimit;
+
+	protected void setUp() {
+		oldLimit = RequestConcurrency.globalLimit();
+		RequestConcurrency.setGlobalLimit(0);
+	}
+
+	protected void tearDown() {
+		RequestConcurrency.setGlobalLimit(oldLimit);
+	}
+
+	/**
+	 * The window grows with successes up to the download's maximum,
+	 * halves on a RouteNotFound, and ignores DataNotFounds.
+	 */
+	public void testWindow() {
+		RequestConcurrency c = new RequestConcurrency(20);
+		try {
+			assertEquals(RequestConcurrency.INITIAL_WINDOW, c.limit());
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < 100; i++) {
+				assertTrue(c.mayStart());
+				c.started();
+				c.finished(start, RequestConcurrency.SUCCEEDED);
+			}
+			assertEquals(20, c.limit());
+
+			c.started();
+			c.finished(start, RequestConcurrency.FAILED);
+			assertEquals(20, c.limit());
+
+			c.started();
+			c.started();
+			long later = System.currentTimeMillis() + 1;
+			c.finished(later, RequestConcurrency.OVERLOADED);
+			assertEquals(10, c.limit());
+			// Started before the cut, so it doesn't cut again
+			c.finished(start, RequestConcurrency.OVERLOADED);
+			assertEquals(10, c.limit());
+
+			for (int i = 0; i < 10; i++) {
+				c.started();
+				assertEquals(i < 9, c.mayStart());
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Downloads share the global limit evenly, and give their requests
+	 * back when they are closed.
+	 */
+	public void testGlobalLimit() {
+		RequestConcurrency.setGlobalLimit(6);
+		int before = RequestConcurrency.globalRunning();
+		RequestConcurrency a = new RequestConcurrency(30);
+		RequestConcurrency b = new RequestConcurrency(30);
+		try {
+			assertEquals(3, a.limit());
+			for (int i = 0; i < 3; i++) {
+				assertTrue(a.mayStart());
+				a.started();
+			}
+			assertFalse(a.mayStart());
+			assertTrue(b.mayStart());
+			assertEquals(before + 3, RequestConcurrency.globalRunning());
+			a.close();
+			assertEquals(before, RequestConcurrency.globalRunning());
+			assertEquals(RequestConcurrency.INITIAL_WINDOW, b.limit());
+		} finally {
+			a.close();
+			b.close();
+		}
+	}
+}
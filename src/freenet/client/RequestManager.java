@@ -88,6 +88,11 @@ abstract class RequestManager {
             workingMap.remove(r);
         }
 
+        if (ref instanceof RetryableInfo) {
+            // Before done(), which forgets the reason if it retries.
+            ((RetryableInfo)ref).reportOutcome(success);
+        }
+
         //assertTrue(ref != null);
         if (ref == null) {
             // REVISIT:
@@ -228,10 +233,20 @@ abstract class RequestManager {
         return requestQueue.size();
     } 
 
-    // respects maxThreads
+    // respects maxThreads, and the concurrency limit for block
+    // downloads if there is one.
     protected synchronized final boolean canRequest() {
-        return (requestQueue.size() > 0) && 
-            (workingMap.size() < maxThreads);
+        if ((requestQueue.size() == 0) || 
+            (workingMap.size() >= maxThreads)) {
+            return false;
+        }
+        return !isThrottled((RequestInfo)requestQueue.elementAt(0)) ||
+            concurrency.mayStart();
+    }
+
+    private final boolean isThrottled(RequestInfo i) {
+        return (concurrency != null) && (i instanceof RetryableInfo) &&
+            ((RetryableInfo)i).downloading;
     }
 
     protected synchronized final boolean isWorking() {
@@ -350,6 +365,12 @@ abstract class RequestManager {
 		requestQueue.trimToSize();
                 Request r = getRequest(i);
                 if (r != null) {
+                    if (isThrottled(i)) {
+                        RetryableInfo ri = (RetryableInfo)i;
+                        ri.startTime = System.currentTimeMillis();
+                        ri.counted = true;
+                        concurrency.started();
+                    }
                     // Make sure the request tells us when it's done.
                     new EventConnector(r, i);
                 }
@@ -397,6 +418,8 @@ abstract class RequestManager {
     int defaultRetryIncrement = 3;
     int defaultRetries = 3;
     int maxThreads = 5;
+    // Set by subclasses that want block downloads to adapt to load.
+    RequestConcurrency concurrency = null;
 
     SegmentHeader[] headers = null;
     BlockMap[] maps = null;
@@ -483,6 +506,10 @@ abstract class RequestManager {
         ClientEvent reason;
         int suggestedExitCode = -1;
 
+        // Set while the request counts against the concurrency limit.
+        long startTime = -1;
+        boolean counted = false;
+
 	public String toString() {
 	    return "["+RequestManager.this.getClass().getName()+
 		": "+uri+":"+segment+"."+index+
@@ -737,6 +764,24 @@ abstract class RequestManager {
             }
         }
         
+        // Tells the concurrency controller how the request went.
+        void reportOutcome(boolean success) {
+            synchronized (RequestManager.this) {
+                if (!counted) {
+                    return;
+                }
+                counted = false;
+            }
+            int outcome = RequestConcurrency.SUCCEEDED;
+            if (suggestedExitCode == SplitFileEvent.CANCELED) {
+                outcome = RequestConcurrency.CANCELLED;
+            } else if (!success) {
+                outcome = (reason instanceof RouteNotFoundEvent) ? 
+                    RequestConcurrency.OVERLOADED : RequestConcurrency.FAILED;
+            }
+            concurrency.finished(startTime, outcome);
+        }
+
         void done(boolean success) {
 	    if(logDEBUG)
 		Core.logger.log(this, "RetryableInfo.done("+success+") for "+this,
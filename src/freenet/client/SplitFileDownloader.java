@@ -75,6 +75,8 @@ public class SplitFileDownloader {
 		public int blockSize;
 		public int blocksRequired;
 		public int runningThreads;
+		// How many requests may run at once right now.
+		public int requestLimit;
 		public int blocksQueued;
 		public int blocksDownloaded;
 		// definitively, after retries exhausted.
@@ -107,6 +109,7 @@ public class SplitFileDownloader {
 		ret.blockSize = reportedBlockSize;
 		ret.blocksRequired = requiredSuccesses;
 		ret.runningThreads = nPending;
+		ret.requestLimit = concurrency == null ? nThreads : concurrency.limit();
 		ret.blocksQueued = requestQueue.size();
 		ret.blocksDownloaded = successes;
 		ret.blocksFailed = failures;
@@ -188,6 +191,7 @@ public class SplitFileDownloader {
 		dnfCount = 0;
 		rnfCount = 0;
 		localRNFCount = 0;
+		concurrency = new RequestConcurrency(nThreads);
 
 		startBlock = offset / sf.getBlockSize();
 		int startBlockOffset = offset - startBlock * sf.getBlockSize();
@@ -245,6 +249,7 @@ public class SplitFileDownloader {
 		dnfCount = 0;
 		rnfCount = 0;
 		localRNFCount = 0;
+		concurrency = new RequestConcurrency(nThreads);
 
 		// REDFLAG: size changed to long. hmmm... problems in other places?
 		this.sequence = new BucketSequence((int) sf.getSize(), bucketFactory);
@@ -666,7 +671,8 @@ public class SplitFileDownloader {
 					// Start tasks.
 					while ((nPending < nThreads)
 						&& (requestQueue.size() > 0)
-						&& (!stopping)) {
+						&& (!stopping)
+						&& concurrency.mayStart()) {
 						if (logDebug)
 							Core.logger.log(
 								this,
@@ -698,6 +704,8 @@ public class SplitFileDownloader {
 										+ request.getBlockNumber(),
 									Logger.DEBUG);
 							nPending++;
+							request.startTime = System.currentTimeMillis();
+							concurrency.started();
 							c.start();
 							reallyStarted = true;
 						} catch (Throwable uho) {
@@ -725,6 +733,8 @@ public class SplitFileDownloader {
 										Logger.DEBUG);
 							} else {
 								nPending--;
+								request.reportOutcome(
+									RequestConcurrency.CANCELLED);
 							}
 							if (logDebug)
 								Core.logger.log(
@@ -737,7 +747,16 @@ public class SplitFileDownloader {
 					try {
 						if (logDebug)
 							Core.logger.log(this, "Trying...", Logger.DEBUG);
-						SplitFileDownloader.this.wait(POLLINGINTERVAL_MS);
+						// If there is room for more requests but
+						// the concurrency limit is holding them back,
+						// a slot can be freed by another download
+						// without waking us, so check back sooner.
+						SplitFileDownloader.this.wait(
+							((nPending < nThreads)
+								&& (requestQueue.size() > 0)
+								&& (!stopping))
+								? THROTTLED_POLLINGINTERVAL_MS
+								: POLLINGINTERVAL_MS);
 					} catch (InterruptedException ie) {
 						t = ie; // hmmm... Exception masking
 					}
@@ -843,6 +862,7 @@ public class SplitFileDownloader {
 					// when we return...
 
 					finalStatus = getStatus();
+					concurrency.close();
 					worker = null;
 					SplitFileDownloader.this.notifyAll();
 				}
@@ -991,15 +1011,21 @@ public class SplitFileDownloader {
 
 				switch (sr.getState()) {
 					case Request.FAILED :
+						reportOutcome(
+							rnf != null
+								? RequestConcurrency.OVERLOADED
+								: RequestConcurrency.FAILED);
 						removeFromRunningList();
 						attemptRetry();
 						break;
 					case Request.CANCELLED :
+						reportOutcome(RequestConcurrency.CANCELLED);
 						removeFromRunningList();
 						requestFinished(data, blockNumber, false);
 						break;
 					case Request.DONE :
 						{
+							reportOutcome(RequestConcurrency.SUCCEEDED);
 							removeFromRunningList();
 							// Double check for corrupted data blocks 
 							// if we are FEC decoding.
@@ -1072,6 +1098,18 @@ public class SplitFileDownloader {
 			}
 		}
 
+		// Tell the concurrency controller how the request went,
+		// the first time it finishes.
+		private void reportOutcome(int outcome) {
+			synchronized (SplitFileDownloader.this) {
+				if (reported) {
+					return;
+				}
+				reported = true;
+			}
+			concurrency.finished(startTime, outcome);
+		}
+
 		private void attemptRetry() {
 			synchronized (SplitFileDownloader.this) {
 				if (retries >= maxRetries) {
@@ -1140,10 +1178,14 @@ public class SplitFileDownloader {
 
 		private int blockNumber = -1;
 		private Client client = null;
+
+		private long startTime = -1;
+		private boolean reported = false;
 	}
 
 	////////////////////////////////////////////////////////////
 	private final static int POLLINGINTERVAL_MS = 5000;
+	private final static int THROTTLED_POLLINGINTERVAL_MS = 200;
 
 	ClientFactory factory = null;
 	BucketFactory bucketFactory = null;
@@ -1193,4 +1235,6 @@ public class SplitFileDownloader {
 
 	FECTools fecTools = null;
 	FECTools.HeaderAndMap[] headersAndMaps = null;
+
+	RequestConcurrency concurrency = null;
 }
@@ -0,0 +1,123 @@
+package freenet.client;
+
+import java.util.Random;
+
+import freenet.config.Params;
+import freenet.message.client.FEC.SegmentHeader;
+import freenet.support.ArrayBucket;
+import freenet.support.Bucket;
+import freenet.support.BucketFactory;
+import freenet.support.NullBucket;
+
+/**
+ * Reports MB/s for FEC encoding and then decoding a whole splitfile through
+ * FECTools.encodeSegments() and decodeSegments(), with the built in codec,
+ * for 1, 2, 4 and 8 threads. Each segment is decoded with every other data
+ * block missing. The blocks are in memory and the results are thrown
+ * away, so this measures the codec and how well it spreads over the CPUs.
+ * <p>
+ * Usage: SplitFileFECBenchmark [file size in MiB] [thread counts...]
+ * </p>
+ */
+public class SplitFileFECBenchmark {
+
+	private static final BucketFactory nullFactory = new BucketFactory() {
+		public Bucket makeBucket(long size) {
+			return new NullBucket();
+		}
+		public void freeBucket(Bucket b) {
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		long length = (args.length > 0 ? Long.parseLong(args[0]) : 1024)
+			* 1024 * 1024;
+		int[] threads = { 1, 2, 4, 8 };
+		if (args.length > 1) {
+			threads = new int[args.length - 1];
+			for (int i = 0; i < threads.length; i++)
+				threads[i] = Integer.parseInt(args[i + 1]);
+		}
+		System.out.println(Runtime.getRuntime().availableProcessors()
+			+ " CPUs, " + (length / (1024 * 1024)) + " MiB splitfile");
+		double base = 0;
+		for (int i = 0; i < threads.length; i++) {
+			double rate = time(length, threads[i]);
+			if (i == 0)
+				base = rate;
+			System.out.println("  speedup " + (Math.round(rate / base * 10)
+				/ 10.0) + "x");
+		}
+	}
+
+	/**
+	 * @return MB/s for the round trip
+	 */
+	private static double time(long length, int threads) throws Exception {
+		FECWorkers.setThreads(threads);
+		Params zero = new Params();
+		zero.put("class", RSFECEncoder.class.getName());
+		Params encoders = new Params();
+		encoders.put("0", zero);
+		zero = new Params();
+		zero.put("class", RSFECDecoder.class.getName());
+		Params decoders = new Params();
+		decoders.put("0", zero);
+		Params fec = new Params();
+		fec.put("Encoders", encoders);
+		fec.put("Decoders", decoders);
+		Params params = new Params();
+		params.put("FEC", fec);
+		FECTools tools = new FECTools(params, nullFactory, threads, threads);
+
+		SegmentHeader[] headers =
+			tools.segmentFile(-1, RSFECEncoder.NAME, length);
+		int blockSize = headers[0].getBlockSize();
+		// The content makes no difference to the speed, so a few distinct
+		// blocks are used over and over to save memory.
+		Random r = new Random(blockSize);
+		Bucket[] content = new Bucket[8];
+		for (int i = 0; i < content.length; i++) {
+			byte[] b = new byte[blockSize];
+			r.nextBytes(b);
+			content[i] = new ArrayBucket(b);
+		}
+
+		Bucket[][] data = new Bucket[headers.length][];
+		int[][] dataBlocks = new int[headers.length][];
+		int[][] checkBlocks = new int[headers.length][];
+		Bucket[][] available = new Bucket[headers.length][];
+		for (int s = 0; s < headers.length; s++) {
+			int k = headers[s].getBlockCount();
+			int m = headers[s].getCheckBlockCount();
+			data[s] = new Bucket[k];
+			for (int i = 0; i < k; i++)
+				data[s][i] = content[i % content.length];
+			dataBlocks[s] = new int[k / 2];
+			for (int i = 0; i < k / 2; i++)
+				dataBlocks[s][i] = 2 * i + 1;
+			checkBlocks[s] = new int[m];
+			for (int i = 0; i < m; i++)
+				checkBlocks[s][i] = k + i;
+			available[s] = new Bucket[k / 2 + m];
+			for (int i = 0; i < available[s].length; i++)
+				available[s][i] = content[i % content.length];
+		}
+
+		long start = System.currentTimeMillis();
+		tools.encodeSegments(headers, data);
+		long encoded = System.currentTimeMillis();
+		tools.decodeSegments(headers, dataBlocks, checkBlocks, null,
+			available);
+		long decoded = System.currentTimeMillis();
+
+		double mb = length / (1024.0 * 1024.0);
+		double encodeRate = mb * 1000 / Math.max(1, encoded - start);
+		double decodeRate = mb * 1000 / Math.max(1, decoded - encoded);
+		double rate = 2 * mb * 1000 / Math.max(1, decoded - start);
+		System.out.println(threads + " threads, " + headers.length
+			+ " segments: encode " + Math.round(encodeRate) + " MB/s, decode "
+			+ Math.round(decodeRate) + " MB/s");
+		return rate;
+	}
+}
@@ -7,6 +7,8 @@ import java.util.Enumeration;
 import java.util.Vector;
 
 import freenet.Core;
+import freenet.crypt.DigestOutputStream;
+import freenet.crypt.SHA1;
 import freenet.client.events.BlockQueuedEvent;
 import freenet.client.events.ExceptionEvent;
 import freenet.client.events.SegmentDecodingEvent;
@@ -22,6 +24,7 @@ import freenet.message.client.FEC.BlockMap;
 import freenet.message.client.FEC.SegmentHeader;
 import freenet.support.Bucket;
 import freenet.support.BucketTools;
+import freenet.support.HexUtil;
 import freenet.support.Logger;
 import freenet.support.NullBucket;
 import freenet.support.io.BucketInputStream;
@@ -36,10 +39,13 @@ import freenet.support.sort.HeapSorter;
  */
 class SplitFileRequestManager extends RequestManager {
 	Bucket[] decoded;
+	// Segments decoded out of order, waiting for the ones before them.
 	Bucket[] segments;
 	Bucket destBucket;
 	OutputStream out;
 	long totalWritten = 0;
+	// The first segment that hasn't been written to out yet.
+	int nextToWrite = 0;
 
 	SplitFileGetRequest request;
 
@@ -333,31 +339,6 @@ class SplitFileRequestManager extends RequestManager {
 		}
 	}
 
-	////////////////////////////////////////////////////////////
-	// Creates a SHA1 hash of the entire srcBucket
-	////////////////////////////////////////////////////////////
-	class VerifyChecksum extends RequestInfo {
-		void done(boolean success) {
-			if (success) {
-				ComputeSHA1Request r = (ComputeSHA1Request) req;
-				String sha1 = r.getSHA1();
-				if (!sha1.toLowerCase().equals(checksum.toLowerCase())) {
-					System.err.println("CHECKSUM FAILED:");
-					System.err.println("   expected: " + checksum);
-					System.err.println("   go      : " + sha1);
-
-					errorMsg = "Reconstructed file checksum failed. ";
-					setState(STATE_FAILING);
-				}
-			} else {
-				errorMsg =
-					"ComputeSHA1Request failed. Couldn't make file checksum.";
-				setState(STATE_FAILING);
-				System.err.println("Compute checksum FAILED");
-			}
-		}
-	}
-
 	////////////////////////////////////////////////////////////
 	// RequestInfo subclass for SegmentSplitFile requests
 	////////////////////////////////////////////////////////////
@@ -552,8 +533,6 @@ class SplitFileRequestManager extends RequestManager {
 		} else if (i instanceof CheckDownloadedCHK) {
 			CheckDownloadedCHK cc = (CheckDownloadedCHK) i;
 			cc.req = new ComputeCHKRequest(null, new NullBucket(), cc.data);
-		} else if (i instanceof VerifyChecksum) {
-			i.req = new ComputeSHA1Request(request.destBucket);
 		} else if (i instanceof SimpleCheckCHK) {
 			SimpleCheckCHK cc = (SimpleCheckCHK) i;
 			cc.req = new ComputeCHKRequest(null, new NullBucket(), cc.data);
@@ -597,7 +576,6 @@ class SplitFileRequestManager extends RequestManager {
 	public static final int STATE_DECODED = 16;
 	public static final int STATE_INSERTING_MISSING_BLOCKS = 17;
 	public static final int STATE_INSERTED_MISSING_BLOCKS = 18;
-	public static final int STATE_VERIFYING_CHECKSUM = 19;
 
 	synchronized Request getNextRequest() {
 		for (;;) {
@@ -605,6 +583,15 @@ class SplitFileRequestManager extends RequestManager {
 				switch (state) {
 					case STATE_START :
 						out = destBucket.getOutputStream();
+						if ((checksum != null) && doParanoidChecks) {
+							// Hash the file as it is written, so it
+							// doesn't have to be read back at the end.
+							out =
+								new DigestOutputStream(SHA1.getInstance(), out);
+						}
+						// Run as many block requests as the node and
+						// the network can take, up to maxThreads.
+						concurrency = new RequestConcurrency(maxThreads);
 						queueRequest(new GetHeaders(sf));
 						setState(STATE_REQUESTING_HEADERS);
 						return super.getNextRequest();
@@ -661,11 +648,19 @@ class SplitFileRequestManager extends RequestManager {
 						setState(STATE_DECODED);
 						continue; // Don't wait.
 					case STATE_DECODED :
-						if (request.randomSegs) {
-							storeSegment();
-						} else {
+						// Write each segment as soon as the ones before
+						// it have been written, so the start of the file
+						// can be used before the rest has arrived.
+						if (currentSegment == nextToWrite) {
 							writeData();
+							nextToWrite++;
+						} else {
+							storeSegment();
+						}
+						if (request.randomSegs) {
+							writeStoredSegments();
 						}
+						out.flush();
 
 						assertTrue(
 							(requestsRunning() == 0)
@@ -696,6 +691,8 @@ class SplitFileRequestManager extends RequestManager {
 								giveAwayHealingInserts(request.inserter);
 							}
 						}
+						// Nothing else needs the blocks now.
+						freeBlocks();
 
 						setState(STATE_INSERTED_MISSING_BLOCKS);
 						continue;
@@ -734,20 +731,32 @@ class SplitFileRequestManager extends RequestManager {
 							return super.getNextRequest();
 						}
 
-						if (request.randomSegs) {
-							writeSegments();
-						}
+						assertTrue(nextToWrite == segmentCount);
 
-						if ((checksum != null) && doParanoidChecks) {
+						if (out instanceof DigestOutputStream) {
 							// Check the file's checksum.
-							queueRequest(new VerifyChecksum());
-							setState(STATE_VERIFYING_CHECKSUM);
 							produceEvent(
 								new VerifyingChecksumEvent(
 									headers[currentSegment],
 									true,
 									checksum));
-							continue;
+							String sha1 =
+								HexUtil.bytesToHex(
+									((DigestOutputStream) out)
+										.getDigest()
+										.digest());
+							if (!sha1.equalsIgnoreCase(checksum)) {
+								// The data has already been streamed out,
+								// so the caller must see the request fail.
+								errorMsg =
+									"Reconstructed file checksum failed: expected "
+										+ checksum
+										+ ", got "
+										+ sha1;
+								Core.logger.log(this, errorMsg, Logger.NORMAL);
+								setState(STATE_FAILING);
+								continue;
+							}
 						}
 
 						postedFinished = true;
@@ -762,20 +771,6 @@ class SplitFileRequestManager extends RequestManager {
 						// IMPORANT: Don't wait!
 						continue;
 
-					case STATE_VERIFYING_CHECKSUM :
-						// Wait for the checksum verification to finish.
-						if (canRequest()) {
-							return super.getNextRequest();
-						}
-						if (isWorking()) {
-							break;
-						}
-
-						setState(STATE_DONE);
-
-						// IMPORANT: Don't wait!
-						continue;
-
 					case STATE_FAILING :
 						// Sloppy, but ok. Could call cancel multiple times.
 						cancelAll();
@@ -844,7 +839,8 @@ class SplitFileRequestManager extends RequestManager {
 
 	}
 
-	synchronized void setupForSegment() {
+	// Frees the current segment's data and check blocks.
+	synchronized void freeBlocks() {
 		try {
 			BucketTools.freeBuckets(bf, blocks);
 		} catch (IOException e) {
@@ -865,6 +861,10 @@ class SplitFileRequestManager extends RequestManager {
 				Logger.ERROR);
 		}
 		checks = null;
+	}
+
+	synchronized void setupForSegment() {
+		freeBlocks();
 		try {
 			BucketTools.freeBuckets(bf, decoded);
 		} catch (IOException e) {
@@ -1193,12 +1193,13 @@ class SplitFileRequestManager extends RequestManager {
 		}
 	}
 
-	// concatenate segments[]
+	// Write out any stored segments that come next in the file,
+	// freeing each one once it has been written.
 	// REQUIRES: out already opened.
-	synchronized void writeSegments() throws IOException {
-		long totalWritten = 0;
-
-		for (int seg = 0; seg < segmentCount; seg++) {
+	synchronized void writeStoredSegments() throws IOException {
+		while ((nextToWrite < segmentCount)
+			&& (segments[nextToWrite] != null)) {
+			int seg = nextToWrite;
 			// Padded segment length.
 			long segmentLength =
 				headers[seg].getBlockSize() * headers[seg].getBlockCount();
@@ -1230,10 +1231,10 @@ class SplitFileRequestManager extends RequestManager {
 					in.close();
 				}
 			}
-			if (segments[seg] != null) {
-				bf.freeBucket(segments[seg]);
-			}
+			bf.freeBucket(segments[seg]);
+			segments[seg] = null;
 			totalWritten += segmentLength;
+			nextToWrite++;
 		}
 	}
 
@@ -1365,6 +1366,23 @@ class SplitFileRequestManager extends RequestManager {
 			checks = null;
 		}
 
+		if (segments != null) {
+			try {
+				BucketTools.freeBuckets(bf, segments);
+			} catch (IOException e) {
+				Core.logger.log(
+					this,
+					"WARNING: Cannot free segment buckets",
+					e,
+					Logger.ERROR);
+			}
+			segments = null;
+		}
+
+		if (concurrency != null) {
+			concurrency.close();
+		}
+
 		healingInserts.removeAllElements();
 		if (out != null) {
 			try {
@@ -1403,8 +1421,6 @@ class SplitFileRequestManager extends RequestManager {
 				return "STATE_INSERTING_MISSING_BLOCKS";
 			case STATE_INSERTED_MISSING_BLOCKS :
 				return "STATE_INSERTED_MISSING_BLOCKS";
-			case STATE_VERIFYING_CHECKSUM :
-				return "STATE_VERIFYING_CHECKSUM";
 		}
 
 		return "Unknown state: " + state;
@@ -33,6 +33,7 @@ import freenet.support.Bucket;
 import freenet.support.BucketFactory;
 import freenet.support.HTMLEncoder;
 import freenet.support.Logger;
+import freenet.support.OutputStreamBucket;
 import freenet.support.URLEncoder;
 import freenet.support.servlet.HtmlTemplate;
 
@@ -676,6 +677,19 @@ public class SplitFileRequestContext extends BaseContext {
             filter = null;
     }
 
+        if (out != null) {
+            // Nothing needs the whole file once the headers have gone,
+            // so pass each segment straight on to the browser as soon as
+            // it has been decoded, instead of keeping the whole file in
+            // temp space until the end. Fetch the segments in order, so
+            // the bytes start to flow as soon as the first one is done.
+            synchronized (SplitFileRequestContext.this) {
+                cleanup();
+                data = new OutputStreamBucket(out);
+                requester.setRandomSegs(false);
+            }
+        }
+
         ConnectionPoller poller = null;
         // RELEASE LOCK.
         try {
@@ -752,8 +766,8 @@ public class SplitFileRequestContext extends BaseContext {
                 if (out == null) {
                     sendData(resp);
                 } else {
-                    sendDataWithoutHeaders(out);
-                    out = null; // call above closes out.
+                    // Already sent while downloading.
+                    out.flush();
 	}
             } else {
                 writeData();
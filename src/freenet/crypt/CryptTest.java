@@ -4,6 +4,7 @@ import java.math.BigInteger;
 
 import net.i2p.util.NativeBigInteger;
 
+import freenet.crypt.ciphers.Rijndael;
 import freenet.support.HexUtil;
 
 import junit.framework.TestCase;
@@ -46,6 +47,51 @@ public class CryptTest extends TestCase {
         }
     }
 
+    /**
+     * Tests that signatures made from DSASignPool's values verify, and
+     * that each value is only used once.
+     */
+    public void testDSASignPool() throws InterruptedException {
+        DSAGroup g=Global.DSAgroupC;
+        DSAPrivateKey pk=new DSAPrivateKey(new NativeBigInteger(1, dsaKeys[0]));
+        DSAPublicKey pub=new DSAPublicKey(g, pk);
+        DSA.sign(g, pk, BigInteger.ONE, y); // starts filling the pool
+        for (int i = 0 ; i < 100 && DSASignPool.size(g) < 2 ; i++)
+            Thread.sleep(50);
+        assertTrue("Pool has been filled", DSASignPool.size(g) >= 2);
+        DSASignature a=DSA.sign(g, pk, BigInteger.ONE, y);
+        DSASignature b=DSA.sign(g, pk, BigInteger.ONE, y);
+        assertTrue(DSA.verify(pub, a, BigInteger.ONE));
+        assertTrue(DSA.verify(pub, b, BigInteger.ONE));
+        assertFalse("Nonce reused", a.getR().equals(b.getR()));
+    }
+
+    /**
+     * Tests that DSAVerifier agrees with DSA.verify(), for one signature
+     * at a time, in a batch, and from its cache.
+     */
+    public void testDSAVerifier() {
+        DSAGroup g=Global.DSAgroupC;
+        int n = dsaKeys.length * 2;
+        DSAPublicKey[] pub = new DSAPublicKey[n];
+        DSASignature[] sig = new DSASignature[n];
+        BigInteger[] m = new BigInteger[n];
+        for (int i = 0 ; i < dsaKeys.length ; i++) {
+            DSAPrivateKey pk=new DSAPrivateKey(new NativeBigInteger(1, dsaKeys[i]));
+            BigInteger digest = BigInteger.valueOf(i + 1);
+            pub[2*i] = pub[2*i+1] = new DSAPublicKey(g, pk);
+            sig[2*i] = sig[2*i+1] = DSA.sign(g, pk, digest, y);
+            m[2*i] = digest;
+            m[2*i+1] = digest.add(BigInteger.ONE); // wrong digest
+        }
+        boolean[] valid = DSAVerifier.verify(pub, sig, m);
+        for (int i = 0 ; i < n ; i++) {
+            assertEquals("Batch result " + i, i % 2 == 0, valid[i]);
+            assertEquals("Cached result " + i, i % 2 == 0,
+                         DSAVerifier.verify(pub[i], sig[i], m[i]));
+        }
+    }
+
     /**
      * Tests ElGamal encryption.
      */
@@ -111,4 +157,73 @@ public class CryptTest extends TestCase {
                      s.digout());
     }
 
+
+    /**
+     * Tests Rijndael with the FIPS-197 AES-128 test vector, on bytes and
+     * on ints.
+     */
+    public void testRijndael() throws UnsupportedCipherException {
+        Rijndael c = new Rijndael(128);
+        c.initialize(HexUtil.hexToBytes("000102030405060708090a0b0c0d0e0f"));
+        byte[] block = HexUtil.hexToBytes("00112233445566778899aabbccddeeff");
+        byte[] result = new byte[16];
+        c.encipher(block, result);
+        assertEquals("69c4e0d86a7b0430d8cdb78070b4c55a",
+                     HexUtil.bytesToHex(result));
+        int[] ints = { 0x00112233, 0x44556677, 0x8899aabb, 0xccddeeff };
+        c.encipher(ints);
+        assertEquals(0x69c4e0d8, ints[0]);
+        assertEquals(0x6a7b0430, ints[1]);
+        assertEquals(0xd8cdb780, ints[2]);
+        assertEquals(0x70b4c55a, ints[3]);
+    }
+
+    /**
+     * Tests that PCFBMode on a Rijndael, which does whole blocks a word at
+     * a time, gives the same results as on any other BlockCipher, whatever
+     * sizes the data comes in.
+     */
+    public void testPCFB() throws UnsupportedCipherException {
+        byte[] key = new byte[16];
+        byte[] iv = new byte[16];
+        y.nextBytes(key);
+        y.nextBytes(iv);
+        final Rijndael r = new Rijndael(128);
+        r.initialize(key);
+        BlockCipher slow = new BlockCipher() {
+            public void initialize(byte[] key) {}
+            public int getKeySize() { return r.getKeySize(); }
+            public int getBlockSize() { return r.getBlockSize(); }
+            public void encipher(byte[] block, byte[] result) {
+                r.encipher(block, result);
+            }
+            public void decipher(byte[] block, byte[] result) {
+                r.decipher(block, result);
+            }
+        };
+        byte[] plain = new byte[5000];
+        y.nextBytes(plain);
+        byte[] a = (byte[]) plain.clone();
+        byte[] b = (byte[]) plain.clone();
+        PCFBMode fastEnc = new PCFBMode(r, iv);
+        PCFBMode slowEnc = new PCFBMode(slow, iv);
+        PCFBMode fastDec = new PCFBMode(r, iv);
+        int[] sizes = { 1, 15, 16, 17, 0, 3, 32, 100, 7, 1024, 33 };
+        int off = 0;
+        for (int i = 0; off < plain.length; i++) {
+            int len = Math.min(sizes[i % sizes.length], plain.length - off);
+            fastEnc.blockEncipher(a, off, len);
+            slowEnc.blockEncipher(b, off, len);
+            off += len;
+        }
+        assertTrue("Fast and slow encryption differ", java.util.Arrays.equals(a, b));
+        off = 0;
+        for (int i = 0; off < plain.length; i++) {
+            int len = Math.min(sizes[(i + 5) % sizes.length], plain.length - off);
+            fastDec.blockDecipher(a, off, len);
+            off += len;
+        }
+        assertTrue("Decryption failed", java.util.Arrays.equals(a, plain));
+    }
+
 }
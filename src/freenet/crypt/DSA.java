@@ -24,8 +24,16 @@ public class DSA {
 		return sign(g, x, r, kInv, m);
     } 
 	
+    /**
+     * Returns a DSA signature given a group, private key (x), the hash of
+     * the message (m), and a random source for the nonce. Uses values
+     * precalculated by DSASignPool if there are any.
+     */
     public static DSASignature sign(DSAGroup g, DSAPrivateKey x, BigInteger m,
 				    Random r) {
+	BigInteger[] pre = DSASignPool.take(g);
+	if (pre != null)
+	    return sign(g, x, pre[0], pre[1], m);
 	BigInteger k;
 	do {
 	    k=new NativeBigInteger(160, r);
@@ -46,7 +54,7 @@ public class DSA {
 				k=new NativeBigInteger(160, r);
 			} while (k.compareTo(g.getQ())>-1 || k.compareTo(BigInteger.ZERO)==0);
 			
-			result[i][0] = g.getG().modPow(k, g.getP()); // r 
+			result[i][0] = g.getG().modPow(k, g.getP()).mod(g.getQ()); // r 
 			result[i][1] = k.modInverse(g.getQ()); // k^-1 
 		}
 		return result;
@@ -76,8 +84,14 @@ public class DSA {
 	    BigInteger w=sig.getS().modInverse(kp.getQ());
 	    BigInteger u1=m.multiply(w).mod(kp.getQ());
 	    BigInteger u2=sig.getR().multiply(w).mod(kp.getQ());
-	    BigInteger v1=kp.getG().modPow(u1, kp.getP());
-	    BigInteger v2=kp.getY().modPow(u2, kp.getP());
+	    BigInteger g=kp.getG(), y=kp.getY();
+	    if (NativeBigInteger.isNative()) {
+		// Use the native modPow if it is loaded
+		if (!(g instanceof NativeBigInteger)) g=new NativeBigInteger(g);
+		if (!(y instanceof NativeBigInteger)) y=new NativeBigInteger(y);
+	    }
+	    BigInteger v1=g.modPow(u1, kp.getP());
+	    BigInteger v2=y.modPow(u2, kp.getP());
 	    BigInteger v=v1.multiply(v2).mod(kp.getP()).mod(kp.getQ());
 	    return v.equals(sig.getR());
 
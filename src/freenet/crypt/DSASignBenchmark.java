@@ -0,0 +1,63 @@
+package freenet.crypt;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Reports DSA signatures per second with and without DSASignPool, as an
+ * SSK or SVK insert would make them. Without the pool every signature
+ * does its own modPow. With it, two figures: a sustained run, in which the
+ * pool can only help by as much as there is spare CPU to fill it, and a
+ * burst after the pool has had time to fill, as when a freesite's keys are
+ * signed one after another.
+ * <p>
+ * Usage: DSASignBenchmark [milliseconds per test] [burst size]
+ * </p>
+ */
+public class DSASignBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long runtime = args.length > 0 ? Long.parseLong(args[0]) : 10000;
+        int burst = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        DSAGroup g = Global.DSAgroupB;
+        Random r = new Yarrow();
+        DSAPrivateKey x = new DSAPrivateKey(g, r);
+        DSAPublicKey y = new DSAPublicKey(g, x);
+        BigInteger m = new BigInteger(160, r);
+        if (!DSA.verify(y, DSA.sign(g, x, m, r), m))
+            throw new IllegalStateException("Signature does not verify");
+
+        DSASignPool.setEnabled(false);
+        System.out.println("without pool: " + rate(g, x, m, r, runtime)
+                + " signatures/s");
+
+        DSASignPool.setEnabled(true);
+        System.out.println("with pool, sustained: "
+                + rate(g, x, m, r, runtime) + " signatures/s");
+
+        // Let the pool fill up to what it is aiming for
+        int target = Math.min(burst, DSASignPool.target(g));
+        DSA.sign(g, x, m, r);
+        while (DSASignPool.size(g) < target)
+            Thread.sleep(100);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < target; i++)
+            DSA.sign(g, x, m, r);
+        long duration = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println("with pool, burst of " + target + ": "
+                + (target * 1000L / duration) + " signatures/s");
+        System.exit(0);
+    }
+
+    private static long rate(DSAGroup g, DSAPrivateKey x, BigInteger m,
+            Random r, long runtime) {
+        long count = 0;
+        long duration;
+        long start = System.currentTimeMillis();
+        do {
+            DSA.sign(g, x, m, r);
+            count++;
+        } while ((duration = System.currentTimeMillis() - start) < runtime);
+        return count * 1000 / duration;
+    }
+}
@@ -0,0 +1,186 @@
+package freenet.crypt;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.Vector;
+
+import freenet.Core;
+
+/**
+ * Precalculated values for DSA signatures, made in the background so that
+ * DSA.sign() needn't do the expensive part of a signature (g^k mod p) while
+ * the caller waits. There is a pool for each group that has been signed
+ * with. Each pool tries to hold enough values for HORIZON seconds of
+ * signing at the rate signatures have lately been made, but at least
+ * MIN_SIZE and no more than MAX_SIZE.
+ * <p>
+ * Each value is only ever handed out once. The pools are filled by one
+ * thread at the lowest priority, so they are made from spare CPU time.
+ * </p>
+ */
+public final class DSASignPool {
+
+	private static final int MIN_SIZE = 16;
+
+	private static final int MAX_SIZE = 1024;
+
+	/** How many seconds of signing to keep values ready for */
+	private static final int HORIZON = 30;
+
+	/** How often to update the signing rate, in milliseconds */
+	private static final long RATE_PERIOD = 10 * 1000;
+
+	private static final class Pool {
+		final DSAGroup g;
+
+		/** BigInteger[] { r, k^-1 } */
+		final LinkedList values = new LinkedList();
+
+		int target = MIN_SIZE;
+
+		/** Signatures per second, lately */
+		double rate = 0;
+
+		long periodStart = System.currentTimeMillis();
+
+		int periodCount = 0;
+
+		Pool(DSAGroup g) {
+			this.g = g;
+		}
+
+		/** Count a signature, and set the target from the rate. */
+		void signed(long now) {
+			periodCount++;
+			long elapsed = now - periodStart;
+			if (elapsed >= RATE_PERIOD) {
+				rate = (rate + periodCount * 1000.0 / elapsed) / 2;
+				target = (int) Math.max(MIN_SIZE, Math.min(MAX_SIZE,
+					Math.ceil(rate * HORIZON)));
+				periodStart = now;
+				periodCount = 0;
+			}
+		}
+	}
+
+	/** DSAGroup has no hashCode(), and there are only ever a few */
+	private static final Vector pools = new Vector();
+
+	private static boolean enabled = true;
+
+	private static Thread filler;
+
+	private DSASignPool() {
+	}
+
+	/**
+	 * Turn the pools on or off. When they are off, DSA.sign() does all
+	 * the work itself and nothing is made in the background.
+	 */
+	public static synchronized void setEnabled(boolean on) {
+		enabled = on;
+		if (!on) {
+			for (int i = 0; i < pools.size(); i++)
+				((Pool) pools.elementAt(i)).values.clear();
+		}
+	}
+
+	/**
+	 * @return { r, k^-1 } for a signature in the group, never to be used
+	 * again, or null if there are none ready.
+	 */
+	public static BigInteger[] take(DSAGroup g) {
+		BigInteger[] v = null;
+		synchronized (DSASignPool.class) {
+			if (!enabled)
+				return null;
+			Pool p = pool(g);
+			p.signed(System.currentTimeMillis());
+			if (!p.values.isEmpty())
+				v = (BigInteger[]) p.values.removeFirst();
+			if (p.values.size() < p.target)
+				startFilling();
+		}
+		Core.diagnostics.occurrenceCounting(v == null ? "signPoolMisses"
+				: "signPoolHits", 1);
+		return v;
+	}
+
+	/**
+	 * @return the number of values ready for the group
+	 */
+	public static synchronized int size(DSAGroup g) {
+		return pool(g).values.size();
+	}
+
+	/**
+	 * @return the number of values the pool for the group is trying to
+	 * hold
+	 */
+	public static synchronized int target(DSAGroup g) {
+		return pool(g).target;
+	}
+
+	private static Pool pool(DSAGroup g) {
+		for (int i = 0; i < pools.size(); i++) {
+			Pool p = (Pool) pools.elementAt(i);
+			if (p.g.equals(g))
+				return p;
+		}
+		Pool p = new Pool(g);
+		pools.addElement(p);
+		return p;
+	}
+
+	private static void startFilling() {
+		if (filler == null) {
+			filler = new Filler();
+			filler.start();
+		} else
+			DSASignPool.class.notifyAll();
+	}
+
+	/**
+	 * @return a pool that wants another value, or null
+	 */
+	private static Pool wanting() {
+		for (int i = 0; i < pools.size(); i++) {
+			Pool p = (Pool) pools.elementAt(i);
+			if (p.values.size() < p.target)
+				return p;
+		}
+		return null;
+	}
+
+	private static class Filler extends Thread {
+
+		private final Random r = Core.getRandSource();
+
+		Filler() {
+			super("DSA signature precalculation");
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+		}
+
+		public void run() {
+			while (true) {
+				Pool p;
+				synchronized (DSASignPool.class) {
+					while (!enabled || (p = wanting()) == null) {
+						try {
+							DSASignPool.class.wait();
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+					}
+				}
+				BigInteger[] v = DSA.signaturePrecalculate(p.g, 1, r)[0];
+				synchronized (DSASignPool.class) {
+					if (enabled && p.values.size() < MAX_SIZE)
+						p.values.addLast(v);
+				}
+			}
+		}
+	}
+}
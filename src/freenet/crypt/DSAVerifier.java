@@ -0,0 +1,205 @@
+package freenet.crypt;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+
+import freenet.Core;
+import freenet.support.LRUQueue;
+
+/**
+ * Verifies DSA signatures, remembering the results for the most recent
+ * ones, since the same node references and SSK/SVK data are verified over
+ * and over again. A batch of signatures can also be verified at once,
+ * spread over all the CPUs.
+ * <p>
+ * Don't use it for signatures that will only ever be seen once, such as
+ * those in a link negotiation; use DSA.verify() directly for those.
+ * </p>
+ */
+public final class DSAVerifier {
+
+	/** A signature on a digest, and the key it should be from */
+	private static final class Signed {
+		final BigInteger y, p, q, g, r, s, m;
+
+		Signed(DSAPublicKey kp, DSASignature sig, BigInteger m) {
+			y = kp.getY();
+			p = kp.getP();
+			q = kp.getQ();
+			g = kp.getG();
+			r = sig.getR();
+			s = sig.getS();
+			this.m = m;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Signed))
+				return false;
+			Signed x = (Signed) o;
+			return m.equals(x.m) && r.equals(x.r) && s.equals(x.s)
+				&& y.equals(x.y) && p.equals(x.p) && q.equals(x.q)
+				&& g.equals(x.g);
+		}
+
+		public int hashCode() {
+			return y.hashCode() ^ r.hashCode() ^ (m.hashCode() * 31);
+		}
+	}
+
+	/**
+	 * A remembered result. A batch verifies signatures ahead of the
+	 * verify() that really wants them, so it doesn't count anything; the
+	 * first verify() of a result the batch worked out counts as the miss.
+	 */
+	private static final class Result {
+		final boolean valid;
+
+		boolean counted;
+
+		Result(boolean valid, boolean counted) {
+			this.valid = valid;
+			this.counted = counted;
+		}
+	}
+
+	private static int cacheSize = 4096;
+
+	private static final HashMap results = new HashMap();
+
+	private static final LRUQueue lru = new LRUQueue();
+
+	private static final int THREADS = Runtime.getRuntime()
+		.availableProcessors();
+
+	private DSAVerifier() {
+	}
+
+	/**
+	 * Set the most results to remember. 0 disables the cache.
+	 */
+	public static synchronized void setCacheSize(int size) {
+		cacheSize = Math.max(0, size);
+		trim();
+	}
+
+	public static synchronized int cacheSize() {
+		return results.size();
+	}
+
+	/**
+	 * Verifies the message authenticity given the public key, a signature,
+	 * and the hash of the message (m), as DSA.verify() does.
+	 */
+	public static boolean verify(DSAPublicKey kp, DSASignature sig,
+			BigInteger m) {
+		Signed x = new Signed(kp, sig, m);
+		Boolean b = cached(x, true);
+		if (b != null)
+			return b.booleanValue();
+		boolean valid = DSA.verify(kp, sig, m);
+		remember(x, valid, true);
+		return valid;
+	}
+
+	/**
+	 * Verifies a number of signatures at once. Those we haven't seen
+	 * recently are verified in parallel, by a thread for each CPU. Nothing
+	 * is counted in the diagnostics until verify() is called on each one.
+	 * @return whether each signature is valid
+	 */
+	public static boolean[] verify(final DSAPublicKey[] kp,
+			final DSASignature[] sig, final BigInteger[] m) {
+		if (kp.length != sig.length || kp.length != m.length)
+			throw new IllegalArgumentException("Array lengths differ");
+		final boolean[] valid = new boolean[kp.length];
+		final int[] todo = new int[kp.length];
+		int count = 0;
+		for (int i = 0; i < kp.length; i++) {
+			Boolean b = cached(new Signed(kp[i], sig[i], m[i]), false);
+			if (b == null)
+				todo[count++] = i;
+			else
+				valid[i] = b.booleanValue();
+		}
+		final int n = count;
+		int threads = Math.min(THREADS, n);
+		if (threads <= 1) {
+			for (int i = 0; i < n; i++)
+				valid[todo[i]] = DSA.verify(kp[todo[i]], sig[todo[i]],
+					m[todo[i]]);
+		} else {
+			final int[] next = new int[1];
+			Runnable r = new Runnable() {
+				public void run() {
+					while (true) {
+						int i;
+						synchronized (next) {
+							if (next[0] == n)
+								return;
+							i = todo[next[0]++];
+						}
+						valid[i] = DSA.verify(kp[i], sig[i], m[i]);
+					}
+				}
+			};
+			Thread[] t = new Thread[threads - 1];
+			for (int i = 0; i < t.length; i++) {
+				t[i] = new Thread(r, "DSA batch verifier " + (i + 1));
+				t[i].setDaemon(true);
+				t[i].start();
+			}
+			// This thread does its share too
+			r.run();
+			for (int i = 0; i < t.length; i++) {
+				while (true) {
+					try {
+						t[i].join();
+						break;
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+			}
+		}
+		for (int i = 0; i < n; i++)
+			remember(new Signed(kp[todo[i]], sig[todo[i]], m[todo[i]]),
+				valid[todo[i]], false);
+		return valid;
+	}
+
+	/**
+	 * @param count
+	 *            whether this is the verification the caller wants, to be
+	 *            counted as a hit or a miss
+	 */
+	private static Boolean cached(Signed x, boolean count) {
+		Result r;
+		boolean hit;
+		synchronized (DSAVerifier.class) {
+			r = (Result) results.get(x);
+			if (r != null)
+				lru.push(x);
+			hit = r != null && r.counted;
+			if (r != null && count)
+				r.counted = true;
+		}
+		if (count)
+			Core.diagnostics.occurrenceCounting(hit ? "signatureCacheHits"
+					: "signatureCacheMisses", 1);
+		return r == null ? null : (r.valid ? Boolean.TRUE : Boolean.FALSE);
+	}
+
+	private static synchronized void remember(Signed x, boolean valid,
+			boolean counted) {
+		if (cacheSize == 0)
+			return;
+		results.put(x, new Result(valid, counted));
+		lru.push(x);
+		trim();
+	}
+
+	private static void trim() {
+		while (results.size() > cacheSize)
+			results.remove(lru.pop());
+	}
+}
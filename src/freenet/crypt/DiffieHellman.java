@@ -31,26 +31,47 @@ public class DiffieHellman {
 	 */
 	private static final int PRECALC_TIMEOUT = 193 * 1000;
 
+	/**
+	 * How many threads fill the buffer. One for each CPU but one, so that
+	 * a burst of negotiations, such as when the node starts, can be met by
+	 * the spare CPUs; but always at least one.
+	 */
+	private static final int PRECALC_THREADS =
+		Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+	/**
+	 * The precalc threads run below normal priority while topping up the
+	 * buffer, and at normal priority when it is empty and a negotiation is
+	 * waiting. There are several of them, so they must never be boosted
+	 * above normal, or they could starve the rest of the node.
+	 */
+	private static final int PRECALC_PRIORITY = Thread.NORM_PRIORITY - 1;
+
 	private static Random r = Core.getRandSource();
 	private static DHGroup group = Global.DHgroupA;
 	private static Stack precalcBuffer = new Stack();
 	private static Object precalcerWaitObj = new Object();
 
-	private static Thread precalcThread;
+	private static Thread[] precalcThreads;
 
 	public static final BigInteger MIN_EXPONENTIAL_VALUE = new BigInteger("2").pow(24);
 	public static final BigInteger MAX_EXPONENTIAL_VALUE = group.getP().subtract(MIN_EXPONENTIAL_VALUE);
 
 	static {
-		precalcThread = new PrecalcBufferFill();
-		precalcThread.start();
+		precalcThreads = new Thread[PRECALC_THREADS];
+		for (int i = 0; i < precalcThreads.length; i++) {
+			precalcThreads[i] = new PrecalcBufferFill(i);
+			precalcThreads[i].start();
+		}
 	}
 
 	private static class PrecalcBufferFill extends Thread {
 
-		public PrecalcBufferFill() {
-			setName("Diffie-Helman-Precalc");
+		public PrecalcBufferFill(int i) {
+			setName(i == 0 ? "Diffie-Helman-Precalc"
+				: "Diffie-Helman-Precalc " + (i + 1));
 			setDaemon(true);
+			setPriority(PRECALC_PRIORITY);
 		}
 
 		public void run() {
@@ -63,9 +84,9 @@ public class DiffieHellman {
 					}
 				}
 
-				// Reset the thread priority to normal because it may have been
-				// set to MAX if the buffer was emptied.
-				precalcThread.setPriority(Thread.NORM_PRIORITY);
+				// Reset the thread priority because it may have been raised
+				// if the buffer was emptied.
+				setPriority(PRECALC_PRIORITY);
 
 				synchronized (precalcerWaitObj) {
 					try {
@@ -99,10 +120,11 @@ public class DiffieHellman {
 		if (precalcBuffer.size() < PRECALC_RESUME) {
 			if (precalcBuffer.isEmpty()) {
 				// If it is all empty, try to fill it up even faster
-				precalcThread.setPriority(Thread.MAX_PRIORITY);
+				for (int i = 0; i < precalcThreads.length; i++)
+					precalcThreads[i].setPriority(Thread.NORM_PRIORITY);
 			}
 			synchronized (precalcerWaitObj) {
-				precalcerWaitObj.notify();
+				precalcerWaitObj.notifyAll();
 			}
 		}
 	}
@@ -113,6 +135,7 @@ public class DiffieHellman {
 			askRefill();
 
 			// Wait until we actually have something to pop
+			long start = System.currentTimeMillis();
 			while (precalcBuffer.isEmpty()) {
 				try {
 					precalcBuffer.wait();
@@ -122,6 +145,9 @@ public class DiffieHellman {
 			}
 
 			BigInteger[] result = (BigInteger[]) precalcBuffer.pop();
+			Core.diagnostics.occurrenceContinuous(
+				"dhParamsWaitTime",
+				System.currentTimeMillis() - start);
 
 			// Hint the precalcer that it might have something to do now
 			askRefill();
@@ -0,0 +1,83 @@
+package freenet.crypt;
+
+import java.util.Random;
+
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * Reports MB/s per core for PCFBMode over 128 bit Rijndael, as used on
+ * every FNP link, encrypting and decrypting buffers of a typical read or
+ * packet size in place. Compares:
+ * <ul>
+ * <li>before: the block function via BlockCipher.encipher(), with the
+ * feedback register in bytes, as PCFBMode used to do for every cipher;</li>
+ * <li>after: PCFBMode's path for Rijndael, which enciphers the register
+ * with javax.crypto's AES where the JVM has one (newer JVMs run it with
+ * AES instructions), and otherwise does whole blocks a word at a
+ * time.</li>
+ * </ul>
+ * <p>
+ * Usage: PCFBBenchmark [buffer size] [milliseconds per test]
+ * </p>
+ */
+public class PCFBBenchmark {
+
+    private static long runtime;
+
+    private static int size;
+
+    public static void main(String[] args) throws Exception {
+        size = args.length > 0 ? Integer.parseInt(args[0]) : 16384;
+        runtime = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+        byte[] key = new byte[16];
+        new Random(12345).nextBytes(key);
+        final Rijndael r = new Rijndael(128);
+        r.initialize(key);
+        // Hides that it is a Rijndael, so PCFBMode does it a byte at a time
+        BlockCipher bytes = new BlockCipher() {
+            public void initialize(byte[] key) {}
+            public int getKeySize() { return 128; }
+            public int getBlockSize() { return 128; }
+            public void encipher(byte[] block, byte[] result) {
+                r.encipher(block, result);
+            }
+            public void decipher(byte[] block, byte[] result) {
+                r.decipher(block, result);
+            }
+        };
+        time("before (byte at a time)", bytes);
+        time("after (" + (r.newJCECipher() == null ? "word at a time"
+                : "JCE AES") + ")", r);
+    }
+
+    private static void time(String name, BlockCipher c) {
+        byte[] iv = new byte[16];
+        byte[] buf = new byte[size];
+        new Random(54321).nextBytes(buf);
+        PCFBMode enc = new PCFBMode(c, iv);
+        PCFBMode dec = new PCFBMode(c, iv);
+        // Warm up
+        for (int i = 0; i < 200; i++) {
+            enc.blockEncipher(buf, 0, size);
+            dec.blockDecipher(buf, 0, size);
+        }
+        System.out.println(name + ": encipher " + rate(enc, buf, true)
+                + " MB/s, decipher " + rate(dec, buf, false) + " MB/s");
+    }
+
+    private static long rate(PCFBMode ctx, byte[] buf, boolean encipher) {
+        long bytes = 0;
+        long duration;
+        long start = System.currentTimeMillis();
+        do {
+            for (int i = 0; i < 16; i++) {
+                if (encipher)
+                    ctx.blockEncipher(buf, 0, buf.length);
+                else
+                    ctx.blockDecipher(buf, 0, buf.length);
+            }
+            bytes += 16L * buf.length;
+        } while ((duration = System.currentTimeMillis() - start) < runtime);
+        return bytes * 1000 / duration / (1024 * 1024);
+    }
+}
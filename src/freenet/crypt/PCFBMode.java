@@ -5,6 +5,11 @@ package freenet.crypt;
   http://www.gnu.org/ for further details of the GPL.
 */
 import java.io.*;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+import freenet.crypt.ciphers.Rijndael;
 
 /**
  * Control mechanism for the Periodic Cipher Feed Back mode.  This is
@@ -18,11 +23,28 @@ public class PCFBMode {
     private BlockCipher c;
     private byte[] feedback_register;
     private int registerPointer;
+
+    /**
+     * If c is a 128 bit Rijndael, the register is enciphered by the JVM's
+     * AES if it has one. If not, whole blocks are done a word at a time,
+     * with the feedback register in here rather than in feedback_register.
+     */
+    private final Rijndael fast;
+    private final int[] register;
+    private Cipher jce;
+    private int jceKeyVersion;
     
     public PCFBMode(BlockCipher c) {
         this.c = c;
         feedback_register = new byte[c.getBlockSize() >> 3];
         registerPointer = feedback_register.length;
+        if (c instanceof Rijndael && c.getBlockSize() == 128) {
+            fast = (Rijndael) c;
+            register = new int[4];
+        } else {
+            fast = null;
+            register = null;
+        }
     }
 
     public PCFBMode(BlockCipher c, byte[] iv) {
@@ -87,6 +109,23 @@ public class PCFBMode {
      */
     //public synchronized byte[] blockDecipher(byte[] buf, int off, int len) {
     public byte[] blockDecipher(byte[] buf, int off, int len) {
+        if (fast != null && jce() == null) {
+            // Use up what is left of the current block, then do whole blocks
+            int n = Math.min(len, feedback_register.length - registerPointer);
+            for (int i=off; i<off+n; ++i) {
+                byte b = buf[i];
+                buf[i] ^= feedback_register[registerPointer];
+                feedback_register[registerPointer++] = b;
+            }
+            off += n;
+            len -= n;
+            if (len >= 16) {
+                int blocks = len >> 4;
+                fastDecipher(buf, off, blocks);
+                off += blocks << 4;
+                len -= blocks << 4;
+            }
+        }
         while (len > 0) {
             if (registerPointer == feedback_register.length) refillBuffer();
             int n = Math.min(len, feedback_register.length - registerPointer);
@@ -120,6 +159,19 @@ public class PCFBMode {
      */
     //public synchronized byte[] blockEncipher(byte[] buf, int off, int len) {
     public byte[] blockEncipher(byte[] buf, int off, int len) {
+        if (fast != null && jce() == null) {
+            int n = Math.min(len, feedback_register.length - registerPointer);
+            for (int i=off; i<off+n; ++i)
+                buf[i] = (feedback_register[registerPointer++] ^= buf[i]);
+            off += n;
+            len -= n;
+            if (len >= 16) {
+                int blocks = len >> 4;
+                fastEncipher(buf, off, blocks);
+                off += blocks << 4;
+                len -= blocks << 4;
+            }
+        }
         while (len > 0) {
             if (registerPointer == feedback_register.length) refillBuffer();
             int n = Math.min(len, feedback_register.length - registerPointer);
@@ -131,10 +183,89 @@ public class PCFBMode {
         return buf;
     }
         
+    /**
+     * Encipher whole blocks when the register has been used up. Each block
+     * of ciphertext is the next register, so the register only goes back
+     * into feedback_register at the end.
+     */
+    private void fastEncipher(byte[] buf, int off, int blocks) {
+        int[] r = register;
+        loadRegister(r);
+        for (int b=0; b<blocks; b++) {
+            fast.encipher(r);
+            for (int j=0; j<4; j++, off+=4) {
+                int x = ((buf[off] & 0xff) << 24 | (buf[off+1] & 0xff) << 16 |
+                         (buf[off+2] & 0xff) << 8 | (buf[off+3] & 0xff)) ^ r[j];
+                buf[off] = (byte) (x >>> 24);
+                buf[off+1] = (byte) (x >>> 16);
+                buf[off+2] = (byte) (x >>> 8);
+                buf[off+3] = (byte) x;
+                r[j] = x;
+            }
+        }
+        storeRegister(r);
+    }
+
+    private void fastDecipher(byte[] buf, int off, int blocks) {
+        int[] r = register;
+        loadRegister(r);
+        for (int b=0; b<blocks; b++) {
+            fast.encipher(r);
+            for (int j=0; j<4; j++, off+=4) {
+                int x = (buf[off] & 0xff) << 24 | (buf[off+1] & 0xff) << 16 |
+                        (buf[off+2] & 0xff) << 8 | (buf[off+3] & 0xff);
+                int p = x ^ r[j];
+                buf[off] = (byte) (p >>> 24);
+                buf[off+1] = (byte) (p >>> 16);
+                buf[off+2] = (byte) (p >>> 8);
+                buf[off+3] = (byte) p;
+                r[j] = x;
+            }
+        }
+        storeRegister(r);
+    }
+
+    /**
+     * @return the JVM's AES with the current key, or null
+     */
+    private Cipher jce() {
+        if (jce == null || jceKeyVersion != fast.keyVersion()) {
+            jceKeyVersion = fast.keyVersion();
+            jce = fast.newJCECipher();
+        }
+        return jce;
+    }
+
+    private void loadRegister(int[] r) {
+        byte[] f = feedback_register;
+        for (int j=0, i=0; j<4; j++, i+=4)
+            r[j] = (f[i] & 0xff) << 24 | (f[i+1] & 0xff) << 16 |
+                   (f[i+2] & 0xff) << 8 | (f[i+3] & 0xff);
+    }
+
+    private void storeRegister(int[] r) {
+        byte[] f = feedback_register;
+        for (int j=0, i=0; j<4; j++, i+=4) {
+            f[i] = (byte) (r[j] >>> 24);
+            f[i+1] = (byte) (r[j] >>> 16);
+            f[i+2] = (byte) (r[j] >>> 8);
+            f[i+3] = (byte) r[j];
+        }
+    }
+
     // Refills the encrypted buffer with data.
     //private synchronized void refillBuffer() {
     private void refillBuffer() {
         // Encrypt feedback into result
+        if (fast != null && jce() != null) {
+            try {
+                jce.update(feedback_register, 0, 16, feedback_register, 0);
+                registerPointer=0;
+                return;
+            } catch (GeneralSecurityException e) {
+                jce = null;
+            }
+        }
         c.encipher(feedback_register, feedback_register);
 
         registerPointer=0;
@@ -2,6 +2,9 @@ package freenet.crypt.ciphers;
 
 import java.security.InvalidKeyException;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
 import freenet.Core;
 import freenet.crypt.BlockCipher;
 import freenet.crypt.UnsupportedCipherException;
@@ -20,6 +23,15 @@ import freenet.support.Logger;
  */
 public class Rijndael implements BlockCipher {
     private Object sessionKey;
+    private int[] roundKeys;
+    private byte[] key;
+    private int keyVersion = 0;
+
+    /**
+     * Whether the JVM's AES gives the same answers as we do, tested once.
+     * Newer JVMs run it with the CPU's AES instructions.
+     */
+    private static final boolean jceWorks = testJCE();
     private int keysize, blocksize;
 
     // for Util.getCipherByName..  and yes, screw you too, java
@@ -62,6 +74,9 @@ public class Rijndael implements BlockCipher {
 	    byte[] nkey=new byte[keysize>>3];
 	    System.arraycopy(key, 0, nkey, 0, nkey.length);
 	    sessionKey=Rijndael_Algorithm.makeKey(nkey);
+	    roundKeys=Rijndael_Algorithm.encryptionRoundKeys(sessionKey);
+	    this.key=nkey;
+	    keyVersion++;
 	} catch (InvalidKeyException e) {
 	    e.printStackTrace();
 	   Core.logger.log(this,"Invalid key",Logger.ERROR);
@@ -76,6 +91,68 @@ public class Rijndael implements BlockCipher {
 	Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey);
     }
 
+    /**
+     * Encipher a 128 bit block held as four big-endian ints, in place.
+     * Only for a 128 bit block size.
+     */
+    public final void encipher(int[] block) {
+	Rijndael_Algorithm.blockEncrypt(block, roundKeys);
+    }
+
+    /**
+     * @return a javax.crypto Cipher that enciphers single blocks with the
+     * current key, as encipher() does, or null if the JVM has no AES we
+     * trust or the block size isn't 128 bits. Unlike this, it is not safe
+     * to use from more than one thread at once.
+     */
+    public final Cipher newJCECipher() {
+	if (!jceWorks || blocksize != 128 || key == null)
+	    return null;
+	return jceCipher(key);
+    }
+
+    /**
+     * @return a number that changes whenever initialize() is called, so
+     * that a Cipher from newJCECipher() can be replaced when the key changes.
+     */
+    public final int keyVersion() {
+	return keyVersion;
+    }
+
+    private static Cipher jceCipher(byte[] key) {
+	try {
+	    Cipher c = Cipher.getInstance("AES/ECB/NoPadding");
+	    c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+	    return c;
+	} catch (Exception e) {
+	    return null;
+	} catch (NoClassDefFoundError e) {
+	    return null;
+	}
+    }
+
+    private static boolean testJCE() {
+	byte[] key = new byte[16];
+	byte[] block = new byte[16];
+	for (int i=0; i<16; i++) {
+	    key[i] = (byte) i;
+	    block[i] = (byte) (i * 0x11);
+	}
+	Cipher c = jceCipher(key);
+	if (c == null) return false;
+	try {
+	    byte[] expected = new byte[16];
+	    Rijndael_Algorithm.blockEncrypt(block, expected, 0,
+					    Rijndael_Algorithm.makeKey(key));
+	    c.update(block, 0, 16, block, 0);
+	    for (int i=0; i<16; i++)
+		if (block[i] != expected[i]) return false;
+	    return true;
+	} catch (Exception e) {
+	    return false;
+	}
+    }
+
     public static void main(String[] args) throws UnsupportedCipherException {
 	// Perform the Monte Carlo test
 
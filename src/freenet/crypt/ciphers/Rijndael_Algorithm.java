@@ -393,6 +393,79 @@ System.out.println();
 if (RDEBUG) trace(OUT, "blockEncrypt()");
     }
 
+    /**
+     * The encryption round keys of a session key for the default block size,
+     * one after another in a single array, for blockEncrypt(int[], int[]).
+     *
+     * @param  sessionKey The session key from makeKey().
+     */
+    public static final int[] encryptionRoundKeys (Object sessionKey) {
+        int[][] Ke = (int[][]) ((Object[]) sessionKey)[0];
+        int[] K = new int[Ke.length * 4];
+        for (int r = 0; r < Ke.length; r++)
+            System.arraycopy(Ke[r], 0, K, r * 4, 4);
+        return K;
+    }
+
+    /**
+     * Encrypt one block, at the default block size, held as four big-endian
+     * ints, in place. This is the same as blockEncrypt() on the bytes, but
+     * saves converting to bytes and back for callers that can use the ints
+     * as they are, e.g. PCFBMode.
+     *
+     * @param  block  The plaintext, replaced by the ciphertext.
+     * @param  K      The round keys from encryptionRoundKeys().
+     */
+    public static final void blockEncrypt (int[] block, int[] K) {
+        int t0 = block[0] ^ K[0];
+        int t1 = block[1] ^ K[1];
+        int t2 = block[2] ^ K[2];
+        int t3 = block[3] ^ K[3];
+        int a0, a1, a2, a3;
+        int k = 4;
+        int last = K.length - 4;
+        while (k < last) {
+            a0   = T1[(t0 >>> 24) & 0xFF] ^
+                   T2[(t1 >>> 16) & 0xFF] ^
+                   T3[(t2 >>>  8) & 0xFF] ^
+                   T4[ t3         & 0xFF] ^ K[k];
+            a1   = T1[(t1 >>> 24) & 0xFF] ^
+                   T2[(t2 >>> 16) & 0xFF] ^
+                   T3[(t3 >>>  8) & 0xFF] ^
+                   T4[ t0         & 0xFF] ^ K[k + 1];
+            a2   = T1[(t2 >>> 24) & 0xFF] ^
+                   T2[(t3 >>> 16) & 0xFF] ^
+                   T3[(t0 >>>  8) & 0xFF] ^
+                   T4[ t1         & 0xFF] ^ K[k + 2];
+            a3   = T1[(t3 >>> 24) & 0xFF] ^
+                   T2[(t0 >>> 16) & 0xFF] ^
+                   T3[(t1 >>>  8) & 0xFF] ^
+                   T4[ t2         & 0xFF] ^ K[k + 3];
+            t0 = a0;
+            t1 = a1;
+            t2 = a2;
+            t3 = a3;
+            k += 4;
+        }
+        // last round is special
+        block[0] = ((S[(t0 >>> 24) & 0xFF] & 0xFF) << 24 |
+                    (S[(t1 >>> 16) & 0xFF] & 0xFF) << 16 |
+                    (S[(t2 >>>  8) & 0xFF] & 0xFF) <<  8 |
+                    (S[ t3         & 0xFF] & 0xFF)) ^ K[last];
+        block[1] = ((S[(t1 >>> 24) & 0xFF] & 0xFF) << 24 |
+                    (S[(t2 >>> 16) & 0xFF] & 0xFF) << 16 |
+                    (S[(t3 >>>  8) & 0xFF] & 0xFF) <<  8 |
+                    (S[ t0         & 0xFF] & 0xFF)) ^ K[last + 1];
+        block[2] = ((S[(t2 >>> 24) & 0xFF] & 0xFF) << 24 |
+                    (S[(t3 >>> 16) & 0xFF] & 0xFF) << 16 |
+                    (S[(t0 >>>  8) & 0xFF] & 0xFF) <<  8 |
+                    (S[ t1         & 0xFF] & 0xFF)) ^ K[last + 2];
+        block[3] = ((S[(t3 >>> 24) & 0xFF] & 0xFF) << 24 |
+                    (S[(t0 >>> 16) & 0xFF] & 0xFF) << 16 |
+                    (S[(t1 >>>  8) & 0xFF] & 0xFF) <<  8 |
+                    (S[ t2         & 0xFF] & 0xFF)) ^ K[last + 3];
+    }
+
     /**
      * Convenience method to decrypt exactly one block of plaintext, assuming
      * Rijndael's default block size (128-bit).
@@ -25,7 +25,8 @@ public interface Buffer {
 	//Updates the buffers timestamp
 	void touch();
 	//Updates the buffers timestamp if deemed neccesary. Prevents excessive updates.
-	public void touchThrottled();
+	//Returns true if the timestamp was updated.
+	public boolean touchThrottled();
 
 	void commit();
 
@@ -0,0 +1,137 @@
+package freenet.fs.dir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Simple put/fetch/delete benchmark for the datastore Directory
+ * implementations, run through a LossyDirectory as the node does.
+ * <p>
+ * Usage: DirectoryBenchmark [native|log] [directory] [keys] [key size]
+ * </p>
+ */
+public class DirectoryBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        String type = args.length > 0 ? args[0] : "log";
+        File root = new File(args.length > 1 ? args[1] : "benchdir");
+        int keys = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int keySize = args.length > 3 ? Integer.parseInt(args[3]) : 16384;
+
+        long storeSize = ((long) keys) * (keySize + 1024) * 2;
+        Directory dir;
+        if (type.equals("native"))
+            dir =
+                new NativeFSDirectory(root, storeSize, 4096, true, 0.1F, 256);
+        else
+            dir =
+                new LogStructuredDirectory(
+                    root,
+                    storeSize,
+                    64 * 1024 * 1024,
+                    0.5F,
+                    256);
+        LossyDirectory lossy = new LossyDirectory(0x0001, dir);
+        System.out.println(
+            "Running "
+                + type
+                + " with "
+                + keys
+                + " keys of "
+                + keySize
+                + " bytes in "
+                + root);
+
+        Random r = new Random(42);
+        FileNumber[] fns = new FileNumber[keys];
+        for (int i = 0; i < keys; i++) {
+            byte[] k = new byte[23];
+            r.nextBytes(k);
+            fns[i] = new FileNumber(k);
+        }
+        byte[] data = new byte[keySize];
+        r.nextBytes(data);
+
+        // Benchmark put
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < keys; i++) {
+            Buffer b;
+            synchronized (lossy.semaphore()) {
+                b = lossy.forceStore(keySize, fns[i]);
+            }
+            OutputStream out = b.getOutputStream();
+            out.write(data);
+            out.close();
+            synchronized (lossy.semaphore()) {
+                b.commit();
+            }
+            b.release();
+        }
+        report("put", keys, keySize, System.currentTimeMillis() - start);
+
+        // Benchmark fetch, in random order
+
+        byte[] buf = new byte[4096];
+        start = System.currentTimeMillis();
+        for (int i = 0; i < keys; i++) {
+            Buffer b = lossy.fetch(fns[r.nextInt(keys)]);
+            if (b == null)
+                throw new IOException("missing key");
+            InputStream in = b.getInputStream();
+            while (in.read(buf) > 0);
+            in.close();
+            b.touchThrottled();
+            b.release();
+        }
+        report("fetch", keys, keySize, System.currentTimeMillis() - start);
+
+        // Benchmark delete of half the keys, then overwrite them
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < keys; i += 2) {
+            synchronized (lossy.semaphore()) {
+                lossy.delete(fns[i], false);
+            }
+        }
+        report("delete", keys / 2, 0, System.currentTimeMillis() - start);
+
+        if (dir instanceof LogStructuredDirectory) {
+            LogStructuredDirectory lsd = (LogStructuredDirectory) dir;
+            start = System.currentTimeMillis();
+            lsd.checkpoint();
+            System.out.println(
+                "compact: "
+                    + (System.currentTimeMillis() - start)
+                    + " ms, moved "
+                    + lsd.compactedBytes() / 1024
+                    + " kb, "
+                    + lsd.segmentCount()
+                    + " segments left");
+        }
+
+        // Clean up
+
+        for (int i = 1; i < keys; i += 2) {
+            synchronized (lossy.semaphore()) {
+                lossy.delete(fns[i], false);
+            }
+        }
+        if (dir instanceof LogStructuredDirectory)
+             ((LogStructuredDirectory) dir).checkpoint();
+    }
+
+    private static void report(String op, int n, int size, long duration) {
+        if (duration == 0)
+            duration = 1;
+        double ops = n / (duration / 1000.0);
+        System.out.print(op + ": " + (int) ops + " ops/s");
+        if (size > 0)
+            System.out.print(
+                ", " + (int) (ops * size / 1024.0) + " kb/s");
+        System.out.println();
+    }
+}
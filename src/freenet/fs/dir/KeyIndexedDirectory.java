@@ -0,0 +1,213 @@
+package freenet.fs.dir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+
+import freenet.Core;
+import freenet.support.KeyHistogram;
+import freenet.support.KeySizeHistogram;
+import freenet.support.Logger;
+
+/**
+ * Passes everything through to another Directory, keeping a MappedKeyIndex
+ * of the committed keys with one directory ID up to date on the way. This
+ * sits between the backend and the LossyDirectory, so that it also sees the
+ * deletions made to free space. A NativeFSDirectory also tells us about the
+ * files it removes by itself.
+ */
+public class KeyIndexedDirectory implements Directory,
+    NativeFSDirectory.DeleteListener {
+
+    private final Directory dir;
+    private final int dirID;
+    private final MappedKeyIndex index;
+    /** True if the backend tells us about all its deletions */
+    private final boolean listening;
+
+    /**
+     * @param dir
+     *            the backend directory
+     * @param dirID
+     *            the directory ID of the keys to index
+     * @param index
+     *            the index, which is brought up to date with the backend
+     */
+    public KeyIndexedDirectory(Directory dir, int dirID, MappedKeyIndex index)
+        throws IOException {
+        this.dir = dir;
+        this.dirID = dirID;
+        this.index = index;
+        // Before reconciling, so nothing the startup scan removes is missed
+        if (dir instanceof NativeFSDirectory) {
+            ((NativeFSDirectory) dir).setDeleteListener(this);
+            listening = true;
+        } else
+            listening = false;
+        long time = System.currentTimeMillis();
+        int diffs = index.reconcile(dir, dirID);
+        Core.logger.log(
+            this,
+            "Reconciled key index with store: "
+                + diffs
+                + " differences, "
+                + index.size()
+                + " keys, took "
+                + (System.currentTimeMillis() - time)
+                + "ms",
+            Logger.MINOR);
+    }
+
+    public MappedKeyIndex getIndex() {
+        return index;
+    }
+
+    private boolean indexed(FileNumber fn) {
+        return fn.dirID == dirID && fn.key.length == index.keyBytes;
+    }
+
+    public Object semaphore() {
+        return dir.semaphore();
+    }
+
+    public long available() {
+        return dir.available();
+    }
+
+    public long used() {
+        return dir.used();
+    }
+
+    public Enumeration keys(boolean ascending) {
+        return dir.keys(ascending);
+    }
+
+    public Enumeration keys(FilePattern pat) {
+        return dir.keys(pat);
+    }
+
+    public Enumeration lruKeys(boolean ascending) {
+        return dir.lruKeys(ascending);
+    }
+
+    public boolean delete(FileNumber fn, boolean keepIfUsed) {
+        boolean ret = dir.delete(fn, keepIfUsed);
+        if (ret && !listening && indexed(fn))
+            index.remove(fn.key);
+        return ret;
+    }
+
+    public void deleted(FileNumber fn) {
+        // Also told about files that were never committed
+        if (indexed(fn) && index.contains(fn.key))
+            index.remove(fn.key);
+    }
+
+    public boolean demote(FileNumber fn) {
+        boolean ret = dir.demote(fn);
+        if (ret && indexed(fn))
+            index.touch(fn.key, 0);
+        return ret;
+    }
+
+    public boolean contains(FileNumber fn) {
+        return dir.contains(fn);
+    }
+
+    public Buffer fetch(FileNumber fn) {
+        Buffer b = dir.fetch(fn);
+        if (!indexed(fn))
+            return b;
+        if (b == null) {
+            // The backend may drop files on its own, e.g. if they fail
+            // verification
+            if (index.contains(fn.key))
+                index.remove(fn.key);
+            return null;
+        }
+        return new IndexedBuffer(b, fn);
+    }
+
+    public Buffer store(long size, FileNumber fn) {
+        Buffer b = dir.store(size, fn);
+        if (b == null || !indexed(fn))
+            return b;
+        return new IndexedBuffer(b, fn);
+    }
+
+    public KeyHistogram getHistogram() {
+        return dir.getHistogram();
+    }
+
+    public KeySizeHistogram getSizeHistogram() {
+        return dir.getSizeHistogram();
+    }
+
+    public long countKeys() {
+        return dir.countKeys();
+    }
+
+    /**
+     * Records commits and touches in the index.
+     */
+    private final class IndexedBuffer implements Buffer {
+
+        private final Buffer b;
+        private final FileNumber fn;
+
+        IndexedBuffer(Buffer b, FileNumber fn) {
+            this.b = b;
+            this.fn = fn;
+        }
+
+        public long length() {
+            return b.length();
+        }
+
+        public long realLength() {
+            return b.realLength();
+        }
+
+        public boolean failed() {
+            return b.failed();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return b.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return b.getOutputStream();
+        }
+
+        public void touch() {
+            b.touch();
+            index.touch(fn.key, System.currentTimeMillis());
+        }
+
+        public boolean touchThrottled() {
+            if (!b.touchThrottled())
+                return false;
+            index.touch(fn.key, System.currentTimeMillis());
+            return true;
+        }
+
+        public void commit() {
+            b.commit();
+            index.put(fn.key, b.length(), System.currentTimeMillis());
+            // The backend may have dropped it again already, e.g. if the
+            // deferred commit failed before we put it in the index
+            if (listening && !dir.contains(fn))
+                index.remove(fn.key);
+        }
+
+        public void release() {
+            b.release();
+        }
+
+        public String toString() {
+            return b.toString();
+        }
+    }
+}
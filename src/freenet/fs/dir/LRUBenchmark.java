@@ -0,0 +1,110 @@
+package freenet.fs.dir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Random;
+
+/**
+ * Multi-threaded fetch and touch throughput of NativeFSDirectory, which is
+ * limited by the locking around the buffer table and the LRU list rather
+ * than by the disk. Runs with 1 to 32 threads, each picking random keys.
+ * <p>
+ * Usage: LRUBenchmark [directory] [keys] [seconds per run]
+ * </p>
+ */
+public class LRUBenchmark {
+
+    private static final int[] THREADS = { 1, 2, 4, 8, 16, 32 };
+
+    public static void main(String[] args) throws Exception {
+        File root = new File(args.length > 0 ? args[0] : "lrubench");
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        final NativeFSDirectory dir =
+            new NativeFSDirectory(
+                root,
+                ((long) keys + 1000) * 4096 * 2,
+                4096,
+                false,
+                0.1F,
+                256);
+        Random r = new Random(42);
+        final FileNumber[] fns = new FileNumber[keys];
+        byte[] data = new byte[64];
+        for (int i = 0; i < keys; i++) {
+            byte[] k = new byte[23];
+            r.nextBytes(k);
+            fns[i] = new FileNumber(k);
+            if (dir.contains(fns[i]))
+                continue;
+            Buffer b = dir.store(data.length, fns[i]);
+            OutputStream out = b.getOutputStream();
+            out.write(data);
+            out.close();
+            b.commit();
+            b.release();
+        }
+        System.out.println(
+            "Running with " + dir.countKeys() + " keys in " + root);
+
+        for (int mode = 0; mode < 2; mode++) {
+            final boolean touch = mode == 1;
+            for (int t = 0; t < THREADS.length; t++) {
+                int n = THREADS[t];
+                final long[] ops = new long[n];
+                final long end =
+                    System.currentTimeMillis() + seconds * 1000L;
+                Thread[] threads = new Thread[n];
+                for (int i = 0; i < n; i++) {
+                    final int me = i;
+                    threads[i] = new Thread() {
+                        public void run() {
+                            Random r = new Random(me);
+                            long count = 0;
+                            while ((count & 255) != 0
+                                || System.currentTimeMillis() < end) {
+                                Buffer b =
+                                    dir.fetch(fns[r.nextInt(fns.length)]);
+                                if (b == null)
+                                    continue;
+                                if (touch)
+                                    b.touch();
+                                b.release();
+                                count++;
+                            }
+                            ops[me] = count;
+                        }
+                    };
+                }
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < n; i++)
+                    threads[i].start();
+                for (int i = 0; i < n; i++)
+                    threads[i].join();
+                long time = System.currentTimeMillis() - start;
+                long total = 0;
+                for (int i = 0; i < n; i++)
+                    total += ops[i];
+                System.out.println(
+                    (touch ? "fetch+touch" : "fetch")
+                        + " with "
+                        + n
+                        + " threads: "
+                        + (total * 1000 / time)
+                        + " ops/sec");
+            }
+        }
+        // Check that the list is still in order
+        long last = Long.MIN_VALUE;
+        for (Enumeration e = dir.lruKeys(true); e.hasMoreElements();) {
+            FileNumber fn = (FileNumber) e.nextElement();
+            long m = dir.lastModified(fn);
+            if (m < last)
+                throw new IOException("LRU out of order at " + fn);
+            last = m;
+        }
+    }
+}
@@ -0,0 +1,1409 @@
+package freenet.fs.dir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Vector;
+
+import freenet.Core;
+import freenet.support.Checkpointed;
+import freenet.support.DoublyLinkedListImpl;
+import freenet.support.IteratorEnumeration;
+import freenet.support.KeyHistogram;
+import freenet.support.KeySizeHistogram;
+import freenet.support.Logger;
+import freenet.support.ReversibleSortedMap;
+import freenet.support.SkiplistWithHashMap;
+import freenet.support.Walk;
+import freenet.support.WalkEnumeration;
+
+/**
+ * A Directory implementation that packs files into a small number of large,
+ * append-only segment files instead of giving every key its own file in the
+ * native FS. An in-memory index maps each FileNumber to a (segment, offset,
+ * length) triple; deleted and superseded records become dead space which is
+ * reclaimed by copying the live records out of mostly-dead segments on
+ * checkpoint.
+ * <p>
+ * Every record on disk is self describing:
+ * <pre>
+ *   int    magic
+ *   byte   status (WRITING, COMMITTED or DELETED)
+ *   long   last modified time
+ *   long   data length
+ *   int    directory ID
+ *   short  key length
+ *   byte[] key
+ *   byte[] data
+ * </pre>
+ * so the index can be rebuilt on startup by reading the record headers
+ * sequentially, without touching the rest of the filesystem.
+ * </p>
+ * <p>
+ * Note that dead space counts as free in available(); the files on disk can
+ * temporarily exceed the configured size by up to the compaction threshold.
+ * </p>
+ */
+public class LogStructuredDirectory implements Directory, Checkpointed {
+
+    static final int RECORD_MAGIC = 0x4c534431; // "LSD1"
+
+    static final byte WRITING = 0;
+    static final byte COMMITTED = 1;
+    static final byte DELETED = 2;
+
+    private static final int STATUS_OFFSET = 4;
+    private static final int MODIFIED_OFFSET = 5;
+    private static final int HEADER_FIXED = 4 + 1 + 8 + 8 + 4 + 2;
+
+    private static final String SEGMENT_PREFIX = "seg-";
+
+    private static final int THROTTLEDTOUCH_INTERVAL = 60000;
+
+    private static final long checkpointSleepTime = 10000;
+
+    /** Size of the chunks used to copy records during compaction */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    public final File root;
+    public final String rootAsString;
+    public final long size;
+    private final long segmentSize;
+    private final float compactThreshold;
+    private final int maxOpenSegments;
+
+    /** FileNumber -> Record, committed records only */
+    private final SkiplistWithHashMap index;
+
+    /** Committed records, least recently used first */
+    private final DoublyLinkedListImpl lru = new DoublyLinkedListImpl();
+    private final Object lruSync = new Object();
+
+    /** Integer segment ID -> Segment. Protected by allocSync */
+    private final Hashtable segments = new Hashtable();
+    private final Object allocSync = new Object();
+    private Segment active;
+    private int nextSegmentID = 0;
+    private int openSegments = 0;
+
+    private long spaceUsed = 0;
+    private final Object spaceUsedSync = new Object();
+
+    private long compactedBytes = 0;
+    private int compactedSegments = 0;
+
+    protected final KeyHistogram keyHistogram = new KeyHistogram();
+    protected final KeySizeHistogram keySizeHistogram = new KeySizeHistogram();
+
+    public boolean logDEBUG;
+
+    /**
+     * @param root
+     *            the directory to keep the segment files in
+     * @param size
+     *            the maximum number of bytes of live data to allow
+     * @param segmentSize
+     *            the size at which a segment is sealed and a new one started
+     * @param compactThreshold
+     *            the fraction of a sealed segment which must be dead before
+     *            it is compacted
+     * @param maxOpenSegments
+     *            the maximum number of idle segment files to keep open
+     */
+    public LogStructuredDirectory(
+        File root,
+        long size,
+        long segmentSize,
+        float compactThreshold,
+        int maxOpenSegments)
+        throws IOException {
+        this.root = root;
+        this.rootAsString = root.getPath();
+        this.size = size;
+        this.segmentSize = segmentSize;
+        this.compactThreshold = compactThreshold;
+        this.maxOpenSegments = Math.max(2, maxOpenSegments);
+        logDEBUG = Core.logger.shouldLog(Logger.DEBUG, this);
+        if (!root.isDirectory() && !root.mkdirs())
+            throw new IOException(
+                "couldn't create segment directory: "
+                    + root.getCanonicalPath());
+        index = new SkiplistWithHashMap(1024);
+        load();
+        Core.logger.log(
+            this,
+            "starting with "
+                + rootAsString
+                + " ("
+                + size
+                + "), "
+                + segments.size()
+                + " segments, "
+                + index.size()
+                + " keys",
+            Logger.MINOR);
+    }
+
+    /**
+     * Rebuild the index by reading the record headers of every segment.
+     */
+    private void load() throws IOException {
+        File[] f = root.listFiles();
+        Vector ids = new Vector();
+        for (int x = 0; x < f.length; x++) {
+            String name = f[x].getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !f[x].isFile())
+                continue;
+            try {
+                ids.addElement(
+                    new Integer(
+                        Integer.parseInt(
+                            name.substring(SEGMENT_PREFIX.length()),
+                            16)));
+            } catch (NumberFormatException e) {
+                Core.logger.log(
+                    this,
+                    "Ignoring unknown file in segment directory: " + f[x],
+                    Logger.NORMAL);
+            }
+        }
+        Integer[] sorted = new Integer[ids.size()];
+        ids.copyInto(sorted);
+        Arrays.sort(sorted);
+
+        Vector loaded = new Vector();
+        long time = System.currentTimeMillis();
+        for (int x = 0; x < sorted.length; x++) {
+            int id = sorted[x].intValue();
+            Segment seg = new Segment(id);
+            segments.put(sorted[x], seg);
+            nextSegmentID = id + 1;
+            seg.acquire();
+            try {
+                scanSegment(seg, loaded);
+            } finally {
+                seg.release();
+            }
+        }
+
+        Record[] recs = new Record[loaded.size()];
+        loaded.copyInto(recs);
+        Arrays.sort(recs, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long a = ((Record) o1).lastModified;
+                long b = ((Record) o2).lastModified;
+                return a < b ? -1 : (a > b ? 1 : 0);
+            }
+        });
+        for (int x = 0; x < recs.length; x++)
+            lru.push(recs[x]);
+
+        if (sorted.length > 0) {
+            Segment last =
+                (Segment) segments.get(sorted[sorted.length - 1]);
+            if (last.length < segmentSize)
+                active = last;
+        }
+        if (logDEBUG)
+            Core.logger.log(
+                this,
+                "Loaded "
+                    + recs.length
+                    + " records from "
+                    + sorted.length
+                    + " segments in "
+                    + (System.currentTimeMillis() - time)
+                    + "ms",
+                Logger.DEBUG);
+    }
+
+    /**
+     * Read every record header in a segment, adding committed records to the
+     * index. Stops at the first damaged or incomplete record and truncates
+     * the segment there.
+     */
+    private void scanSegment(Segment seg, Vector loaded) throws IOException {
+        long fileLength = seg.channel.size();
+        ByteBuffer hdr = ByteBuffer.allocate(HEADER_FIXED);
+        long pos = 0;
+        while (pos + HEADER_FIXED <= fileLength) {
+            hdr.clear();
+            seg.read(hdr, pos);
+            hdr.flip();
+            int magic = hdr.getInt();
+            byte status = hdr.get();
+            long modified = hdr.getLong();
+            long length = hdr.getLong();
+            int dirID = hdr.getInt();
+            int keyLength = hdr.getShort() & 0xffff;
+            long recLength = HEADER_FIXED + keyLength + length;
+            if (magic != RECORD_MAGIC
+                || length < 0
+                || pos + recLength > fileLength) {
+                Core.logger.log(
+                    this,
+                    "Truncating segment "
+                        + seg.file
+                        + " at "
+                        + pos
+                        + " of "
+                        + fileLength
+                        + ": damaged or incomplete record",
+                    Logger.NORMAL);
+                break;
+            }
+            if (status == COMMITTED) {
+                ByteBuffer kb = ByteBuffer.allocate(keyLength);
+                seg.read(kb, pos + HEADER_FIXED);
+                FileNumber fn = new FileNumber(dirID, kb.array());
+                if (index.get(fn) != null) {
+                    // Left behind by an interrupted compaction
+                    seg.writeStatus(pos, DELETED);
+                    seg.deadBytes += recLength;
+                } else {
+                    Record r =
+                        new Record(fn, seg, pos, length, modified, COMMITTED);
+                    index.put(fn, r);
+                    loaded.addElement(r);
+                    histAdd(fn, length);
+                    spaceUsed += recLength;
+                }
+            } else {
+                if (status == WRITING)
+                    seg.writeStatus(pos, DELETED);
+                seg.deadBytes += recLength;
+            }
+            pos += recLength;
+        }
+        if (pos < fileLength)
+            seg.channel.truncate(pos);
+        seg.length = pos;
+    }
+
+    static int headerLength(FileNumber fn) {
+        return HEADER_FIXED + fn.key.length;
+    }
+
+    /**
+     * Reserve space for a record at the end of the active segment, starting
+     * a new segment if it would not fit.
+     */
+    private Record allocate(FileNumber fn, long length, long modified)
+        throws IOException {
+        long recLength = headerLength(fn) + length;
+        Segment seg;
+        long offset;
+        synchronized (allocSync) {
+            if (active == null
+                || (active.length > 0
+                    && active.length + recLength > segmentSize)) {
+                active = new Segment(nextSegmentID++);
+                segments.put(new Integer(active.id), active);
+            }
+            seg = active;
+            offset = seg.length;
+            seg.length += recLength;
+            seg.pending++;
+        }
+        return new Record(fn, seg, offset, length, modified, WRITING);
+    }
+
+    private void writeHeader(Record r) throws IOException {
+        ByteBuffer hdr = ByteBuffer.allocate(headerLength(r.fn));
+        hdr.putInt(RECORD_MAGIC);
+        hdr.put(r.status);
+        hdr.putLong(r.lastModified);
+        hdr.putLong(r.length);
+        hdr.putInt(r.fn.dirID);
+        hdr.putShort((short) r.fn.key.length);
+        hdr.put(r.fn.key);
+        hdr.flip();
+        r.segment.write(hdr, r.offset);
+    }
+
+    public final KeyHistogram getHistogram() {
+        return (KeyHistogram) (keyHistogram.clone());
+    }
+
+    public final KeySizeHistogram getSizeHistogram() {
+        return (KeySizeHistogram) (keySizeHistogram.clone());
+    }
+
+    public long countKeys() {
+        return keyHistogram.getTotal();
+    }
+
+    public final Object semaphore() {
+        return this;
+    }
+
+    public long available() {
+        return size - spaceUsed;
+    }
+
+    public long used() {
+        return spaceUsed;
+    }
+
+    /**
+     * @return the number of bytes in segment files on disk, including dead
+     *         records not yet compacted
+     */
+    public long physicalSize() {
+        long total = 0;
+        synchronized (allocSync) {
+            for (Enumeration e = segments.elements(); e.hasMoreElements();)
+                total += ((Segment) e.nextElement()).length;
+        }
+        return total;
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    public long compactedBytes() {
+        return compactedBytes;
+    }
+
+    public Enumeration keys(boolean ascending) {
+        Iterator i = index.keySet(!ascending).iterator();
+        return new IteratorEnumeration(i);
+    }
+
+    public Enumeration keys(FilePattern pat) {
+        ReversibleSortedMap set;
+        if (pat.ascending()) {
+            set = (ReversibleSortedMap) (index.tailMap(pat.key()));
+        } else {
+            set = (ReversibleSortedMap) (index.headMap(pat.key()));
+        }
+        Iterator i = set.keySet(!pat.ascending()).iterator();
+        return new IteratorEnumeration(i);
+    }
+
+    public Enumeration lruKeys(boolean ascending) {
+        return new WalkEnumeration(new LRUWalk(ascending));
+    }
+
+    public boolean delete(FileNumber fn, boolean keepIfUsed) {
+        Record r = (Record) index.get(fn);
+        if (r == null)
+            return false;
+        synchronized (r) {
+            if (keepIfUsed && (r.usedSinceCommit || r.users > 0)) {
+                if (logDEBUG)
+                    Core.logger.log(
+                        this,
+                        "Not deleting " + fn + ": in use",
+                        Logger.DEBUG);
+                return false;
+            }
+            synchronized (index) {
+                if (index.get(fn) != r)
+                    return false;
+                index.remove(fn);
+            }
+            synchronized (lruSync) {
+                lru.remove(r);
+            }
+            kill(r);
+        }
+        histRemove(fn, r.length);
+        return true;
+    }
+
+    /**
+     * Mark a record as dead, on disk and in the accounting. Call
+     * synchronized(r).
+     */
+    private void kill(Record r) {
+        if (r.status == DELETED)
+            return;
+        byte oldStatus = r.status;
+        r.status = DELETED;
+        long recLength = r.recordLength();
+        Segment seg = r.segment;
+        seg.acquire();
+        try {
+            seg.writeStatus(r.offset, DELETED);
+        } catch (IOException e) {
+            Core.logger.log(
+                this,
+                "Cannot mark " + r + " deleted in " + seg.file,
+                e,
+                Logger.ERROR);
+        } finally {
+            seg.release();
+        }
+        synchronized (allocSync) {
+            seg.deadBytes += recLength;
+            if (oldStatus == WRITING)
+                seg.pending--;
+        }
+        synchronized (spaceUsedSync) {
+            spaceUsed -= recLength;
+        }
+    }
+
+    public boolean demote(FileNumber fn) {
+        Record r = (Record) index.get(fn);
+        if (r == null)
+            return false;
+        synchronized (lruSync) {
+            if (lru.remove(r) == null)
+                return false;
+            Record first = (Record) lru.head();
+            if (first != null)
+                r.lastModified = first.lastModified - 1;
+            lru.unshift(r);
+        }
+        return true;
+    }
+
+    public boolean contains(FileNumber fn) {
+        return index.get(fn) != null;
+    }
+
+    public Buffer fetch(FileNumber fn) {
+        Record r = (Record) index.get(fn);
+        if (r == null)
+            return null;
+        return new LogBuffer(r);
+    }
+
+    public Buffer store(long size, FileNumber fn) {
+        long recLength = headerLength(fn) + size;
+        // Reserve the space before appending anything
+        synchronized (spaceUsedSync) {
+            if (spaceUsed + recLength > this.size) {
+                if (logDEBUG)
+                    Core.logger.log(
+                        this,
+                        "Returning null storing "
+                            + fn
+                            + ": need "
+                            + recLength
+                            + " bytes, have "
+                            + (this.size - spaceUsed),
+                        Logger.DEBUG);
+                return null;
+            }
+            spaceUsed += recLength;
+        }
+        Record r;
+        try {
+            r = allocate(fn, size, System.currentTimeMillis());
+        } catch (IOException e) {
+            synchronized (spaceUsedSync) {
+                spaceUsed -= recLength;
+            }
+            Core.logger.log(
+                this,
+                "Returning null storing " + fn + " because of exception",
+                e,
+                Logger.NORMAL);
+            return null;
+        }
+        try {
+            r.segment.acquire();
+            try {
+                writeHeader(r);
+            } finally {
+                r.segment.release();
+            }
+        } catch (IOException e) {
+            // Gives the space back
+            synchronized (r) {
+                kill(r);
+            }
+            Core.logger.log(
+                this,
+                "Returning null storing " + fn + " because of exception",
+                e,
+                Logger.NORMAL);
+            return null;
+        }
+        if (logDEBUG)
+            Core.logger.log(this, "store: " + r, Logger.DEBUG);
+        return new LogBuffer(r);
+    }
+
+    public long mostRecentlyUsedTime() {
+        synchronized (lruSync) {
+            Record r = (Record) lru.tail();
+            return r == null ? -1 : r.lastModified;
+        }
+    }
+
+    public long leastRecentlyUsedTime() {
+        synchronized (lruSync) {
+            Record r = (Record) lru.head();
+            return r == null ? -1 : r.lastModified;
+        }
+    }
+
+    void histRemove(FileNumber fn, long size) {
+        keyHistogram.remove(fn.getByteArray());
+        keySizeHistogram.remove(size);
+    }
+
+    void histAdd(FileNumber fn, long size) {
+        keyHistogram.add(fn.getByteArray());
+        keySizeHistogram.add(size);
+    }
+
+    // Checkpoint interface: compaction
+
+    public String getCheckpointName() {
+        return "Log-structured directory compaction";
+    }
+
+    public long nextCheckpoint() {
+        return System.currentTimeMillis() + checkpointSleepTime;
+    }
+
+    public void checkpoint() {
+        Segment victim;
+        while ((victim = pickVictim()) != null) {
+            long time = System.currentTimeMillis();
+            long moved;
+            try {
+                moved = compact(victim);
+            } catch (IOException e) {
+                Core.logger.log(
+                    this,
+                    "Cannot compact " + victim.file,
+                    e,
+                    Logger.ERROR);
+                return;
+            }
+            compactedBytes += moved;
+            compactedSegments++;
+            if (logDEBUG)
+                Core.logger.log(
+                    this,
+                    "Compacted "
+                        + victim.file
+                        + ": moved "
+                        + moved
+                        + " live bytes in "
+                        + (System.currentTimeMillis() - time)
+                        + "ms",
+                    Logger.DEBUG);
+        }
+    }
+
+    /**
+     * @return the sealed segment with the most dead space, if it is over the
+     *         compaction threshold and has no records still being written
+     */
+    private Segment pickVictim() {
+        Segment best = null;
+        double bestRatio = compactThreshold;
+        synchronized (allocSync) {
+            for (Enumeration e = segments.elements(); e.hasMoreElements();) {
+                Segment seg = (Segment) e.nextElement();
+                if (seg == active || seg.retired || seg.pending > 0)
+                    continue;
+                if (seg.length == 0) {
+                    best = seg;
+                    break;
+                }
+                double ratio = ((double) seg.deadBytes) / seg.length;
+                if (ratio >= bestRatio) {
+                    best = seg;
+                    bestRatio = ratio;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Copy the live records out of a segment and retire it. The copies are
+     * forced to disk once for the whole pass, and only then take the place
+     * of the originals.
+     *
+     * @return the number of bytes copied
+     */
+    private long compact(Segment victim) throws IOException {
+        long moved = 0;
+        // {original, copy} pairs not yet committed
+        Vector copies = new Vector();
+        boolean done = false;
+        victim.acquire();
+        try {
+            ByteBuffer hdr = ByteBuffer.allocate(HEADER_FIXED);
+            long pos = 0;
+            while (pos < victim.length) {
+                hdr.clear();
+                victim.read(hdr, pos);
+                hdr.flip();
+                hdr.getInt();
+                byte status = hdr.get();
+                hdr.getLong();
+                long length = hdr.getLong();
+                int dirID = hdr.getInt();
+                int keyLength = hdr.getShort() & 0xffff;
+                long recLength = HEADER_FIXED + keyLength + length;
+                if (status == COMMITTED) {
+                    ByteBuffer kb = ByteBuffer.allocate(keyLength);
+                    victim.read(kb, pos + HEADER_FIXED);
+                    Record r =
+                        (Record) index.get(new FileNumber(dirID, kb.array()));
+                    if (r != null && r.segment == victim && r.offset == pos) {
+                        Record copy = copy(r);
+                        if (copy != null) {
+                            copies.addElement(new Record[] { r, copy });
+                            moved += recLength;
+                        }
+                    }
+                }
+                pos += recLength;
+            }
+            commitCopies(victim, copies);
+            done = true;
+        } finally {
+            for (int i = 0; i < copies.size(); i++)
+                discard(((Record[]) copies.elementAt(i))[1]);
+            if (done) {
+                synchronized (allocSync) {
+                    victim.retired = true;
+                    segments.remove(new Integer(victim.id));
+                }
+            }
+            victim.release();
+        }
+        return moved;
+    }
+
+    /**
+     * Copy a committed record to the end of the active segment. The copy
+     * is left WRITING, and holds a pending allocation in its segment.
+     *
+     * @return the copy, or null if the record is no longer committed
+     */
+    private Record copy(Record r) throws IOException {
+        synchronized (r) {
+            if (r.status != COMMITTED)
+                return null;
+            Record copy = allocate(r.fn, r.length, r.lastModified);
+            Segment src = r.segment;
+            Segment dest = copy.segment;
+            dest.acquire();
+            try {
+                writeHeader(copy);
+                ByteBuffer buf =
+                    ByteBuffer.allocate(
+                        (int) Math.min(COPY_BUFFER_SIZE, Math.max(1, r.length)));
+                long done = 0;
+                long srcData = r.dataOffset();
+                long destData = copy.dataOffset();
+                while (done < r.length) {
+                    buf.clear();
+                    if (r.length - done < buf.capacity())
+                        buf.limit((int) (r.length - done));
+                    src.read(buf, srcData + done);
+                    buf.flip();
+                    dest.write(buf, destData + done);
+                    done += buf.limit();
+                }
+            } catch (IOException e) {
+                discard(copy);
+                throw e;
+            } finally {
+                dest.release();
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Force the segments the copies went to, once each, then commit each
+     * copy whose original has not changed since, and delete the original.
+     * Pairs are taken off the Vector as they are dealt with.
+     */
+    private void commitCopies(Segment src, Vector copies) throws IOException {
+        Vector forced = new Vector();
+        for (int i = 0; i < copies.size(); i++) {
+            Segment dest = ((Record[]) copies.elementAt(i))[1].segment;
+            if (forced.contains(dest))
+                continue;
+            dest.acquire();
+            try {
+                dest.force();
+            } finally {
+                dest.release();
+            }
+            forced.addElement(dest);
+        }
+        while (!copies.isEmpty()) {
+            Record[] pair = (Record[]) copies.elementAt(0);
+            Record r = pair[0];
+            Record copy = pair[1];
+            Segment dest = copy.segment;
+            synchronized (r) {
+                if (r.status != COMMITTED || r.segment != src) {
+                    // Deleted since we copied it
+                    copies.removeElementAt(0);
+                    discard(copy);
+                    continue;
+                }
+                dest.acquire();
+                try {
+                    dest.writeStatus(copy.offset, COMMITTED);
+                    src.writeStatus(r.offset, DELETED);
+                } finally {
+                    dest.release();
+                }
+                copies.removeElementAt(0);
+                long recLength = r.recordLength();
+                synchronized (allocSync) {
+                    src.deadBytes += recLength;
+                    dest.pending--;
+                }
+                r.segment = dest;
+                r.offset = copy.offset;
+            }
+        }
+    }
+
+    /**
+     * Give up on a copy that was never committed.
+     */
+    private void discard(Record copy) {
+        Segment seg = copy.segment;
+        seg.acquire();
+        try {
+            seg.writeStatus(copy.offset, DELETED);
+        } catch (IOException e) {
+            // It is still WRITING, which is dropped on startup
+            Core.logger.log(
+                this,
+                "Cannot mark " + copy + " deleted in " + seg.file,
+                e,
+                Logger.NORMAL);
+        } finally {
+            seg.release();
+        }
+        synchronized (allocSync) {
+            seg.deadBytes += copy.recordLength();
+            seg.pending--;
+        }
+    }
+
+    /**
+     * One record in a segment. Committed records are in the index and the
+     * LRU list.
+     */
+    private final class Record extends DoublyLinkedListImpl.Item {
+
+        final FileNumber fn;
+        final long length;
+        volatile Segment segment;
+        volatile long offset;
+        volatile byte status;
+        volatile long lastModified;
+        volatile boolean usedSinceCommit = true;
+
+        /** Bytes of data written so far; readers may not pass this */
+        long written;
+        /** Open streams on this record */
+        int users = 0;
+
+        Record(
+            FileNumber fn,
+            Segment segment,
+            long offset,
+            long length,
+            long lastModified,
+            byte status) {
+            this.fn = fn;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.status = status;
+            this.written = (status == WRITING) ? 0 : length;
+        }
+
+        long recordLength() {
+            return headerLength(fn) + length;
+        }
+
+        long dataOffset() {
+            return offset + headerLength(fn);
+        }
+
+        void touch() {
+            long now = System.currentTimeMillis();
+            lastModified = now;
+            if (status != COMMITTED)
+                return;
+            synchronized (lruSync) {
+                if (lru.remove(this) != null)
+                    lru.push(this);
+            }
+            // Compaction moves the record under the same lock, so segment
+            // and offset go together, and the segment can't be retired
+            // while we write to it
+            synchronized (this) {
+                if (status != COMMITTED)
+                    return;
+                Segment seg = segment;
+                synchronized (allocSync) {
+                    if (seg.retired)
+                        return;
+                }
+                seg.acquire();
+                try {
+                    seg.writeModified(offset, now);
+                } catch (IOException e) {
+                    Core.logger.log(
+                        this,
+                        "Cannot update timestamp of " + this,
+                        e,
+                        Logger.MINOR);
+                } finally {
+                    seg.release();
+                }
+            }
+        }
+
+        void commit() {
+            synchronized (index) {
+                Record r = (Record) index.get(fn);
+                if (r != null && r != this)
+                    throw new DirectoryException("key collision");
+                if (status != WRITING)
+                    throw new DirectoryException(
+                        "trying to commit " + this);
+                index.put(fn, this);
+            }
+            Segment seg = segment;
+            seg.acquire();
+            try {
+                seg.force();
+                seg.writeStatus(offset, COMMITTED);
+            } catch (IOException e) {
+                synchronized (index) {
+                    index.remove(fn);
+                }
+                Core.logger.log(
+                    this,
+                    "IOException committing " + this,
+                    e,
+                    Logger.NORMAL);
+                throw new DirectoryException(
+                    "IOException committing " + this);
+            } finally {
+                seg.release();
+            }
+            synchronized (this) {
+                status = COMMITTED;
+                written = length;
+                usedSinceCommit = false;
+                notifyAll();
+            }
+            synchronized (allocSync) {
+                seg.pending--;
+            }
+            lastModified = System.currentTimeMillis();
+            synchronized (lruSync) {
+                lru.push(this);
+            }
+            histAdd(fn, length);
+        }
+
+        public String toString() {
+            return fn
+                + ":"
+                + (status == WRITING
+                    ? "writing"
+                    : (status == COMMITTED ? "committed" : "deleted"))
+                + ":"
+                + length
+                + "@"
+                + segment.id
+                + "/"
+                + offset;
+        }
+    }
+
+    /**
+     * A segment file. Its channel is opened while anybody is using it and
+     * may be closed when idle.
+     */
+    private final class Segment {
+
+        final int id;
+        final File file;
+        private RandomAccessFile raf;
+        FileChannel channel;
+
+        /** Bytes allocated, including dead records */
+        long length = 0;
+        long deadBytes = 0;
+        /** Records allocated but neither committed nor discarded */
+        int pending = 0;
+        int users = 0;
+        boolean retired = false;
+
+        Segment(int id) {
+            this.id = id;
+            StringBuffer sb = new StringBuffer(SEGMENT_PREFIX);
+            String hex = Integer.toHexString(id);
+            for (int x = hex.length(); x < 8; x++)
+                sb.append('0');
+            sb.append(hex);
+            this.file = new File(root, sb.toString());
+        }
+
+        void acquire() {
+            Segment toClose = null;
+            synchronized (this) {
+                if (channel == null) {
+                    try {
+                        raf = new RandomAccessFile(file, "rw");
+                    } catch (IOException e) {
+                        Core.logger.log(
+                            this,
+                            "Cannot open segment " + file,
+                            e,
+                            Logger.ERROR);
+                        throw new DirectoryException(
+                            "Cannot open segment " + file);
+                    }
+                    channel = raf.getChannel();
+                    synchronized (allocSync) {
+                        if (++openSegments > maxOpenSegments)
+                            toClose = findIdle();
+                    }
+                }
+                users++;
+            }
+            if (toClose != null)
+                toClose.closeIfIdle();
+        }
+
+        void release() {
+            boolean delete = false;
+            synchronized (this) {
+                if (--users == 0 && retired) {
+                    closeChannel();
+                    delete = true;
+                }
+            }
+            if (delete && !file.delete())
+                Core.logger.log(
+                    this,
+                    "Cannot delete retired segment " + file,
+                    Logger.ERROR);
+        }
+
+        synchronized void closeIfIdle() {
+            if (users == 0 && channel != null)
+                closeChannel();
+        }
+
+        private void closeChannel() {
+            try {
+                channel.close();
+                raf.close();
+            } catch (IOException e) {
+                Core.logger.log(
+                    this,
+                    "Cannot close segment " + file,
+                    e,
+                    Logger.NORMAL);
+            }
+            channel = null;
+            raf = null;
+            synchronized (allocSync) {
+                openSegments--;
+            }
+        }
+
+        void read(ByteBuffer buf, long pos) throws IOException {
+            while (buf.hasRemaining()) {
+                int r = channel.read(buf, pos);
+                if (r < 0)
+                    throw new IOException(
+                        "Unexpected end of segment " + file + " at " + pos);
+                pos += r;
+            }
+        }
+
+        void write(ByteBuffer buf, long pos) throws IOException {
+            while (buf.hasRemaining())
+                pos += channel.write(buf, pos);
+        }
+
+        void writeStatus(long recordOffset, byte status) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            b.put(status);
+            b.flip();
+            write(b, recordOffset + STATUS_OFFSET);
+        }
+
+        void writeModified(long recordOffset, long modified)
+            throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(8);
+            b.putLong(modified);
+            b.flip();
+            write(b, recordOffset + MODIFIED_OFFSET);
+        }
+
+        /** Calls to force(), and how many of them a finished force covers */
+        private long forceRequests = 0;
+        private long forcedRequests = 0;
+        private final Object forceSync = new Object();
+
+        /**
+         * Force everything written so far to disk. Call with the segment
+         * acquired. Threads committing to the segment at the same time
+         * share a single force, since one started after a thread asked
+         * covers whatever that thread wrote.
+         */
+        void force() throws IOException {
+            long mine;
+            synchronized (this) {
+                mine = ++forceRequests;
+            }
+            synchronized (forceSync) {
+                if (forcedRequests >= mine)
+                    return;
+                long upTo;
+                synchronized (this) {
+                    upTo = forceRequests;
+                }
+                channel.force(false);
+                forcedRequests = upTo;
+            }
+        }
+
+        public String toString() {
+            return file.getName()
+                + ": length="
+                + length
+                + ", dead="
+                + deadBytes
+                + ", pending="
+                + pending
+                + ", users="
+                + users;
+        }
+    }
+
+    /**
+     * Find a segment with an open channel and no users. Call
+     * synchronized(allocSync).
+     */
+    private Segment findIdle() {
+        for (Enumeration e = segments.elements(); e.hasMoreElements();) {
+            Segment seg = (Segment) e.nextElement();
+            if (seg != active && seg.users == 0 && seg.channel != null)
+                return seg;
+        }
+        return null;
+    }
+
+    /**
+     * The Buffer handed out by fetch() and store(). Keeps track of the
+     * streams opened through it and closes them on release().
+     */
+    private final class LogBuffer implements Buffer {
+
+        private Record record;
+        private final Vector streams = new Vector();
+
+        LogBuffer(Record r) {
+            this.record = r;
+        }
+
+        public long length() {
+            Record r = record;
+            return r == null ? -1 : r.length;
+        }
+
+        public long realLength() {
+            Record r = record;
+            if (r == null)
+                return 0;
+            synchronized (r) {
+                return r.written;
+            }
+        }
+
+        public boolean failed() {
+            Record r = record;
+            return r != null && r.status == DELETED;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            Record r = record;
+            if (r == null || r.status == DELETED)
+                return null;
+            r.usedSinceCommit = true;
+            LogInputStream in = new LogInputStream(r);
+            streams.addElement(in);
+            return in;
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            Record r = record;
+            if (r == null || r.status != WRITING)
+                return null;
+            LogOutputStream out = new LogOutputStream(r);
+            streams.addElement(out);
+            return out;
+        }
+
+        public void touch() {
+            Record r = record;
+            if (r != null)
+                r.touch();
+        }
+
+        public boolean touchThrottled() {
+            Record r = record;
+            if (r == null
+                || r.lastModified + THROTTLEDTOUCH_INTERVAL
+                    >= System.currentTimeMillis())
+                return false;
+            r.touch();
+            return true;
+        }
+
+        public void commit() {
+            Record r = record;
+            if (r == null)
+                throw new DirectoryException("commit on released buffer");
+            r.commit();
+        }
+
+        public void release() {
+            Record r;
+            synchronized (this) {
+                r = record;
+                if (r == null)
+                    return;
+                record = null;
+            }
+            for (int x = 0; x < streams.size(); x++) {
+                try {
+                    Object o = streams.elementAt(x);
+                    if (o instanceof InputStream)
+                        ((InputStream) o).close();
+                    else
+                        ((OutputStream) o).close();
+                } catch (IOException e) {
+                    Core.logger.log(
+                        this,
+                        "IOException closing stream on " + r,
+                        e,
+                        Logger.MINOR);
+                }
+            }
+            streams.clear();
+            synchronized (r) {
+                if (r.status == WRITING && r.users == 0)
+                    kill(r);
+            }
+        }
+
+        public String toString() {
+            return super.toString() + ":" + record;
+        }
+    }
+
+    private final class LogInputStream
+        extends InputStream
+        implements ReadableByteChannel {
+
+        private final Record r;
+        private final Segment seg;
+        private final long base;
+        private long position = 0;
+        private boolean closed = false;
+
+        LogInputStream(Record r) {
+            synchronized (r) {
+                this.r = r;
+                this.seg = r.segment;
+                this.base = r.dataOffset();
+                r.users++;
+            }
+            seg.acquire();
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int x = read(b, 0, 1);
+            return x <= 0 ? -1 : (b[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            return read(ByteBuffer.wrap(b, off, len));
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            if (closed || position >= r.length)
+                return -1;
+            int len = dst.remaining();
+            if (len == 0)
+                return 0;
+            long avail;
+            synchronized (r) {
+                while ((avail = r.written - position) <= 0) {
+                    if (closed || r.status == DELETED && r.written < r.length)
+                        return -1;
+                    try {
+                        r.wait(200);
+                    } catch (InterruptedException e) {
+                        return -1;
+                    }
+                }
+            }
+            if (len > avail)
+                len = (int) avail;
+            int limit = dst.limit();
+            dst.limit(dst.position() + len);
+            try {
+                seg.read(dst, base + position);
+            } finally {
+                dst.limit(limit);
+            }
+            position += len;
+            return len;
+        }
+
+        public int available() {
+            synchronized (r) {
+                long x = r.written - position;
+                return x > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) x;
+            }
+        }
+
+        public long skip(long n) {
+            long x = Math.min(n, r.length - position);
+            if (x <= 0)
+                return 0;
+            position += x;
+            return x;
+        }
+
+        public void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+            }
+            synchronized (r) {
+                r.users--;
+                r.notifyAll();
+            }
+            seg.release();
+        }
+
+        public boolean isOpen() {
+            return !closed;
+        }
+    }
+
+    private final class LogOutputStream extends OutputStream {
+
+        private final Record r;
+        private final Segment seg;
+        private final long base;
+        private long position = 0;
+        private boolean closed = false;
+
+        LogOutputStream(Record r) {
+            synchronized (r) {
+                this.r = r;
+                this.seg = r.segment;
+                this.base = r.dataOffset();
+                r.users++;
+            }
+            seg.acquire();
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed || r.status != WRITING)
+                throw new DirectoryException("writing to a closed stream");
+            if (position + len > r.length)
+                len = (int) (r.length - position);
+            if (len <= 0)
+                return;
+            seg.write(ByteBuffer.wrap(b, off, len), base + position);
+            position += len;
+            synchronized (r) {
+                if (position > r.written) {
+                    r.written = position;
+                    r.notifyAll();
+                }
+            }
+        }
+
+        public void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+            }
+            synchronized (r) {
+                r.users--;
+                r.notifyAll();
+            }
+            seg.release();
+        }
+    }
+
+    /**
+     * Walks the LRU list. If the current record is removed from the list
+     * while we are walking, we restart from the appropriate end, which is
+     * where the deletions happen anyway.
+     */
+    private final class LRUWalk implements Walk {
+
+        private final boolean ascending;
+        private Record current = null;
+
+        LRUWalk(boolean ascending) {
+            this.ascending = ascending;
+        }
+
+        public Object getNext() {
+            synchronized (lruSync) {
+                Record next = null;
+                if (current != null
+                    && current.getNext() != null
+                    && current.getPrev() != null)
+                    next =
+                        (Record) (ascending
+                            ? lru.next(current)
+                            : lru.prev(current));
+                else
+                    next = (Record) (ascending ? lru.head() : lru.tail());
+                current = next;
+                return next == null ? null : next.fn;
+            }
+        }
+    }
+}
@@ -0,0 +1,1014 @@
+package freenet.fs.dir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.Vector;
+
+import freenet.Core;
+import freenet.support.Checkpointed;
+import freenet.support.KeyHistogram;
+import freenet.support.KeySizeHistogram;
+import freenet.support.Logger;
+
+/**
+ * A sorted index of fixed-width keys, with the size and last access time of
+ * each, kept off the Java heap in a memory-mapped file.
+ * <p>
+ * The index consists of an immutable, sorted base file, which is mapped, and
+ * a small in-heap delta of keys added or removed since the base was written.
+ * The delta is copied on write, so readers just pick up the current View and
+ * binary search it without taking any locks. So that a change doesn't copy
+ * the whole delta, changes go to a short list of recent changes first, which
+ * is merged into the delta in one pass when it fills up. Periodically (on
+ * checkpoint) the delta is merged into a new base file.
+ * </p>
+ * <p>
+ * Base files are called keyindex.&lt;generation&gt;. Each starts with a
+ * 16 byte header (magic, version, record count, key length) followed by the
+ * records, in unsigned lexicographic key order (the same order as
+ * FileNumber.compareTo):
+ *
+ * <pre>
+ *   byte[keyBytes] key
+ *   long           size
+ *   long           last access time
+ * </pre>
+ *
+ * Access times of keys in the base are updated in place in the mapping, so
+ * they survive a restart. Changes that were still in the delta are lost on a
+ * crash; reconcile() brings the index back in line with the store on
+ * startup.
+ * </p>
+ */
+public class MappedKeyIndex implements Checkpointed {
+
+    private static final int MAGIC = 0x4b494458; // "KIDX"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+    private static final String PREFIX = "keyindex.";
+
+    /** Merge the delta into the base once it has this many entries */
+    private static final int maxDelta = 16384;
+    /** Merge the recent changes into the delta once there are this many */
+    private static final int maxRecent = 128;
+    /** ... or it has any entries and it is this old */
+    private static final long maxDeltaAge = 60 * 60 * 1000;
+
+    private static final long checkpointSleepTime = 60 * 1000;
+
+    public final File root;
+    public final int keyBytes;
+    private final int recordLength;
+
+    /** The current state, replaced atomically on every change */
+    private volatile View view;
+
+    /** Writers synchronize on this */
+    private final Object writeLock = new Object();
+    /** Changes made while a merge is writing the new base, replayed after */
+    private Vector mergeOps = null;
+    private long lastMerge = System.currentTimeMillis();
+
+    private final boolean logDEBUG;
+
+    /**
+     * An immutable view of the index. Only the access times are ever
+     * written, in place.
+     */
+    private static final class View {
+        final ByteBuffer base;
+        final int baseCount;
+        final long generation;
+        final byte[][] dKeys;
+        /** Size, or -1 if the key has been removed from the base */
+        final long[] dSizes;
+        final long[] dTimes;
+        /** The recent changes, which override the delta */
+        final byte[][] rKeys;
+        /** Size, or -1 if the key has been removed from the delta or base */
+        final long[] rSizes;
+        final long[] rTimes;
+        final int liveCount;
+
+        View(
+            ByteBuffer base,
+            int baseCount,
+            long generation,
+            byte[][] dKeys,
+            long[] dSizes,
+            long[] dTimes,
+            byte[][] rKeys,
+            long[] rSizes,
+            long[] rTimes,
+            int liveCount) {
+            this.base = base;
+            this.baseCount = baseCount;
+            this.generation = generation;
+            this.dKeys = dKeys;
+            this.dSizes = dSizes;
+            this.dTimes = dTimes;
+            this.rKeys = rKeys;
+            this.rSizes = rSizes;
+            this.rTimes = rTimes;
+            this.liveCount = liveCount;
+        }
+    }
+
+    private static final byte[][] NO_KEYS = new byte[0][];
+    private static final long[] NO_LONGS = new long[0];
+
+    /**
+     * Open the index in the given directory, creating an empty one if
+     * necessary.
+     *
+     * @param root
+     *            the directory to keep the index files in
+     * @param keyBytes
+     *            the length of the keys; others are not indexed
+     */
+    public MappedKeyIndex(File root, int keyBytes) throws IOException {
+        this.root = root;
+        this.keyBytes = keyBytes;
+        this.recordLength = keyBytes + 16;
+        logDEBUG = Core.logger.shouldLog(Logger.DEBUG, this);
+        if (!root.isDirectory() && !root.mkdirs())
+            throw new IOException("couldn't create directory: " + root);
+        view = load();
+        Core.logger.log(
+            this,
+            "Loaded key index generation "
+                + view.generation
+                + " with "
+                + view.baseCount
+                + " keys",
+            Logger.MINOR);
+    }
+
+    /**
+     * Find the newest valid base file, deleting the others.
+     */
+    private View load() throws IOException {
+        File[] f = root.listFiles();
+        long best = -1;
+        View v = null;
+        while (true) {
+            long gen = -1;
+            for (int x = 0; x < f.length; x++) {
+                long g = generation(f[x]);
+                if (g > gen && (best < 0 || g < best))
+                    gen = g;
+            }
+            if (gen < 0)
+                break;
+            best = gen;
+            try {
+                v = map(gen);
+                break;
+            } catch (IOException e) {
+                Core.logger.log(
+                    this,
+                    "Key index " + file(gen) + " is damaged: " + e,
+                    Logger.NORMAL);
+            }
+        }
+        for (int x = 0; x < f.length; x++) {
+            long g = generation(f[x]);
+            if (g >= 0 && (v == null || g != v.generation))
+                f[x].delete();
+        }
+        if (v == null)
+            v =
+                new View(
+                    ByteBuffer.allocate(0),
+                    0,
+                    0,
+                    NO_KEYS,
+                    NO_LONGS,
+                    NO_LONGS,
+                    NO_KEYS,
+                    NO_LONGS,
+                    NO_LONGS,
+                    0);
+        return v;
+    }
+
+    private static long generation(File f) {
+        String name = f.getName();
+        if (!name.startsWith(PREFIX))
+            return -1;
+        try {
+            return Long.parseLong(name.substring(PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File file(long generation) {
+        return new File(root, PREFIX + generation);
+    }
+
+    private View map(long generation) throws IOException {
+        File f = file(generation);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel fc = raf.getChannel();
+            long len = fc.size();
+            if (len < HEADER_LENGTH)
+                throw new IOException("too short");
+            MappedByteBuffer buf =
+                fc.map(FileChannel.MapMode.READ_WRITE, 0, len);
+            if (buf.getInt(0) != MAGIC
+                || buf.getInt(4) != VERSION
+                || buf.getInt(12) != keyBytes)
+                throw new IOException("bad header");
+            int count = buf.getInt(8);
+            if (count < 0
+                || len != HEADER_LENGTH + ((long) count) * recordLength)
+                throw new IOException("length does not match key count");
+            return new View(
+                buf,
+                count,
+                generation,
+                NO_KEYS,
+                NO_LONGS,
+                NO_LONGS,
+                NO_KEYS,
+                NO_LONGS,
+                NO_LONGS,
+                count);
+        } finally {
+            // The mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    // Read side: lock free
+
+    /**
+     * @return the number of keys in the index
+     */
+    public int size() {
+        return view.liveCount;
+    }
+
+    /**
+     * @return whether the key is in the index
+     */
+    public boolean contains(byte[] key) {
+        if (key.length != keyBytes)
+            return false;
+        View v = view;
+        int j = search(v.rKeys, key);
+        if (j >= 0)
+            return v.rSizes[j] >= 0;
+        j = search(v.dKeys, key);
+        if (j >= 0)
+            return v.dSizes[j] >= 0;
+        return searchBase(v, key) >= 0;
+    }
+
+    /**
+     * @return the size of the key, or -1 if it is not in the index
+     */
+    public long getSize(byte[] key) {
+        if (key.length != keyBytes)
+            return -1;
+        View v = view;
+        int j = search(v.rKeys, key);
+        if (j >= 0)
+            return v.rSizes[j];
+        j = search(v.dKeys, key);
+        if (j >= 0)
+            return v.dSizes[j];
+        int i = searchBase(v, key);
+        return i < 0 ? -1 : v.base.getLong(offset(i) + keyBytes);
+    }
+
+    /**
+     * @return the last access time of the key, or -1 if it is not in the
+     *         index
+     */
+    public long getLastAccess(byte[] key) {
+        if (key.length != keyBytes)
+            return -1;
+        View v = view;
+        int j = search(v.rKeys, key);
+        if (j >= 0)
+            return v.rSizes[j] < 0 ? -1 : v.rTimes[j];
+        j = search(v.dKeys, key);
+        if (j >= 0)
+            return v.dSizes[j] < 0 ? -1 : v.dTimes[j];
+        int i = searchBase(v, key);
+        return i < 0 ? -1 : v.base.getLong(offset(i) + keyBytes + 8);
+    }
+
+    /**
+     * Find the keys closest to the given one, alternating between the keys
+     * below it and the keys above it in order of closeness as given by the
+     * comparator.
+     *
+     * @param key
+     *            the key to search around
+     * @param inclusive
+     *            whether to return the key itself if it is present
+     * @param limit
+     *            the maximum number of keys to return
+     * @param closer
+     *            decides which of two keys is closer to key
+     * @return up to limit keys, closest first
+     */
+    public byte[][] findClosestKeys(
+        byte[] key,
+        boolean inclusive,
+        int limit,
+        Closeness closer) {
+        View v = view;
+        Cursor down = new Cursor(v, key, false, false);
+        Cursor up = new Cursor(v, key, inclusive, true);
+        Vector ret = new Vector(limit);
+        byte[] k1 = down.next();
+        byte[] k2 = up.next();
+        while (limit-- > 0) {
+            if (k1 == null && k2 == null) {
+                break;
+            } else if (
+                k1 == null || (k2 != null && closer.compare(key, k1, k2) > 0)) {
+                ret.addElement(k2);
+                k2 = up.next();
+            } else {
+                ret.addElement(k1);
+                k1 = down.next();
+            }
+        }
+        byte[][] r = new byte[ret.size()][];
+        ret.copyInto(r);
+        return r;
+    }
+
+    /**
+     * Decides which of two keys is closer to a target key.
+     */
+    public interface Closeness {
+        /**
+         * @return positive if b is closer to target than a, negative if a is
+         *         closer, 0 if they are as close
+         */
+        int compare(byte[] target, byte[] a, byte[] b);
+    }
+
+    /**
+     * Build a histogram of the keys in the index.
+     */
+    public KeyHistogram getHistogram() {
+        KeyHistogram h = new KeyHistogram();
+        byte[] first = new byte[1];
+        Cursor c = new Cursor(view, null, true, true);
+        byte[] k;
+        while ((k = c.next()) != null) {
+            first[0] = k[0];
+            h.add(first);
+        }
+        return h;
+    }
+
+    /**
+     * Build a histogram of the sizes of the keys in the index.
+     */
+    public KeySizeHistogram getSizeHistogram() {
+        KeySizeHistogram h = new KeySizeHistogram();
+        Cursor c = new Cursor(view, null, true, true);
+        while (c.next() != null)
+            h.add(c.size);
+        return h;
+    }
+
+    private int offset(int i) {
+        return HEADER_LENGTH + i * recordLength;
+    }
+
+    /**
+     * Compare a key with a record in the base.
+     */
+    private int compareBase(ByteBuffer base, int i, byte[] key) {
+        int off = offset(i);
+        for (int x = 0; x < keyBytes; x++) {
+            int a = base.get(off + x) & 0xff;
+            int b = key[x] & 0xff;
+            if (a != b)
+                return a < b ? -1 : 1;
+        }
+        return 0;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int x = 0; x < a.length; x++) {
+            int p = a[x] & 0xff;
+            int q = b[x] & 0xff;
+            if (p != q)
+                return p < q ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the index of the key in the base, or -(insertion point) - 1
+     */
+    private int searchBase(View v, byte[] key) {
+        int lo = 0, hi = v.baseCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareBase(v.base, mid, key);
+            if (c < 0)
+                lo = mid + 1;
+            else if (c > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return - (lo + 1);
+    }
+
+    private static int search(byte[][] keys, byte[] key) {
+        int lo = 0, hi = keys.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(keys[mid], key);
+            if (c < 0)
+                lo = mid + 1;
+            else if (c > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return - (lo + 1);
+    }
+
+    /**
+     * Walks the live keys of a View in either direction, merging the base,
+     * the delta and the recent changes.
+     */
+    private final class Cursor {
+        private final View v;
+        private final boolean ascending;
+        private int i;
+        private int j;
+        private int r;
+        /** Size of the key last returned */
+        long size;
+        long time;
+
+        /**
+         * @param start
+         *            the key to start at, or null for the first key
+         */
+        Cursor(View v, byte[] start, boolean inclusive, boolean ascending) {
+            this.v = v;
+            this.ascending = ascending;
+            if (start == null) {
+                i = ascending ? 0 : v.baseCount - 1;
+                j = ascending ? 0 : v.dKeys.length - 1;
+                r = ascending ? 0 : v.rKeys.length - 1;
+                return;
+            }
+            i = position(searchBase(v, start), inclusive);
+            j = position(search(v.dKeys, start), inclusive);
+            r = position(search(v.rKeys, start), inclusive);
+        }
+
+        private int position(int found, boolean inclusive) {
+            if (found >= 0) {
+                if (inclusive)
+                    return found;
+                return ascending ? found + 1 : found - 1;
+            }
+            int insert = -found - 1;
+            return ascending ? insert : insert - 1;
+        }
+
+        /**
+         * @return c, or -c when walking backwards
+         */
+        private int order(int c) {
+            return ascending ? c : -c;
+        }
+
+        byte[] next() {
+            int step = ascending ? 1 : -1;
+            while (true) {
+                boolean b = i >= 0 && i < v.baseCount;
+                boolean d = j >= 0 && j < v.dKeys.length;
+                boolean rc = r >= 0 && r < v.rKeys.length;
+                if (!b && !d && !rc)
+                    return null;
+                // The next changed key; a recent change overrides the delta
+                if (d && rc) {
+                    int c = order(compare(v.dKeys[j], v.rKeys[r]));
+                    if (c < 0)
+                        rc = false;
+                    else if (c > 0)
+                        d = false;
+                }
+                byte[] ck = rc ? v.rKeys[r] : d ? v.dKeys[j] : null;
+                int c;
+                if (ck == null)
+                    c = -1;
+                else if (!b)
+                    c = 1;
+                else
+                    c = order(compareBase(v.base, i, ck));
+                // c < 0: base is next; c > 0: the change is next
+                if (c < 0) {
+                    int off = offset(i);
+                    byte[] key = new byte[keyBytes];
+                    for (int x = 0; x < keyBytes; x++)
+                        key[x] = v.base.get(off + x);
+                    size = v.base.getLong(off + keyBytes);
+                    time = v.base.getLong(off + keyBytes + 8);
+                    i += step;
+                    return key;
+                }
+                if (c == 0)
+                    // the change overrides the base
+                    i += step;
+                long s = rc ? v.rSizes[r] : v.dSizes[j];
+                long t = rc ? v.rTimes[r] : v.dTimes[j];
+                if (d)
+                    j += step;
+                if (rc)
+                    r += step;
+                if (s >= 0) {
+                    size = s;
+                    time = t;
+                    return ck;
+                }
+            }
+        }
+    }
+
+    // Write side
+
+    /**
+     * Add a key, or replace its size and access time.
+     */
+    public void put(byte[] key, long size, long time) {
+        if (key.length != keyBytes || size < 0)
+            return;
+        synchronized (writeLock) {
+            view = put(view, key, size, time);
+            if (mergeOps != null)
+                mergeOps.addElement(new Object[] {key, new long[] {size, time}});
+        }
+    }
+
+    /**
+     * Remove a key.
+     */
+    public void remove(byte[] key) {
+        if (key.length != keyBytes)
+            return;
+        synchronized (writeLock) {
+            view = put(view, key, -1, 0);
+            if (mergeOps != null)
+                mergeOps.addElement(new Object[] {key, null});
+        }
+    }
+
+    /**
+     * Set the last access time of a key, if it is present.
+     */
+    public void touch(byte[] key, long time) {
+        if (key.length != keyBytes)
+            return;
+        if (!setTime(view, key, time))
+            return;
+        synchronized (writeLock) {
+            if (mergeOps != null)
+                mergeOps.addElement(new Object[] {key, new long[] {-1, time}});
+        }
+    }
+
+    /**
+     * Set the access time of a key in place, wherever it is in the view.
+     *
+     * @return false if the key is not present
+     */
+    private boolean setTime(View v, byte[] key, long time) {
+        int j = search(v.rKeys, key);
+        if (j >= 0) {
+            v.rTimes[j] = time;
+            return true;
+        }
+        j = search(v.dKeys, key);
+        if (j >= 0) {
+            v.dTimes[j] = time;
+            return true;
+        }
+        int i = searchBase(v, key);
+        if (i < 0)
+            return false;
+        v.base.putLong(offset(i) + keyBytes + 8, time);
+        return true;
+    }
+
+    /**
+     * Apply a change to a view, giving a new view. Size -1 means remove.
+     * Only the recent changes are copied, and they are merged into the
+     * delta when there are maxRecent of them.
+     */
+    private View put(View v, byte[] key, long size, long time) {
+        int r = search(v.rKeys, key);
+        int j = search(v.dKeys, key);
+        // Whether the key is live in the delta and base, under any recent
+        // change
+        boolean liveBelow =
+            j >= 0 ? v.dSizes[j] >= 0 : searchBase(v, key) >= 0;
+        boolean wasLive = r >= 0 ? v.rSizes[r] >= 0 : liveBelow;
+        int live = v.liveCount;
+        if (wasLive && size < 0)
+            live--;
+        else if (!wasLive && size >= 0)
+            live++;
+        byte[][] keys;
+        long[] sizes;
+        long[] times;
+        int n = v.rKeys.length;
+        if (size < 0 && !liveBelow) {
+            // Just drop it from the recent changes, if it is there at all
+            if (r < 0)
+                return v;
+            keys = new byte[n - 1][];
+            sizes = new long[n - 1];
+            times = new long[n - 1];
+            System.arraycopy(v.rKeys, 0, keys, 0, r);
+            System.arraycopy(v.rKeys, r + 1, keys, r, n - r - 1);
+            System.arraycopy(v.rSizes, 0, sizes, 0, r);
+            System.arraycopy(v.rSizes, r + 1, sizes, r, n - r - 1);
+            System.arraycopy(v.rTimes, 0, times, 0, r);
+            System.arraycopy(v.rTimes, r + 1, times, r, n - r - 1);
+        } else if (r >= 0) {
+            keys = v.rKeys;
+            sizes = new long[n];
+            times = new long[n];
+            System.arraycopy(v.rSizes, 0, sizes, 0, n);
+            System.arraycopy(v.rTimes, 0, times, 0, n);
+            sizes[r] = size;
+            times[r] = time;
+        } else {
+            int ins = -r - 1;
+            keys = new byte[n + 1][];
+            sizes = new long[n + 1];
+            times = new long[n + 1];
+            System.arraycopy(v.rKeys, 0, keys, 0, ins);
+            System.arraycopy(v.rKeys, ins, keys, ins + 1, n - ins);
+            System.arraycopy(v.rSizes, 0, sizes, 0, ins);
+            System.arraycopy(v.rSizes, ins, sizes, ins + 1, n - ins);
+            System.arraycopy(v.rTimes, 0, times, 0, ins);
+            System.arraycopy(v.rTimes, ins, times, ins + 1, n - ins);
+            byte[] k = new byte[keyBytes];
+            System.arraycopy(key, 0, k, 0, keyBytes);
+            keys[ins] = k;
+            sizes[ins] = size;
+            times[ins] = time;
+        }
+        View nv =
+            new View(
+                v.base,
+                v.baseCount,
+                v.generation,
+                v.dKeys,
+                v.dSizes,
+                v.dTimes,
+                keys,
+                sizes,
+                times,
+                live);
+        return keys.length >= maxRecent ? fold(nv) : nv;
+    }
+
+    /**
+     * Merge the recent changes into the delta, in one pass over both.
+     */
+    private View fold(View v) {
+        int n = v.dKeys.length;
+        int m = v.rKeys.length;
+        byte[][] keys = new byte[n + m][];
+        long[] sizes = new long[n + m];
+        long[] times = new long[n + m];
+        int a = 0, b = 0, x = 0;
+        while (a < n || b < m) {
+            int c = a == n ? 1 : b == m ? -1 : compare(v.dKeys[a], v.rKeys[b]);
+            if (c < 0) {
+                keys[x] = v.dKeys[a];
+                sizes[x] = v.dSizes[a];
+                times[x++] = v.dTimes[a++];
+                continue;
+            }
+            if (c == 0)
+                // the recent change overrides the delta
+                a++;
+            // A removal only has to be kept if the key is in the base
+            if (v.rSizes[b] >= 0 || searchBase(v, v.rKeys[b]) >= 0) {
+                keys[x] = v.rKeys[b];
+                sizes[x] = v.rSizes[b];
+                times[x++] = v.rTimes[b];
+            }
+            b++;
+        }
+        if (x < n + m) {
+            byte[][] k = new byte[x][];
+            long[] s = new long[x];
+            long[] t = new long[x];
+            System.arraycopy(keys, 0, k, 0, x);
+            System.arraycopy(sizes, 0, s, 0, x);
+            System.arraycopy(times, 0, t, 0, x);
+            keys = k;
+            sizes = s;
+            times = t;
+        }
+        return new View(
+            v.base,
+            v.baseCount,
+            v.generation,
+            keys,
+            sizes,
+            times,
+            NO_KEYS,
+            NO_LONGS,
+            NO_LONGS,
+            v.liveCount);
+    }
+
+    /**
+     * @return the number of changes not yet merged into the base file
+     */
+    public int deltaSize() {
+        View v = view;
+        return v.dKeys.length + v.rKeys.length;
+    }
+
+    /**
+     * Writes a new base file, a record at a time, in key order.
+     */
+    private final class BaseWriter {
+        final long generation;
+        final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel fc;
+        private final ByteBuffer buf = ByteBuffer.allocate(recordLength * 1024);
+        private long pos = HEADER_LENGTH;
+        private int count = 0;
+
+        BaseWriter(long generation) throws IOException {
+            this.generation = generation;
+            this.file = file(generation);
+            raf = new RandomAccessFile(file, "rw");
+            fc = raf.getChannel();
+            fc.truncate(0);
+        }
+
+        void add(byte[] key, long size, long time) throws IOException {
+            if (buf.remaining() < recordLength)
+                flush();
+            buf.put(key, 0, keyBytes);
+            buf.putLong(size);
+            buf.putLong(time);
+            count++;
+        }
+
+        private void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining())
+                pos += fc.write(buf, pos);
+            buf.clear();
+        }
+
+        /**
+         * Write the header, sync, and map the new file.
+         */
+        View finish() throws IOException {
+            try {
+                flush();
+                buf.putInt(MAGIC);
+                buf.putInt(VERSION);
+                buf.putInt(count);
+                buf.putInt(keyBytes);
+                buf.flip();
+                fc.write(buf, 0);
+                fc.force(true);
+            } finally {
+                raf.close();
+            }
+            return map(generation);
+        }
+
+        void abort() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Bring the index up to date with the given directory, assumed to be the
+     * authoritative list of keys. This only looks up the keys that are
+     * missing from the index, and only rewrites the base file if anything
+     * differs. Call it before anything else is using the index.
+     *
+     * @param dir
+     *            the directory; its keys(FilePattern) must return keys in
+     *            ascending FileNumber order
+     * @param dirID
+     *            the directory ID of the keys to index
+     * @return the number of differences found
+     */
+    public synchronized int reconcile(Directory dir, int dirID)
+        throws IOException {
+        int diffs = reconcile(dir, dirID, null);
+        if (diffs > 0) {
+            View v;
+            synchronized (writeLock) {
+                v = view;
+                // Keep what the directory tells us while we walk it
+                mergeOps = new Vector();
+            }
+            BaseWriter w = new BaseWriter(v.generation + 1);
+            try {
+                reconcile(dir, dirID, w);
+                View nv = w.finish();
+                synchronized (writeLock) {
+                    view = replay(nv);
+                }
+            } catch (IOException e) {
+                synchronized (writeLock) {
+                    mergeOps = null;
+                }
+                w.abort();
+                throw e;
+            }
+            lastMerge = System.currentTimeMillis();
+            file(v.generation).delete();
+        }
+        return diffs;
+    }
+
+    /**
+     * Walk the directory and the index together, counting the differences
+     * and, if given a writer, writing out the directory's keys.
+     */
+    private int reconcile(Directory dir, int dirID, BaseWriter w)
+        throws IOException {
+        Cursor c = new Cursor(view, null, true, true);
+        byte[] ik = c.next();
+        int diffs = 0;
+        long now = System.currentTimeMillis();
+        Enumeration e;
+        synchronized (dir.semaphore()) {
+            e = dir.keys(new DirectoryIDFilePattern(dirID, true, false));
+        }
+        while (e.hasMoreElements()) {
+            FileNumber fn = (FileNumber) e.nextElement();
+            if (fn.dirID != dirID)
+                break;
+            byte[] key = fn.getByteArray();
+            if (key.length != keyBytes)
+                continue;
+            int cmp = -1;
+            while (ik != null && (cmp = compare(ik, key)) < 0) {
+                // in the index but not the directory
+                diffs++;
+                ik = c.next();
+            }
+            if (ik != null && cmp == 0) {
+                if (w != null)
+                    w.add(key, c.size, c.time);
+                ik = c.next();
+                continue;
+            }
+            diffs++;
+            if (w != null) {
+                Buffer b = dir.fetch(fn);
+                if (b == null)
+                    continue;
+                try {
+                    w.add(key, b.length(), now);
+                } finally {
+                    b.release();
+                }
+            }
+        }
+        while (ik != null) {
+            diffs++;
+            ik = c.next();
+        }
+        return diffs;
+    }
+
+    /**
+     * Write a new base file containing everything in the index, and switch
+     * to it. Changes made while the file is being written are kept.
+     */
+    /**
+     * Apply the changes made since mergeOps was started to a new view, and
+     * stop recording them. Call synchronized(writeLock).
+     */
+    private View replay(View nv) {
+        for (int x = 0; x < mergeOps.size(); x++) {
+            Object[] op = (Object[]) mergeOps.elementAt(x);
+            byte[] key = (byte[]) op[0];
+            long[] st = (long[]) op[1];
+            if (st == null)
+                nv = put(nv, key, -1, 0);
+            else if (st[0] < 0)
+                setTime(nv, key, st[1]);
+            else
+                nv = put(nv, key, st[0], st[1]);
+        }
+        mergeOps = null;
+        return nv;
+    }
+
+    public synchronized void merge() throws IOException {
+        View v;
+        synchronized (writeLock) {
+            v = view;
+            mergeOps = new Vector();
+        }
+        long time = System.currentTimeMillis();
+        View merged;
+        BaseWriter w = null;
+        try {
+            w = new BaseWriter(v.generation + 1);
+            Cursor c = new Cursor(v, null, true, true);
+            byte[] k;
+            while ((k = c.next()) != null)
+                w.add(k, c.size, c.time);
+            merged = w.finish();
+        } catch (IOException e) {
+            synchronized (writeLock) {
+                mergeOps = null;
+            }
+            if (w != null)
+                w.abort();
+            throw e;
+        }
+        int replayed;
+        synchronized (writeLock) {
+            replayed = mergeOps.size();
+            view = replay(merged);
+        }
+        lastMerge = System.currentTimeMillis();
+        if (!file(v.generation).delete() && v.baseCount > 0)
+            Core.logger.log(
+                this,
+                "Cannot delete old key index " + file(v.generation),
+                Logger.MINOR);
+        if (logDEBUG)
+            Core.logger.log(
+                this,
+                "Merged key index generation "
+                    + merged.generation
+                    + ": "
+                    + merged.baseCount
+                    + " keys, "
+                    + replayed
+                    + " changes during merge, took "
+                    + (lastMerge - time)
+                    + "ms",
+                Logger.DEBUG);
+    }
+
+    // Checkpointed
+
+    public String getCheckpointName() {
+        return "Merge datastore key index";
+    }
+
+    public long nextCheckpoint() {
+        return System.currentTimeMillis() + checkpointSleepTime;
+    }
+
+    public void checkpoint() {
+        int d = deltaSize();
+        if (d >= maxDelta
+            || (d > 0
+                && System.currentTimeMillis() - lastMerge > maxDeltaAge)) {
+            try {
+                merge();
+            } catch (IOException e) {
+                Core.logger.log(
+                    this,
+                    "Cannot write key index",
+                    e,
+                    Logger.ERROR);
+            }
+        }
+    }
+}
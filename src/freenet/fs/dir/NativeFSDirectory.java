@@ -11,8 +11,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
 import java.util.EmptyStackException;
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -74,6 +76,17 @@ public class NativeFSDirectory implements Directory, Checkpointed {
     private NativeBuffer mostRecentlyUsed;
     private final Object lruSync = new Object();
 
+    // Touches are recorded in one of several queues, chosen by key, and
+    // applied to the LRU list a batch at a time, so that threads reading
+    // the store don't all wait for lruSync. Anything that looks at the order
+    // of the list applies the queued touches first.
+    private static final int TOUCH_STRIPES = 16;
+    private static final int TOUCH_BATCH = 32;
+    private final Object[] touchSyncs = new Object[TOUCH_STRIPES];
+    private final NativeBuffer[][] touchQueues =
+        new NativeBuffer[TOUCH_STRIPES][];
+    private final int[] touchCounts = new int[TOUCH_STRIPES];
+
     /**
      * Set to true for a thorough test of the lastmodified LRU It loads the
      * store in the usual way except that NWalk doesn't sort them by
@@ -88,6 +101,32 @@ public class NativeFSDirectory implements Directory, Checkpointed {
 
     private byte verifyMode = SOMETIMES;
 
+    private static final int defaultScanThreads = 4;
+    private StartupScan scan;
+    private volatile DeleteListener deleteListener;
+
+    /**
+     * Told about every file taken out of the directory, however it goes:
+     * deleted, released, dropped by the startup scan or by a commit that
+     * failed. It may be told about files that were never committed.
+     */
+    public interface DeleteListener {
+        void deleted(FileNumber fn);
+    }
+
+    public void setDeleteListener(DeleteListener l) {
+        deleteListener = l;
+    }
+
+    /**
+     * Call after taking a buffer out of buffers.
+     */
+    private void notifyDeleted(FileNumber fn) {
+        DeleteListener l = deleteListener;
+        if (l != null)
+            l.deleted(fn);
+    }
+
     public boolean logDEBUG; // FIXME EVIL HACK
 
     private class LRUWalk implements Walk {
@@ -101,6 +140,7 @@ public class NativeFSDirectory implements Directory, Checkpointed {
             // ascending = true means ascending time in millis
             // i.e. oldest first, youngest last
             this.ascending = ascending;
+            applyTouches();
             synchronized (lruSync) {
                 verifyList();
                 current = ascending ? leastRecentlyUsed : mostRecentlyUsed;
@@ -296,6 +336,12 @@ public class NativeFSDirectory implements Directory, Checkpointed {
         private File dir;
         private FileItem[] files;
         private int count = 0;
+        /** Loaded from the index, so the files have not been looked at yet */
+        boolean fromIndex = false;
+        /** FileNumbers recovered from the temp directory, to be verified */
+        Vector recovered = new Vector();
+        /** Journal records replayed, or -1 if we cannot append to it */
+        long journalResume = -1;
 
         private final class ReadDir extends Thread {
 
@@ -430,6 +476,8 @@ public class NativeFSDirectory implements Directory, Checkpointed {
             File index = new File(dir, "index.old");
             if (!index.isFile() || !index.canRead())
                 index = new File(dir, "index");
+            if (!doIndex)
+                new File(dir, "index.journal").delete();
             if (index.isFile() && index.canRead()) {
                 if (!doIndex) {
                     index.delete();
@@ -451,6 +499,12 @@ public class NativeFSDirectory implements Directory, Checkpointed {
                         // Outside the catch for "new FileInputStream()" so the
                         // exception gets propegated up instead of caught.
                         readFromIndex = readFromIndex(v, s);
+                        if (readFromIndex)
+                            readFromIndex = replayJournal(v) && v.size() > 0;
+                        // If we had to fall back to index.old, the journal
+                        // may be newer than it
+                        if (!readFromIndex || !index.getName().equals("index"))
+                            journalResume = -1;
 
                         try {
                             s.close();
@@ -464,6 +518,7 @@ public class NativeFSDirectory implements Directory, Checkpointed {
                     }
                 }
             }
+            fromIndex = readFromIndex;
             if (!readFromIndex) {
                 if (logDEBUG)
                     Core.logger.log(this, "Reading dirs", Logger.DEBUG);
@@ -531,12 +586,13 @@ public class NativeFSDirectory implements Directory, Checkpointed {
 
 				if(p1 == null || p2 == null) {
 					f[x].delete();
+					continue;
 				}
-                File dest =
-                    getFile(
-                        new FileNumber(
-                            Fields.hexToInt(p1),
-                            HexUtil.hexToBytes(p2)));
+                FileNumber fn =
+                    new FileNumber(
+                        Fields.hexToInt(p1),
+                        HexUtil.hexToBytes(p2));
+                File dest = getFile(fn);
                 if (dest.exists())
                     f[x].delete();
                     // dest is the same file already in the vector and the
@@ -549,6 +605,7 @@ public class NativeFSDirectory implements Directory, Checkpointed {
                             dest.getPath(),
                             dest.lastModified(),
                             dest.length()));
+                    recovered.addElement(fn);
                 } catch (IOException ioe) {
                     Core.logger.log(
                         this,
@@ -563,15 +620,116 @@ public class NativeFSDirectory implements Directory, Checkpointed {
             }
         }
 
+        /**
+         * Apply the index journal, if it belongs to the index we just read,
+         * to the list of files. The journal may end in a partial record if
+         * we crashed while appending to it; we stop there.
+         * 
+         * @return false if the journal is damaged and we must rebuild the
+         *         index from the directories
+         */
+        private boolean replayJournal(Vector v) {
+            File jf = new File(dir, "index.journal");
+            if (indexSerial < 0 || !jf.isFile())
+                return true;
+            DataInputStream dis = null;
+            int records = 0;
+            try {
+                dis =
+                    new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(jf), 1 << 16));
+                if (dis.readLong() != JOURNAL_MAGIC
+                    || dis.readLong() != indexSerial) {
+                    if (logDEBUG)
+                        Core.logger.log(
+                            this,
+                            "Ignoring stale index journal",
+                            Logger.DEBUG);
+                    return true;
+                }
+                Hashtable h = new Hashtable(v.size() * 2 + 16);
+                for (int x = 0; x < v.size(); x++) {
+                    FileItem i = (FileItem) v.elementAt(x);
+                    h.put(i.name, i);
+                }
+                boolean partial = false;
+                try {
+                    while (true) {
+                        byte op = dis.readByte();
+                        partial = true;
+                        if (op == JOURNAL_STORE) {
+                            long len = dis.readLong();
+                            long m = dis.readLong();
+                            String name = new String(dis.readUTF());
+                            // The file is checked by the startup scan
+                            h.put(name, new FileItem(name, m, len));
+                        } else if (op == JOURNAL_DELETE) {
+                            h.remove(dis.readUTF());
+                        } else if (op == JOURNAL_TOUCH) {
+                            long m = dis.readLong();
+                            String name = new String(dis.readUTF());
+                            FileItem i = (FileItem) h.get(name);
+                            if (i != null)
+                                h.put(name, new FileItem(name, m, i.length));
+                        } else {
+                            Core.logger.log(
+                                this,
+                                "Unknown record "
+                                    + op
+                                    + " in index journal after "
+                                    + records
+                                    + " records; rebuilding",
+                                Logger.NORMAL);
+                            return false;
+                        }
+                        records++;
+                        partial = false;
+                    }
+                } catch (EOFException e) {
+                    // End of journal, possibly a partial record
+                }
+                v.clear();
+                v.addAll(h.values());
+                // We can carry on appending to it unless it ends in the
+                // middle of a record
+                if (!partial)
+                    journalResume = records;
+                Core.logger.log(
+                    this,
+                    "Replayed " + records + " index journal records",
+                    Logger.MINOR);
+                return true;
+            } catch (IOException e) {
+                Core.logger.log(
+                    this,
+                    "Cannot read index journal after "
+                        + records
+                        + " records; rebuilding",
+                    e,
+                    Logger.ERROR);
+                return false;
+            } finally {
+                if (dis != null)
+                    try {
+                        dis.close();
+                    } catch (IOException e) {
+                    }
+            }
+        }
+
 		private boolean readFromIndex(Vector v, InputStream s) {
             s = new BufferedInputStream(s, 1 << 16);
             DataInputStream dis = new DataInputStream(s);
             int x = 0, length = 0;
             try {
                 long version = dis.readLong();
-                if (version == 1) {
+                if (version == 1 || version == INDEX_VERSION) {
+                    // Version 1 indexes predate the journal
+                    indexSerial = (version == 1) ? -1 : dis.readLong();
                     length = dis.readInt();
-                    if (length == 0)
+                    // An empty index is suspicious, rebuild unless the
+                    // journal has something for us
+                    if (length == 0 && version == 1)
                         return false;
                     v.ensureCapacity(length);
                     if (logDEBUG)
@@ -607,29 +765,19 @@ public class NativeFSDirectory implements Directory, Checkpointed {
                             String name = new String(dis.readUTF());
 
                             i = new FileItem(name, m, len);
-                            File grrr = new File(name);
-                            if (grrr.length() == len) {
-                                v.addElement(i);
-                            } else {
-                                if (!grrr.exists()) {
-                                    File f = grrr.getParentFile();
-                                    if (f != null) {
-                                        f = f.getParentFile();
-                                        if (f != null && !f.isDirectory())
-                                            return false;
-                                    }
+                            if (v.isEmpty()) {
+                                // Is the index for a store in this place?
+                                File f = new File(name).getParentFile();
+                                if (f != null) {
+                                    f = f.getParentFile();
+                                    if (f != null && !f.isDirectory())
+                                        return false;
                                 }
-                                // We must check here, or we risk
-                                // overestimating the space used by the store
-                                if (logDEBUG)
-                                    Core.logger.log(
-                                        this,
-                                        "Deleted file "
-                                            + name
-                                            + " due to being too short on startup",
-                                        Logger.DEBUG);
-                                grrr.delete();
                             }
+                            // We don't look at the file now; the startup
+                            // scan checks it is there and the right length
+                            // once we are running
+                            v.addElement(i);
                         } // else skip
                     }
                 } else
@@ -808,6 +956,22 @@ public class NativeFSDirectory implements Directory, Checkpointed {
     boolean loaded = false;
     final boolean doIndex;
     boolean indexSpoiled = false;
+
+    // Index journal: changes since the last full index write
+    private static final long INDEX_VERSION = 2;
+    private static final long JOURNAL_MAGIC = 0x4e46534a524e4c31L;
+    static final byte JOURNAL_STORE = 1;
+    static final byte JOURNAL_DELETE = 2;
+    static final byte JOURNAL_TOUCH = 3;
+    /** Don't rewrite the index until the journal has at least this many records */
+    private static final long minSnapshotRecords = 10000;
+    /** Serial number of the index on disk; -1 for an old index without one */
+    long indexSerial = -1;
+    private Vector journalPending = new Vector();
+    private final Object journalSync = new Object();
+    private DataOutputStream journal = null;
+    private FileOutputStream journalFile = null;
+    private long journalRecords = 0;
     // Histograms include in-flight keys
     protected KeyHistogram keyHistogram = null;
     protected KeySizeHistogram keySizeHistogram = null;
@@ -829,6 +993,36 @@ public class NativeFSDirectory implements Directory, Checkpointed {
         float maxTempFraction,
         int maxFilesOpen)
         throws IOException {
+        this(
+            root,
+            size,
+            blockSize,
+            doIndex,
+            maxTempFraction,
+            maxFilesOpen,
+            defaultScanThreads);
+    }
+
+    /**
+     * @param scanThreads
+     *            the number of threads checking the store against the index
+     *            in the background after we have started from it. If 0,
+     *            the check is done before the constructor returns.
+     */
+    public NativeFSDirectory(
+        File root,
+        long size,
+        int blockSize,
+        boolean doIndex,
+        float maxTempFraction,
+        int maxFilesOpen,
+        int scanThreads)
+        throws IOException {
+        long startTime = System.currentTimeMillis();
+        for (int x = 0; x < TOUCH_STRIPES; x++) {
+            touchSyncs[x] = new Object();
+            touchQueues[x] = new NativeBuffer[TOUCH_BATCH];
+        }
         this.doIndex = doIndex;
         this.root = root;
         this.rootAsString = root.getPath();
@@ -845,12 +1039,9 @@ public class NativeFSDirectory implements Directory, Checkpointed {
             throw new IOException(
                 "couldn't create native directory: " + root.getCanonicalPath());
         File temp = new File(root, "temp");
-        if (temp.exists()) {
-            File[] f = temp.listFiles();
-            for (int x = 0; x < f.length; x++)
-                if (!verifyFile(f[x]))
-                    f[x].delete();
-		} else if (!temp.mkdirs())
+        // Files left in temp are recovered by NWalk and verified by the
+        // startup scan
+        if (!temp.exists() && !temp.mkdirs())
             throw new IOException("couldn't create temp dir!");
         maxTempSpaceUsed =
             (long) (((double) size) * ((double) maxTempFraction));
@@ -908,15 +1099,51 @@ public class NativeFSDirectory implements Directory, Checkpointed {
             verifyList(true);
         }
 
+        if (w.fromIndex) {
+            for (NativeBuffer b = leastRecentlyUsed; b != null; b = b.nextLRU)
+                b.unverified = true;
+        }
+        Vector recovered = new Vector();
+        for (int x = 0; x < w.recovered.size(); x++) {
+            NativeBuffer b =
+                (NativeBuffer) buffers.get(w.recovered.elementAt(x));
+            if (b != null)
+                recovered.addElement(b);
+        }
+
         loaded = true;
-        if (doIndex)
+        if (doIndex) {
+            if (w.journalResume >= 0) {
+                // Carry on with the index and journal we just read, rather
+                // than rewriting the whole index before we can start
+                try {
+                    resumeJournal(w.journalResume);
+                } catch (IOException e) {
+                    Core.logger.log(
+                        this,
+                        "Cannot append to index journal; rewriting index",
+                        e,
+                        Logger.NORMAL);
+                }
+            }
+            for (int x = 0; x < recovered.size(); x++)
+                journal(JOURNAL_STORE, (NativeBuffer) recovered.elementAt(x));
             checkpoint();
+        }
         Core.logger.log(
             this,
-            "starting with " + rootAsString + " (" + size + ")",
+            "starting with "
+                + rootAsString
+                + " ("
+                + size
+                + ") in "
+                + (System.currentTimeMillis() - startTime)
+                + "ms",
             Logger.MINOR);
 
+        scan = new StartupScan(w.fromIndex, recovered);
         w = null;
+        scan.start(scanThreads);
     }
 
     /**
@@ -1091,7 +1318,90 @@ public class NativeFSDirectory implements Directory, Checkpointed {
         return spaceUsed;
     }
 
+    /**
+     * Checkpoint the index. Normally we just append the changes since the
+     * last checkpoint to the journal; once the journal has grown to about the
+     * size of the index we rewrite the index and start a new journal.
+     */
     public boolean writeIndex() {
+        // Get the last access times right
+        applyTouches();
+        boolean snapshot;
+        synchronized (journalSync) {
+            snapshot =
+                indexSpoiled
+                    || journal == null
+                    || journalRecords
+                        > Math.max(minSnapshotRecords, buffers.size());
+        }
+        if (snapshot)
+            return writeSnapshot();
+        else
+            return appendJournal();
+    }
+
+    /**
+     * Append the pending changes to the journal, sync it, and then move the
+     * files we have journalled to their committed location.
+     */
+    private boolean appendJournal() {
+        Vector v;
+        // Only swaps the Vector; the key table is not locked at all
+        synchronized (journalSync) {
+            v = journalPending;
+            journalPending = new Vector();
+        }
+        int sz = v.size();
+        if (logDEBUG)
+            Core.logger.log(
+                this,
+                "Journalling " + sz + " changes",
+                Logger.DEBUG);
+        if (sz == 0)
+            return true;
+        Vector toCommit = new Vector();
+        synchronized (journalSync) {
+            try {
+                for (int x = 0; x < sz; x++) {
+                    JournalEntry je = (JournalEntry) v.elementAt(x);
+                    journal.writeByte(je.op);
+                    if (je.op == JOURNAL_STORE) {
+                        journal.writeLong(je.size);
+                        journal.writeLong(je.modified);
+                        if (je.buffer.status == NativeBuffer.ALMOSTCOMMITTED)
+                            toCommit.add(je.buffer);
+                    } else if (je.op == JOURNAL_TOUCH) {
+                        journal.writeLong(je.modified);
+                    }
+                    UTF8.writeWithLength(journal, je.path);
+                }
+                journal.flush();
+                journalFile.getFD().sync();
+                journalRecords += sz;
+            } catch (IOException e) {
+                Core.logger.log(
+                    this,
+                    "IOException writing index journal; will rewrite index",
+                    e,
+                    Logger.ERROR);
+                closeJournal();
+                return false;
+            }
+        }
+        Core.diagnostics.occurrenceCounting("storeIndexJournalRecords", sz);
+        if (logDEBUG)
+            Core.logger.log(
+                this,
+                "Written " + sz + " journal records, about to commit",
+                Logger.DEBUG);
+        reallyCommitAll(toCommit);
+        return true;
+    }
+
+    /**
+     * Rewrite the whole index, and start a new, empty journal to go with it.
+     */
+    private boolean writeSnapshot() {
 
         // If an old index file doesn't exist then rename it.
         File index = new File(root, "index");
@@ -1127,19 +1437,31 @@ public class NativeFSDirectory implements Directory, Checkpointed {
         } else {
             s = new NullOutputStream();
             index.delete(); // don't care about return value
+            synchronized (journalSync) {
+                closeJournal();
+                new File(root, "index.journal").delete();
+            }
         }
 
         s = new BufferedOutputStream(s, 1 << 16);
         DataOutputStream dos = new DataOutputStream(s);
-        long version = 1;
+        long serial = indexSerial + 1;
         try {
-            dos.writeLong(version);
+            dos.writeLong(INDEX_VERSION);
+            dos.writeLong(serial);
             Hashtable h;
             long start = System.currentTimeMillis();
             synchronized (buffers) {
+                // Everything journalled so far is in the snapshot
+                synchronized (journalSync) {
+                    journalPending = new Vector();
+                }
 				h = buffers.cloneHash();
             }
             long end = System.currentTimeMillis();
+            Core.diagnostics.occurrenceContinuous(
+                "storeIndexLockTime",
+                end - start);
             int sz = h.size();
             Vector toCommit = new Vector();
             if (logDEBUG)
@@ -1164,10 +1486,12 @@ public class NativeFSDirectory implements Directory, Checkpointed {
                     if (status == NativeBuffer.COMMITTED
                         || status == NativeBuffer.ALMOSTCOMMITTED) {
                         dos.writeLong(b.size);
-                        dos.writeLong(b.lastModified);
+                        dos.writeLong(b.lastModified());
                         UTF8.writeWithLength(dos, b.getFile().getPath());
                         if (status == NativeBuffer.ALMOSTCOMMITTED)
                             toCommit.add(b);
+                    } else {
+                        dos.writeLong(-1);
                     }
                 } else {
                     dos.writeLong(-1);
@@ -1175,6 +1499,10 @@ public class NativeFSDirectory implements Directory, Checkpointed {
             }
             dos.close();
             oldIndex.delete();
+            if (!indexSpoiled)
+                openJournal(serial);
+            indexSerial = serial;
+            Core.diagnostics.occurrenceCounting("storeIndexSnapshots", 1);
             if (logDEBUG)
                 Core.logger.log(
                     this,
@@ -1182,38 +1510,7 @@ public class NativeFSDirectory implements Directory, Checkpointed {
                     Logger.DEBUG);
             // Only commit if it was already in ALMOSTCOMMITTED when we wrote
             // the index
-            for (int x = 0; x < toCommit.size(); x++) {
-                NativeBuffer b = (NativeBuffer) (toCommit.elementAt(x));
-                if (b.status == NativeBuffer.ALMOSTCOMMITTED) {
-                    try {
-                        b.reallyCommit();
-                    } catch (DirectoryException ex) {
-                        try {
-                            Core.logger.log(
-                                this,
-                                "Got DirectoryException trying to "
-                                    + "commit "
-                                    + b
-                                    + " - releasing",
-                                ex,
-                                Logger.MINOR);
-                            b.release();
-                        } catch (DirectoryException exx) {
-                            Core.logger.log(
-                                this,
-                                "Got DirectoryException releasing "
-                                    + b
-                                    + ": "
-                                    + exx,
-                                exx,
-                                Logger.ERROR);
-                        }
-                    }
-                }
-            }
-            toCommit.clear();
-            if (logDEBUG)
-                Core.logger.log(this, "Finished commit", Logger.DEBUG);
+            reallyCommitAll(toCommit);
         } catch (IOException e) {
             Core.logger.log(
                 this,
@@ -1225,6 +1522,222 @@ public class NativeFSDirectory implements Directory, Checkpointed {
         return true;
     }
 
+    /**
+     * Start a new journal following the index with the given serial number.
+     * Until this returns, the old journal (if any) is still on disk but will
+     * be ignored because its serial number does not match the index.
+     */
+    private void openJournal(long serial) throws IOException {
+        synchronized (journalSync) {
+            closeJournal();
+            journalFile =
+                new FileOutputStream(new File(root, "index.journal"), false);
+            journal =
+                new DataOutputStream(
+                    new BufferedOutputStream(journalFile, 1 << 16));
+            journal.writeLong(JOURNAL_MAGIC);
+            journal.writeLong(serial);
+            journal.flush();
+            journalFile.getFD().sync();
+            journalRecords = 0;
+        }
+    }
+
+    /**
+     * Carry on appending to the journal we replayed on startup. Only called
+     * from the constructor, when the journal ends on a record boundary.
+     */
+    private void resumeJournal(long records) throws IOException {
+        synchronized (journalSync) {
+            closeJournal();
+            journalFile =
+                new FileOutputStream(new File(root, "index.journal"), true);
+            journal =
+                new DataOutputStream(
+                    new BufferedOutputStream(journalFile, 1 << 16));
+            journalRecords = records;
+        }
+    }
+
+    /**
+     * Stop using the journal; the next checkpoint will rewrite the index.
+     * Caller must hold journalSync.
+     */
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                Core.logger.log(
+                    this,
+                    "Cannot close index journal",
+                    e,
+                    Logger.NORMAL);
+            }
+        }
+        journal = null;
+        journalFile = null;
+    }
+
+    /**
+     * Add a change to the list of things to write to the journal on the next
+     * checkpoint.
+     */
+    void journal(byte op, NativeBuffer b) {
+        if (!doIndex || !loaded)
+            return;
+        JournalEntry je =
+            new JournalEntry(
+                op,
+                b,
+                b.getFile().getPath(),
+                b.size,
+                b.lastModified());
+        synchronized (journalSync) {
+            journalPending.add(je);
+        }
+    }
+
+    /**
+     * Record that a buffer was used at the given time, which is no earlier
+     * than the last time it was used. It is moved in the LRU list when its
+     * queue is full, or when something looks at the list.
+     */
+    void recordTouch(NativeBuffer b, long time) {
+        int s = b.fn.hashCode() & (TOUCH_STRIPES - 1);
+        NativeBuffer[] q = null;
+        synchronized (touchSyncs[s]) {
+            if (time > b.touchedAt)
+                b.touchedAt = time;
+            if (b.touchQueued)
+                return;
+            b.touchQueued = true;
+            touchQueues[s][touchCounts[s]++] = b;
+            if (touchCounts[s] == TOUCH_BATCH)
+                q = takeTouches(s);
+        }
+        if (q != null)
+            applyTouches(q, q.length);
+    }
+
+    /**
+     * Apply all the queued touches to the LRU list. Must not be called with
+     * lruSync held.
+     */
+    void applyTouches() {
+        for (int s = 0; s < TOUCH_STRIPES; s++) {
+            NativeBuffer[] q;
+            int n;
+            synchronized (touchSyncs[s]) {
+                n = touchCounts[s];
+                if (n == 0)
+                    continue;
+                q = takeTouches(s);
+            }
+            applyTouches(q, n);
+        }
+    }
+
+    // Call synchronized(touchSyncs[s])
+    private NativeBuffer[] takeTouches(int s) {
+        NativeBuffer[] q = touchQueues[s];
+        for (int x = 0; x < touchCounts[s]; x++)
+            q[x].touchQueued = false;
+        touchQueues[s] = new NativeBuffer[TOUCH_BATCH];
+        touchCounts[s] = 0;
+        return q;
+    }
+
+    private void applyTouches(NativeBuffer[] q, int n) {
+        Vector v = null;
+        synchronized (lruSync) {
+            verifyList();
+            for (int x = 0; x < n; x++) {
+                NativeBuffer b = q[x];
+                long t = b.touchedAt;
+                if (b.status == NativeBuffer.FAILED || t <= b.lastModified)
+                    continue;
+                b.moveInLRU(t);
+                if (doIndex
+                    && loaded
+                    && (b.status == NativeBuffer.COMMITTED
+                        || b.status == NativeBuffer.ALMOSTCOMMITTED)) {
+                    if (v == null)
+                        v = new Vector(n);
+                    v.addElement(
+                        new JournalEntry(
+                            JOURNAL_TOUCH,
+                            b,
+                            b.getFile().getPath(),
+                            b.size,
+                            t));
+                }
+            }
+            verifyList();
+        }
+        if (v != null) {
+            synchronized (journalSync) {
+                journalPending.addAll(v);
+            }
+        }
+    }
+
+    private void reallyCommitAll(Vector toCommit) {
+        for (int x = 0; x < toCommit.size(); x++) {
+            NativeBuffer b = (NativeBuffer) (toCommit.elementAt(x));
+            if (b.status == NativeBuffer.ALMOSTCOMMITTED) {
+                try {
+                    b.reallyCommit();
+                } catch (DirectoryException ex) {
+                    try {
+                        Core.logger.log(
+                            this,
+                            "Got DirectoryException trying to "
+                                + "commit "
+                                + b
+                                + " - releasing",
+                            ex,
+                            Logger.MINOR);
+                        b.release();
+                    } catch (DirectoryException exx) {
+                        Core.logger.log(
+                            this,
+                            "Got DirectoryException releasing "
+                                + b
+                                + ": "
+                                + exx,
+                            exx,
+                            Logger.ERROR);
+                    }
+                }
+            }
+        }
+        toCommit.clear();
+        if (logDEBUG)
+            Core.logger.log(this, "Finished commit", Logger.DEBUG);
+    }
+
+    private static final class JournalEntry {
+        final byte op;
+        final NativeBuffer buffer;
+        final String path;
+        final long size;
+        final long modified;
+
+        JournalEntry(
+            byte op,
+            NativeBuffer buffer,
+            String path,
+            long size,
+            long modified) {
+            this.op = op;
+            this.buffer = buffer;
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
     /**
      * Return an enumeration of all [ALMOST]COMMITTED keys in this Dir
      */
@@ -1369,10 +1882,7 @@ public class NativeFSDirectory implements Directory, Checkpointed {
      * @return whether a file was removed from the index
      */
     protected boolean deleteInternal(FileNumber fn, boolean keepIfUsed) {
-        NativeBuffer b;
-        synchronized (buffers) {
-            b = (NativeBuffer) buffers.get(fn);
-        }
+        NativeBuffer b = (NativeBuffer) buffers.get(fn);
         if (logDEBUG)
             Core.logger.log(
                 this,
@@ -1407,12 +1917,16 @@ public class NativeFSDirectory implements Directory, Checkpointed {
             }
             synchronized (buffers) {
                 buffers.remove(fn);
+                // Journalled with the change, so that an index snapshot
+                // can't come between them
+                journal(JOURNAL_DELETE, b);
                 if (logDEBUG)
                     Core.logger.log(
                         this,
                         "Removed from buffers: " + fn,
                         Logger.DEBUG);
             }
+            notifyDeleted(fn);
             // remove from index regardless of whether we can actually delete
             // see e.g. FSDataObjectStore.flush()
             if (!b.committed())
@@ -1459,10 +1973,7 @@ public class NativeFSDirectory implements Directory, Checkpointed {
     }
 
     public boolean demote(FileNumber fn) {
-        NativeBuffer b;
-        synchronized (buffers) {
-            b = (NativeBuffer) buffers.get(fn);
-        }
+        NativeBuffer b = (NativeBuffer) buffers.get(fn);
         if (b == null)
             return false;
         if (!b.committed())
@@ -1592,49 +2103,29 @@ public class NativeFSDirectory implements Directory, Checkpointed {
                 Logger.DEBUG);
         }
         NativeBuffer x;
-        synchronized (buffers) {
-            try {
-                synchronized (lruSync) {
-                    verifyList();
-                    x =
-                        new NativeBuffer(
-                            fn,
-                            size,
-                            true,
-                            false,
-                            mostRecentlyUsed);
-                    x.lastModified = System.currentTimeMillis();
-                    if (mostRecentlyUsed == null) {
-                        mostRecentlyUsed = x;
-                        leastRecentlyUsed = x;
-                    } else
-                        mostRecentlyUsed.nextLRU = x;
-                    if (x.lastModified < mostRecentlyUsed.lastModified) {
-                        Core.logger.log(
-                            this,
-                            "ERROR! Clock skew detected!",
-                            Logger.ERROR);
-                        x.prevLRU = null;
-                        x.nextLRU = null;
-                        x.setLastModified(x.lastModified);
-                    }
-                    mostRecentlyUsed = x;
-                    verifyList();
-                }
-            } catch (java.io.IOException e) {
-                if (logDEBUG)
-                    Core.logger.log(
-                        this,
-                        "Returning null storing "
-                            + fn
-                            + " because of exception",
-                        e,
-                        Logger.DEBUG);
-                return null;
-            }
-
-            //if(buffers.containsKey(fn)) { } else
-            //   buffers.put(fn, x);
+        try {
+            // Create the temp file before taking any locks
+            x = new NativeBuffer(fn, size, true, false, null);
+        } catch (java.io.IOException e) {
+            if (logDEBUG)
+                Core.logger.log(
+                    this,
+                    "Returning null storing " + fn + " because of exception",
+                    e,
+                    Logger.DEBUG);
+            return null;
+        }
+        synchronized (lruSync) {
+            verifyList();
+            x.lastModified = System.currentTimeMillis();
+            if (mostRecentlyUsed != null
+                && x.lastModified < mostRecentlyUsed.lastModified)
+                Core.logger.log(
+                    this,
+                    "ERROR! Clock skew detected!",
+                    Logger.ERROR);
+            x.setLastModifiedAlreadyOut(x.lastModified, false);
+            verifyList();
         }
         synchronized (spaceUsedSync) {
             spaceUsed += spaceForFile(size);
@@ -1670,6 +2161,7 @@ public class NativeFSDirectory implements Directory, Checkpointed {
     }
 
     public long mostRecentlyUsedTime() {
+        applyTouches();
         synchronized (lruSync) {
             if (mostRecentlyUsed != null) {
                 return mostRecentlyUsed.lastModified();
@@ -1679,6 +2171,7 @@ public class NativeFSDirectory implements Directory, Checkpointed {
     }
 
     public long leastRecentlyUsedTime() {
+        applyTouches();
         synchronized (lruSync) {
             if (leastRecentlyUsed != null) {
                 return leastRecentlyUsed.lastModified();
@@ -1760,6 +2253,292 @@ public class NativeFSDirectory implements Directory, Checkpointed {
         return System.currentTimeMillis() + checkpointSleepTime;
     }
 
+    /**
+     * Checks the store against the index after we have started from it, so
+     * that a large store doesn't keep the node from serving requests while
+     * every file is looked at. The threads first verify the files recovered
+     * from the temp directory, then share out the 256 bucket directories:
+     * each file is compared with the buffer loaded from the index (its
+     * length, and in ALWAYS mode its contents), and files that the index
+     * doesn't know about are deleted. When all the directories have been
+     * listed, the last thread out drops the buffers whose files were not
+     * found.
+     */
+    private final class StartupScan implements Runnable {
+
+        private final boolean fromIndex;
+        private final Vector recovered;
+        private int nextRecovered = 0;
+        private int nextDir = 0;
+        private int running = 0;
+        private boolean failed = false;
+
+        private volatile int done = 0;
+        private volatile long checked = 0;
+        private volatile long removed = 0;
+        private volatile long stray = 0;
+        private final long startTime = System.currentTimeMillis();
+        private volatile long endTime = -1;
+
+        StartupScan(boolean fromIndex, Vector recovered) {
+            this.fromIndex = fromIndex;
+            this.recovered = recovered;
+        }
+
+        int total() {
+            return recovered.size() + (fromIndex ? 256 : 0);
+        }
+
+        void start(int threads) {
+            if (total() == 0) {
+                endTime = startTime;
+                return;
+            }
+            if (threads <= 0) {
+                running = 1;
+                run();
+                return;
+            }
+            threads = Math.min(threads, total());
+            running = threads;
+            for (int x = 0; x < threads; x++) {
+                Thread t = new Thread(this, "Datastore startup scan " + x);
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                t.start();
+            }
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    NativeBuffer b;
+                    synchronized (this) {
+                        if (nextRecovered >= recovered.size())
+                            break;
+                        b = (NativeBuffer) recovered.elementAt(nextRecovered++);
+                    }
+                    boolean bad =
+                        !verifyFile(b.getFile())
+                            && remove(b, "failed verification after recovery");
+                    count(1, bad ? 1 : 0, 0);
+                }
+                if (fromIndex) {
+                    while (true) {
+                        int d;
+                        synchronized (this) {
+                            if (nextDir >= 256)
+                                break;
+                            d = nextDir++;
+                        }
+                        scanDir(d);
+                    }
+                }
+            } catch (Throwable t) {
+                synchronized (this) {
+                    failed = true;
+                }
+                Core.logger.log(
+                    NativeFSDirectory.this,
+                    "Startup scan of " + rootAsString + " failed: " + t,
+                    t,
+                    Logger.ERROR);
+            } finally {
+                boolean last;
+                synchronized (this) {
+                    last = --running == 0;
+                }
+                if (last)
+                    finish();
+            }
+        }
+
+        /** Record that we have finished a file or directory */
+        private synchronized void count(int files, int bad, int strays) {
+            done++;
+            checked += files;
+            removed += bad;
+            stray += strays;
+        }
+
+        private void scanDir(int d) {
+            File[] f = new File(root, Integer.toHexString(d)).listFiles();
+            int files = 0, bad = 0;
+            Vector strays = new Vector();
+            for (int x = 0; f != null && x < f.length; x++) {
+                FileNumber fn = parseFileName(f[x].getName());
+                if (fn == null)
+                    continue; // not ours
+                files++;
+                NativeBuffer b;
+                synchronized (buffers) {
+                    b = (NativeBuffer) buffers.get(fn);
+                }
+                if (b == null) {
+                    strays.addElement(f[x]);
+                } else if (b.unverified) {
+                    b.unverified = false;
+                    boolean ok = f[x].length() == b.size;
+                    if (ok && verifyMode == ALWAYS)
+                        ok = verifyFile(f[x]);
+                    if (!ok && remove(b, "wrong length or corrupt"))
+                        bad++;
+                }
+            }
+            // Check again now that the directory is done, in case one of
+            // them was being deleted as we listed it
+            int deleted = 0;
+            for (int x = 0; x < strays.size(); x++) {
+                File s = (File) strays.elementAt(x);
+                synchronized (buffers) {
+                    if (buffers.get(parseFileName(s.getName())) == null
+                        && s.delete())
+                        deleted++;
+                }
+            }
+            if (deleted > 0)
+                Core.logger.log(
+                    NativeFSDirectory.this,
+                    "Deleted "
+                        + deleted
+                        + " files not in the index from "
+                        + Integer.toHexString(d),
+                    Logger.MINOR);
+            count(files, bad, deleted);
+        }
+
+        private void finish() {
+            int missing = 0;
+            if (fromIndex && !failed) {
+                // Anything we didn't come across has gone
+                Vector v = new Vector();
+                synchronized (buffers) {
+                    Iterator i = buffers.values().iterator();
+                    while (i.hasNext()) {
+                        NativeBuffer b = (NativeBuffer) i.next();
+                        if (b.unverified)
+                            v.addElement(b);
+                    }
+                }
+                for (int x = 0; x < v.size(); x++) {
+                    NativeBuffer b = (NativeBuffer) v.elementAt(x);
+                    b.unverified = false;
+                    if (b.getFile().length() != b.size
+                        && remove(b, "missing"))
+                        missing++;
+                }
+                synchronized (this) {
+                    removed += missing;
+                }
+            }
+            endTime = System.currentTimeMillis();
+            Core.logger.log(
+                NativeFSDirectory.this,
+                "Startup scan of "
+                    + rootAsString
+                    + (failed ? " failed after " : " finished in ")
+                    + (endTime - startTime)
+                    + "ms: checked "
+                    + checked
+                    + " files, removed "
+                    + removed
+                    + " from the index ("
+                    + missing
+                    + " missing), deleted "
+                    + stray
+                    + " stray files",
+                failed ? Logger.ERROR : Logger.NORMAL);
+        }
+
+        private boolean remove(NativeBuffer b, String reason) {
+            synchronized (buffers) {
+                if (buffers.get(b.fn) != b)
+                    return false;
+            }
+            Core.logger.log(
+                NativeFSDirectory.this,
+                "Removing " + b.getFile() + " from the store: " + reason,
+                Logger.NORMAL);
+            try {
+                return deleteInternal(b.fn, false);
+            } catch (DirectoryException e) {
+                Core.logger.log(
+                    NativeFSDirectory.this,
+                    "Cannot remove " + b.getFile() + ": " + e,
+                    e,
+                    Logger.ERROR);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Parse the name of a file in one of the bucket directories.
+     * 
+     * @return the FileNumber, or null if it isn't one of ours
+     */
+    private static FileNumber parseFileName(String name) {
+        int x = name.indexOf('-');
+        if (x <= 0 || x == name.length() - 1)
+            return null;
+        try {
+            return new FileNumber(
+                Fields.hexToInt(name.substring(0, x)),
+                HexUtil.hexToBytes(name.substring(x + 1)));
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the background check of the store against the index
+     *         is still going
+     */
+    public boolean startupScanRunning() {
+        return scan != null && scan.endTime < 0;
+    }
+
+    /**
+     * @return how far the startup scan has got, in percent
+     */
+    public int startupScanProgress() {
+        if (scan == null || scan.endTime >= 0)
+            return 100;
+        return scan.done * 100 / scan.total();
+    }
+
+    /**
+     * @return the time the startup scan has been running, or took
+     */
+    public long startupScanTime() {
+        if (scan == null)
+            return 0;
+        long end = scan.endTime;
+        return (end < 0 ? System.currentTimeMillis() : end) - scan.startTime;
+    }
+
+    public long startupScanFilesChecked() {
+        return scan == null ? 0 : scan.checked;
+    }
+
+    /**
+     * @return the number of files dropped from the index by the startup scan
+     *         because they were missing, the wrong length or corrupt
+     */
+    public long startupScanFilesRemoved() {
+        return scan == null ? 0 : scan.removed;
+    }
+
+    /**
+     * @return the number of files not in the index deleted by the startup
+     *         scan
+     */
+    public long startupScanStrayFiles() {
+        return scan == null ? 0 : scan.stray;
+    }
+
     /**
      * temporary Buffer - passes through to the underlying NativeBuffer, but
      * keeps track of writers and readers allocated through itself, and closes
@@ -1796,9 +2575,8 @@ public class NativeFSDirectory implements Directory, Checkpointed {
             if (buffer != null)
                 buffer.touch();
         }
-		public void touchThrottled() {
-			if (buffer != null)
-				buffer.touchThrottled();
+		public boolean touchThrottled() {
+			return buffer != null && buffer.touchThrottled();
 		}
 
         public void commit() {
@@ -2104,6 +2882,14 @@ public class NativeFSDirectory implements Directory, Checkpointed {
 
         private volatile boolean usedSinceCommit = true;
 
+        /** Loaded from the index and not yet checked by the startup scan */
+        volatile boolean unverified = false;
+
+        /** Last use not yet applied to the LRU list, see recordTouch() */
+        volatile long touchedAt = -1;
+        /** In a touch queue; guarded by the queue's lock */
+        boolean touchQueued = false;
+
         private byte status = TEMPORARY;
         private static final byte TEMPORARY = 0;
         private static final byte COMMITTED = 1;
@@ -2640,33 +3426,49 @@ public class NativeFSDirectory implements Directory, Checkpointed {
 		 * per 60 seconds saves around 30 touch()'s per second.
 		 * /Iakin 2004-01-22  
 		*/
-		public void touchThrottled() {
-			if((lastModified+THROTTLEDTOUCH_INTERVAL)<System.currentTimeMillis()) //Limit to one touch per interval maximum
-				touch();
+		public boolean touchThrottled() {
+			if((lastModified()+THROTTLEDTOUCH_INTERVAL)>=System.currentTimeMillis()) //Limit to one touch per interval maximum
+				return false;
+			touch();
+			return true;
 		}
 
         public void setLastModified(long x) {
             if (status != FAILED) {
 				getFileForStatus().setLastModified(x); //Intentionally do this before the sync block (might be slow due to OS issues)
+                if (x >= lastModified()) {
+                    // The usual case; moved in the LRU list and journalled
+                    // later, with others
+                    recordTouch(this, x);
+                    return;
+                }
+                applyTouches();
                 synchronized (lruSync) {
                     verifyList();
-                    lastModified = x;
-                    // Remove from list first
-                    if (prevLRU != null)
-                        prevLRU.nextLRU = nextLRU;
-                    if (nextLRU != null)
-                        nextLRU.prevLRU = prevLRU;
-                    if (mostRecentlyUsed == this)
-                        mostRecentlyUsed = prevLRU;
-                    if (leastRecentlyUsed == this)
-                        leastRecentlyUsed = nextLRU;
-                    // Assume lastModified is increasing (FIXME?)
+                    touchedAt = -1;
+                    moveInLRU(x);
                     verifyList();
-                    setLastModifiedAlreadyOut(x, false);
                 }
+                if (status == COMMITTED || status == ALMOSTCOMMITTED)
+                    journal(JOURNAL_TOUCH, this);
             }
         }
 
+        // Call synchronized(lruSync)
+        void moveInLRU(long x) {
+            lastModified = x;
+            // Remove from list first
+            if (prevLRU != null)
+                prevLRU.nextLRU = nextLRU;
+            if (nextLRU != null)
+                nextLRU.prevLRU = prevLRU;
+            if (mostRecentlyUsed == this)
+                mostRecentlyUsed = prevLRU;
+            if (leastRecentlyUsed == this)
+                leastRecentlyUsed = nextLRU;
+            setLastModifiedAlreadyOut(x, false);
+        }
+
         protected void setLastModifiedAlreadyOut(
             long x,
             boolean forceValidEverywhere) {
@@ -2680,7 +3482,7 @@ public class NativeFSDirectory implements Directory, Checkpointed {
                 //        Logger.DEBUG);
                 return;
             }
-            if (b.lastModified < x) {
+            if (b.lastModified <= x) {
                 // insert at end of list
                 b.nextLRU = this;
                 prevLRU = b;
@@ -2778,7 +3580,13 @@ public class NativeFSDirectory implements Directory, Checkpointed {
                         Logger.NORMAL);
                     throw new DirectoryException("IOException trying to sync in commit()");
                 }
-                setStatus(ALMOSTCOMMITTED);
+                // An index snapshot either sees the new status or finds the
+                // record still pending
+                synchronized (buffers) {
+                    setStatus(ALMOSTCOMMITTED);
+                    if (doIndex)
+                        journal(JOURNAL_STORE, this);
+                }
                 if (!doIndex)
                     reallyCommit();
                 if (logDEBUG)
@@ -2879,11 +3687,16 @@ public class NativeFSDirectory implements Directory, Checkpointed {
                                 + this,
                             e,
                             Logger.DEBUG);
+                    boolean removed = false;
                     synchronized (buffers) {
                         if (buffers.get(fn) == this) {
                             buffers.remove(fn);
+                            journal(JOURNAL_DELETE, this);
+                            removed = true;
                         }
                     }
+                    if (removed)
+                        notifyDeleted(fn);
                     setStatus(TEMPORARY);
                     throw e;
                 }
@@ -2951,11 +3764,13 @@ public class NativeFSDirectory implements Directory, Checkpointed {
          * is not currently in the LRU
          */
         protected void moveToLRUEnd() {
+            applyTouches();
             synchronized (lruSync) {
+                touchedAt = -1;
                 if (leastRecentlyUsed == this)
                     return;
                 NativeBuffer oldStart = leastRecentlyUsed;
-                lastModified = oldStart.lastModified() - 1; // demoted
+                lastModified = oldStart.lastModified - 1; // demoted
                 if (mostRecentlyUsed == this)
                     mostRecentlyUsed = prevLRU;
                 else if (nextLRU != null)
@@ -3273,6 +4088,7 @@ public class NativeFSDirectory implements Directory, Checkpointed {
         }
 
         protected void releaseFromBuffers() {
+            boolean removed = false;
             synchronized (buffers) {
 				NativeBuffer b  =(NativeBuffer) buffers.get(fn);
 				if (b != null) {
@@ -3293,6 +4109,8 @@ public class NativeFSDirectory implements Directory, Checkpointed {
                                 "Removing " + fn + " from buffers",
                                 Logger.DEBUG);
                         buffers.remove(fn);
+                        journal(JOURNAL_DELETE, this);
+                        removed = true;
                     }
                 } else {
                     if (logDEBUG)
@@ -3302,6 +4120,8 @@ public class NativeFSDirectory implements Directory, Checkpointed {
                             Logger.DEBUG);
                 }
             }
+            if (removed)
+                notifyDeleted(fn);
         }
 
         String fileName() {
@@ -3313,10 +4133,13 @@ public class NativeFSDirectory implements Directory, Checkpointed {
         }
 
         long lastModified() {
-            return lastModified;
+            long t = touchedAt;
+            return t > lastModified ? t : lastModified;
         }
 
-        class NativeInputStream extends InputStream implements NativeStream {
+        class NativeInputStream
+            extends InputStream
+            implements NativeStream, ReadableByteChannel {
             long position = 0;
             boolean closed = false;
 
@@ -3451,6 +4274,30 @@ public class NativeFSDirectory implements Directory, Checkpointed {
              * full number of requested bytes.
              */
             public int read(byte b[], int off, int len) throws IOException {
+                return read(b, off, len, null);
+            }
+
+            /**
+             * Read some bytes into a buffer through the file's channel,
+             * blocking if necessary. Reading into a direct buffer avoids
+             * copying the data through the heap.
+             */
+            public int read(ByteBuffer dst) throws IOException {
+                if (!dst.hasRemaining())
+                    return 0;
+                return read(null, 0, dst.remaining(), dst);
+            }
+
+            public boolean isOpen() {
+                return !dead();
+            }
+
+            /**
+             * Read into b, or into dst if it is not null, or skip if both
+             * are null.
+             */
+            private int read(byte b[], int off, int len, ByteBuffer dst)
+                throws IOException {
                 usedSinceCommit = true;
                 if (dead())
                     return -1;
@@ -3512,12 +4359,22 @@ public class NativeFSDirectory implements Directory, Checkpointed {
                                 + fn,
                             Logger.DEBUG);
                     if (maxlen > 0) {
-                        if (b != null) {
+                        if (b != null || dst != null) {
                             synchronized (rafSync) {
                                 try {
                                     if (rafPos != position)
                                         raf.seek(position);
-                                    wasread = raf.read(b, off, maxlen);
+                                    if (dst == null)
+                                        wasread = raf.read(b, off, maxlen);
+                                    else {
+                                        int limit = dst.limit();
+                                        dst.limit(dst.position() + maxlen);
+                                        try {
+                                            wasread = raf.read(dst);
+                                        } finally {
+                                            dst.limit(limit);
+                                        }
+                                    }
                                 } catch (IOException e) {
                                     rafPos = -1;
                                     throw e;
@@ -3565,10 +4422,9 @@ public class NativeFSDirectory implements Directory, Checkpointed {
              */
             public long skip(long n) throws IOException {
                 int x = (n > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) n;
-                byte[] b = null;
                 if (closed)
                     return -1;
-                return read(b, 0, x);
+                return read(null, 0, x, null);
             }
 
             /**
@@ -0,0 +1,103 @@
+package freenet.fs.dir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Measures how long a NativeFSDirectory takes to start up, i.e. until it
+ * can serve requests, and how long the background check of the store
+ * against the index takes after that.
+ * <p>
+ * The first run on a directory fills it with small keys and exits, so that
+ * e.g. 100000, 1000000 and 5000000 key stores can be kept around; each
+ * later run starts the store once. Only one store can be opened per VM,
+ * because the buffers of a store that is no longer referenced delete their
+ * files when they are finalized. Delete the index file to measure a start
+ * without it, and drop the OS file cache between runs to see cold start
+ * times.
+ * </p>
+ * <p>
+ * Usage: StoreStartupBenchmark [directory] [keys] [scan threads]
+ * </p>
+ */
+public class StoreStartupBenchmark {
+
+    private static final int keySize = 64;
+
+    public static void main(String[] args) throws IOException {
+        File root = new File(args.length > 0 ? args[0] : "startupbench");
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        // Each file takes at least a block
+        long storeSize = ((long) keys + 1000) * 4096 * 2;
+
+        if (!root.exists()) {
+            fill(root, storeSize, keys);
+            return;
+        }
+
+        System.out.println(
+            "Starting "
+                + root
+                + (new File(root, "index").exists() ? " from index" : "")
+                + " with "
+                + threads
+                + " scan threads");
+        long start = System.currentTimeMillis();
+        NativeFSDirectory dir =
+            new NativeFSDirectory(
+                root,
+                storeSize,
+                4096,
+                true,
+                0.1F,
+                256,
+                threads);
+        long up = System.currentTimeMillis() - start;
+        while (dir.startupScanRunning())
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+            }
+        long scanned = System.currentTimeMillis() - start;
+        System.out.println(
+            dir.countKeys()
+                + " keys: serving after "
+                + up
+                + "ms, store checked after "
+                + scanned
+                + "ms ("
+                + dir.startupScanFilesChecked()
+                + " files checked)");
+    }
+
+    private static void fill(File root, long storeSize, int keys)
+        throws IOException {
+        System.out.println("Filling " + root + " with " + keys + " keys");
+        long start = System.currentTimeMillis();
+        NativeFSDirectory dir =
+            new NativeFSDirectory(root, storeSize, 4096, true, 0.1F, 256, 0);
+        Random r = new Random(42);
+        byte[] data = new byte[keySize];
+        r.nextBytes(data);
+        for (int i = 0; i < keys; i++) {
+            byte[] k = new byte[23];
+            r.nextBytes(k);
+            Buffer b = dir.store(keySize, new FileNumber(k));
+            OutputStream out = b.getOutputStream();
+            out.write(data);
+            out.close();
+            b.commit();
+            b.release();
+            if (i % 10000 == 9999)
+                dir.checkpoint();
+        }
+        dir.checkpoint();
+        System.out.println(
+            "Filled in "
+                + (System.currentTimeMillis() - start)
+                + "ms, run again to start it");
+    }
+}
@@ -0,0 +1,173 @@
+package freenet.fs.tests;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+
+import junit.framework.TestCase;
+import freenet.fs.dir.Buffer;
+import freenet.fs.dir.FileNumber;
+import freenet.fs.dir.LogStructuredDirectory;
+import freenet.fs.dir.LossyDirectory;
+import freenet.support.test.SimpleTestRunner;
+
+public class LogStructuredDirectoryTest extends TestCase {
+
+    public static void main(String[] args) {
+        SimpleTestRunner.main(
+            new String[] {LogStructuredDirectoryTest.class.getName()});
+    }
+
+    File root = new File("testlogdir");
+
+    public LogStructuredDirectoryTest(String name) {
+        super(name);
+    }
+
+    public void setUp() {
+        wipe();
+    }
+
+    public void tearDown() {
+        wipe();
+    }
+
+    private void wipe() {
+        File[] f = root.listFiles();
+        if (f != null)
+            for (int i = 0; i < f.length; i++)
+                f[i].delete();
+        root.delete();
+    }
+
+    private LogStructuredDirectory open() throws IOException {
+        // small segments so that a few keys span several of them
+        return new LogStructuredDirectory(root, 100000, 2000, 0.5F, 4);
+    }
+
+    private static FileNumber key(int i) {
+        byte[] k = new byte[23];
+        k[0] = (byte) i;
+        k[22] = (byte) (i >> 8);
+        return new FileNumber(k);
+    }
+
+    private static void put(LossyDirectory dir, FileNumber fn, int len)
+        throws IOException {
+        Buffer b = dir.forceStore(len, fn);
+        OutputStream out = b.getOutputStream();
+        for (int i = 0; i < len; i++)
+            out.write(fn.getByteArray()[0] + i);
+        out.close();
+        b.commit();
+        b.release();
+    }
+
+    private static void check(LossyDirectory dir, FileNumber fn, int len)
+        throws IOException {
+        Buffer b = dir.fetch(fn);
+        assertNotNull("missing " + fn, b);
+        assertEquals(len, b.length());
+        InputStream in = b.getInputStream();
+        for (int i = 0; i < len; i++)
+            assertEquals((fn.getByteArray()[0] + i) & 0xff, in.read());
+        assertEquals(-1, in.read());
+        in.close();
+        b.release();
+    }
+
+    public void testStoreFetchDelete() throws IOException {
+        LogStructuredDirectory lsd = open();
+        LossyDirectory dir = new LossyDirectory(0x0001, lsd);
+        for (int i = 0; i < 20; i++)
+            put(dir, key(i), 500 + i);
+        assertEquals(20, lsd.countKeys());
+        assertTrue(lsd.segmentCount() > 1);
+        for (int i = 0; i < 20; i++)
+            check(dir, key(i), 500 + i);
+        assertTrue(dir.delete(key(3), false));
+        assertFalse(dir.contains(key(3)));
+        assertNull(dir.fetch(key(3)));
+        assertEquals(19, lsd.countKeys());
+    }
+
+    public void testUncommittedIsDiscarded() throws IOException {
+        LogStructuredDirectory lsd = open();
+        LossyDirectory dir = new LossyDirectory(0x0001, lsd);
+        Buffer b = dir.forceStore(100, key(1));
+        OutputStream out = b.getOutputStream();
+        out.write(new byte[50]);
+        out.close();
+        b.release();
+        assertFalse(dir.contains(key(1)));
+        assertEquals(0, lsd.used());
+    }
+
+    public void testCompactionAndReload() throws IOException {
+        LogStructuredDirectory lsd = open();
+        LossyDirectory dir = new LossyDirectory(0x0001, lsd);
+        for (int i = 0; i < 40; i++)
+            put(dir, key(i), 300);
+        long physical = lsd.physicalSize();
+        for (int i = 0; i < 40; i += 4)
+            dir.delete(key(i), false);
+        for (int i = 1; i < 40; i += 4)
+            dir.delete(key(i), false);
+        for (int i = 2; i < 40; i += 4)
+            dir.delete(key(i), false);
+        lsd.checkpoint();
+        assertTrue(lsd.compactedBytes() > 0);
+        assertTrue(lsd.physicalSize() < physical);
+        for (int i = 3; i < 40; i += 4)
+            check(dir, key(i), 300);
+
+        lsd = open();
+        dir = new LossyDirectory(0x0001, lsd);
+        assertEquals(10, lsd.countKeys());
+        for (int i = 3; i < 40; i += 4)
+            check(dir, key(i), 300);
+        int n = 0;
+        for (Enumeration e = lsd.lruKeys(true); e.hasMoreElements(); n++)
+            e.nextElement();
+        assertEquals(10, n);
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        LogStructuredDirectory lsd =
+            new LogStructuredDirectory(root, 5000, 2000, 0.5F, 4);
+        LossyDirectory dir = new LossyDirectory(0x0001, lsd);
+        for (int i = 0; i < 20; i++)
+            put(dir, key(i), 400);
+        assertTrue(lsd.used() <= 5000);
+        assertTrue(dir.contains(key(19)));
+        assertFalse(dir.contains(key(0)));
+    }
+
+    /**
+     * Storing straight into the directory, without making room first,
+     * fails before anything is appended once the limit would be passed.
+     */
+    public void testStoreFailsWhenFull() throws IOException {
+        LogStructuredDirectory lsd =
+            new LogStructuredDirectory(root, 5000, 2000, 0.5F, 4);
+        int stored = 0;
+        while (true) {
+            Buffer b = lsd.store(400, key(stored));
+            if (b == null)
+                break;
+            b.getOutputStream().close();
+            b.commit();
+            b.release();
+            stored++;
+            assertTrue(stored < 20);
+        }
+        assertTrue(stored > 0);
+        assertTrue(lsd.used() <= 5000);
+        long physical = lsd.physicalSize();
+        assertNull(lsd.store(400, key(stored)));
+        assertEquals(physical, lsd.physicalSize());
+        assertNull(lsd.store(6000, key(stored)));
+        assertEquals(physical, lsd.physicalSize());
+    }
+}
@@ -0,0 +1,252 @@
+package freenet.fs.tests;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Hashtable;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.Key;
+import freenet.fs.dir.Buffer;
+import freenet.fs.dir.FileNumber;
+import freenet.fs.dir.KeyIndexedDirectory;
+import freenet.fs.dir.LogStructuredDirectory;
+import freenet.fs.dir.LossyDirectory;
+import freenet.fs.dir.MappedKeyIndex;
+import freenet.fs.dir.NativeFSDirectory;
+import freenet.support.KeyHistogram;
+import freenet.support.test.SimpleTestRunner;
+
+public class MappedKeyIndexTest extends TestCase {
+
+    public static void main(String[] args) {
+        SimpleTestRunner.main(
+            new String[] {MappedKeyIndexTest.class.getName()});
+    }
+
+    File root = new File("testkeyindex");
+
+    static final MappedKeyIndex.Closeness closer =
+        new MappedKeyIndex.Closeness() {
+        public int compare(byte[] target, byte[] a, byte[] b) {
+            return new Key(target).compareTo(new Key(a), new Key(b));
+        }
+    };
+
+    public MappedKeyIndexTest(String name) {
+        super(name);
+    }
+
+    public void setUp() {
+        wipe(root);
+    }
+
+    public void tearDown() {
+        wipe(root);
+    }
+
+    private static void wipe(File f) {
+        File[] fs = f.listFiles();
+        if (fs != null)
+            for (int i = 0; i < fs.length; i++)
+                wipe(fs[i]);
+        f.delete();
+    }
+
+    private static byte[] key(Random r) {
+        byte[] k = new byte[Key.KEYBYTES];
+        r.nextBytes(k);
+        return k;
+    }
+
+    public void testPutRemoveAcrossMerges() throws IOException {
+        MappedKeyIndex idx = new MappedKeyIndex(root, Key.KEYBYTES);
+        Random r = new Random(1);
+        byte[][] keys = new byte[200][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = key(r);
+            idx.put(keys[i], i, 1000 + i);
+            if (i == 100)
+                idx.merge();
+        }
+        for (int i = 0; i < keys.length; i += 3)
+            idx.remove(keys[i]);
+        assertEquals(200 - 67, idx.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i % 3 != 0, idx.contains(keys[i]));
+            if (i % 3 != 0)
+                assertEquals(i, idx.getSize(keys[i]));
+        }
+        idx.touch(keys[1], 5);
+        idx.merge();
+        idx.touch(keys[2], 6);
+
+        idx = new MappedKeyIndex(root, Key.KEYBYTES);
+        assertEquals(200 - 67, idx.size());
+        assertEquals(0, idx.deltaSize());
+        for (int i = 0; i < keys.length; i++)
+            assertEquals(i % 3 != 0, idx.contains(keys[i]));
+        assertEquals(5, idx.getLastAccess(keys[1]));
+        // touched in place in the mapped file
+        assertEquals(6, idx.getLastAccess(keys[2]));
+        KeyHistogram h = idx.getHistogram();
+        assertEquals(200 - 67, h.getTotal());
+        assertEquals(1, root.list().length);
+    }
+
+    /**
+     * Enough random changes to fold the recent changes into the delta many
+     * times over, with a merge into the base now and then, checked against
+     * a Hashtable.
+     */
+    public void testRandomChanges() throws IOException {
+        MappedKeyIndex idx = new MappedKeyIndex(root, Key.KEYBYTES);
+        Random r = new Random(5);
+        byte[][] keys = new byte[300][];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = key(r);
+        Hashtable model = new Hashtable();
+        for (int op = 0; op < 5000; op++) {
+            int i = r.nextInt(keys.length);
+            Key k = new Key(keys[i]);
+            if (r.nextInt(3) == 0) {
+                idx.remove(keys[i]);
+                model.remove(k);
+            } else {
+                idx.put(keys[i], op, op);
+                model.put(k, new Long(op));
+            }
+            if (op % 1500 == 1499)
+                idx.merge();
+        }
+        assertEquals(model.size(), idx.size());
+        for (int i = 0; i < keys.length; i++) {
+            Long size = (Long) model.get(new Key(keys[i]));
+            assertEquals(size != null, idx.contains(keys[i]));
+            assertEquals(size == null ? -1 : size.longValue(),
+                idx.getSize(keys[i]));
+        }
+        // Walking the index finds every key once
+        byte[][] found =
+            idx.findClosestKeys(keys[0], true, keys.length, closer);
+        assertEquals(model.size(), found.length);
+        Hashtable seen = new Hashtable();
+        for (int i = 0; i < found.length; i++) {
+            assertTrue(model.containsKey(new Key(found[i])));
+            assertNull(seen.put(new Key(found[i]), found[i]));
+        }
+        assertEquals(model.size(), idx.getHistogram().getTotal());
+    }
+
+    public void testFindClosestKeys() throws IOException {
+        MappedKeyIndex idx = new MappedKeyIndex(root, Key.KEYBYTES);
+        Random r = new Random(2);
+        Key[] keys = new Key[500];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Key(key(r));
+            idx.put(keys[i].getVal(), 1, 1);
+            if (i == 250)
+                idx.merge();
+        }
+        for (int t = 0; t < 20; t++) {
+            Key target = t < 10 ? keys[t * 7] : new Key(key(r));
+            byte[][] found =
+                idx.findClosestKeys(target.getVal(), false, 10, closer);
+            assertEquals(10, found.length);
+            // Nothing that wasn't returned is closer than the last one
+            Key last = new Key(found[found.length - 1]);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].equals(target))
+                    continue;
+                boolean returned = false;
+                for (int j = 0; j < found.length; j++)
+                    if (keys[i].equals(new Key(found[j])))
+                        returned = true;
+                if (!returned)
+                    assertTrue(target.compareTo(keys[i], last) >= 0);
+            }
+            for (int j = 0; j < found.length; j++)
+                assertFalse(target.equals(new Key(found[j])));
+        }
+        byte[][] found =
+            idx.findClosestKeys(keys[3].getVal(), true, 1, closer);
+        assertEquals(keys[3], new Key(found[0]));
+    }
+
+    public void testReconcile() throws IOException {
+        File store = new File(root, "store");
+        LogStructuredDirectory lsd =
+            new LogStructuredDirectory(store, 1000000, 100000, 0.5F, 4);
+        MappedKeyIndex idx =
+            new MappedKeyIndex(new File(root, "index"), Key.KEYBYTES);
+        KeyIndexedDirectory kid = new KeyIndexedDirectory(lsd, 1, idx);
+        LossyDirectory dir = new LossyDirectory(1, kid);
+        Random r = new Random(3);
+        byte[][] keys = new byte[50][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = key(r);
+            Buffer b = dir.forceStore(100 + i, new FileNumber(keys[i]));
+            OutputStream out = b.getOutputStream();
+            out.write(new byte[100 + i]);
+            out.close();
+            b.commit();
+            b.release();
+        }
+        assertEquals(50, idx.size());
+        dir.delete(new FileNumber(keys[0]), false);
+        assertFalse(idx.contains(keys[0]));
+        // Only half of the changes made it to disk before the "crash"
+        idx.merge();
+        for (int i = 1; i < 10; i++)
+            dir.delete(new FileNumber(keys[i]), false);
+
+        idx = new MappedKeyIndex(new File(root, "index"), Key.KEYBYTES);
+        assertEquals(49, idx.size());
+        kid = new KeyIndexedDirectory(lsd, 1, idx);
+        assertEquals(40, idx.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i >= 10, idx.contains(keys[i]));
+            if (i >= 10)
+                assertEquals(100 + i, idx.getSize(keys[i]));
+        }
+    }
+
+    /**
+     * A NativeFSDirectory only really commits a file at the next
+     * checkpoint. If that fails it drops the key by itself, and the index
+     * must drop it too.
+     */
+    public void testFailedCommitLeavesIndex() throws IOException {
+        File store = new File(root, "store");
+        NativeFSDirectory nfs =
+            new NativeFSDirectory(store, 10000000, 4096, true, 0.25F, 256, 0);
+        MappedKeyIndex idx =
+            new MappedKeyIndex(new File(root, "index"), Key.KEYBYTES);
+        KeyIndexedDirectory kid = new KeyIndexedDirectory(nfs, 1, idx);
+        LossyDirectory dir = new LossyDirectory(1, kid);
+        Random r = new Random(4);
+        byte[][] keys = new byte[2][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = key(r);
+            Buffer b = dir.forceStore(100, new FileNumber(keys[i]));
+            OutputStream out = b.getOutputStream();
+            out.write(new byte[100]);
+            out.close();
+            b.commit();
+            b.release();
+            if (i == 0)
+                nfs.checkpoint();
+        }
+        assertTrue(idx.contains(keys[1]));
+        // The second file is still in the temp directory; without it the
+        // commit can't be finished
+        File[] temp = new File(store, "temp").listFiles();
+        assertEquals(1, temp.length);
+        assertTrue(temp[0].delete());
+        nfs.checkpoint();
+        assertFalse(dir.contains(new FileNumber(keys[1])));
+        assertFalse(idx.contains(keys[1]));
+        assertTrue(idx.contains(keys[0]));
+        assertEquals(1, idx.size());
+    }
+}
@@ -0,0 +1,110 @@
+package freenet.fs.tests;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import junit.framework.TestCase;
+import freenet.fs.dir.Buffer;
+import freenet.fs.dir.FileNumber;
+import freenet.fs.dir.LossyDirectory;
+import freenet.fs.dir.NativeFSDirectory;
+import freenet.support.test.SimpleTestRunner;
+
+/**
+ * Checks that changes made between full index writes survive a restart via
+ * the index journal.
+ */
+public class NativeFSDirectoryJournalTest extends TestCase {
+
+    public static void main(String[] args) {
+        SimpleTestRunner.main(
+            new String[] {NativeFSDirectoryJournalTest.class.getName()});
+    }
+
+    File root = new File("testjournaldir");
+
+    public NativeFSDirectoryJournalTest(String name) {
+        super(name);
+    }
+
+    public void setUp() {
+        wipe(root);
+    }
+
+    public void tearDown() {
+        wipe(root);
+    }
+
+    private static void wipe(File f) {
+        File[] fs = f.listFiles();
+        if (fs != null)
+            for (int i = 0; i < fs.length; i++)
+                wipe(fs[i]);
+        f.delete();
+    }
+
+    private NativeFSDirectory open() throws IOException {
+        return new NativeFSDirectory(root, 10000000, 4096, true, 0.25F, 256);
+    }
+
+    private static FileNumber key(int i) {
+        byte[] k = new byte[23];
+        k[0] = (byte) i;
+        return new FileNumber(k);
+    }
+
+    private static void put(LossyDirectory dir, int i) throws IOException {
+        Buffer b = dir.forceStore(100, key(i));
+        OutputStream out = b.getOutputStream();
+        out.write(new byte[100]);
+        out.close();
+        b.commit();
+        b.release();
+    }
+
+    public void testReplay() throws IOException {
+        NativeFSDirectory nfs = open();
+        LossyDirectory dir = new LossyDirectory(0x0001, nfs);
+        for (int i = 0; i < 5; i++)
+            put(dir, i);
+        nfs.checkpoint();
+        assertTrue(dir.delete(key(2), false));
+        put(dir, 5);
+        nfs.checkpoint();
+        long indexLength = new File(root, "index").length();
+        assertTrue(new File(root, "index.journal").length() > 16);
+
+        // A partial record at the end, as if we crashed while appending
+        OutputStream out =
+            new FileOutputStream(new File(root, "index.journal"), true);
+        out.write(1);
+        out.close();
+
+        nfs = open();
+        dir = new LossyDirectory(0x0001, nfs);
+        for (int i = 0; i < 6; i++)
+            assertEquals("key " + i, i != 2, dir.contains(key(i)));
+        assertEquals(5, nfs.countKeys());
+        // the index was rewritten on startup
+        assertTrue(new File(root, "index").length() > indexLength);
+    }
+
+    public void testStaleJournalIgnored() throws IOException {
+        NativeFSDirectory nfs = open();
+        LossyDirectory dir = new LossyDirectory(0x0001, nfs);
+        put(dir, 1);
+        nfs.checkpoint();
+        File journal = new File(root, "index.journal");
+        File saved = new File(root, "journal.saved");
+        assertTrue(journal.renameTo(saved));
+        // restart: writes a new index and journal with the next serial
+        nfs = open();
+        assertTrue(journal.delete());
+        assertTrue(saved.renameTo(journal));
+        nfs = open();
+        dir = new LossyDirectory(0x0001, nfs);
+        assertTrue(dir.contains(key(1)));
+        assertEquals(1, nfs.countKeys());
+    }
+}
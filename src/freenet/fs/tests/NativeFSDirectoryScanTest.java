@@ -0,0 +1,135 @@
+package freenet.fs.tests;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import junit.framework.TestCase;
+import freenet.fs.dir.Buffer;
+import freenet.fs.dir.FileNumber;
+import freenet.fs.dir.LossyDirectory;
+import freenet.fs.dir.NativeFSDirectory;
+import freenet.support.HexUtil;
+import freenet.support.test.SimpleTestRunner;
+
+/**
+ * Checks that the background scan after starting from the index drops
+ * missing and truncated files and deletes files the index doesn't know.
+ */
+public class NativeFSDirectoryScanTest extends TestCase {
+
+    public static void main(String[] args) {
+        SimpleTestRunner.main(
+            new String[] {NativeFSDirectoryScanTest.class.getName()});
+    }
+
+    File root = new File("testscandir");
+
+    public NativeFSDirectoryScanTest(String name) {
+        super(name);
+    }
+
+    public void setUp() {
+        wipe(root);
+    }
+
+    public void tearDown() {
+        wipe(root);
+    }
+
+    private static void wipe(File f) {
+        File[] fs = f.listFiles();
+        if (fs != null)
+            for (int i = 0; i < fs.length; i++)
+                wipe(fs[i]);
+        f.delete();
+    }
+
+    private NativeFSDirectory open(int threads) throws IOException {
+        return new NativeFSDirectory(
+            root,
+            10000000,
+            4096,
+            true,
+            0.25F,
+            256,
+            threads);
+    }
+
+    private static FileNumber key(int i) {
+        byte[] k = new byte[23];
+        k[0] = (byte) i;
+        return new FileNumber(k);
+    }
+
+    private void put(LossyDirectory dir, int i) throws IOException {
+        Buffer b = dir.forceStore(100, key(i));
+        OutputStream out = b.getOutputStream();
+        out.write(new byte[100]);
+        out.close();
+        b.commit();
+        b.release();
+    }
+
+    private File file(int i) {
+        String name = "1-" + HexUtil.bytesToHex(key(i).getByteArray());
+        for (int d = 0; d < 256; d++) {
+            File f = new File(new File(root, Integer.toHexString(d)), name);
+            if (f.exists())
+                return f;
+        }
+        return null;
+    }
+
+    private static void waitFor(NativeFSDirectory nfs) {
+        for (int i = 0; i < 200 && nfs.startupScanRunning(); i++)
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+            }
+        assertFalse(nfs.startupScanRunning());
+    }
+
+    public void testScan() throws IOException {
+        NativeFSDirectory nfs = open(2);
+        LossyDirectory dir = new LossyDirectory(0x0001, nfs);
+        for (int i = 0; i < 10; i++)
+            put(dir, i);
+        nfs.checkpoint();
+        waitFor(nfs);
+
+        assertTrue(file(3).delete());
+        OutputStream out = new FileOutputStream(file(4));
+        out.write(new byte[10]);
+        out.close();
+        File stray = new File(file(5).getParentFile(), "1-0102030405");
+        out = new FileOutputStream(stray);
+        out.write(1);
+        out.close();
+        File notOurs = new File(file(5).getParentFile(), "README");
+        assertTrue(notOurs.createNewFile());
+        long indexLength = new File(root, "index").length();
+
+        nfs = open(2);
+        dir = new LossyDirectory(0x0001, nfs);
+        // We start from the index without looking at the files. The scan
+        // may already have dropped some keys by now, so wait for it.
+        waitFor(nfs);
+        assertEquals(8, nfs.countKeys());
+        assertFalse(dir.contains(key(3)));
+        assertFalse(dir.contains(key(4)));
+        assertTrue(dir.contains(key(5)));
+        assertEquals(2, nfs.startupScanFilesRemoved());
+        assertEquals(1, nfs.startupScanStrayFiles());
+        assertFalse(stray.exists());
+        assertTrue(notOurs.exists());
+        assertEquals(100, nfs.startupScanProgress());
+        // We carried on with the journal rather than rewriting the index
+        assertEquals(indexLength, new File(root, "index").length());
+
+        nfs.checkpoint();
+        nfs = open(0);
+        assertEquals(8, nfs.countKeys());
+        assertEquals(0, nfs.startupScanFilesRemoved());
+    }
+}
@@ -48,14 +48,9 @@ public class AnnouncementFailed extends NodeMessage {
 
         super(ch, raw);
 
-        String reasonS = otherFields.getString("Reason");
         try {
-            if (reasonS == null) 
-                reason = 0;
-            else {
-                reason = (int) Fields.hexToLong(reasonS);
-                otherFields.remove("Reason");
-            }
+            reason = (int) otherFields.getLong("Reason", 0);
+            otherFields.remove("Reason");
         } catch (NumberFormatException e) {
             reason = 0;
         }
@@ -64,7 +59,7 @@ public class AnnouncementFailed extends NodeMessage {
     public RawMessage toRawMessage(Presentation p, PeerHandler ph) {
         RawMessage raw = super.toRawMessage(p,ph);
         //raw.messageType = messageName;
-        raw.fs.put("Reason",Long.toHexString(reason));
+        raw.fs.put("Reason", (long) reason);
 
         return raw;
     }
@@ -31,14 +31,13 @@ public class DataNotFound extends NodeMessage {
     public DataNotFound(BaseConnectionHandler source, 
                         RawMessage raw) throws InvalidMessageException {
 	super(source, raw);
-        String tsq = otherFields.getString("TimeSinceQuery"); //TODO: rename this field to TimeSinceQuery since that is what it is..
-        if (tsq != null) {
-            otherFields.remove("TimeSinceQuery");
+        if (otherFields.containsKey("TimeSinceQuery")) {
             try {
-                timeOfQuery = 
-                    System.currentTimeMillis() - Fields.hexToLong(tsq);
+                timeOfQuery = System.currentTimeMillis()
+                    - otherFields.getLong("TimeSinceQuery", 0);
             } catch (NumberFormatException e) {
             }
+            otherFields.remove("TimeSinceQuery");
         }
         if (timeOfQuery <= 0) {
             timeOfQuery = System.currentTimeMillis();
@@ -48,7 +47,7 @@ public class DataNotFound extends NodeMessage {
     public RawMessage toRawMessage(Presentation t, PeerHandler ph) {
 	RawMessage raw=super.toRawMessage(t,ph);
         raw.fs.put("TimeSinceQuery", 
-                   Long.toHexString(System.currentTimeMillis() - timeOfQuery));
+                   System.currentTimeMillis() - timeOfQuery);
 	return raw;
     }
     
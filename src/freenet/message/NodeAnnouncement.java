@@ -55,14 +55,12 @@ public class NodeAnnouncement extends NodeMessage implements HTLMessage {
         throws InvalidMessageException {
 
         super(conn, raw);
-        String hopS = otherFields.getString("HopsToLive");
-        String depthS = otherFields.getString("Depth");
         FieldSet afs = otherFields.getSet("Announcee");
         FieldSet sfs = otherFields.getSet("Source");
         String commitS = otherFields.getString("CommitValue");
-        if (hopS == null || hopS.length()==0) {
+        if (!otherFields.hasValue("HopsToLive")) {
             throw new InvalidMessageException("No HopsToLive field.");
-        } else if (depthS == null || depthS.length()==0) {
+        } else if (!otherFields.hasValue("Depth")) {
             throw new InvalidMessageException("No Depth field.");
         } else if (afs == null || afs.isEmpty()) {
             throw new InvalidMessageException("No Announcee!");
@@ -72,8 +70,8 @@ public class NodeAnnouncement extends NodeMessage implements HTLMessage {
             throw new InvalidMessageException("No Commit value");
         } else {
             try {
-                hopsToLive = (int) Fields.hexToLong(hopS);
-                depth = (int) Fields.hexToLong(depthS);
+                hopsToLive = (int) otherFields.getLong("HopsToLive");
+                depth = (int) otherFields.getLong("Depth");
                 announcee = new NodeReference(afs, true);
                 anSource = new NodeReference(sfs, false, 
                                              source.peerIdentity());
@@ -95,8 +93,8 @@ public class NodeAnnouncement extends NodeMessage implements HTLMessage {
     public RawMessage toRawMessage(Presentation p, PeerHandler ph) {
         RawMessage raw = super.toRawMessage(p,ph);
         //raw.messageType = messageName;
-        raw.fs.put("HopsToLive", Long.toHexString(hopsToLive));
-        raw.fs.put("Depth", Long.toHexString(depth));
+        raw.fs.put("HopsToLive", (long) hopsToLive);
+        raw.fs.put("Depth", (long) depth);
         raw.fs.put("Announcee", announcee.getFieldSet());
         raw.fs.put("CommitValue", HexUtil.bytesToHex(commitVal));
         raw.fs.put("Source", anSource.getFieldSet(false));
@@ -100,10 +100,9 @@ public abstract class NodeMessage extends Message {
     
     private static long readId(FieldSet fs) throws InvalidMessageException {
         try {
-            String ids = fs.getString("UniqueID");
-            if (ids == null)
+            if (!fs.hasValue("UniqueID"))
                 throw new InvalidMessageException("no UniqueID field");
-            long id = Fields.hexToLong(ids);
+            long id = fs.getLong("UniqueID");
             if (((id>>>32) & 0xffffffffL) == (id & 0xffffffffL)) {
                 throw new InvalidMessageException("Read heisenbug UniqueID: "
                                 + Long.toHexString(id) + ". killed chain");
@@ -124,7 +123,7 @@ public abstract class NodeMessage extends Message {
     public RawMessage toRawMessage(Presentation t, PeerHandler ph) {
         boolean logDEBUG = Core.logger.shouldLog(Logger.DEBUG, this);
         RawMessage r = super.toRawMessage(t,ph);
-        r.fs.put("UniqueID", Long.toHexString(id));
+        r.fs.put("UniqueID", id);
         
         // do heisenbug testing
         if(((id >>> 32) & 0xffffffffL) == (id & 0xffffffffL)) {
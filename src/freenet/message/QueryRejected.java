@@ -45,11 +45,10 @@ public class QueryRejected extends NodeMessage implements HTLMessage {
         // i.e. Anytime we make one from the wire.
         Core.diagnostics.occurrenceCounting("inboundQueryRejecteds", 1);
 
-		String hopsString = otherFields.getString("HopsToLive");
-		if (hopsString == null || hopsString.length()==0)
+		if (!otherFields.hasValue("HopsToLive"))
 	    throw new InvalidMessageException("Can't find Hops To Live field");
 	try {
-	    hopsToLive = Fields.hexToLong(hopsString);
+	    hopsToLive = otherFields.getLong("HopsToLive");
 	} catch (NumberFormatException e) {
 	    throw new InvalidMessageException("Failed to read number " + e);
 	}
@@ -58,14 +57,11 @@ public class QueryRejected extends NodeMessage implements HTLMessage {
         //          required version number is bumped.
         // Backwards compatible.
         attenuation = 0;
-		String attenuationString = otherFields.getString("Attenuation");
-	if (attenuationString != null) {
             try {
-                attenuation = Fields.hexToLong(attenuationString);
+                attenuation = otherFields.getLong("Attenuation", 0);
             } catch (NumberFormatException e) {
                 throw new InvalidMessageException("Failed to read number " + e);
             }
-        }
 
 		reason = otherFields.getString("Reason");
         otherFields.remove("HopsToLive");
@@ -100,8 +96,8 @@ public class QueryRejected extends NodeMessage implements HTLMessage {
 
     public RawMessage toRawMessage(Presentation t, PeerHandler ph) {
 	RawMessage raw=super.toRawMessage(t,ph);
-	raw.fs.put("HopsToLive", Long.toHexString(hopsToLive));
-	raw.fs.put("Attenuation", Long.toHexString(attenuation));
+	raw.fs.put("HopsToLive", hopsToLive);
+	raw.fs.put("Attenuation", attenuation);
         if (reason != null)
             raw.fs.put("Reason",reason);
 	return raw;
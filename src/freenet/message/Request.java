@@ -37,14 +37,13 @@ public abstract class Request extends NodeMessage implements HTLMessage {
     public Request(BaseConnectionHandler source, RawMessage raw) throws InvalidMessageException {
         super(source, raw);
 		String keyString = otherFields.getString("SearchKey");
-		String hopsString = otherFields.getString("HopsToLive");
-		if (hopsString == null || hopsString.length()==0)
+		if (!otherFields.hasValue("HopsToLive"))
             throw new InvalidMessageException("Can't find HopsToLive field");
 		if (keyString == null || keyString.length()==0)
             throw new InvalidMessageException("Can't find SearchKey field");
         try {
             searchKey     = Key.readKey(keyString);
-            hopsToLive    = Fields.hexToInt(hopsString);
+            hopsToLive    = (int) otherFields.getLong("HopsToLive");
             // there is no reason to verify this.
 			requestSource = source.peerIdentity();
 			if(requestSource == null)
@@ -62,7 +61,7 @@ public abstract class Request extends NodeMessage implements HTLMessage {
     public RawMessage toRawMessage(Presentation t, PeerHandler ph) {
         RawMessage raw=super.toRawMessage(t,ph);
         raw.fs.put("SearchKey", searchKey.toString());
-        raw.fs.put("HopsToLive", Long.toHexString(hopsToLive));
+        raw.fs.put("HopsToLive", (long) hopsToLive);
         return raw;
     }
     
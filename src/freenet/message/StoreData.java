@@ -53,20 +53,13 @@ public class StoreData extends NodeMessage {
                           null : 
                           new NodeReference(dsource));
             
-            requestsPerHour = -1;
-            String rateAsString = otherFields.getString("RequestRate");
-            if (rateAsString != null) {
-                requestsPerHour = Fields.hexToLong(rateAsString);
-            }
-
-            String hopsAsString = otherFields.getString("HopsSinceReset");
-	    if(hopsAsString != null) {
-		try {
-		    hopsSinceReset = Fields.hexToInt(hopsAsString);
-		} catch (NumberFormatException e) {
-		    hopsSinceReset = 0;
-		}
-	    } else hopsSinceReset = 0;
+            requestsPerHour = otherFields.getLong("RequestRate", -1);
+
+	    try {
+		hopsSinceReset = (int) otherFields.getLong("HopsSinceReset", 0);
+	    } catch (NumberFormatException e) {
+		hopsSinceReset = 0;
+	    }
 	    
 	    otherFields.remove("HopsSinceReset");
             otherFields.remove("DataSource");
@@ -86,9 +79,9 @@ public class StoreData extends NodeMessage {
             raw.fs.put("DataSource", dataSource.getFieldSet());
         }
         if (requestsPerHour != -1) {
-            raw.fs.put("RequestRate", Long.toHexString(requestsPerHour));
+            raw.fs.put("RequestRate", requestsPerHour);
         }
-	raw.fs.put("HopsSinceReset", Integer.toHexString(hopsSinceReset));
+	raw.fs.put("HopsSinceReset", hopsSinceReset & 0xffffffffL);
 	return raw;
     }
     
@@ -37,6 +37,7 @@ import freenet.BadAddressException;
 import freenet.ContactCounter;
 import freenet.Core;
 import freenet.DSAAuthentity;
+import freenet.DSAIdentity;
 import freenet.FieldSet;
 import freenet.Identity;
 import freenet.KeepaliveSender;
@@ -52,6 +53,7 @@ import freenet.TransportHandler;
 import freenet.Version;
 import freenet.client.BackgroundInserter;
 import freenet.client.FECTools;
+import freenet.client.RequestConcurrency;
 import freenet.client.http.FproxyServlet;
 import freenet.config.Config;
 import freenet.config.Params;
@@ -69,7 +71,10 @@ import freenet.diagnostics.StandardDiagnostics;
 import freenet.fs.dir.Buffer;
 import freenet.fs.dir.Directory;
 import freenet.fs.dir.FileNumber;
+import freenet.fs.dir.KeyIndexedDirectory;
+import freenet.fs.dir.LogStructuredDirectory;
 import freenet.fs.dir.LossyDirectory;
+import freenet.fs.dir.MappedKeyIndex;
 import freenet.fs.dir.NativeFSDirectory;
 import freenet.interfaces.ConnectionRunner;
 import freenet.interfaces.FreenetConnectionRunner;
@@ -157,11 +162,13 @@ import freenet.support.io.WriteOutputStream;
 import freenet.thread.FastThreadFactory;
 import freenet.thread.QThreadFactory;
 import freenet.thread.ThreadFactory;
+import freenet.thread.WThreadFactory;
 import freenet.thread.YThreadFactory;
 import freenet.transport.ReadSelectorLoop;
 import freenet.transport.TCP;
 import freenet.transport.VoidAddress;
 import freenet.transport.WriteSelectorLoop;
+import freenet.transport.WriteSelectorLoopGroup;
 import freenet.transport.tcpAddress;
 import freenet.transport.tcpConnection;
 import freenet.transport.tcpTransport;
@@ -231,6 +238,8 @@ public class Main {
 
     private static LossyDirectory dsDir = null;
 
+    private static MappedKeyIndex keyIndex = null;
+
     private static NodeConfigUpdater configUpdater = null;
 
     private static FnpLinkManager FNPmgr = null;
@@ -481,6 +490,8 @@ public class Main {
             // need for initDiagnostics
             Node.tfTolerableQueueDelay = params.getInt("tfTolerableQueueDelay");
             Node.tfAbsoluteMaxThreads = params.getInt("tfAbsoluteMaxThreads");
+            Node.clientThreads = params.getInt("clientThreads");
+            Node.clientThreadStackSize = params.getInt("clientThreadStackSize");
 
             // Backward compatible defaults.
             if (Node.maxThreads <= 0) {
@@ -535,7 +546,7 @@ public class Main {
             tcp = new TCP(100, strictAddresses);
 
             th.register(tcp);
-            FNPmgr = new FnpLinkManager(negotiationLimit);
+            FNPmgr = new FnpLinkManager(negotiationLimit, Node.maxLinks);
             sh.register(FNPmgr, 100);
             // Mux is mandatory
             //			ph.register(new FreenetProtocol(), 100);
@@ -608,17 +619,33 @@ public class Main {
             Core.logger.log(Main.class, "starting filesystem", Logger.NORMAL);
 
             Node.storeType = params.getString("storeType");
-            Directory dir = newDir = new NativeFSDirectory(Node.storeFiles[0],
-                    Node.storeSize, Node.storeBlockSize, Node.useDSIndex,
-                    Node.storeMaxTempFraction, Node.maxNodeFilesOpen);
+            Directory dir;
+            if ("log".equalsIgnoreCase(Node.storeType)) {
+                dir = new LogStructuredDirectory(Node.storeFiles[0],
+                        Node.storeSize, Node.storeSegmentSize,
+                        Node.storeCompactThreshold, Node.maxNodeFilesOpen);
+            } else {
+                dir = newDir = new NativeFSDirectory(Node.storeFiles[0],
+                        Node.storeSize, Node.storeBlockSize, Node.useDSIndex,
+                        Node.storeMaxTempFraction, Node.maxNodeFilesOpen,
+                        Node.storeScanThreads);
+            }
 
             Node.storeFiles = new File[] { Node.storeFiles[0]};
 
             // load DS
             Core.logger.log(Main.class, "loading data store", Logger.NORMAL);
 
-            dsDir = new LossyDirectory(0x0001, dir);
-            DataStore ds = new FSDataStore(dsDir, Node.storeSize / 100);
+            Directory indexedDir = dir;
+            if (Node.storeKeyIndex) {
+                Core.logger.log(Main.class, "loading key index", Logger.NORMAL);
+                keyIndex = new MappedKeyIndex(new File(Node.storeFiles[0],
+                        "keyindex"), Key.KEYBYTES);
+                indexedDir = new KeyIndexedDirectory(dir, 0x0001, keyIndex);
+            }
+            dsDir = new LossyDirectory(0x0001, indexedDir);
+            DataStore ds = new FSDataStore(dsDir, Node.storeSize / 100,
+                    keyIndex);
 
             // rename old RT files
             Core.logger.log(Main.class, "Renaming old routing table files",
@@ -1040,7 +1067,8 @@ public class Main {
         try {
             int cacheSize = params.getInt("FECInstanceCacheSize");
             // Worst case memory high water mark is
-            // 24MB * maxCodecs. Don't make it too big.
+            // 24MB * maxCodecs, where 0 (the default) is one per CPU.
+            // Don't make it too big.
             int maxCodecs = params.getInt("FECMaxConcurrentCodecs");
             Node.fecTools = new FECTools(params, node.bf, cacheSize, maxCodecs);
         } catch (Exception e) {
@@ -1052,6 +1080,8 @@ public class Main {
         if (logDEBUG)
                 Core.logger.log(Main.class, "Initialized FEC", Logger.DEBUG);
 
+        RequestConcurrency.setGlobalLimit(params.getInt("splitFileMaxRequests"));
+
         // Must create it for stuff in mainport dependant on it
         configUpdater = new NodeConfigUpdater(Node.configUpdateInterval);
 
@@ -1070,6 +1100,11 @@ public class Main {
         if (origRT instanceof NGRoutingTable)
 			new Checkpoint(((NGRoutingTable) origRT).getCheckpointed()).schedule(node);
 
+        // Read back the saved session keys before connecting to anyone
+        if (Node.saveLinks && node.identity instanceof DSAIdentity)
+            new Checkpoint(FNPmgr.getCheckpointed(Node.routingDir,
+                    (DSAIdentity) node.identity)).schedule(node);
+
         // schedule initial connection opening
         node.scheduleOpenAllConnections();
 
@@ -1121,8 +1156,11 @@ public class Main {
         //							node);
         new Checkpoint(loadStats).schedule(node);
         if (ipDetector != null) new Checkpoint(ipDetector).schedule(node);
-        if (Node.useDSIndex)
+        if (dir instanceof LogStructuredDirectory)
+                new Checkpoint((LogStructuredDirectory) dir).schedule(node);
+        else if (Node.useDSIndex)
                 new Checkpoint((NativeFSDirectory) dir).schedule(node);
+        if (keyIndex != null) new Checkpoint(keyIndex).schedule(node);
 
         // schedule announcements
         if (params.getBoolean("doAnnounce")) {
@@ -1149,88 +1187,102 @@ public class Main {
 				Main.class,
 				"Seeding Routing Table: " + n.size() + " nodes",
 				Logger.DEBUG);
-		for(int i=0;i<Node.rtMaxNodes;i++) {
-		    if(n.size() == 0) break;
-			int x = Core.getRandSource().nextInt(n.size());
-			if (x < 0) x = -x;
-			String s = (String)n.get(x);
-			n.remove(x);
-			// Now turn it into a FieldSet
-			// FIXME: GROSS HACK!
-			// No idea how to avoid it though.
-			// ReadInputStream's schizophrenia is a real pain here.
-			// The only way to avoid it is to parse all the seednodes
-			// up front, and that requires gobs of memory.
-			// FIXME: WILL NOT WORK IF SEEDNODES ARE EVER BINARY!
-			Core.logger.log(Main.class, "s = \n"+s, Logger.DEBUG);
-			byte[] buf;
-            try {
-                buf = s.getBytes("UTF-8");
-            } catch (UnsupportedEncodingException e1) {
-                Core.logger.log(Main.class, "WTF?: "+e1, e1, Logger.ERROR);
-                break;
-            }
-            ByteArrayInputStream bais = new ByteArrayInputStream(buf);
-			ReadInputStream ris = new ReadInputStream(bais);
-			FieldSet fs;
-			try {
-			    fs = new FieldSet(ris);
-			} catch (IOException e) {
-			    Core.logger.log(Main.class, "Skipped reference - truncated: "+e+":\n" +s,
-			            Logger.NORMAL);
-			    continue;
+		int i = 0;
+		while (i < Node.rtMaxNodes && n.size() > 0) {
+			// Parse a batch first, so that their signatures can be checked
+			// in parallel
+			Vector batch = new Vector();
+			Vector estimators = new Vector();
+			for (; i < Node.rtMaxNodes && batch.size() < SEED_BATCH; i++) {
+				if(n.size() == 0) break;
+				int x = Core.getRandSource().nextInt(n.size());
+				if (x < 0) x = -x;
+				String s = (String)n.get(x);
+				n.remove(x);
+				// Now turn it into a FieldSet
+				// FIXME: GROSS HACK!
+				// No idea how to avoid it though.
+				// ReadInputStream's schizophrenia is a real pain here.
+				// The only way to avoid it is to parse all the seednodes
+				// up front, and that requires gobs of memory.
+				// FIXME: WILL NOT WORK IF SEEDNODES ARE EVER BINARY!
+				Core.logger.log(Main.class, "s = \n"+s, Logger.DEBUG);
+				byte[] buf;
+				try {
+					buf = s.getBytes("UTF-8");
+				} catch (UnsupportedEncodingException e1) {
+					Core.logger.log(Main.class, "WTF?: "+e1, e1, Logger.ERROR);
+					return;
+				}
+				ByteArrayInputStream bais = new ByteArrayInputStream(buf);
+				ReadInputStream ris = new ReadInputStream(bais);
+				FieldSet fs;
+				try {
+					fs = new FieldSet(ris);
+				} catch (IOException e) {
+					Core.logger.log(Main.class, "Skipped reference - truncated: "+e+":\n" +s,
+							Logger.NORMAL);
+					continue;
+				}
+				Core.logger.log(Main.class, "fs = \n"+fs, Logger.DEBUG);
+				// If there an estimator fieldset then remove it.
+				FieldSet estimator = fs.getSet("Estimator");
+				if (estimator != null) {
+					fs.remove("Estimator");
+				}
+				batch.addElement(fs);
+				estimators.addElement(estimator);
 			}
-			Core.logger.log(Main.class, "fs = \n"+fs, Logger.DEBUG);
-            // If there an estimator fieldset then remove it.
-            FieldSet estimator = fs.getSet("Estimator");
-            if (estimator != null) {
-                fs.remove("Estimator");
-            }
-            
-            NodeReference ref;
-            try {
-                ref = new NodeReference(fs);
-            } catch (BadReferenceException e) {
-                Core.logger.log(Main.class,
-                                "Skipped bad NodeReference while reading seed nodes",
-                                e, Logger.ERROR);
-                continue;
-            }
-			Core.logger.log(Main.class, "ref = \n"+ref, Logger.DEBUG);
-            if (ref.noPhysical()) {
-                Core.logger.log(Main.class,
-                        "Skipping NodeReference with no physical address in seednodes!: "
-                                + ref, Logger.ERROR);
-                continue;
-            }
-            if(ref.badVersion()) {
-                Core.logger.log(Main.class,
-                        "Skipping too old node reference: "+ref,
-                        Logger.MINOR);
-            }
-			if(logDEBUG) Core.logger.log(Main.class, "Node " + ref, Logger.DEBUG);
-			if (force || !rt.references(ref.getIdentity())) {
-				if(logDEBUG) Core.logger.log(Main.class, "Doing node " + ref, Logger.DEBUG);
-				int r = Core.getRandSource().nextInt();
-				int c = ref.hashCode();
-				byte[] k = new byte[18];
-				for (int j = 0; j < 16; ++j)
-					k[j] =
-						(byte) (0xff
-							& (r >> (8 * (j / 4)) ^ c >> (8 * (j % 4))));
-				if (logDEBUG) {
+			FieldSet[] refs = new FieldSet[batch.size()];
+			batch.copyInto(refs);
+			NodeReference.preverify(refs);
+			for (int b = 0; b < refs.length; b++) {
+				FieldSet estimator = (FieldSet) estimators.elementAt(b);
+				NodeReference ref;
+				try {
+					ref = new NodeReference(refs[b]);
+				} catch (BadReferenceException e) {
+					Core.logger.log(Main.class,
+							"Skipped bad NodeReference while reading seed nodes",
+							e, Logger.ERROR);
+					continue;
+				}
+				Core.logger.log(Main.class, "ref = \n"+ref, Logger.DEBUG);
+				if (ref.noPhysical()) {
+					Core.logger.log(Main.class,
+							"Skipping NodeReference with no physical address in seednodes!: "
+									+ ref, Logger.ERROR);
+					continue;
+				}
+				if(ref.badVersion()) {
 					Core.logger.log(Main.class,
-						"Referencing node " + ref + " to key " + k,
-						Logger.MINOR);
+							"Skipping too old node reference: "+ref,
+							Logger.MINOR);
 				}
-				if (gentle) {
-					if (rt.wantUnkeyedReference(ref))
-					    rt.reference(new Key(k), ref.getIdentity(), ref, estimator);
-				} else {
-				    rt.reference(new Key(k), ref.getIdentity(), ref, estimator);
+				if(logDEBUG) Core.logger.log(Main.class, "Node " + ref, Logger.DEBUG);
+				if (force || !rt.references(ref.getIdentity())) {
+					if(logDEBUG) Core.logger.log(Main.class, "Doing node " + ref, Logger.DEBUG);
+					int r = Core.getRandSource().nextInt();
+					int c = ref.hashCode();
+					byte[] k = new byte[18];
+					for (int j = 0; j < 16; ++j)
+						k[j] =
+							(byte) (0xff
+								& (r >> (8 * (j / 4)) ^ c >> (8 * (j % 4))));
+					if (logDEBUG) {
+						Core.logger.log(Main.class,
+							"Referencing node " + ref + " to key " + k,
+							Logger.MINOR);
+					}
+					if (gentle) {
+						if (rt.wantUnkeyedReference(ref))
+							rt.reference(new Key(k), ref.getIdentity(), ref, estimator);
+					} else {
+						rt.reference(new Key(k), ref.getIdentity(), ref, estimator);
+					}
+				} else if (rt.references(ref.getIdentity())) {
+					rt.reference(null, ref.getIdentity(), ref, estimator);
 				}
-			} else if (rt.references(ref.getIdentity())) {
-				rt.reference(null, ref.getIdentity(), ref, estimator);
 			}
 		}
     }
@@ -1303,8 +1355,14 @@ public class Main {
                 tempName = params.getString("FECTempDir");
 
         if (params.getBoolean("tempInStore")) {
-            Core.logger.log(Main.class, "Activating tempInStore", Logger.DEBUG);
-            TempBucketFactory.setHook(new NativeFSTempBucketHook());
+            if (newDir == null) {
+                Core.logger.log(Main.class,
+                        "tempInStore is only supported by the native store, ignoring",
+                        Logger.NORMAL);
+            } else {
+                Core.logger.log(Main.class, "Activating tempInStore", Logger.DEBUG);
+                TempBucketFactory.setHook(new NativeFSTempBucketHook());
+            }
         }
 
         if (tempName == null || tempName.length() == 0) {
@@ -1355,6 +1413,9 @@ public class Main {
         if (Node.storeBlockSize >= 128) // sanity check
                 TempBucketFactory.defaultIncrement = Node.storeBlockSize;
 
+        TempBucketFactory.setRAMLimits(params.getLong("tempRAMBudget"),
+                params.getLong("tempRAMBucketSize"));
+
         return bf;
     }
 
@@ -1572,7 +1633,7 @@ public class Main {
 
         tcpConnection.startSelectorLoops(Core.logger, Core.diagnostics,
                 new MainLoadBooleanCallback(), Node.logInputBytes,
-                Node.logOutputBytes);
+                Node.logOutputBytes, Node.selectorLoops);
 
         ThreadGroup tg = new ThreadGroup(node.toString());
         tg.setMaxPriority(Thread.NORM_PRIORITY);
@@ -1584,12 +1645,29 @@ public class Main {
             tf = new FastThreadFactory(tg, Node.maxThreads);
         } else if (Node.threadFactoryName.equals("Q")) {
             tf = new QThreadFactory(tg, Node.targetMaxThreads);
+        } else if (Node.threadFactoryName.equals("W")) {
+            tf = new WThreadFactory(tg, Math.min(Node.targetMaxThreads,
+                    Node.tfAbsoluteMaxThreads), "WThread-");
         }
 
         // Keep a hold of the the ThreadFactory so that we can use
         // it for rate limiting in Node.acceptRequest().
         Node.threadFactory = tf;
 
+        // Client requests block their thread for their whole life, so
+        // optionally give them their own pool of small threads rather than
+        // tying up the node's.
+        ThreadFactory clientTf = tf;
+        int clientLow = Node.maxThreads / 5;
+        int clientHigh = Node.maxThreads / 3;
+        if (Node.clientThreads > 0) {
+            ThreadGroup ctg = new ThreadGroup(tg, "Client threads");
+            clientTf = new WThreadFactory(ctg, Node.clientThreads,
+                    "ClientThread-", Node.clientThreadStackSize * 1024L, true);
+            clientLow = Node.clientThreads * 3 / 4;
+            clientHigh = Node.clientThreads;
+        }
+
         int maxConn = Node.maxNodeConnections;
 
         if (Node.isWin95)
@@ -1720,8 +1798,8 @@ public class Main {
         ListeningAddress la = ltcp.getListeningAddress(""
                 + params.getInt("clientPort"), Node.dontLimitClients);
 
-        iv.addElement(new LocalNIOInterface(la, tf, fcp, fcpHosts, -1, -1,
-                "FCP"));
+        iv.addElement(new LocalNIOInterface(la, clientTf, fcp, fcpHosts,
+                clientLow, clientHigh, "FCP"));
 
         // Test HTTP interface
         //         try {
@@ -1762,9 +1840,9 @@ public class Main {
                                 + fs.toString(), Logger.DEBUG);
                     }
                     Service svc = loadService(fs, services[i]);
-                    iv.addElement(LocalNIOInterface.make(fs, tf, svc,
-                            Node.dontLimitClients, Node.maxThreads / 5,
-                            Node.maxThreads / 3, services[i]));
+                    iv.addElement(LocalNIOInterface.make(fs, clientTf, svc,
+                            Node.dontLimitClients, clientLow, clientHigh,
+                            services[i]));
                     // FIXME: totally arbitrary limits
                 }
                 //catch (Exception e) {
@@ -1877,6 +1955,9 @@ public class Main {
         DiagnosticsCategory routing = d.addCategory("Routing",
                 "Data specifically regarding routing", messages);
 
+        DiagnosticsCategory datastore = d.addCategory("Datastore",
+                "Data regarding the datastore and its index", null);
+
         DiagnosticsCategory transport = null;
 
         if (Node.logOutputBytes || Node.logInputBytes)
@@ -1945,6 +2026,15 @@ public class Main {
         d.registerContinuous("connectionLifeTime", Diagnostics.HOUR,
                 "The amount of time that connections stay open." + " In ms.",
                 connections);
+        d.registerCounting("bufferPoolLeases", Diagnostics.MINUTE,
+                "The number of read buffers leased from the shared pool.",
+                connections);
+        d.registerCounting("bufferPoolAllocations", Diagnostics.MINUTE,
+                "The number of new direct buffers the shared pool had to "
+                        + "allocate to satisfy a lease.", connections);
+        d.registerContinuous("bufferPoolBytesInUse", Diagnostics.MINUTE,
+                "The bytes of pooled direct buffers leased out, "
+                        + "sampled on each lease.", connections);
         d.registerBinomial("connectionTimedout", Diagnostics.MINUTE,
                 "The number of connections closed when "
                         + "we timed them out. Success marks waiting "
@@ -1981,6 +2071,22 @@ public class Main {
         d.registerContinuous("authorizeTime", Diagnostics.MINUTE,
                 "The amount of time it takes to authorize new "
                         + "connections. In ms.", outConn);
+        d.registerCounting("linkHandshakes", Diagnostics.MINUTE,
+                "The number of inbound and outbound connections "
+                        + "authorized, by restart or full negotiation.",
+                outConn);
+        d.registerContinuous("fullHandshakeTime", Diagnostics.MINUTE,
+                "The amount of time it takes to authorize a "
+                        + "connection by negotiating a new session key. "
+                        + "In ms.", outConn);
+        d.registerContinuous("resumedHandshakeTime", Diagnostics.MINUTE,
+                "The amount of time it takes to authorize a "
+                        + "connection by restarting an existing session "
+                        + "key. In ms.", outConn);
+        d.registerContinuous("dhParamsWaitTime", Diagnostics.MINUTE,
+                "The amount of time a negotiation waits for "
+                        + "precalculated Diffie-Hellman parameters. In ms.",
+                outConn);
         d.registerBinomial("connectionRatio", Diagnostics.MINUTE,
                 "The success rate of new outbound connections.", outConn);
         d.registerBinomial("outboundRestartRatio", Diagnostics.MINUTE,
@@ -2223,6 +2329,31 @@ public class Main {
                 "The amount of time taken to actually create the "
                         + "route object from the routing table.", routing);
 
+        d.registerCounting("routeCacheHits", Diagnostics.MINUTE,
+                "The number of routes made from the node estimates of an "
+                        + "earlier request for the same key.", routing);
+
+        d.registerCounting("routeCacheMisses", Diagnostics.MINUTE,
+                "The number of routes that estimated every node and were "
+                        + "remembered for later requests.", routing);
+
+        d.registerCounting("routeCacheTimeSaved", Diagnostics.MINUTE,
+                "Microseconds of CPU time not spent estimating nodes because "
+                        + "of routeCacheHits, going by the average miss.",
+                routing);
+        d.registerCounting("signatureCacheHits", Diagnostics.MINUTE,
+                "The number of DSA signature checks answered from "
+                        + "the cache of recent results.", routing);
+        d.registerCounting("signatureCacheMisses", Diagnostics.MINUTE,
+                "The number of DSA signature checks that were not "
+                        + "in the cache and had to be computed.", routing);
+        d.registerCounting("signPoolHits", Diagnostics.MINUTE,
+                "The number of DSA signatures made with values "
+                        + "precalculated in the background.", client);
+        d.registerCounting("signPoolMisses", Diagnostics.MINUTE,
+                "The number of DSA signatures made while the "
+                        + "precalculated values had run out.", client);
+
         d.registerContinuous("stillInSendOnTime", Diagnostics.MINUTE,
                 "The time to get route from the route object.", routing);
 
@@ -2714,12 +2845,57 @@ public class Main {
                             "The queueDelay for each job executed by any YThread.  An occurrence is registered each time a YThread executes job.run().",
                             threading);
         }
+        if (Node.threadFactoryName.equals("W") || Node.clientThreads > 0) {
+            d.registerContinuous("jobQueueDelayAllWThreads",
+                    Diagnostics.MINUTE,
+                    "The time in milliseconds each job executed by a WThread "
+                            + "spent queued.", threading);
+            d.registerCounting("jobsStolenByWThreads", Diagnostics.MINUTE,
+                    "The number of jobs a WThread took from another "
+                            + "WThread's queue.", threading);
+            d.registerCounting("jobsRunByWThreadCaller", Diagnostics.MINUTE,
+                    "The number of jobs run by the thread that started them "
+                            + "because every WThread queue was full. "
+                            + "Non-zero means the node is saturated.",
+                    threading);
+            d.registerCounting("jobsRunOnWThreadOverflow", Diagnostics.MINUTE,
+                    "The number of client jobs given a thread outside the "
+                            + "pool because every client thread was busy.",
+                    threading);
+        }
+
+        // datastore
+        d.registerContinuous("storeIndexLockTime", Diagnostics.MINUTE,
+                "The time, in milliseconds, spent waiting for and "
+                        + "holding the datastore's key table lock while "
+                        + "copying it for an index snapshot.",
+                datastore);
+        d.registerCounting("storeIndexJournalRecords", Diagnostics.MINUTE,
+                "The number of records appended to the datastore index "
+                        + "journal.", datastore);
+        d.registerCounting("storeIndexSnapshots", Diagnostics.HOUR,
+                "The number of times the whole datastore index was "
+                        + "rewritten to compact the journal.", datastore);
 
         d.registerBinomial("segmentSuccessRatio", Diagnostics.HOUR,
                 "The proportion of segments downloaded that " + "succeed.",
                 client);
         d.registerContinuous("fproxyRequestTime", Diagnostics.MINUTE,
                 "The time taken for FProxy requests to finish", client);
+        d.registerContinuous("splitFileRequestsRunning", Diagnostics.MINUTE,
+                "The number of block requests running for all splitfile "
+                        + "downloads, each time one is started.", client);
+        d.registerContinuous("splitFileRequestLimit", Diagnostics.MINUTE,
+                "The number of block requests a splitfile download may "
+                        + "run at once, each time one finishes.", client);
+        d.registerBinomial("tempBucketPoolHitRatio", Diagnostics.MINUTE,
+                "The proportion of memory chunks for temp buckets that were "
+                        + "reused from the pool rather than newly allocated.",
+                client);
+        d.registerCounting("tempBucketSpills", Diagnostics.MINUTE,
+                "The number of temp buckets moved from memory to disk, "
+                        + "because they grew too big or the memory budget "
+                        + "ran out.", client);
 
         Core.autoPoll = new AutoPoll(d, logger);
         Core.diagnostics = d;
@@ -2844,6 +3020,9 @@ public class Main {
 
     private static int SEEDNODES_READING_BUFFERSIZE = 1024 * 1024;
 
+    /** How many seed node references to check the signatures of at once */
+    private static final int SEED_BATCH = 64;
+
     /**
      * @param key
      * @param ref
@@ -3227,6 +3406,9 @@ public class Main {
             if (tcpConnection.getWSL() instanceof WriteSelectorLoop)
                 status += ((WriteSelectorLoop) tcpConnection.getWSL())
                         .uniquenessLength();
+            else if (tcpConnection.getWSL() instanceof WriteSelectorLoopGroup)
+                status += ((WriteSelectorLoopGroup) tcpConnection.getWSL())
+                        .uniquenessLength();
             else
                 status += "n/a";
             status += "\nOCM.countConnections(): "
@@ -3242,16 +3424,20 @@ public class Main {
                     + "\nFnpLinkManager.activePeers: "
                     + FNPmgr.countActivePeers()
                     + "\ntcpConnection.bufferPool: "
-                    + tcpConnection.bufferPoolSize()
+                    + tcpConnection.bufferPool()
                     + "\nReceiving transfers:\n"
                     + node.connections.dumpTransfers()
-                    + "\nNativeFSDir open files: " + newDir.totalOpenFiles()
-                    + "\nRandomAccessFilePool: "
-                    + newDir.rafpool.totalOpenFiles() + "/"
-                    + newDir.rafpool.maxOpenFiles() + "\n";
+                    + (newDir == null ? "" : "\nNativeFSDir open files: "
+                            + newDir.totalOpenFiles()
+                            + "\nRandomAccessFilePool: "
+                            + newDir.rafpool.totalOpenFiles() + "/"
+                            + newDir.rafpool.maxOpenFiles()) + "\n";
             if (tcpConnection.getWSL() instanceof WriteSelectorLoop)
                 status += ((WriteSelectorLoop) tcpConnection.getWSL())
                         .analyzeUniqueness();
+            else if (tcpConnection.getWSL() instanceof WriteSelectorLoopGroup)
+                status += ((WriteSelectorLoopGroup) tcpConnection.getWSL())
+                        .analyzeUniqueness();
             else
                 status += "n/a";
             status += "\n\n" + node.routingResultsByBackoffCount();
@@ -38,6 +38,7 @@ import freenet.client.ClientFactory;
 import freenet.client.FECTools;
 import freenet.client.InternalClient;
 import freenet.config.Config;
+import freenet.crypt.DSAVerifier;
 import freenet.config.Params;
 import freenet.config.RandomPortOption;
 import freenet.diagnostics.Diagnostics;
@@ -186,6 +187,8 @@ public class Node extends Core implements ConnectionThrottler{
 		// rtMaxNodes later down because of OS detection
 
 		config.addOption("maxRoutingSteps", 1, 200, 1303); // to 10 refs
+		config.addOption("routeCacheSize", 1, 128, 1306);
+		config.addOption("routeCacheStaleness", 1, 1000L, 1307); // 1 second
 
 		config.addOption("messageStoreSize", 1, 10000, 1350);
 		// 10000 live chains
@@ -221,6 +224,10 @@ public class Node extends Core implements ConnectionThrottler{
 		config.addOption("averageInputBandwidthLimit", 1, 0, 1204); // disabled
 		config.addOption("averageOutputBandwidthLimit", 1, 0, 1205);
 		// disabled
+		config.addOption("selectorLoops", 1, 1, 1206);
+		config.addOption("maxLinks", 1, 1000, 1207);
+		config.addOption("saveLinks", 1, true, 1208);
+		config.addOption("signatureCacheSize", 1, 4096, 1209);
 
 		sysName = sysName.toLowerCase();
 		if (sysName.startsWith("windows")) {
@@ -281,11 +288,15 @@ public class Node extends Core implements ConnectionThrottler{
 		// header) * 100)
 		config.addOption("storeBlockSize", 1, 4096, 1011);
 		config.addOption("storeMaxTempFraction", 1, (1F / 3F), 1012);
+		config.addOption("storeSegmentSize", 1, 64L*1024L*1024L, 1013, true);
+		config.addOption("storeCompactThreshold", 1, 0.5F, 1014);
 		config.addOption("storeCipherName", 1, "Twofish", 1020);
 		// Twofish cipher
 		config.addOption("storeCipherWidth", 1, 128, 1021); // 128 bits
 		config.addOption("routingDir", 1, "", 1022);
 		config.addOption("useDSIndex", 1, true, 1023);
+		config.addOption("storeKeyIndex", 1, true, 1024);
+		config.addOption("storeScanThreads", 1, 4, 1025);
 
 		// network settings
 		config.addOption("ipAddress", 1, "", 100); // autodetected if not set
@@ -397,7 +408,8 @@ public class Node extends Core implements ConnectionThrottler{
 		// Forward Error Correction (FEC) options
 		config.addOption("FECTempDir", 1, "", 3600);
 		config.addOption("FECInstanceCacheSize", 1, 1, 3610);
-		config.addOption("FECMaxConcurrentCodecs", 1, 1, 3612);
+		config.addOption("FECMaxConcurrentCodecs", 1, 0, 3612);
+		config.addOption("splitFileMaxRequests", 1, 64, 3614);
 
 		// Default FEC encoder and decoder implementations.
 		config.addOption("FEC.Encoders.0.class", 1, "OnionFECEncoder", 3620);
@@ -406,6 +418,8 @@ public class Node extends Core implements ConnectionThrottler{
 		// Default temp dir for FEC and fproxy if theirs aren't specified
 		config.addOption("tempDir", 1, "", 3640);
 		config.addOption("tempInStore", 1, false, 3641);
+		config.addOption("tempRAMBudget", 1, 8L * 1024 * 1024, 3642);
+		config.addOption("tempRAMBucketSize", 1, 1024L * 1024, 3643);
 
 		config.addOption("publicNode", 1, false, 3650);
 
@@ -960,10 +974,10 @@ public class Node extends Core implements ConnectionThrottler{
 		config.argDesc("storeType", "<string>");
 		config.shortDesc(
 			"storeType",
-			"datastore implementation: \"native\" (new), \"monolithic\" (old, gets the DSB), \"freenet\" (autodetect, prefer native), or \"convert\" (convert old to new)");
+			"datastore implementation: \"native\" (new), \"log\" (log-structured segment files), \"monolithic\" (old, gets the DSB), \"freenet\" (autodetect, prefer native), or \"convert\" (convert old to new)");
 		config.longDesc(
 			"storeType",
-			"Datastore implementation. Put \"native\" (without the quotes) if you want the new native filesystem datastore, which stores the files in a directory. Put \"convert\" to convert from an old monolithic store to a native store. Note that convert uses lots of disk space while doing the conversion (approximately twice the datastore size), and the resulting store may be (temporarily) slightly larger than the old one due to block size mismatch (this will be fixed as soon as the node tries to add a file to the store).");
+			"Datastore implementation. Put \"native\" (without the quotes) if you want the new native filesystem datastore, which stores the files in a directory. Put \"log\" to pack the files into a few large append-only segment files instead of one file per key, which is kinder to filesystems that handle many small files badly; this store starts empty and does not convert an existing native store. Put \"convert\" to convert from an old monolithic store to a native store. Note that convert uses lots of disk space while doing the conversion (approximately twice the datastore size), and the resulting store may be (temporarily) slightly larger than the old one due to block size mismatch (this will be fixed as soon as the node tries to add a file to the store).");
 
 		// storeBlockSize
 		config.setExpert("storeBlockSize", true);
@@ -982,6 +996,26 @@ public class Node extends Core implements ConnectionThrottler{
 			"storeMaxTempFraction",
 			"Maximum fraction of the datastore to use for temp files (assuming the temp dir is not overridden)");
 
+		// storeSegmentSize
+		config.setExpert("storeSegmentSize", true);
+		config.argDesc("storeSegmentSize", "<bytes>");
+		config.shortDesc(
+			"storeSegmentSize",
+			"Size of the segment files used when storeType=log");
+		config.longDesc(
+			"storeSegmentSize",
+			"The log-structured datastore (storeType=log) appends keys to segment files of this size, starting a new one when the current one is full. Larger segments mean fewer open files but more data copied when a segment is compacted.");
+
+		// storeCompactThreshold
+		config.setExpert("storeCompactThreshold", true);
+		config.argDesc("storeCompactThreshold", "<number between 0 and 1>");
+		config.shortDesc(
+			"storeCompactThreshold",
+			"Fraction of a segment that must be deleted data before it is compacted, when storeType=log");
+		config.longDesc(
+			"storeCompactThreshold",
+			"The log-structured datastore (storeType=log) never overwrites data in place, so deleted and replaced keys leave dead space in the segment files. A segment whose dead space reaches this fraction of its size is compacted: its live keys are copied to the end of the store and the file is deleted. Lower values keep the store closer to storeSize on disk but copy more data; the store can exceed storeSize by up to this fraction.");
+
 		// storeCipherName
 		config.setExpert("storeCipherName", true);
 		config.argDesc("storeCipherName", "<string>");
@@ -1011,6 +1045,26 @@ public class Node extends Core implements ConnectionThrottler{
 			"useDSIndex",
 			"Use a datastore index file. Shorter startup time, but we have to run checkpoints, which lock the datastore, causing a hiccup");
 
+		// storeKeyIndex
+		config.setExpert("storeKeyIndex", true);
+		config.argDesc("storeKeyIndex", "true|false");
+		config.shortDesc(
+			"storeKeyIndex",
+			"Keep a sorted, memory-mapped index of the keys in the datastore");
+		config.longDesc(
+			"storeKeyIndex",
+			"Keep a sorted index of the keys in the datastore in a memory-mapped file outside the Java heap. It is used to find the keys closest to a given key without locking the datastore, and is kept in the keyindex directory under the store.");
+
+		// storeScanThreads
+		config.setExpert("storeScanThreads", true);
+		config.argDesc("storeScanThreads", "<integer>");
+		config.shortDesc(
+			"storeScanThreads",
+			"Number of threads checking the datastore files against the index after startup");
+		config.longDesc(
+			"storeScanThreads",
+			"When the node starts from the datastore index (useDSIndex), it serves requests straight away and checks the files in the store against the index in the background, removing missing, truncated and stray files. This is the number of threads doing that. 0 means do the check before the node starts, which is slow on large stores.");
+
 		// rtMaxRefs
 		config.setExpert("rtMaxRefs", true);
 		config.argDesc("rtMaxRefs", "<integer>");
@@ -1080,6 +1134,29 @@ public class Node extends Core implements ConnectionThrottler{
 			"The maximum number or node refs that will be used to route a request before RNFing. ",
 			"-1 means 1/10th the routing table size.");
 
+		// routeCacheSize
+		config.setExpert("routeCacheSize", true);
+		config.argDesc("routeCacheSize", "<integer>");
+		config.shortDesc(
+			"routeCacheSize",
+			"max no. of routing decisions to remember.");
+		config.longDesc(
+			"routeCacheSize",
+			"Requests for the same key, HTL and size reuse the node estimates made for the last one, ",
+			"as long as routeCacheStaleness allows. 0 to estimate every node on every request.");
+
+		// routeCacheStaleness
+		config.setExpert("routeCacheStaleness", true);
+		config.argDesc("routeCacheStaleness", "<milliseconds>");
+		config.shortDesc(
+			"routeCacheStaleness",
+			"how long to reuse a routing decision after the estimators change.");
+		config.longDesc(
+			"routeCacheStaleness",
+			"A remembered routing decision is always reused until a node's estimators get new data, ",
+			"and for up to this many milliseconds after it was made even if they have. ",
+			"0 means routing is exactly as if nothing were remembered.");
+
 		// messageStoreSize
 		config.setExpert("messageStoreSize", true);
 		config.argDesc("messageStoreSize", "<integer>");
@@ -1198,6 +1275,51 @@ public class Node extends Core implements ConnectionThrottler{
 			"If nonzero, specifies an independent limit for outgoing data only (averaged",
 			"over a week).  (overrides bandwidthLimit if nonzero)");
 
+		// selectorLoops
+		config.setExpert("selectorLoops", true);
+		config.argDesc("selectorLoops", "<integer>");
+		config.shortDesc(
+			"selectorLoops",
+			"no. of network reading and writing thread pairs.");
+		config.longDesc(
+			"selectorLoops",
+			"Each connection is read and written by one of this many pairs of threads, so that reading, ",
+			"decrypting and parsing can use more than one CPU. The bandwidth limits apply to all of them together.");
+
+		// maxLinks
+		config.setExpert("maxLinks", true);
+		config.argDesc("maxLinks", "<integer>");
+		config.shortDesc(
+			"maxLinks",
+			"max no. of session keys to remember.");
+		config.longDesc(
+			"maxLinks",
+			"The node remembers the session key it negotiated with each peer, so that it can reconnect ",
+			"without negotiating a new one. When there are more than this many, the oldest are forgotten.");
+
+		// saveLinks
+		config.setExpert("saveLinks", true);
+		config.argDesc("saveLinks", "<true|false>");
+		config.shortDesc(
+			"saveLinks",
+			"save session keys so they can be reused after a restart.");
+		config.longDesc(
+			"saveLinks",
+			"If true, the session keys are saved in the routing directory every few minutes, so that after ",
+			"a restart the node can reconnect to its peers without negotiating new keys with all of them. ",
+			"The file should be kept as private as the node's private key.");
+
+		// signatureCacheSize
+		config.setExpert("signatureCacheSize", true);
+		config.argDesc("signatureCacheSize", "<integer>");
+		config.shortDesc(
+			"signatureCacheSize",
+			"no. of signature checks to remember.");
+		config.longDesc(
+			"signatureCacheSize",
+			"The node remembers whether the most recent node reference and SSK/SVK signatures it checked ",
+			"were valid, so that it needn't check them again. 0 disables this.");
+
 		// maxConnectionsPerMinute
 		config.setExpert("maxConnectionsPerMinute", true);
 		config.argDesc("maxConnectionsPerMinute", "<int>");
@@ -1869,6 +1991,26 @@ public class Node extends Core implements ConnectionThrottler{
 			"tempInStore",
 			"If true, temp space counts as part of the datastore for space accounting purposes. This means that freenet will never use significantly more disk space than the configured storeSize (ignoring space used for log files and routing table files), but it also means that if you have a small store you may not be able to download large files.");
 
+		// tempRAMBudget
+		config.setExpert("tempRAMBudget", true);
+		config.argDesc("tempRAMBudget", "<bytes>");
+		config.shortDesc(
+			"tempRAMBudget",
+			"Memory temp files may be kept in before going to disk");
+		config.longDesc(
+			"tempRAMBudget",
+			"The most memory, in bytes, that temporary files may be kept in between them. Temp files start out in memory, and are only written to disk when they grow too big or this budget is used up, which saves a lot of small file creates and deletes. 0 means temp files always go straight to disk.");
+
+		// tempRAMBucketSize
+		config.setExpert("tempRAMBucketSize", true);
+		config.argDesc("tempRAMBucketSize", "<bytes>");
+		config.shortDesc(
+			"tempRAMBucketSize",
+			"Biggest temp file that may be kept in memory");
+		config.longDesc(
+			"tempRAMBucketSize",
+			"The biggest, in bytes, that a single temporary file may grow to while it is kept in memory. Temp files that are known to be bigger than this are created on disk straight away, and ones that grow past it are moved there. See tempRAMBudget.");
+
 		// doRequestTriageByDelay
 		config.setExpert("doRequestTriageByDelay", true);
 		config.argDesc("doRequestTriageByDelay", "true/false");
@@ -2153,8 +2295,21 @@ public class Node extends Core implements ConnectionThrottler{
 		config.argDesc("FECMaxConcurrentCodecs", "<integer>");
 		config.shortDesc(
 			"FECMaxConcurrentCodecs",
-			"Number of concurrent FEC encodes/decodes allowed. "
-				+ "Each codec can use up to 24Mb of memory.");
+			"Number of concurrent FEC encodes/decodes allowed, or 0 for one per CPU. "
+				+ "Each codec can use up to 24Mb of memory, or 3Mb for the built in one.");
+
+		// splitFileMaxRequests
+		config.setExpert("splitFileMaxRequests", true);
+		config.argDesc("splitFileMaxRequests", "<integer>");
+		config.shortDesc(
+			"splitFileMaxRequests",
+			"Most block requests all splitfile downloads may run at once, or 0 for no limit.");
+		config.longDesc(
+			"splitFileMaxRequests",
+			"The most block requests that all the splitfile downloads on the node may have running between them. "
+				+ "Each download adjusts how many it runs to the load on the node and the network, "
+				+ "and gets an even share of this limit, so that a single large download can't "
+				+ "crowd out everything else. 0 means no limit.");
 
 		// publicNode
 		config.setExpert("publicNode", true);
@@ -3153,6 +3308,8 @@ public class Node extends Core implements ConnectionThrottler{
 	static public long storeSize;
 	static public int storeBlockSize;
 	static public float storeMaxTempFraction;
+	static public long storeSegmentSize;
+	static public float storeCompactThreshold;
 	static public int rtMaxRefs, rtMaxNodes;
 	static public int listenPort;
 	static public String storeType;
@@ -3163,6 +3320,13 @@ public class Node extends Core implements ConnectionThrottler{
 	static public int averageBandwidthLimit,
 		averageInputBandwidthLimit,
 		averageOutputBandwidthLimit;
+	// Network reading/writing thread pairs, see tcpConnection
+	static public int selectorLoops;
+	// Session keys to remember, and whether to save them, see FnpLinkManager
+	static public int maxLinks;
+	static public boolean saveLinks;
+	// Signature checks to remember, see DSAVerifier
+	static public int signatureCacheSize;
 	static public double lowLevelBWLimitMultiplier;
 	// the param value * the fudge factor
 	static public double lowLevelBWLimitFudgeFactor;
@@ -3177,6 +3341,11 @@ public class Node extends Core implements ConnectionThrottler{
 	// Routing.getNextRoute().
 	static public int maxRoutingSteps;
 
+	// Routing decisions remembered by NGRoutingTable, and how long to
+	// use them after the estimators have changed.
+	static public int routeCacheSize;
+	static public long routeCacheStaleness;
+
 	static public float minCP;
 	static public int minARKDelay;
 	static public int failuresLookupARK;
@@ -3188,6 +3357,8 @@ public class Node extends Core implements ConnectionThrottler{
 
 	static public File routingDir;
 	static public boolean useDSIndex;
+	static public boolean storeKeyIndex;
+	static public int storeScanThreads;
 
 	// So we can keep track of how long the
 	// node has been running. Approximate, but good enough.
@@ -3208,6 +3379,8 @@ public class Node extends Core implements ConnectionThrottler{
 	static public int tfTolerableQueueDelay;
 	static public int tfAbsoluteMaxThreads;
 	static protected ThreadFactory threadFactory;
+	static public int clientThreads; // 0 to share threadFactory
+	static public int clientThreadStackSize; // KiB
 
 	// client stuff
 	static public String filterPassThroughMimeTypes;
@@ -3336,6 +3509,12 @@ public class Node extends Core implements ConnectionThrottler{
 			params.getInt("averageInputBandwidthLimit");
 		averageOutputBandwidthLimit =
 			params.getInt("averageOutputBandwidthLimit");
+		selectorLoops = params.getInt("selectorLoops");
+		if (selectorLoops < 1) selectorLoops = 1;
+		maxLinks = params.getInt("maxLinks");
+		saveLinks = params.getBoolean("saveLinks");
+		signatureCacheSize = params.getInt("signatureCacheSize");
+		DSAVerifier.setCacheSize(signatureCacheSize);
 
 		if (inputBandwidthLimit == 0
 			&& outputBandwidthLimit == 0
@@ -3411,6 +3590,8 @@ public class Node extends Core implements ConnectionThrottler{
 		}
 		storeBlockSize = params.getInt("storeBlockSize");
 		storeMaxTempFraction = params.getFloat("storeMaxTempFraction");
+		storeSegmentSize = params.getLong("storeSegmentSize");
+		storeCompactThreshold = params.getFloat("storeCompactThreshold");
 		//maxFileSize = cacheSize / params.getInt("storeCacheCount");
 
 		maxNodeConnections = params.getInt("maxNodeConnections");
@@ -3429,6 +3610,8 @@ public class Node extends Core implements ConnectionThrottler{
 		failuresByBackoffCount = new long[rtMaxNodes+1];
 		maxRoutingSteps = params.getInt("maxRoutingSteps");
 		if(maxRoutingSteps < 0) maxRoutingSteps = rtMaxNodes/4;
+		routeCacheSize = params.getInt("routeCacheSize");
+		routeCacheStaleness = params.getLong("routeCacheStaleness");
 
 		minCP = params.getFloat("minCP");
 		failuresLookupARK = params.getInt("failuresLookupARK");
@@ -3447,6 +3630,8 @@ public class Node extends Core implements ConnectionThrottler{
 		routingDir = new File(params.getString("routingDir"));
 
 		useDSIndex = params.getBoolean("useDSIndex");
+		storeKeyIndex = params.getBoolean("storeKeyIndex");
+		storeScanThreads = params.getInt("storeScanThreads");
 
 		// get the listening port
 		listenPort = params.getInt("listenPort");
@@ -2,6 +2,7 @@ package freenet.node;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.Enumeration;
 import java.util.Iterator;
 
@@ -25,6 +26,7 @@ import freenet.client.ClientSSK;
 import freenet.client.FreenetURI;
 import freenet.crypt.DSAPublicKey;
 import freenet.crypt.DSASignature;
+import freenet.crypt.DSAVerifier;
 import freenet.crypt.Digest;
 import freenet.crypt.SHA1;
 import freenet.keys.SVK;
@@ -110,6 +112,46 @@ public class NodeReference {
 
     }
 
+    /**
+     * Checks the signatures on a number of references at once, in
+     * parallel, so that constructing NodeReferences from them afterwards
+     * finds the results in DSAVerifier's cache. Any that are unsigned or
+     * can't be parsed are left for the constructor.
+     */
+    public static void preverify(FieldSet[] refs) {
+        DSAPublicKey[] keys = new DSAPublicKey[refs.length];
+        DSASignature[] sigs = new DSASignature[refs.length];
+        BigInteger[] digests = new BigInteger[refs.length];
+        int n = 0;
+        for (int i = 0; i < refs.length; i++) {
+            FieldSet ident = refs[i].getSet("identity");
+            String signS = refs[i].getString("signature");
+            if (ident == null || signS == null)
+                continue;
+            try {
+                keys[n] = new DSAIdentity(ident);
+                sigs[n] = new DSASignature(signS);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Digest d = SHA1.getInstance();
+            refs[i].hashUpdate(d, stringSignature);
+            digests[n++] = new NativeBigInteger(1, d.digest());
+        }
+        if (n < refs.length) {
+            DSAPublicKey[] k = new DSAPublicKey[n];
+            DSASignature[] s = new DSASignature[n];
+            BigInteger[] m = new BigInteger[n];
+            System.arraycopy(keys, 0, k, 0, n);
+            System.arraycopy(sigs, 0, s, 0, n);
+            System.arraycopy(digests, 0, m, 0, n);
+            keys = k;
+            sigs = s;
+            digests = m;
+        }
+        DSAVerifier.verify(keys, sigs, digests);
+    }
+
     /**
      * Creates a new NodeReference from us, updating the ARKVersion and
      * the physical addresses and recalculating the signature
@@ -141,6 +183,23 @@ public class NodeReference {
      */
     public NodeReference(FieldSet ref, boolean verify, boolean slack, Identity ident) 
         throws BadReferenceException {
+        this(ref, verify, slack, false, ident);
+    }
+
+    /**
+     * Creates a new nodereference from a FieldSet written out from one we
+     * had already verified, such as one from our own routing table. The
+     * signature must be there, but is not checked again.
+     * @exception BadReferenceException - if the data is malformed.
+     */
+    public static NodeReference readVerified(FieldSet ref)
+        throws BadReferenceException {
+        return new NodeReference(ref, true, false, true, null);
+    }
+
+    private NodeReference(FieldSet ref, boolean verify, boolean slack,
+                          boolean verified, Identity ident) 
+        throws BadReferenceException {
 
         if (ref.getSet("identity") == null && ident != null) {
             // It's sort of ugly, but we'll actually insert the identity
@@ -260,7 +319,7 @@ public class NodeReference {
 		    Digest d = SHA1.getInstance();
 		    ref.hashUpdate(d, stringSignature);
 		    //try {
-		    if (!identity.verify(signature, 
+		    if (!verified && !identity.verify(signature, 
 					 new NativeBigInteger(1, d.digest()))) {
 		        ByteArrayOutputStream sw = new ByteArrayOutputStream(256);
 		        try {
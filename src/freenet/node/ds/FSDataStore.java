@@ -13,6 +13,7 @@ import freenet.Key;
 import freenet.fs.dir.Buffer;
 import freenet.fs.dir.FileNumber;
 import freenet.fs.dir.LossyDirectory;
+import freenet.fs.dir.MappedKeyIndex;
 import freenet.fs.dir.RangeFilePattern;
 import freenet.support.EnumerationWalk;
 import freenet.support.KeyHistogram;
@@ -41,6 +42,7 @@ public class FSDataStore implements DataStore {
 	}
 
 	final LossyDirectory dir;
+	private final MappedKeyIndex keyIndex;
 
 	public final long maxDataSize;
 
@@ -52,8 +54,23 @@ public class FSDataStore implements DataStore {
 	 *                     in a non-circular buffer
 	 */
 	public FSDataStore(LossyDirectory dir, long maxDataSize) {
+		this(dir, maxDataSize, null);
+	}
+
+	/**
+	 * @param dir          the backing storage
+	 * @param maxDataSize  largest key length that can be stored
+	 *                     in a non-circular buffer
+	 * @param keyIndex     an index of the keys in dir, kept up to date by
+	 *                     a KeyIndexedDirectory under dir, or null
+	 */
+	public FSDataStore(
+		LossyDirectory dir,
+		long maxDataSize,
+		MappedKeyIndex keyIndex) {
 		this.dir = dir;
 		this.maxDataSize = maxDataSize;
+		this.keyIndex = keyIndex;
 		logDebug = Core.logger.shouldLog(Logger.DEBUG, this);
 	}
 
@@ -223,6 +240,8 @@ public class FSDataStore implements DataStore {
 	 * @return  an array of Keys arranged in order of closeness
 	 */
 	public Key[] findClosestKeys(Key k, boolean inclusive, int limit) {
+		if (keyIndex != null)
+			return findClosestKeysIndexed(k, inclusive, limit);
 		synchronized (keyStack) {
 			try {
 				synchronized (dir.semaphore()) {
@@ -276,6 +295,31 @@ public class FSDataStore implements DataStore {
 		}
 	}
 
+	/**
+	 * findClosestKeys() using the key index, without taking any locks.
+	 */
+	private Key[] findClosestKeysIndexed(
+		final Key k,
+		boolean inclusive,
+		int limit) {
+		MappedKeyIndex.Closeness closer = new MappedKeyIndex.Closeness() {
+			public int compare(byte[] target, byte[] a, byte[] b) {
+				return k.compareTo(new Key(a), new Key(b));
+			}
+		};
+		byte[][] found =
+			keyIndex.findClosestKeys(k.getVal(), inclusive, limit, closer);
+		Key[] ret = new Key[found.length];
+		for (int i = 0; i < found.length; i++)
+			ret[i] = new Key(found[i]);
+		if (logDebug)
+			Core.logger.log(
+				this,
+				"returning " + ret.length + " closest keys to: " + k,
+				Logger.DEBUG);
+		return ret;
+	}
+
 	// It would be less ugly to just expose the key enumeration,
 	// but I didn't want to add access to it to the public
 	// interfaces.
@@ -283,6 +327,8 @@ public class FSDataStore implements DataStore {
 		KeyHistogram histogram = dir.getHistogram();
 		if (histogram != null)
 			return histogram;
+		else if (keyIndex != null)
+			return keyIndex.getHistogram();
 		else {
 			histogram = new KeyHistogram();
 
@@ -331,6 +377,8 @@ public class FSDataStore implements DataStore {
 		KeySizeHistogram histogram = dir.getSizeHistogram();
 		if (histogram != null)
 			return histogram;
+		else if (keyIndex != null)
+			return keyIndex.getSizeHistogram();
 		else {
 			histogram = new KeySizeHistogram();
 			Enumeration keys;
@@ -6,6 +6,8 @@ import freenet.support.Irreversible;
 import freenet.support.Logger;
 import freenet.support.io.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * Device to manage a storage entry.
@@ -266,6 +268,9 @@ final class FSDataStoreElement {
 
 		final InputStream in;
 
+		/** in, if the data can be read straight into ByteBuffers */
+		final ReadableByteChannel channel;
+
 		final long length;
 
 		final Storables storables = new Storables();
@@ -293,7 +298,15 @@ final class FSDataStoreElement {
 						+ ")");
 			/* main purpose of this buffer is to avoid one byte reads getting fields,
 			   fields are never going to be _that_ long */
-			in = new BufferedInputStream(oin, 8192);
+			if (oin instanceof ReadableByteChannel) {
+				ChannelBufferedInputStream cbin =
+					new ChannelBufferedInputStream(oin, 8192);
+				in = cbin;
+				channel = cbin;
+			} else {
+				in = new BufferedInputStream(oin, 8192);
+				channel = null;
+			}
 			CountedInputStream cin = new CountedInputStream(in);
 			try {
 				storables.parseFields(new ReadInputStream(cin));
@@ -343,6 +356,15 @@ final class FSDataStoreElement {
 			return res;
 		}
 
+		public final int read(ByteBuffer dst) throws IOException {
+			if (channel == null)
+				return super.read(dst);
+			int res = channel.read(dst);
+			if (res > 0)
+				read += res;
+			return res;
+		}
+
 		public final int available() throws IOException {
 			return in.available();
 		}
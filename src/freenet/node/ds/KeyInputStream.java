@@ -1,7 +1,9 @@
 package freenet.node.ds;
 
 import freenet.Storables;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Exposes an input stream from a key in the cache to the application.
@@ -15,6 +17,29 @@ public abstract class KeyInputStream extends InputStream {
 
     public abstract Storables getStorables();
 
+    /**
+     * Read some bytes into a ByteBuffer, from its position up to at most its
+     * limit. Streams backed by a file read straight into the buffer, which
+     * saves copying the data through arrays when it is going to the
+     * network; this version reads through read(byte[], int, int).
+     * @return the number of bytes read, or -1 at the end of the stream.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        int x;
+        if (dst.hasArray()) {
+            x = read(dst.array(), dst.arrayOffset() + dst.position(),
+                     dst.remaining());
+            if (x > 0)
+                dst.position(dst.position() + x);
+        } else {
+            byte[] b = new byte[dst.remaining()];
+            x = read(b, 0, b.length);
+            if (x > 0)
+                dst.put(b, 0, x);
+        }
+        return x;
+    }
+
 
     /**
      * Returns any failure code given when caching the data, or -1
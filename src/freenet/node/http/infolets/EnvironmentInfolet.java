@@ -8,6 +8,7 @@ import java.util.Date;
 import javax.servlet.http.HttpServletRequest;
 
 import freenet.Core;
+import freenet.fs.dir.LogStructuredDirectory;
 import freenet.fs.dir.NativeFSDirectory;
 import freenet.node.Main;
 import freenet.node.Node;
@@ -117,6 +118,27 @@ public final class EnvironmentInfolet extends Infolet {
                 sw.println("<tr><td>Least recent file access time</td><td align=right>"
                         + new Date(((NativeFSDirectory) node.dir).leastRecentlyUsedTime()).toString() + "</td></tr>");
 			}
+			NativeFSDirectory nfs = (NativeFSDirectory) node.dir;
+			if (nfs.startupScanRunning())
+                sw.println("<tr><td>Checking store against index</td><td align=right>" + nfs.startupScanProgress() + "% ("
+                        + nfs.startupScanTime() / 1000 + "s)</td></tr>");
+			else
+                sw.println("<tr><td>Store checked against index in</td><td align=right>" + nfs.startupScanTime() / 1000 + "s</td></tr>");
+            sw.println("<tr><td>Files checked</td><td align=right>" + nfs.startupScanFilesChecked() + "</td></tr>");
+            sw.println("<tr><td>Missing or damaged files dropped</td><td align=right>" + nfs.startupScanFilesRemoved() + "</td></tr>");
+            sw.println("<tr><td>Stray files deleted</td><td align=right>" + nfs.startupScanStrayFiles() + "</td></tr>");
+		}
+		if (node.dir instanceof LogStructuredDirectory) {
+			LogStructuredDirectory lsd = (LogStructuredDirectory) node.dir;
+            sw.println("<tr><td>Segment files</td><td align=right>" + lsd.segmentCount() + "</td></tr>");
+            sw.println("<tr><td>Space used by segment files</td><td align=right>" + format(lsd.physicalSize()) + "</td></tr>");
+            sw.println("<tr><td>Data moved by compaction</td><td align=right>" + format(lsd.compactedBytes()) + "</td></tr>");
+			if (keys > 0) {
+                sw.println("<tr><td>Most recent file access time</td><td align=right>"
+                        + new Date(lsd.mostRecentlyUsedTime()).toString() + "</td></tr>");
+                sw.println("<tr><td>Least recent file access time</td><td align=right>"
+                        + new Date(lsd.leastRecentlyUsedTime()).toString() + "</td></tr>");
+			}
 		}
 		sw.println("</table>");
 		titleBoxTmp.set("TITLE", "Data Store");
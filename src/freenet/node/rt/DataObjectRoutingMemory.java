@@ -75,7 +75,7 @@ class DataObjectRoutingMemory implements RoutingMemory, DataObject {
 	    if(fs.size() == 0)
 	        this.noderef = null;
 	    else
-		this.noderef = new NodeReference(fs);
+		this.noderef = NodeReference.readVerified(fs);
 		dop.resolve(this);
 	}
 
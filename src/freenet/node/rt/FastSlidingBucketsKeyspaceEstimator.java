@@ -573,6 +573,19 @@ public class FastSlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstim
         return interpolatedValue;
     }
 
+    /**
+     * Copy the bucket centers, then the bucket values as guess() would see
+     * them, so that RoutingBatch can do the guessing for many nodes at once.
+     * @param row the array to copy into
+     * @param offset where to put the first center. The values go after
+     * the accuracy centers.
+     */
+    synchronized void copyBuckets(double[] row, int offset) {
+        System.arraycopy(centers, 0, row, offset, accuracy);
+        for(int i=0;i<accuracy;i++)
+            row[offset+accuracy+i] = getBucketValue(i);
+    }
+
     /**
      * Calculates, given the other input values, the interpolated value of 'key'.
      */
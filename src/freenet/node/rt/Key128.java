@@ -0,0 +1,117 @@
+package freenet.node.rt;
+
+import java.math.BigInteger;
+
+import freenet.Key;
+
+/**
+ * Arithmetic on positions in the keyspace held in two longs, rather than in
+ * a BigInteger. A position is the top 128 bits of the 184 bit key, as an
+ * unsigned number; see Key.keyspaceHigh() and Key.keyspaceLow(). The bits
+ * dropped are far below anything the estimators can tell apart, and
+ * arithmetic modulo 2^128 is arithmetic around the keyspace, so distances
+ * wrap around without any special cases.
+ * <p>
+ * Methods that produce a position return the high and low halves
+ * separately, so nothing is allocated.
+ * </p>
+ */
+final class Key128 {
+
+    /** Bits of a key that we don't keep */
+    static final int DROPPED_BITS = (Key.KEYBYTES << 3) - 128;
+
+    private static final double TWO_64 = 18446744073709551616.0;
+
+    private Key128() {
+    }
+
+    /**
+     * Compare two positions.
+     * @return negative, zero or positive, as for Comparable.
+     */
+    static int compare(long aHigh, long aLow, long bHigh, long bLow) {
+        if(aHigh != bHigh)
+            return (aHigh ^ Long.MIN_VALUE) < (bHigh ^ Long.MIN_VALUE) ? -1 : 1;
+        if(aLow != bLow)
+            return (aLow ^ Long.MIN_VALUE) < (bLow ^ Long.MIN_VALUE) ? -1 : 1;
+        return 0;
+    }
+
+    /** @return the high half of a + b */
+    static long addHigh(long aHigh, long aLow, long bHigh, long bLow) {
+        long low = aLow + bLow;
+        return aHigh + bHigh + (lessUnsigned(low, aLow) ? 1 : 0);
+    }
+
+    /** @return the high half of a - b, around the keyspace */
+    static long subtractHigh(long aHigh, long aLow, long bHigh, long bLow) {
+        return aHigh - bHigh - (lessUnsigned(aLow, bLow) ? 1 : 0);
+    }
+
+    // The low half of a sum or difference is just aLow + bLow or aLow - bLow
+
+    private static boolean lessUnsigned(long a, long b) {
+        return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+    }
+
+    /** @return an unsigned long as a double */
+    static double unsignedToDouble(long x) {
+        if(x >= 0) return x;
+        return ((x >>> 1) | (x & 1)) * 2.0;
+    }
+
+    /** @return a position, or a distance between two, as a double */
+    static double toDouble(long high, long low) {
+        return unsignedToDouble(high) * TWO_64 + unsignedToDouble(low);
+    }
+
+    /** @return a non-negative double below 2^64 as an unsigned long */
+    private static long doubleToUnsigned(double d) {
+        if(d < 0) return 0;
+        if(d >= TWO_64) return -1;
+        if(d < Long.MAX_VALUE) return (long) d;
+        return ((long) (d / 2.0)) << 1;
+    }
+
+    /**
+     * @return the high half of a distance given as a double, rounded down.
+     * Used to scale distances by a fraction.
+     */
+    static long highOf(double d) {
+        return doubleToUnsigned(Math.floor(d / TWO_64));
+    }
+
+    /** @return the low half of a distance given as a double, rounded down */
+    static long lowOf(double d) {
+        if(d < 0) return 0;
+        double high = Math.floor(d / TWO_64);
+        if(high >= TWO_64) return -1;
+        return doubleToUnsigned(d - high * TWO_64);
+    }
+
+    /**
+     * @return the high half of a key as a BigInteger, which may be as big
+     * as Key.KEYSPACE_SIZE (which is the same as zero).
+     */
+    static long highOf(BigInteger key) {
+        return key.shiftRight(DROPPED_BITS + 64).longValue();
+    }
+
+    static long lowOf(BigInteger key) {
+        return key.shiftRight(DROPPED_BITS).longValue();
+    }
+
+    /**
+     * @return a position as a key sized BigInteger, for serialization and
+     * logging.
+     */
+    static BigInteger toBigInteger(long high, long low) {
+        byte[] b = new byte[16];
+        for(int i=0;i<8;i++) {
+            b[i] = (byte) (high >>> (56 - 8*i));
+            b[i+8] = (byte) (low >>> (56 - 8*i));
+        }
+        return new BigInteger(1, b).shiftLeft(DROPPED_BITS);
+    }
+}
@@ -0,0 +1,223 @@
+package freenet.node.rt;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.Key;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the two-long keyspace arithmetic against BigInteger, and
+ * SlidingBucketsKeyspaceEstimator's guesses against the BigInteger
+ * interpolation it used before.
+ */
+public class Key128Test extends TestCase {
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(Key128Test.class);
+	}
+
+	private static final BigInteger TWO_128 = BigInteger.ONE.shiftLeft(128);
+
+	/** 0, 2^63, 2^64-1 and 2^128-1, as positions */
+	private static final BigInteger[] BOUNDARIES = {
+		BigInteger.ZERO,
+		BigInteger.ONE.shiftLeft(63),
+		BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE),
+		TWO_128.subtract(BigInteger.ONE),
+	};
+
+	private static long high(BigInteger p) {
+		return p.shiftRight(64).longValue();
+	}
+
+	private static long low(BigInteger p) {
+		return p.longValue();
+	}
+
+	private static BigInteger position(long high, long low) {
+		return Key128.toBigInteger(high, low).shiftRight(Key128.DROPPED_BITS);
+	}
+
+	private static BigInteger toKey(BigInteger p) {
+		return p.shiftLeft(Key128.DROPPED_BITS);
+	}
+
+	/**
+	 * The boundaries, and each of them plus and minus one.
+	 */
+	private static BigInteger[] edgeCases() {
+		BigInteger[] v = new BigInteger[BOUNDARIES.length * 3];
+		for (int i = 0; i < BOUNDARIES.length; i++) {
+			v[i * 3] = BOUNDARIES[i];
+			v[i * 3 + 1] = BOUNDARIES[i].add(BigInteger.ONE).mod(TWO_128);
+			v[i * 3 + 2] = BOUNDARIES[i].subtract(BigInteger.ONE).mod(TWO_128);
+		}
+		return v;
+	}
+
+	public void testCompare() {
+		BigInteger[] v = edgeCases();
+		for (int i = 0; i < v.length; i++)
+			for (int j = 0; j < v.length; j++)
+				assertEquals(
+					v[i] + " <=> " + v[j],
+					v[i].compareTo(v[j]),
+					Key128.compare(high(v[i]), low(v[i]), high(v[j]), low(v[j])));
+	}
+
+	/**
+	 * Sums and differences carry and borrow between the halves, and wrap
+	 * around the keyspace.
+	 */
+	public void testAddSubtract() {
+		BigInteger[] v = edgeCases();
+		for (int i = 0; i < v.length; i++) {
+			for (int j = 0; j < v.length; j++) {
+				long aHigh = high(v[i]), aLow = low(v[i]);
+				long bHigh = high(v[j]), bLow = low(v[j]);
+				BigInteger sum = v[i].add(v[j]).mod(TWO_128);
+				assertEquals(v[i] + " + " + v[j], sum,
+					position(Key128.addHigh(aHigh, aLow, bHigh, bLow), aLow + bLow));
+				BigInteger diff = v[i].subtract(v[j]).mod(TWO_128);
+				assertEquals(v[i] + " - " + v[j], diff,
+					position(Key128.subtractHigh(aHigh, aLow, bHigh, bLow), aLow - bLow));
+			}
+		}
+		// Carry out of the low half, and borrow into it
+		assertEquals(1, Key128.addHigh(0, -1, 0, 1));
+		assertEquals(-1, Key128.subtractHigh(0, 0, 0, 1));
+	}
+
+	public void testUnsignedToDouble() {
+		assertEquals(0.0, Key128.unsignedToDouble(0), 0.0);
+		assertEquals(Math.pow(2, 63), Key128.unsignedToDouble(Long.MIN_VALUE), 0.0);
+		assertEquals(Math.pow(2, 64), Key128.unsignedToDouble(-1), 0.0);
+		assertEquals(Math.pow(2, 63) + Math.pow(2, 62),
+			Key128.unsignedToDouble(0xC000000000000000L), 0.0);
+		BigInteger[] v = edgeCases();
+		for (int i = 0; i < v.length; i++)
+			assertEquals(v[i].doubleValue(),
+				Key128.toDouble(high(v[i]), low(v[i])), 0.0);
+	}
+
+	/**
+	 * Splitting a double into halves rounds down, clamps to the keyspace,
+	 * and gets the top bit of each half right.
+	 */
+	public void testHighLowOfDouble() {
+		double two64 = Math.pow(2, 64);
+		assertEquals(0, Key128.highOf(0.0));
+		assertEquals(0, Key128.lowOf(0.0));
+		assertEquals(0, Key128.highOf(Math.pow(2, 63)));
+		assertEquals(Long.MIN_VALUE, Key128.lowOf(Math.pow(2, 63)));
+		assertEquals(1, Key128.highOf(two64));
+		assertEquals(0, Key128.lowOf(two64));
+		assertEquals(Long.MIN_VALUE, Key128.highOf(Math.pow(2, 127)));
+		assertEquals(0, Key128.lowOf(Math.pow(2, 127)));
+		assertEquals(-1, Key128.highOf(Math.pow(2, 128)));
+		assertEquals(-1, Key128.lowOf(Math.pow(2, 128)));
+		assertEquals(0, Key128.highOf(-1.0));
+		assertEquals(0, Key128.lowOf(-1.0));
+		assertEquals(3, Key128.highOf(3.75 * two64));
+		assertEquals(0xC000000000000000L, Key128.lowOf(3.75 * two64));
+	}
+
+	public void testBigIntegerConversions() {
+		BigInteger[] v = edgeCases();
+		for (int i = 0; i < v.length; i++) {
+			BigInteger k = toKey(v[i]);
+			assertEquals(high(v[i]), Key128.highOf(k));
+			assertEquals(low(v[i]), Key128.lowOf(k));
+			assertEquals(k, Key128.toBigInteger(high(v[i]), low(v[i])));
+			Key key = new Key(k);
+			assertEquals(high(v[i]), key.keyspaceHigh());
+			assertEquals(low(v[i]), key.keyspaceLow());
+		}
+		// Key.KEYSPACE_SIZE is the same as zero
+		assertEquals(0, Key128.highOf(Key.KEYSPACE_SIZE));
+		assertEquals(0, Key128.lowOf(Key.KEYSPACE_SIZE));
+	}
+
+	/**
+	 * After reports at and around the boundaries, which move the centers
+	 * there and make a sector wrap, the estimator guesses what the old
+	 * BigInteger code would have guessed from the same centers and bucket
+	 * values, at the boundaries and on random keys.
+	 */
+	public void testGuessMatchesBigInteger() {
+		SlidingBucketsKeyspaceEstimator e =
+			new SlidingBucketsKeyspaceEstimator(
+				new BootstrappingDecayingRunningAverageFactory(0, 3600 * 1000, 20),
+				16,
+				new BigDecimal("0.05"),
+				0.0,
+				KeyspaceEstimator.TIME,
+				"test",
+				false);
+		BigInteger[] v = edgeCases();
+		Random r = new Random(184);
+		for (int round = 0; round < 50; round++)
+			for (int i = 0; i < v.length; i++)
+				e.reportTime(new Key(toKey(v[i])), 100 + r.nextInt(10000));
+
+		BigInteger[] centers = new BigInteger[e.accuracy];
+		double[] values = new double[e.accuracy];
+		for (int i = 0; i < e.accuracy; i++) {
+			centers[i] = Key128.toBigInteger(e.centerHigh[i], e.centerLow[i]);
+			// A guess on a center is that bucket's value
+			values[i] = e.guess(e.centerHigh[i], e.centerLow[i], 0);
+		}
+
+		BigInteger[] keys = new BigInteger[v.length + 1000];
+		for (int i = 0; i < v.length; i++)
+			keys[i] = toKey(v[i]);
+		for (int i = v.length; i < keys.length; i++)
+			keys[i] = toKey(new BigInteger(128, r));
+		for (int i = 0; i < keys.length; i++) {
+			double expected = oldGuess(keys[i], centers, values);
+			double actual =
+				e.guess(Key128.highOf(keys[i]), Key128.lowOf(keys[i]), 0);
+			assertEquals(
+				keys[i].toString(16),
+				expected,
+				actual,
+				Math.abs(expected) * 1e-12);
+		}
+	}
+
+	/**
+	 * SlidingBucketsKeyspaceEstimator.guess() as it was on BigIntegers.
+	 */
+	private static double oldGuess(
+		BigInteger k,
+		BigInteger[] centers,
+		double[] values) {
+		int accuracy = centers.length;
+		int idx = Arrays.binarySearch(centers, k);
+		if (idx >= 0)
+			return values[idx];
+		idx = (-idx) - 1;
+		int after = idx;
+		if (after >= accuracy)
+			after -= accuracy;
+		int before = idx - 1;
+		if (before < 0)
+			before += accuracy;
+		BigInteger firstKeyAfter = centers[after];
+		BigInteger firstKeyBefore = centers[before];
+		if (firstKeyBefore.compareTo(firstKeyAfter) == 1) {
+			if (k.compareTo(firstKeyAfter) == -1)
+				k = k.add(Key.KEYSPACE_SIZE);
+			firstKeyAfter = firstKeyAfter.add(Key.KEYSPACE_SIZE);
+		}
+		BigDecimal bigdiff = new BigDecimal(firstKeyAfter.subtract(firstKeyBefore));
+		BigDecimal smalldiff = new BigDecimal(firstKeyAfter.subtract(k));
+		double p =
+			smalldiff.divide(bigdiff, 20, BigDecimal.ROUND_DOWN).doubleValue();
+		return values[after] + p * (values[before] - values[after]);
+	}
+}
@@ -0,0 +1,146 @@
+package freenet.node.rt;
+
+import java.lang.reflect.Method;
+import java.util.Random;
+
+import freenet.Key;
+
+/**
+ * Reports and guesses per second on the keyspace estimators that
+ * StandardNodeEstimator uses, SlidingBucketsKeyspaceEstimator and
+ * FastSlidingBucketsKeyspaceEstimator, on random keys, and the bytes
+ * allocated per operation where the JVM can tell us.
+ * <p>
+ * Usage: KeyspaceEstimatorBenchmark [milliseconds per test]
+ * </p>
+ */
+public class KeyspaceEstimatorBenchmark {
+
+	private static long runtime;
+
+	private static final Key[] keys = new Key[4096];
+
+	private static int next = 0;
+
+	private static volatile double sink;
+
+	private interface Op {
+		void run();
+	}
+
+	public static void main(String[] args) {
+		runtime = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+		Random r = new Random(12345);
+		for (int i = 0; i < keys.length; i++) {
+			byte[] b = new byte[Key.KEYBYTES];
+			r.nextBytes(b);
+			keys[i] = new Key(b);
+		}
+		RunningAverageFactory rafProbability =
+			EdgeKludgingBinaryRunningAverage.factory(1000, 200);
+		RunningAverageFactory rafTime =
+			new BootstrappingDecayingRunningAverageFactory(0, 3600 * 1000, 20);
+		RunningAverageFactory rafTransferRate =
+			new BootstrappingDecayingRunningAverageFactory(0, 1e9, 20);
+		String[] names = { "SlidingBuckets", "FastSlidingBuckets" };
+		for (int f = 0; f < names.length; f++) {
+			KeyspaceEstimatorFactory kef =
+				new SlidingBucketsKeyspaceEstimatorFactory(
+					rafTime,
+					rafProbability,
+					rafTransferRate,
+					16,
+					0.05,
+					false,
+					f == 1);
+			final KeyspaceEstimator time = kef.createTime(5000, "time");
+			final KeyspaceEstimator probability =
+				kef.createProbability(0.5, "probability");
+			final Random rand = new Random(54321);
+			time(names[f] + " reportTime", new Op() {
+				public void run() {
+					time.reportTime(nextKey(), 100 + rand.nextInt(10000));
+				}
+			});
+			time(names[f] + " guessTime", new Op() {
+				public void run() {
+					sink += time.guessTime(nextKey());
+				}
+			});
+			time(names[f] + " reportProbability", new Op() {
+				public void run() {
+					probability.reportProbability(
+						nextKey(),
+						rand.nextInt(4) == 0 ? 1.0 : 0.0);
+				}
+			});
+			time(names[f] + " guessProbability", new Op() {
+				public void run() {
+					sink += probability.guessProbability(nextKey());
+				}
+			});
+		}
+	}
+
+	private static Key nextKey() {
+		return keys[next++ & (keys.length - 1)];
+	}
+
+	private static void time(String name, Op op) {
+		// Warm up
+		for (int i = 0; i < 10000; i++)
+			op.run();
+		int iterations = 0;
+		long duration;
+		long start = System.currentTimeMillis();
+		do {
+			for (int i = 0; i < 1000; i++)
+				op.run();
+			iterations += 1000;
+		} while ((duration = System.currentTimeMillis() - start) < runtime);
+		long before = allocatedBytes();
+		for (int i = 0; i < 10000; i++)
+			op.run();
+		long allocated = allocatedBytes() - before;
+		System.out.println(
+			name
+				+ ": "
+				+ (iterations * 1000L / duration)
+				+ " ops/s, "
+				+ (before < 0 ? "unknown" : Long.toString(allocated / 10000))
+				+ " bytes allocated per op");
+	}
+
+	private static Object threadBean;
+
+	private static Method getThreadAllocatedBytes;
+
+	private static Method getId;
+
+	/**
+	 * @return how many bytes this thread has allocated, or -1 if this isn't
+	 *         a JVM with com.sun.management.ThreadMXBean.
+	 */
+	private static long allocatedBytes() {
+		try {
+			if (threadBean == null) {
+				threadBean =
+					Class
+						.forName("java.lang.management.ManagementFactory")
+						.getMethod("getThreadMXBean", new Class[0])
+						.invoke(null, new Object[0]);
+				getThreadAllocatedBytes =
+					Class.forName("com.sun.management.ThreadMXBean").getMethod(
+						"getThreadAllocatedBytes",
+						new Class[] { Long.TYPE });
+				getId = Thread.class.getMethod("getId", new Class[0]);
+			}
+			Object tid = getId.invoke(Thread.currentThread(), new Object[0]);
+			return ((Long) getThreadAllocatedBytes
+				.invoke(threadBean, new Object[] { tid }))
+				.longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}
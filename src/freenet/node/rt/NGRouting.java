@@ -2,7 +2,6 @@
 package freenet.node.rt;
 
 import java.util.HashSet;
-import java.util.Hashtable;
 
 import freenet.Core;
 import freenet.Identity;
@@ -11,14 +10,14 @@ import freenet.node.Node;
 import freenet.support.Logger;
 
 /**
- * Iterates over a provided NodeEstimator[]
+ * Iterates over the RouteEstimates from NGRoutingTable.route()
  * 
  * @author amphibian
  */
 public class NGRouting extends TerminableRouting {
 	private final NGRoutingTable ngrt;
 	private final HashSet routedTo = new HashSet();
-	private final Hashtable routes = new Hashtable();
+	private final RouteEstimates routes;
 	private final ForgettingEstimateList list;
 	private Estimate lastEstimate = null;
 	private final int maxSteps;
@@ -39,7 +38,7 @@ public class NGRouting extends TerminableRouting {
 
 	NGRouting(
 		NGRoutingTable ngrt,
-		Estimate[] list,
+		RouteEstimates list,
 		int maxLongSteps, // does not include nodes not connected to!
 		int maxTotalSteps, // length to read from list - includes disconnected nodes
 		Key k,
@@ -50,11 +49,7 @@ public class NGRouting extends TerminableRouting {
 		boolean willSendRequests) {
 		super(k, wasLocal, n, willSendRequests);
 		this.list = new ForgettingEstimateList(list, maxTotalSteps);
-		for(int i=0;i<list.length;i++) {
-		    Estimate e = list[i];
-		    if(e == null) continue;
-		    routes.put(e.ne.id, e);
-		}
+		this.routes = list;
 		this.maxSteps = maxLongSteps;
 		this.isAnnouncement = isAnnouncement;
 		this.ngrt = ngrt;
@@ -75,7 +70,7 @@ public class NGRouting extends TerminableRouting {
 		    return false;
 		}
 	    count++;
-	    Estimate e = (Estimate)routes.get(id);
+	    Estimate e = routes.estimate(id);
 	    boolean available = e.ne.
 	        isAvailable(willSendRequests);
 	    if (available) {
@@ -560,10 +555,10 @@ public class NGRouting extends TerminableRouting {
     }
 
     public double getEstimate(Identity id) {
-        return ((Estimate) (routes.get(id))).value;
+        return routes.value(id);
     }
 
     public boolean hasNode(Identity id) {
-        return routes.get(id) != null;
+        return routes.has(id);
     }
 }
@@ -37,8 +37,6 @@ import freenet.support.graph.Color;
 import freenet.support.graph.DibEncoder;
 import freenet.support.graph.GDSList;
 import freenet.support.graph.MinGraphDataSet;
-import freenet.support.sort.ArraySorter;
-import freenet.support.sort.QuickSorter;
 
 /**
  * Routing table based on NodeEstimators
@@ -168,6 +166,10 @@ public class NGRoutingTable
     }
     
 	private final NodeEstimatorStore estimators = new NodeEstimatorStore();
+
+	private final RoutingBatch batch = new RoutingBatch();
+
+	private final RouteCache routeCache = new RouteCache();
 	
     private boolean logDEBUG;
 	final NodeEstimatorFactory neFactory;
@@ -649,54 +651,68 @@ public class NGRoutingTable
 				Logger.DEBUG);
 		updateNewNodeStats();
 		NodeEstimator[] ea = estimators.toArray();
-		double pDataNonexistant = pDataNonexistant(k, ea);
+		RoutingBatch.Table table = batch.update(ea);
 		boolean willRecord = willSendRequests && (!isInsert) && (!isAnnouncement) &&
 			(!orderByInexperience);
-		Estimate[] estimates = new Estimate[ea.length];
-		if(willRecord)
-		    history.addTentative(k, htl, size, pDataNonexistant);
-		int x = 0;
-		try {
-		//double pQueryRejected = singleHopPQueryRejected.currentValue();
-		//int i = 0;
-		for(int i=0;i<ea.length;i++){
-		    NodeEstimator ne = ea[i];
-		    // Must compute estimate even for the unconnected nodes
-		    // because then the typical estimate will be up to date
-		    // and the sort order will be reasonable.
-//		    if(!Main.node.connections.isOpen(ne.id))
-//		        continue;
-			Estimate es;
-			if (orderByInexperience) {
-				es = new Estimate(ne, ne.routeAccesses(), ne.routeAccesses(), -1, -1);
-			} else {
-				es = ne.longEstimate(k, htl, size, 
-				        calculateStandardFileSize(), pDataNonexistant,
-				        !willRecord, history);
-				if (es == null)
-					throw new NullPointerException();
+		long typicalSize = calculateStandardFileSize();
+		int x = ea.length;
+		RouteEstimates estimates;
+		RouteCache.Entry cached = null;
+		if (!orderByInexperience && Node.routeCacheSize > 0)
+			cached =
+				routeCache.get(k, htl, size, typicalSize, table,
+					System.currentTimeMillis(), Node.routeCacheStaleness);
+		if (cached != null) {
+			Core.diagnostics.occurrenceCounting("routeCacheHits", 1);
+			Core.diagnostics.occurrenceCounting("routeCacheTimeSaved",
+				routeCache.averageMissMicros());
+			estimates = new RouteEstimates(cached.estimates);
+			if(willRecord)
+			    history.addTentative(k, htl, size, cached.pDataNonexistant);
+			try {
+				RoutingBatch.record(table, estimates, !willRecord, history);
+			} finally {
+			if(willRecord)
+			    history.confirm();
+			}
+		} else {
+			long start = System.currentTimeMillis();
+			int generation = table.generation;
+			estimates = new RouteEstimates(ea, table.index);
+			double pDataNonexistant =
+				RoutingBatch.pDataNonexistant(table, k.toDouble(), estimates.pDNF, k);
+			if(willRecord)
+			    history.addTentative(k, htl, size, pDataNonexistant);
+			try {
+			    // Must compute estimate even for the unconnected nodes
+			    // because then the typical estimate will be up to date
+			    // and the sort order will be reasonable.
+				if (orderByInexperience)
+					RoutingBatch.inexperience(table, estimates);
+				else
+					RoutingBatch.estimate(table, estimates, k, k.toDouble(), htl,
+					        size, typicalSize, pDataNonexistant,
+					        !willRecord, history);
+			} finally {
+			if(willRecord)
+			    history.confirm();
+			}
+			if (!orderByInexperience && Node.routeCacheSize > 0) {
+				long now = System.currentTimeMillis();
+				Core.diagnostics.occurrenceCounting("routeCacheMisses", 1);
+				routeCache.missed(now - start);
+				routeCache.put(k, htl, size, typicalSize,
+					new RouteCache.Entry(estimates, pDataNonexistant, table,
+						generation, now),
+					Node.routeCacheSize);
 			}
-			if (es == null)
-				throw new NullPointerException();
-			if (logDEBUG)
-				Core.logger.log(
-					this,
-					"estimates[" + i + "] = " + es + " (" + k + ")",
-					Logger.DEBUG);
-			estimates[x] = es;
-			x++;
-		}
-		} finally {
-		if(willRecord)
-		    history.confirm();
 		}
-		ArraySorter vs = new ArraySorter(estimates, 0, x);
-		QuickSorter.quickSort(vs);
 		if (logDEBUG) {
+			estimates.sortTo(x);
 			for (int j = 0; j < x; j++)
 				Core.logger.log(
 					this,
-					"Estimates[" + j + "] = " + estimates[j] + " (" + k + ")",
+					"Estimates[" + j + "] = " + estimates.get(j) + " (" + k + ")",
 					Logger.DEBUG);
 		}
 		return new NGRouting(
@@ -951,6 +967,7 @@ public class NGRoutingTable
 		if (e == null)
 			return;
 		e.routeConnected(time);
+		routeCache.clear();
 	}
 
 	public void reportConnectionFailure(Identity id, long time) {
@@ -958,6 +975,7 @@ public class NGRoutingTable
 		if (e == null)
 			return;
 		e.connectFailed(time);
+		routeCache.clear();
 	}
 	
 	/**
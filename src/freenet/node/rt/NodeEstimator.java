@@ -29,11 +29,23 @@ abstract public class NodeEstimator implements DataObject {
 	 */
 	int counter = 0;
 	
+	/** Incremented by dirtied(), so RoutingBatch can tell when to copy
+	 * our estimators again.
+	 */
+	private volatile int version = 0;
+
 	/** Should be called EVERY TIME ANYTHING CHANGES that affects
 	 * the output of longEstimate().
 	 */
 	protected final void dirtied() {
 	    counter = -1;
+	    synchronized(this) {
+	        version++;
+	    }
+	}
+
+	final int version() {
+	    return version;
 	}
 	
 	public NodeEstimator(RoutingMemory mem, Identity i, NodeReference nr) {
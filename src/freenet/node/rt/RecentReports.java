@@ -7,8 +7,6 @@ import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.Enumeration;
 
-import net.i2p.util.NativeBigInteger;
-
 import freenet.Key;
 
 /**
@@ -19,7 +17,7 @@ class RecentReports implements Serializable {
 
 	//	I need to see these from subclass --zab
 	protected static int RECENT_LENGTH = 16;
-	protected BigInteger recentKeys[] = new BigInteger[RECENT_LENGTH];
+	protected Key recentKeys[] = new Key[RECENT_LENGTH];
 	protected double recentTimes[] = new double[RECENT_LENGTH];
 	protected int recentPtr = 0;
 	protected int recentCount = 0;
@@ -57,11 +55,7 @@ class RecentReports implements Serializable {
 					throw new IOException("negative value");
 				byte[] b = new byte[Key.KEYBYTES];
 				i.readFully(b);
-				recentKeys[x] = new NativeBigInteger(1, b);
-				if (recentKeys[x].signum() == -1)
-					throw new IOException("negative key");
-				if (recentKeys[x].compareTo(Key.KEYSPACE_SIZE) == 1)
-					throw new IOException("exceeded keyspace");
+				recentKeys[x] = new Key(b);
 			}
 		} catch (IOException ioe) {
 			//Sane initial values in case someone wants to use us
@@ -75,13 +69,21 @@ class RecentReports implements Serializable {
      */
     public RecentReports(RecentReports reports) {
         this.recentCount = reports.recentCount;
-        this.recentKeys = (BigInteger[]) reports.recentKeys.clone();
+        this.recentKeys = (Key[]) reports.recentKeys.clone();
         this.recentPtr = reports.recentPtr;
         this.recentTimes = (double[]) reports.recentTimes.clone();
     }
 
-	synchronized void report(BigInteger n, double usec) {
-		recentKeys[recentPtr] = n;
+	void report(BigInteger n, double usec) {
+		report(new Key(n), usec);
+	}
+
+	/**
+	 * Keeps the Key rather than a BigInteger, so reporting doesn't have to
+	 * allocate one.
+	 */
+	synchronized void report(Key k, double usec) {
+		recentKeys[recentPtr] = k;
 		recentTimes[recentPtr] = usec;
 		recentCount++;
 		recentPtr++;
@@ -117,7 +119,7 @@ class RecentReports implements Serializable {
 				for (int ii = 0; ii < Key.KEYBYTES; ii++)
 					b[ii] = 0;
 			} else {
-				b = recentKeys[i].toByteArray();
+				b = recentKeys[i].toBigInteger().toByteArray();
 				if (b.length > Key.KEYBYTES + 1)
 					throw new IllegalStateException(
 						"Key too long in serializing: " + b.length);
@@ -164,7 +166,7 @@ class RecentReports implements Serializable {
 		public Object nextElement() {
 			location++;
 			return new KeyTimePair(
-				recentKeys[location - 1],
+				recentKeys[location - 1].toBigInteger(),
 				recentTimes[location - 1]);
 		}
 
@@ -0,0 +1,274 @@
+package freenet.node.rt;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import freenet.DSAIdentity;
+import freenet.Key;
+import freenet.crypt.Global;
+import freenet.crypt.Yarrow;
+import freenet.support.sort.ArraySorter;
+import freenet.support.sort.QuickSorter;
+
+/**
+ * route() latency against routing table size, estimating every node with
+ * longEstimate() and sorting them all as route() used to, and with
+ * RoutingBatch. Each node's estimators are trained with random reports, and
+ * one node is dirtied every few routes as reports come in on a real node.
+ * Checks that both give the same estimates and the same best nodes. Then
+ * RoutingBatch with a RouteCache, when a few keys are requested over and
+ * over, as with splitfile retries.
+ * <p>
+ * Usage: RouteBenchmark [routes per size] [nodes routed to per route]
+ * </p>
+ */
+public class RouteBenchmark {
+
+    private static final int[] SIZES = { 25, 50, 100, 200, 400, 800 };
+
+    private static final int DIRTY_INTERVAL = 8;
+
+    private static final long SIZE = 128 * 1024;
+
+    /** Keys requested again and again in the cached run */
+    private static final int HOT_KEYS = 64;
+
+    private static final long STALENESS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int routes = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Random r = new Random(12345);
+        Yarrow yarrow = new Yarrow();
+
+        RunningAverageFactory rafProbability =
+            EdgeKludgingBinaryRunningAverage.factory(1000, 200);
+        RunningAverageFactory rafTime =
+            new BootstrappingDecayingRunningAverageFactory(0, 3600 * 1000, 20);
+        RunningAverageFactory rafTransferRate =
+            new BootstrappingDecayingRunningAverageFactory(0, 1e9, 20);
+        KeyspaceEstimatorFactory kef =
+            new SlidingBucketsKeyspaceEstimatorFactory(
+                rafTime, rafProbability, rafTransferRate, 16, 0.05, false, true);
+        StandardNodeStats stats = StandardNodeStats.createPessimisticDefault();
+
+        Key[] keys = new Key[1024];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = randomKey(r);
+
+        for (int s = 0; s < SIZES.length; s++) {
+            int n = SIZES[s];
+            StandardNodeEstimator[] ea = new StandardNodeEstimator[n];
+            for (int i = 0; i < n; i++) {
+                ea[i] =
+                    new StandardNodeEstimator(
+                        null,
+                        new DSAIdentity(
+                            Global.DSAgroupC,
+                            new BigInteger(1024, r)),
+                        null,
+                        null,
+                        null,
+                        rafProbability,
+                        rafTime,
+                        kef,
+                        randomKey(r),
+                        stats,
+                        false,
+                        yarrow);
+                for (int j = 0; j < 100; j++)
+                    train(ea[i], r);
+            }
+
+            RoutingBatch batch = new RoutingBatch();
+            int mismatches = check(ea, batch, keys, depth);
+
+            // Warm up, then time each
+            oldRoutes(ea, keys, routes / 4, depth, r);
+            batchRoutes(ea, batch, keys, routes / 4, depth, r);
+            long start = System.currentTimeMillis();
+            oldRoutes(ea, keys, routes, depth, r);
+            long oldTime = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            batchRoutes(ea, batch, keys, routes, depth, r);
+            long batchTime = System.currentTimeMillis() - start;
+            RouteCache cache = new RouteCache();
+            cachedRoutes(ea, batch, cache, keys, routes / 4, depth, r);
+            start = System.currentTimeMillis();
+            int hits = cachedRoutes(ea, batch, cache, keys, routes, depth, r);
+            long cachedTime = System.currentTimeMillis() - start;
+
+            System.out.println(
+                n
+                    + " nodes: longEstimate "
+                    + (oldTime * 1000.0 / routes)
+                    + "us/route, batch "
+                    + (batchTime * 1000.0 / routes)
+                    + "us/route, cached "
+                    + (cachedTime * 1000.0 / routes)
+                    + "us/route ("
+                    + (hits * 100 / routes)
+                    + "% hits)"
+                    + (mismatches == 0 ? "" : ", " + mismatches + " MISMATCHES"));
+        }
+    }
+
+    private static Key randomKey(Random r) {
+        byte[] b = new byte[Key.KEYBYTES];
+        r.nextBytes(b);
+        return new Key(b);
+    }
+
+    /** Report a random outcome to a node, as NGRouting would */
+    private static void train(StandardNodeEstimator ne, Random r) {
+        Key k = randomKey(r);
+        switch (r.nextInt(4)) {
+            case 0 :
+                ne.etSuccessSearch.reportTime(k, 500 + r.nextInt(10000));
+                ne.erTransferSuccess.reportTransferRate(k, r.nextDouble() * 20);
+                ne.epDNF.reportProbability(k, 0.0);
+                ne.epTransferFailed.reportProbability(k, 0.0);
+                break;
+            case 1 :
+                ne.epDNF.reportProbability(k, 1.0);
+                ne.etDNF.reportTime(k, 1000 + r.nextInt(20000));
+                break;
+            case 2 :
+                ne.epTransferFailed.reportProbability(k, 1.0);
+                ne.erTransferFailed.reportTransferRate(k, r.nextDouble() * 5);
+                break;
+            default :
+                ne.rpQueryRejected.report(r.nextInt(4) == 0 ? 1.0 : 0.0);
+                ne.rpSearchFailed.report(r.nextInt(8) == 0 ? 1.0 : 0.0);
+                ne.rpEarlyTimeout.report(r.nextInt(16) == 0 ? 1.0 : 0.0);
+        }
+        ne.dirtied();
+    }
+
+    private static Estimate[] oldRoute(NodeEstimator[] ea, Key k) {
+        double pDataNonexistant = 1.0;
+        for (int i = 0; i < ea.length; i++)
+            pDataNonexistant = Math.min(pDataNonexistant, ea[i].dnfProbability(k));
+        Estimate[] estimates = new Estimate[ea.length];
+        for (int i = 0; i < ea.length; i++)
+            estimates[i] =
+                ea[i].longEstimate(k, 10, SIZE, SIZE, pDataNonexistant, true, null);
+        QuickSorter.quickSort(new ArraySorter(estimates, 0, ea.length));
+        return estimates;
+    }
+
+    private static RouteEstimates batchRoute(
+        NodeEstimator[] ea,
+        RoutingBatch batch,
+        Key k) {
+        RoutingBatch.Table t = batch.update(ea);
+        RouteEstimates e = new RouteEstimates(ea, t.index);
+        double d = k.toDouble();
+        double pDataNonexistant = RoutingBatch.pDataNonexistant(t, d, e.pDNF, k);
+        RoutingBatch.estimate(t, e, k, d, 10, SIZE, SIZE, pDataNonexistant, true, null);
+        return e;
+    }
+
+    private static void oldRoutes(
+        StandardNodeEstimator[] ea,
+        Key[] keys,
+        int routes,
+        int depth,
+        Random r) {
+        for (int i = 0; i < routes; i++) {
+            Estimate[] e = oldRoute(ea, keys[i % keys.length]);
+            for (int j = 0; j < depth && j < e.length; j++)
+                if (e[j].ne == null)
+                    throw new IllegalStateException();
+            if (i % DIRTY_INTERVAL == 0)
+                train(ea[r.nextInt(ea.length)], r);
+        }
+    }
+
+    private static void batchRoutes(
+        StandardNodeEstimator[] ea,
+        RoutingBatch batch,
+        Key[] keys,
+        int routes,
+        int depth,
+        Random r) {
+        for (int i = 0; i < routes; i++) {
+            RouteEstimates e = batchRoute(ea, batch, keys[i % keys.length]);
+            for (int j = 0; j < depth && j < e.length(); j++)
+                if (e.get(j).ne == null)
+                    throw new IllegalStateException();
+            if (i % DIRTY_INTERVAL == 0)
+                train(ea[r.nextInt(ea.length)], r);
+        }
+    }
+
+    /**
+     * Route to HOT_KEYS keys as NGRoutingTable does with its RouteCache.
+     * @return the number of cache hits
+     */
+    private static int cachedRoutes(
+        StandardNodeEstimator[] ea,
+        RoutingBatch batch,
+        RouteCache cache,
+        Key[] keys,
+        int routes,
+        int depth,
+        Random r) {
+        int hits = 0;
+        for (int i = 0; i < routes; i++) {
+            Key k = keys[i % HOT_KEYS];
+            RoutingBatch.Table t = batch.update(ea);
+            long now = System.currentTimeMillis();
+            RouteCache.Entry c = cache.get(k, 10, SIZE, SIZE, t, now, STALENESS);
+            RouteEstimates e;
+            if (c != null) {
+                hits++;
+                e = new RouteEstimates(c.estimates);
+                RoutingBatch.record(t, e, true, null);
+            } else {
+                int generation = t.generation;
+                e = batchRoute(ea, batch, k);
+                cache.put(
+                    k, 10, SIZE, SIZE,
+                    new RouteCache.Entry(e, 0.0, t, generation, now),
+                    HOT_KEYS * 2);
+            }
+            for (int j = 0; j < depth && j < e.length(); j++)
+                if (e.get(j).ne == null)
+                    throw new IllegalStateException();
+            if (i % DIRTY_INTERVAL == 0)
+                train(ea[r.nextInt(ea.length)], r);
+        }
+        return hits;
+    }
+
+    /**
+     * @return the number of keys where the two differ in an estimate, or in
+     *         which nodes come first.
+     */
+    private static int check(
+        NodeEstimator[] ea,
+        RoutingBatch batch,
+        Key[] keys,
+        int depth) {
+        int mismatches = 0;
+        for (int i = 0; i < 100; i++) {
+            Key k = keys[i];
+            Estimate[] o = oldRoute(ea, k);
+            RouteEstimates b = batchRoute(ea, batch, k);
+            boolean ok = true;
+            for (int j = 0; j < o.length; j++) {
+                double v = b.value(o[j].ne.id);
+                if (Math.abs(v - o[j].value) > Math.abs(v) * 1e-9)
+                    ok = false;
+            }
+            // Ties are broken randomly by both, so compare values in order
+            for (int j = 0; j < depth && j < o.length; j++)
+                if (b.get(j).value != b.value(o[j].ne.id))
+                    ok = false;
+            if (!ok)
+                mismatches++;
+        }
+        return mismatches;
+    }
+}
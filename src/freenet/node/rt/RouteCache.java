@@ -0,0 +1,148 @@
+package freenet.node.rt;
+
+import java.util.HashMap;
+
+import freenet.Key;
+import freenet.support.LRUQueue;
+
+/**
+ * Recent routing decisions, so that requests for the same key soon after
+ * each other (splitfile retries, healing, fproxy reloads) don't estimate
+ * every node again.
+ * <p>
+ * An entry is for a key, HTL, size and typical size, and holds the estimates
+ * RoutingBatch made for it. It can only be used with the same routing table
+ * (RoutingBatch.Table) it was made from. It is stale as soon as any node's
+ * estimators change, which RoutingBatch.update() records in the table's
+ * generation, but can still be used for up to staleness milliseconds after
+ * it was made. With a staleness of 0, routing is exactly as without the
+ * cache. NGRoutingTable clears the cache when nodes connect or fail to.
+ * </p>
+ */
+final class RouteCache {
+
+	/** What a routing decision depends on, besides the estimators */
+	private static final class Request {
+		final Key key;
+		final int htl;
+		final long size;
+		final long typicalSize;
+
+		Request(Key key, int htl, long size, long typicalSize) {
+			this.key = key;
+			this.htl = htl;
+			this.size = size;
+			this.typicalSize = typicalSize;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Request))
+				return false;
+			Request r = (Request) o;
+			return htl == r.htl
+				&& size == r.size
+				&& typicalSize == r.typicalSize
+				&& key.equals(r.key);
+		}
+
+		public int hashCode() {
+			return key.hashCode() ^ (htl * 31) ^ (int) (size ^ (size >>> 32));
+		}
+	}
+
+	static final class Entry {
+		/** Only the estimate arrays are used, see RouteEstimates */
+		final RouteEstimates estimates;
+		final double pDataNonexistant;
+		final RoutingBatch.Table table;
+		final int generation;
+		final long created;
+
+		Entry(
+			RouteEstimates estimates,
+			double pDataNonexistant,
+			RoutingBatch.Table table,
+			int generation,
+			long created) {
+			this.estimates = estimates;
+			this.pDataNonexistant = pDataNonexistant;
+			this.table = table;
+			this.generation = generation;
+			this.created = created;
+		}
+	}
+
+	private final HashMap entries = new HashMap();
+
+	private final LRUQueue lru = new LRUQueue();
+
+	private long misses = 0;
+
+	private long missMillis = 0;
+
+	/**
+	 * @return the entry for a request, if there is one that is fresh enough
+	 *         for the current routing table.
+	 */
+	synchronized Entry get(
+		Key k,
+		int htl,
+		long size,
+		long typicalSize,
+		RoutingBatch.Table table,
+		long now,
+		long staleness) {
+		Request r = new Request(k, htl, size, typicalSize);
+		Entry e = (Entry) entries.get(r);
+		if (e == null)
+			return null;
+		if (e.table != table
+			|| (e.generation != table.generation && now - e.created > staleness)) {
+			entries.remove(r);
+			lru.remove(r);
+			return null;
+		}
+		lru.push(r);
+		return e;
+	}
+
+	/**
+	 * Remember a routing decision, dropping the least recently used if we
+	 * have more than maxEntries.
+	 */
+	synchronized void put(
+		Key k,
+		int htl,
+		long size,
+		long typicalSize,
+		Entry e,
+		int maxEntries) {
+		Request r = new Request(k, htl, size, typicalSize);
+		entries.put(r, e);
+		lru.push(r);
+		while (entries.size() > maxEntries)
+			entries.remove(lru.pop());
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		while (lru.pop() != null);
+	}
+
+	/**
+	 * Record how long estimating took on a miss, so we know how much a hit
+	 * saves.
+	 */
+	synchronized void missed(long millis) {
+		misses++;
+		missMillis += millis;
+	}
+
+	/**
+	 * @return the average time a miss spends estimating, in microseconds.
+	 *         Averaged over many so the clock's granularity doesn't matter.
+	 */
+	synchronized long averageMissMicros() {
+		return misses == 0 ? 0 : missMillis * 1000 / misses;
+	}
+}
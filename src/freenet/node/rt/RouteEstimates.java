@@ -0,0 +1,197 @@
+package freenet.node.rt;
+
+import java.util.HashMap;
+
+import freenet.Core;
+import freenet.Identity;
+
+/**
+ * The estimates for every node for one route(), as parallel arrays rather
+ * than an Estimate per node. Nodes are only put in order as far as the
+ * route gets: the best CHUNK are selected and sorted at a time, so a
+ * request that succeeds on the first few nodes doesn't pay to sort the
+ * whole table. Estimate objects are only created for the nodes actually
+ * routed to.
+ */
+final class RouteEstimates {
+
+	/** Number of nodes put in order at a time */
+	private static final int CHUNK = 16;
+
+	final NodeEstimator[] nodes;
+	final double[] value;
+	final double[] normalizedValue;
+	final long[] searchSuccessTime;
+	final double[] transferRate;
+	/** Scratch space for RoutingBatch */
+	final double[] pDNF;
+
+	/** Identity to index in nodes, shared with RoutingBatch */
+	private final HashMap index;
+
+	/** Indexes of nodes, in order up to sorted */
+	private final int[] order;
+
+	private int sorted = 0;
+
+	/**
+	 * Equal estimates (new nodes, mostly) are ordered by their index,
+	 * rotated by a random amount on each route, as Estimate uses a random
+	 * tie breaker.
+	 */
+	private final int rotation;
+
+	private final Estimate[] estimates;
+
+	RouteEstimates(NodeEstimator[] nodes, HashMap index) {
+		this.nodes = nodes;
+		this.index = index;
+		int n = nodes.length;
+		value = new double[n];
+		normalizedValue = new double[n];
+		searchSuccessTime = new long[n];
+		transferRate = new double[n];
+		pDNF = new double[n];
+		order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		estimates = new Estimate[n];
+		rotation = n == 0 ? 0 : (Core.getRandSource().nextInt() & Integer.MAX_VALUE) % n;
+	}
+
+	/**
+	 * Route again with the estimates made for an earlier route, for
+	 * RouteCache. The estimates are shared, as nothing changes them once
+	 * RoutingBatch has filled them in; the order is our own.
+	 */
+	RouteEstimates(RouteEstimates cached) {
+		nodes = cached.nodes;
+		index = cached.index;
+		value = cached.value;
+		normalizedValue = cached.normalizedValue;
+		searchSuccessTime = cached.searchSuccessTime;
+		transferRate = cached.transferRate;
+		pDNF = cached.pDNF;
+		int n = nodes.length;
+		order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		estimates = new Estimate[n];
+		rotation = n == 0 ? 0 : (Core.getRandSource().nextInt() & Integer.MAX_VALUE) % n;
+	}
+
+	int length() {
+		return nodes.length;
+	}
+
+	/**
+	 * @return the Estimate for the node at the given position in order of
+	 *         estimated time, best first.
+	 */
+	synchronized Estimate get(int rank) {
+		if (rank >= sorted)
+			sortTo(rank + 1);
+		return estimate(order[rank]);
+	}
+
+	/**
+	 * @return the Estimate for a node, or null if it wasn't in the routing
+	 *         table when we routed.
+	 */
+	synchronized Estimate estimate(Identity id) {
+		int i = indexOf(id);
+		return i < 0 ? null : estimate(i);
+	}
+
+	boolean has(Identity id) {
+		return indexOf(id) >= 0;
+	}
+
+	/**
+	 * @return the estimated time for a node, or -1 if it wasn't in the
+	 *         routing table when we routed.
+	 */
+	double value(Identity id) {
+		int i = indexOf(id);
+		return i < 0 ? -1 : value[i];
+	}
+
+	private int indexOf(Identity id) {
+		Integer i = (Integer) index.get(id);
+		return i == null ? -1 : i.intValue();
+	}
+
+	private Estimate estimate(int i) {
+		Estimate e = estimates[i];
+		if (e == null)
+			e = estimates[i] =
+				new Estimate(
+					nodes[i],
+					value[i],
+					normalizedValue[i],
+					searchSuccessTime[i],
+					transferRate[i]);
+		return e;
+	}
+
+	/**
+	 * Put the nodes in order up to at least position count.
+	 */
+	synchronized void sortTo(int count) {
+		int n = order.length;
+		while (sorted < count && sorted < n) {
+			int end = Math.min(sorted + CHUNK, n);
+			if (end < n)
+				select(sorted, n - 1, end);
+			// Insertion sort the chunk
+			for (int i = sorted + 1; i < end; i++) {
+				int x = order[i];
+				int j = i - 1;
+				while (j >= sorted && less(x, order[j])) {
+					order[j + 1] = order[j];
+					j--;
+				}
+				order[j + 1] = x;
+			}
+			sorted = end;
+		}
+	}
+
+	/**
+	 * Rearrange order[lo..hi] so that everything before k is less than
+	 * everything from k on.
+	 */
+	private void select(int lo, int hi, int k) {
+		while (hi > lo) {
+			int mid = (lo + hi) >>> 1;
+			int pivot = order[mid];
+			order[mid] = order[hi];
+			order[hi] = pivot;
+			int store = lo;
+			for (int i = lo; i < hi; i++) {
+				if (less(order[i], pivot)) {
+					int t = order[i];
+					order[i] = order[store];
+					order[store] = t;
+					store++;
+				}
+			}
+			order[hi] = order[store];
+			order[store] = pivot;
+			if (store == k)
+				return;
+			if (store > k)
+				hi = store - 1;
+			else
+				lo = store + 1;
+		}
+	}
+
+	private boolean less(int a, int b) {
+		int c = Double.compare(value[a], value[b]);
+		if (c != 0)
+			return c < 0;
+		int n = order.length;
+		return (a + rotation) % n < (b + rotation) % n;
+	}
+}
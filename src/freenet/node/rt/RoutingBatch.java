@@ -0,0 +1,388 @@
+package freenet.node.rt;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import freenet.Core;
+import freenet.Key;
+import freenet.support.Logger;
+
+/**
+ * Computes the estimates for every node in the routing table for a key in
+ * one pass, instead of calling longEstimate() on each StandardNodeEstimator
+ * in turn.
+ * <p>
+ * Each node's estimators are copied into a row of doubles: the running
+ * averages longEstimate() uses, then the bucket centers and values of each
+ * of its six keyspace estimators. A row is only copied again when the node
+ * has been dirtied(), and is replaced rather than changed, so routing
+ * threads read the rows without taking any locks. Nodes whose keyspace
+ * estimators aren't FastSlidingBucketsKeyspaceEstimators get an empty row,
+ * and are estimated with longEstimate() as before.
+ * </p>
+ */
+final class RoutingBatch {
+
+	// Row layout
+	private static final int VERSION = 0;
+	private static final int P_QUERY_REJECTED = 1;
+	private static final int T_QUERY_REJECTED = 2;
+	private static final int P_EARLY_TIMEOUT = 3;
+	private static final int T_EARLY_TIMEOUT = 4;
+	private static final int P_SEARCH_FAILED = 5;
+	private static final int T_SEARCH_FAILED = 6;
+	/** 1.0 if erTransferFailed has no reports */
+	private static final int NO_TRANSFER_FAILED_REPORTS = 7;
+	/** Buckets per keyspace estimator, or 0 for longEstimate() */
+	private static final int BUCKETS = 8;
+	private static final int HEADER = 9;
+
+	// Keyspace estimators, in the order they are in the row
+	private static final int SUCCESS_SEARCH_TIME = 0;
+	private static final int DNF_PROBABILITY = 1;
+	private static final int DNF_TIME = 2;
+	private static final int TRANSFER_FAILED_PROBABILITY = 3;
+	private static final int TRANSFER_SUCCESS_RATE = 4;
+	private static final int TRANSFER_FAILED_RATE = 5;
+	private static final int ESTIMATORS = 6;
+
+	private static final double KEYSPACE_SIZE = Key.KEYSPACE_SIZE.doubleValue();
+
+	/** The lowest rate we use, see StandardNodeEstimator */
+	private static final double MIN_RATE = 1.0 / 16000.0;
+
+	/** The rows for one version of the routing table */
+	static final class Table {
+		final NodeEstimator[] nodes;
+		/** Replaced, never changed, as the nodes are dirtied */
+		final double[][] rows;
+		/** Identity to index in nodes */
+		final HashMap index;
+		/** Incremented whenever a row is replaced, for RouteCache */
+		volatile int generation = 0;
+
+		Table(NodeEstimator[] nodes, Table old) {
+			this.nodes = nodes;
+			rows = new double[nodes.length][];
+			index = new HashMap(nodes.length * 2);
+			IdentityHashMap oldRows = new IdentityHashMap();
+			if (old != null)
+				for (int i = 0; i < old.nodes.length; i++)
+					oldRows.put(old.nodes[i], old.rows[i]);
+			for (int i = 0; i < nodes.length; i++) {
+				rows[i] = (double[]) oldRows.get(nodes[i]);
+				index.put(nodes[i].id, new Integer(i));
+			}
+		}
+	}
+
+	private Table table;
+
+	/**
+	 * @param ea
+	 *            the routing table, from NodeEstimatorStore.toArray(), which
+	 *            only makes a new array when nodes are added or removed.
+	 * @return the rows for ea, with any nodes that have changed copied
+	 *         again.
+	 */
+	Table update(NodeEstimator[] ea) {
+		Table t;
+		synchronized (this) {
+			t = table;
+			if (t == null || t.nodes != ea)
+				table = t = new Table(ea, t);
+		}
+		boolean changed = false;
+		for (int i = 0; i < ea.length; i++) {
+			double[] row = t.rows[i];
+			int version = ea[i].version();
+			if (row == null || row[VERSION] != version) {
+				t.rows[i] = makeRow(ea[i], version);
+				changed = true;
+			}
+		}
+		if (changed)
+			t.generation++;
+		return t;
+	}
+
+	private static double[] makeRow(NodeEstimator ne, int version) {
+		double[] row = null;
+		if (ne instanceof StandardNodeEstimator) {
+			StandardNodeEstimator sne = (StandardNodeEstimator) ne;
+			KeyspaceEstimator[] e = new KeyspaceEstimator[ESTIMATORS];
+			e[SUCCESS_SEARCH_TIME] = sne.etSuccessSearch;
+			e[DNF_PROBABILITY] = sne.epDNF;
+			e[DNF_TIME] = sne.etDNF;
+			e[TRANSFER_FAILED_PROBABILITY] = sne.epTransferFailed;
+			e[TRANSFER_SUCCESS_RATE] = sne.erTransferSuccess;
+			e[TRANSFER_FAILED_RATE] = sne.erTransferFailed;
+			int buckets = -1;
+			for (int i = 0; i < ESTIMATORS; i++) {
+				if (!(e[i] instanceof FastSlidingBucketsKeyspaceEstimator)) {
+					buckets = -1;
+					break;
+				}
+				int b = ((FastSlidingBucketsKeyspaceEstimator) e[i]).accuracy;
+				if (buckets != -1 && b != buckets) {
+					buckets = -1;
+					break;
+				}
+				buckets = b;
+			}
+			if (buckets > 0) {
+				row = new double[HEADER + ESTIMATORS * 2 * buckets];
+				row[P_QUERY_REJECTED] = sne.rpQueryRejected.currentValue();
+				row[T_QUERY_REJECTED] = sne.rtQueryRejected.currentValue();
+				row[P_EARLY_TIMEOUT] = sne.rpEarlyTimeout.currentValue();
+				row[T_EARLY_TIMEOUT] = sne.rtEarlyTimeout.currentValue();
+				row[P_SEARCH_FAILED] = sne.rpSearchFailed.currentValue();
+				row[T_SEARCH_FAILED] = sne.rtSearchFailed.currentValue();
+				row[NO_TRANSFER_FAILED_REPORTS] =
+					sne.erTransferFailed.noReports() ? 1.0 : 0.0;
+				row[BUCKETS] = buckets;
+				for (int i = 0; i < ESTIMATORS; i++)
+					((FastSlidingBucketsKeyspaceEstimator) e[i]).copyBuckets(
+						row,
+						HEADER + i * 2 * buckets);
+			}
+		}
+		if (row == null)
+			row = new double[HEADER];
+		row[VERSION] = version;
+		return row;
+	}
+
+	/**
+	 * Fill in the probability of DataNotFound for each node, as
+	 * dnfProbability() would give it.
+	 *
+	 * @return the lowest, which is the probability that the data doesn't
+	 *         exist at all.
+	 */
+	static double pDataNonexistant(Table t, double k, double[] pDNF, Key key) {
+		double pDataNonexistant = 1.0;
+		for (int i = 0; i < t.nodes.length; i++) {
+			double[] row = t.rows[i];
+			double p;
+			if (row[BUCKETS] > 0)
+				p = probability(guess(row, DNF_PROBABILITY, k));
+			else
+				p = t.nodes[i].dnfProbability(key);
+			pDNF[i] = p;
+			if (p < pDataNonexistant)
+				pDataNonexistant = p;
+		}
+		return pDataNonexistant;
+	}
+
+	/**
+	 * Order the nodes by how often we have routed to them, least first.
+	 */
+	static void inexperience(Table t, RouteEstimates r) {
+		for (int i = 0; i < t.nodes.length; i++) {
+			double accesses = t.nodes[i].routeAccesses();
+			r.value[i] = accesses;
+			r.normalizedValue[i] = accesses;
+			r.searchSuccessTime[i] = -1;
+			r.transferRate[i] = -1;
+		}
+	}
+
+	/**
+	 * Estimate every node, the same way StandardNodeEstimator.longEstimate()
+	 * does, into the arrays of r.
+	 */
+	static void estimate(
+		Table t,
+		RouteEstimates r,
+		Key key,
+		double k,
+		int htl,
+		long size,
+		long typicalSize,
+		double pDataNonexistant,
+		boolean ignoreForStats,
+		RecentRequestHistory rrh) {
+		double[] value = r.value;
+		double[] normalized = r.normalizedValue;
+		long[] searchTime = r.searchSuccessTime;
+		double[] rate = r.transferRate;
+		double[] pDNFs = r.pDNF;
+		Estimate fallback = null;
+		for (int i = 0; i < t.nodes.length; i++) {
+			double[] row = t.rows[i];
+			NodeEstimator ne = t.nodes[i];
+			if (row[BUCKETS] <= 0) {
+				if (fallback == null)
+					fallback = new Estimate();
+				ne.longEstimate(
+					key,
+					htl,
+					size,
+					typicalSize,
+					pDataNonexistant,
+					fallback,
+					ignoreForStats,
+					rrh);
+				value[i] = fallback.value;
+				normalized[i] = fallback.normalizedValue;
+				searchTime[i] = fallback.searchSuccessTime;
+				rate[i] = fallback.transferRate;
+				continue;
+			}
+
+			double pQueryRejected = row[P_QUERY_REJECTED];
+			double tQueryRejected = row[T_QUERY_REJECTED];
+			double pEarlyTimeout = row[P_EARLY_TIMEOUT];
+			double tEarlyTimeout = row[T_EARLY_TIMEOUT];
+			double pSearchFailed = row[P_SEARCH_FAILED];
+			double tSearchFailed = row[T_SEARCH_FAILED];
+
+			double tSuccessSearch = guess(row, SUCCESS_SEARCH_TIME, k);
+			double pDNF = pDNFs[i];
+			double tDNF = guess(row, DNF_TIME, k) * htl;
+			double pDNFGivenDataExists =
+				pDataNonexistant < 1.0
+					? Math.max(0, (pDNF - pDataNonexistant))
+						/ (1 - pDataNonexistant)
+					: pDNF;
+
+			double pTransferFailed =
+				probability(guess(row, TRANSFER_FAILED_PROBABILITY, k));
+			double transferRate =
+				Math.max(guess(row, TRANSFER_SUCCESS_RATE, k), MIN_RATE);
+			double rTransferFailed;
+			if (row[NO_TRANSFER_FAILED_REPORTS] == 0.0)
+				rTransferFailed =
+					Math.max(guess(row, TRANSFER_FAILED_RATE, k), MIN_RATE);
+			else
+				rTransferFailed = transferRate;
+			double tTransferFailed = size > 0 ? size / rTransferFailed : 0;
+			tTransferFailed += tSuccessSearch;
+			double tTypicalTransferFailed =
+				typicalSize > 0 ? typicalSize / rTransferFailed : 0;
+			tTypicalTransferFailed += tSuccessSearch;
+
+			double tFailure = pTransferFailed * tTransferFailed;
+			double tTypicalFailure = pTransferFailed * tTypicalTransferFailed;
+			tFailure *= (1 - pDNFGivenDataExists);
+			tFailure += pDNFGivenDataExists * tDNF;
+			tTypicalFailure *= (1 - pDNFGivenDataExists);
+			tTypicalFailure += pDNFGivenDataExists * tDNF;
+			tFailure *= (1 - pSearchFailed);
+			tFailure += pSearchFailed * tSearchFailed;
+			tTypicalFailure *= (1 - pSearchFailed);
+			tTypicalFailure += pSearchFailed * tSearchFailed;
+			tFailure *= (1 - pEarlyTimeout);
+			tFailure += pEarlyTimeout * tEarlyTimeout;
+			tTypicalFailure *= (1 - pEarlyTimeout);
+			tTypicalFailure += pEarlyTimeout * tEarlyTimeout;
+			tFailure *= (1 - pQueryRejected);
+			tFailure += pQueryRejected * tQueryRejected;
+			tTypicalFailure *= (1 - pQueryRejected);
+			tTypicalFailure += pQueryRejected * tQueryRejected;
+
+			double pSuccess =
+				(1.0 - pQueryRejected)
+					* (1.0 - pEarlyTimeout)
+					* (1.0 - pSearchFailed)
+					* (1.0 - pDNFGivenDataExists)
+					* (1.0 - pTransferFailed);
+			double tSuccess;
+			double tTypicalSuccess;
+			if (pSuccess > 1 || pSuccess < 0) {
+				Core.logger.log(
+					RoutingBatch.class,
+					"pSuccess = " + pSuccess + " for " + ne,
+					Logger.ERROR);
+				tSuccess = Long.MAX_VALUE;
+				tTypicalSuccess = Long.MAX_VALUE;
+			} else {
+				tSuccess = tSuccessSearch + (size / transferRate);
+				tTypicalSuccess = tSuccessSearch + (typicalSize / transferRate);
+			}
+
+			value[i] = tSuccess + tFailure / pSuccess;
+			normalized[i] = tTypicalSuccess + tTypicalFailure / pSuccess;
+			searchTime[i] = (long) tSuccessSearch;
+			rate[i] = transferRate;
+		}
+		// Now the bits that need the estimators themselves
+		for (int i = 0; i < t.nodes.length; i++) {
+			if (t.rows[i][BUCKETS] > 0)
+				((StandardNodeEstimator) t.nodes[i]).recordEstimate(
+					value[i],
+					normalized[i],
+					ignoreForStats,
+					rrh);
+		}
+	}
+
+	/**
+	 * Keep the estimates from an earlier route for the stats, as estimate()
+	 * would have done, when RouteCache saves us making them again.
+	 */
+	static void record(
+		Table t,
+		RouteEstimates r,
+		boolean ignoreForStats,
+		RecentRequestHistory rrh) {
+		for (int i = 0; i < t.nodes.length; i++) {
+			if (t.nodes[i] instanceof StandardNodeEstimator)
+				((StandardNodeEstimator) t.nodes[i]).recordEstimate(
+					r.value[i],
+					r.normalizedValue[i],
+					ignoreForStats,
+					rrh);
+		}
+	}
+
+	/**
+	 * FastSlidingBucketsKeyspaceEstimator.guess() on a copy of its buckets.
+	 */
+	private static double guess(double[] row, int estimator, double k) {
+		int buckets = (int) row[BUCKETS];
+		int centers = HEADER + estimator * 2 * buckets;
+		int values = centers + buckets;
+		// Binary search for the first center above k
+		int lo = 0;
+		int hi = buckets - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			double c = row[centers + mid];
+			if (c < k)
+				lo = mid + 1;
+			else if (c > k)
+				hi = mid - 1;
+			else
+				return row[values + mid]; // Exact match
+		}
+		int after = lo;
+		if (after >= buckets)
+			after -= buckets;
+		int before = lo - 1;
+		if (before < 0)
+			before += buckets;
+		double firstKeyAfter = row[centers + after];
+		double firstKeyBefore = row[centers + before];
+		double afterValue = row[values + after];
+		double beforeValue = row[values + before];
+		if (firstKeyBefore > firstKeyAfter) {
+			if (k < firstKeyAfter)
+				k += KEYSPACE_SIZE;
+			firstKeyAfter = firstKeyAfter + KEYSPACE_SIZE;
+		}
+		double p = (firstKeyAfter - k) / (firstKeyAfter - firstKeyBefore);
+		return afterValue + p * (beforeValue - afterValue);
+	}
+
+	/** As guessProbability() clips it */
+	private static double probability(double d) {
+		if (d < 0.0)
+			return 0.0;
+		if (d > 1.0)
+			return 1.0;
+		return d;
+	}
+}
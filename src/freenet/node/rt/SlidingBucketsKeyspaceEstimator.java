@@ -34,7 +34,8 @@ import freenet.support.graph.GraphDataSet;
  * @see FastSlidingBucketsKeyspaceEstimator - whenever this file is changed,
  * there should be corresponding changes in that file; please do a diff if you
  * change this or that file, and ensure that the only differences are small code
- * changes because of this class using BigInteger, and that using double for keys.
+ * changes because of this class using two longs (see Key128), and that using
+ * double for keys.
  */
 public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator {
 
@@ -57,7 +58,7 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
             synchronized(this) { // REDFLAG: we ARE writing into a stringwriter, right?
                 for(int i=0;i<accuracy;i++) {
                     pw.println("<tr><td>");
-                    pw.println(HexUtil.biToHex(leftEdge[i]));
+                    pw.println(HexUtil.biToHex(edge(i)));
                     pw.println("</td><td>");
                     pw.println(type.rawToString(ra[i].currentValue()));
                     pw.println("</td><td>");
@@ -86,13 +87,16 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
      * leftEdge[i] and leftEdge[i+1] with center
      * centers[i].
      * KEPT IN STRICTLY INCREASING ORDER.
+     * Each key is two longs, see Key128.
      */
     
     final RunningAverage[] ra;
-    final BigInteger[] leftEdge;
-    final BigInteger[] centers;
+    final long[] edgeHigh;
+    final long[] edgeLow;
+    final long[] centerHigh;
+    final long[] centerLow;
     final RecentReports recent;
-    final BigDecimal movementFactor;
+    final double movementFactor;
     final int accuracy;
     final int TARGET_REPORTS = 10;
     final boolean doSmoothing;
@@ -106,12 +110,14 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
     public SlidingBucketsKeyspaceEstimator(RunningAverageFactory factory, int accuracy,
             BigDecimal movementFactor, double initValue, Unit type, String name, boolean doSmoothing) {
         super(type, name);
-        this.movementFactor = movementFactor;
+        this.movementFactor = movementFactor.doubleValue();
         this.accuracy = accuracy;
         this.doSmoothing = doSmoothing;
         ra = new RunningAverage[accuracy];
-        leftEdge = new BigInteger[accuracy];
-        centers = new BigInteger[accuracy];
+        edgeHigh = new long[accuracy];
+        edgeLow = new long[accuracy];
+        centerHigh = new long[accuracy];
+        centerLow = new long[accuracy];
         // Initial dividing keys: gap should be keyspace / accuracy
 		BigInteger a = Key.KEYSPACE_SIZE.subtract(BigInteger.ONE);
 		BigInteger b = a.divide(BigInteger.valueOf(accuracy));
@@ -119,8 +125,8 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
         for(int i=(accuracy-1);i>=0;i--) {
             a = a.subtract(b);
             ra[i] = factory.create(initValue);
-            leftEdge[i] = a;
-            centers[i] = a.add(c);
+            setEdge(i, a);
+            setCenter(i, a.add(c));
         }
         recent = new RecentReports();
         dump("Initialized flat", Logger.MINOR, false);
@@ -144,7 +150,7 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
             BigDecimal mf, DataInputStream dis, Unit type, String name, boolean doSmoothing) 
             throws IOException {
         super(type, name);
-        this.movementFactor = mf;
+        this.movementFactor = mf.doubleValue();
         int magic = dis.readInt();
         this.doSmoothing = doSmoothing;
         if(magic != SERIAL_MAGIC)
@@ -156,13 +162,15 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
         if(acc != accuracy)
             throw new IOException("Accuracy changed");
         this.accuracy = accuracy;
-        centers = new BigInteger[accuracy];
-        leftEdge = new BigInteger[accuracy];
+        centerHigh = new long[accuracy];
+        centerLow = new long[accuracy];
+        edgeHigh = new long[accuracy];
+        edgeLow = new long[accuracy];
         ra = new RunningAverage[accuracy];
         for(int i=0;i<accuracy;i++) {
-            centers[i] = readBigInteger(dis);
-            leftEdge[i] = readBigInteger(dis);
-            if(i != 0 && leftEdge[i].compareTo(centers[i]) == 1)
+            setCenter(i, readBigInteger(dis));
+            setEdge(i, readBigInteger(dis));
+            if(i != 0 && compareEdgeToCenter(i, i) > 0)
                 throw new IOException("Border greater than center on "+i);
             ra[i] = raf.create(dis);
             if(!type.withinRange(ra[i].currentValue()))
@@ -210,10 +218,12 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
 		    throw new EstimatorFormatException("Different accuracy: "+acc+" should be "+accuracy);
 		this.accuracy = accuracy;
 		ra = new RunningAverage[accuracy];
-		leftEdge = new BigInteger[accuracy];
-		centers = new BigInteger[accuracy];
+		edgeHigh = new long[accuracy];
+		edgeLow = new long[accuracy];
+		centerHigh = new long[accuracy];
+		centerLow = new long[accuracy];
 		recent = new RecentReports();
-		movementFactor = mf;
+		movementFactor = mf.doubleValue();
 		FieldSet points = set.getSet("Points");
 		if(points == null)
 		    throw new EstimatorFormatException("No points!");
@@ -228,15 +238,17 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
 
 		    String key = point.getString("DividingKey");
 		    if(key == null) throw new EstimatorFormatException("No key "+i);
+		    BigInteger edge;
 		    try {
-		        leftEdge[i] = new BigInteger(key, 16);
+		        edge = new BigInteger(key, 16);
 		    } catch (NumberFormatException e) {
 		        throw new EstimatorFormatException("Invalid key: "+key);
 		    }
-		    if(leftEdge[i].signum() == -1)
-		        throw new EstimatorFormatException("Negative key: "+leftEdge[i]+" for "+i);
-		    if(leftEdge[i].compareTo(Key.KEYSPACE_SIZE) == 1)
-		        throw new EstimatorFormatException("Too big key: "+leftEdge[i]+" for "+i);
+		    if(edge.signum() == -1)
+		        throw new EstimatorFormatException("Negative key: "+edge+" for "+i);
+		    if(edge.compareTo(Key.KEYSPACE_SIZE) == 1)
+		        throw new EstimatorFormatException("Too big key: "+edge+" for "+i);
+		    setEdge(i, edge);
 		}
 		/** 
 		 * Minimum sector size: 
@@ -245,21 +257,18 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
 		 * The point here is to prevent fake passed in estimators from taking an
 		 * excessively long time to correct.
 		 */
-		BigInteger minStep = Key.KEYSPACE_SIZE.divide(BigInteger.valueOf(accuracy * 10));
-		// Run loop twice because center[] all null until updateCenter called.
+		double minStep = Key128.toDouble(-1, -1) / (accuracy * 10);
+		// Run loop twice because center[] all unset until updateCenter called.
 		for(int i=0;i<accuracy;i++) {
 		    updateCenter(i);
 		}
 		for(int i=0;i<accuracy;i++) {
-		    BigInteger thisCenter = centers[i];
 		    int prev = (i + accuracy - 1) % accuracy;
-		    BigInteger prevCenter = centers[prev];
-		    if(thisCenter.compareTo(prevCenter) == -1) {
-		        // thisCenter > prevCenter
-		        thisCenter = thisCenter.add(Key.KEYSPACE_SIZE);
-		    }
-		    BigInteger diff = thisCenter.subtract(prevCenter);
-		    if(diff.compareTo(minStep) == -1)
+		    // Distance around the keyspace, so wraps by itself
+		    double diff = Key128.toDouble(
+		            Key128.subtractHigh(centerHigh[i], centerLow[i], centerHigh[prev], centerLow[prev]),
+		            centerLow[i] - centerLow[prev]);
+		    if(diff < minStep)
 		        throw new EstimatorFormatException("Overspecialized probably fake estimator: refusing to accept FieldSet: diff "+i+"="+diff);
 		}
 		correctSlide();
@@ -271,9 +280,11 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
     public SlidingBucketsKeyspaceEstimator(SlidingBucketsKeyspaceEstimator e) {
         super(e);
         this.accuracy = e.accuracy;
-        this.centers = (BigInteger[]) e.centers.clone();
+        this.centerHigh = (long[]) e.centerHigh.clone();
+        this.centerLow = (long[]) e.centerLow.clone();
         this.doSmoothing = e.doSmoothing;
-        this.leftEdge = (BigInteger[]) e.leftEdge.clone();
+        this.edgeHigh = (long[]) e.edgeHigh.clone();
+        this.edgeLow = (long[]) e.edgeLow.clone();
         this.movementFactor = e.movementFactor;
         this.ra = new RunningAverage[e.ra.length];
         for(int i=0;i<ra.length;i++) {
@@ -295,6 +306,30 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
         return new BigInteger(1,buf);
     }
 
+    private void setEdge(int i, BigInteger key) {
+        edgeHigh[i] = Key128.highOf(key);
+        edgeLow[i] = Key128.lowOf(key);
+    }
+
+    private void setCenter(int i, BigInteger key) {
+        centerHigh[i] = Key128.highOf(key);
+        centerLow[i] = Key128.lowOf(key);
+    }
+
+    /** @return leftEdge[i] as a BigInteger, for serialization and logging */
+    private BigInteger edge(int i) {
+        return Key128.toBigInteger(edgeHigh[i], edgeLow[i]);
+    }
+
+    /** @return centers[i] as a BigInteger, for serialization and logging */
+    private BigInteger center(int i) {
+        return Key128.toBigInteger(centerHigh[i], centerLow[i]);
+    }
+
+    private int compareEdgeToCenter(int edge, int center) {
+        return Key128.compare(edgeHigh[edge], edgeLow[edge], centerHigh[center], centerLow[center]);
+    }
+
     public HTMLReportTool getHTMLReportingTool() {
         return new SlidingBucketsHTMLReportingTool(this);
     }
@@ -355,7 +390,7 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
                 FieldSet pt = new FieldSet();
                 points.put(Integer.toHexString(i), pt);
                 pt.put("Value", ra[i].toFieldSet());
-                pt.put("DividingKey", HexUtil.biToHex(leftEdge[i]));
+                pt.put("DividingKey", HexUtil.biToHex(edge(i)));
             }
         }
         return fs;
@@ -367,8 +402,8 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
         out.writeInt(accuracy);
         synchronized(this) {
             for(int i=0;i<accuracy;i++) {
-                writeBigInteger(centers[i], out);
-                writeBigInteger(leftEdge[i], out);
+                writeBigInteger(center(i), out);
+                writeBigInteger(edge(i), out);
                 ra[i].writeDataTo(out);
             }
         }
@@ -395,8 +430,8 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
         int l = 4 + 4;
         for(int i=0;i<accuracy;i++) {
             synchronized(this) {
-                l += 2 + centers[i].toByteArray().length;
-                l += 2 + leftEdge[i].toByteArray().length;
+                l += 2 + center(i).toByteArray().length;
+                l += 2 + edge(i).toByteArray().length;
                 l += ra[i].getDataLength();
             }
         }
@@ -408,21 +443,21 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
     }
 
     public double guessRaw(Key k) {
-        return guess(k.toBigInteger(),0);
+        return guess(k.keyspaceHigh(), k.keyspaceLow(), 0);
     }
 
     public double guessRaw(Key k, int age) {
-        return guess(k.toBigInteger(), 0);
+        return guess(k.keyspaceHigh(), k.keyspaceLow(), 0);
     }
     
     public double guessTime(Key k) {
         checkType(TIME, false);
-        return guess(k.toBigInteger(),0);
+        return guess(k.keyspaceHigh(), k.keyspaceLow(), 0);
     }
 
     public double guessProbability(Key k) {
         checkType(PROBABILITY, false);
-        double d = guess(k.toBigInteger(),0);
+        double d = guess(k.keyspaceHigh(), k.keyspaceLow(), 0);
         if(d < 0.0) {
             Core.logger.log(this, "Guessed probability: "+d+" on "+this,
                     Logger.ERROR);
@@ -438,12 +473,12 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
 
     public double guessTransferRate(Key k) {
         checkType(TRANSFER_RATE, false);
-        return guess(k.toBigInteger(),0);
+        return guess(k.keyspaceHigh(), k.keyspaceLow(), 0);
     }
 
     public void reportTime(Key k, long millis) {
         checkType(TIME, true);
-        report(k.toBigInteger(), millis);
+        report(k, millis);
     }
 
     /**
@@ -461,38 +496,52 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
 
     public void reportProbability(Key k, double p) {
         checkType(PROBABILITY, true);
-        report(k.toBigInteger(), p);
+        report(k, p);
     }
 
     public void reportTransferRate(Key k, double rate) {
         checkType(TRANSFER_RATE, true);
-        report(k.toBigInteger(), rate);
+        report(k, rate);
     }
 
     protected Object getGDSSync() {
         return this;
     }
 
+    /**
+     * Binary search the centers, as Arrays.binarySearch.
+     * @return the index of k, or (-(insertion point) - 1).
+     */
+    private int searchCenters(long kHigh, long kLow) {
+        int low = 0;
+        int high = accuracy - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = Key128.compare(centerHigh[mid], centerLow[mid], kHigh, kLow);
+            if(cmp < 0) low = mid + 1;
+            else if(cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
     /**
      * Guess a value for a given key.
      * Algorithm:
      * Find the two nearest sectors, by their centers.
      * Get their values.
      * Interpolate between them.
-     * @param k the key to guess a value for
+     * @param kHigh the high half of the key to guess a value for
+     * @param kLow the low half of the key
      * @param age ignored
      */
-    double guess(BigInteger k, int age) {
-//        if(logDEBUG)
-//            Core.logger.log(this, "Guessing: "+HexUtil.biToHex(k)+" on "+this,
-//                    Logger.DEBUG);
-        BigInteger firstKeyAfter = null;
-        BigInteger firstKeyBefore = null;
-        BigInteger origK = k;
+    double guess(long kHigh, long kLow, int age) {
         double beforeValue = -1;
         double afterValue = -1;
+        double sectorSize;
+        double fromAfter;
         synchronized(this) {
-            int idx = java.util.Arrays.binarySearch(centers, k);
+            int idx = searchCenters(kHigh, kLow);
             if(idx >= 0) {
                 // Exact match! (rather unlikely)
                 return getBucketValue(idx);
@@ -507,56 +556,38 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
                 if(after >= accuracy) after -= accuracy; // cheaper than %, right?
                 int before = idx-1;
                 if(before < 0) before += accuracy;
-                firstKeyAfter = centers[after];
                 afterValue = getBucketValue(after);
-                firstKeyBefore = centers[before];
                 beforeValue = getBucketValue(before);
-//                if(logDEBUG) {
-//                    Core.logger.log(this, "After: "+after+": "+ra[after]+" = "+afterValue, Logger.DEBUG);
-//                    Core.logger.log(this, "Before: "+before+": "+ra[before]+" = "+beforeValue, Logger.DEBUG);
-//                }
+                // Distances around the keyspace, so the sector that wraps
+                // needs no special treatment
+                sectorSize = Key128.toDouble(
+                        Key128.subtractHigh(centerHigh[after], centerLow[after], centerHigh[before], centerLow[before]),
+                        centerLow[after] - centerLow[before]);
+                fromAfter = Key128.toDouble(
+                        Key128.subtractHigh(centerHigh[after], centerLow[after], kHigh, kLow),
+                        centerLow[after] - kLow);
             }
         }
-        if(firstKeyBefore.compareTo(firstKeyAfter) == 1) {
-            if(k.compareTo(firstKeyAfter) == -1)
-                k = k.add(Key.KEYSPACE_SIZE);
-            firstKeyAfter = firstKeyAfter.add(Key.KEYSPACE_SIZE);
-        }
         // Found sector
         // Now just interpolate
-        double interpolatedValue = interpolate(k, firstKeyBefore, beforeValue, firstKeyAfter, afterValue);
+        double interpolatedValue = interpolate(fromAfter / sectorSize, beforeValue, afterValue);
 
-        if(/*logDEBUG || */interpolatedValue < 0.0) {
+        if(interpolatedValue < 0.0) {
             String s = interpolatedValue+
-            	" in guess("+HexUtil.biToHex(origK)+" -> "+HexUtil.biToHex(k)+
-            	") on "+this+": keyBefore="+HexUtil.biToHex(firstKeyBefore)+
-            	", keyAfter="+HexUtil.biToHex(firstKeyAfter)+", key="+k+
+            	" in guess("+HexUtil.biToHex(Key128.toBigInteger(kHigh, kLow))+
+            	") on "+this+": sectorSize="+sectorSize+", fromAfter="+fromAfter+
             	", beforeValue="+beforeValue+", afterValue="+afterValue;
-//            if(interpolatedValue < 0.0) {
-                Core.logger.log(this, "Interpolated crazy value: "+s, Logger.ERROR);
-//            }
-//            if(logDEBUG)
-//                Core.logger.log(this, "Interpolated: "+s, Logger.DEBUG);
+            Core.logger.log(this, "Interpolated crazy value: "+s, Logger.ERROR);
         }
         return interpolatedValue;
     }
 
     /**
      * Calculates, given the other input values, the interpolated value of 'key'.
+     * @param p the proportion of the way from the center after the key back
+     * to the center before it.
      */
-    protected double interpolate(BigInteger key, BigInteger firstKeyBefore, double beforeValue, BigInteger firstKeyAfter, double afterValue) {
-        BigInteger bigdiff = firstKeyAfter.subtract(firstKeyBefore);
-        BigInteger smalldiff = firstKeyAfter.subtract(key);
-
-        BigDecimal bigdiffDecimal = new BigDecimal(bigdiff);
-        BigDecimal smalldiffDecimal = new BigDecimal(smalldiff);
-        BigDecimal proportion = smalldiffDecimal.divide(bigdiffDecimal, 20 /*FIXME: arbitrary!*/, BigDecimal.ROUND_DOWN);
-        // FIXME: Converting to double loses accuracy.
-        // This may be irrelevant but if so, then we shouldn't be storing
-        // them as BigIntegers!!
-        // See FastSlidingBucketsKeyspaceEstimator
-        // IIRC it was just a PITA to do it all using BigDecimals...
-        double p = proportion.doubleValue();
+    protected double interpolate(double p, double beforeValue, double afterValue) {
         double interpolatedValue =
             afterValue + p * (beforeValue - afterValue);
 		return interpolatedValue;
@@ -644,54 +675,56 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
     }
     }
 
-    void report(BigInteger k, double d) {
-        recent.report(k, d);
+    void report(Key key, double d) {
+        recent.report(key, d);
+        long k = key.keyspaceHigh();
+        long kLow = key.keyspaceLow();
         synchronized(this) {
             errorCheckConsistency();
             if(logDEBUG)
-                dump("Before report("+HexUtil.biToHex(k)+","+d+")", Logger.DEBUG, true);
+                dump("Before report("+HexUtil.biToHex(Key128.toBigInteger(k, kLow))+","+d+")", Logger.DEBUG, true);
             // Search CENTERS, not boundaries, because CENTERS ARE KEPT IN
             // ORDER !
-            int sidx = java.util.Arrays.binarySearch(centers, k);
+            int sidx = searchCenters(k, kLow);
             
             if(sidx >= 0) {
                 // Exact match on center sidx
                 // Which is between boundaries sidx and sidx+1
-                moveTowardsAndUpdateCentersNotDeadOn(k, sidx, d);
+                moveTowardsAndUpdateCentersNotDeadOn(k, kLow, sidx, d);
                 return;
             } else {
                 // Rather more complicated!
                 int idx = -sidx-1;
                 if(idx == accuracy) {
                     // We are after center # accuracy-1, at the right hand end
-                    if(leftEdge[0].compareTo(leftEdge[1]) == -1) {
+                    if(Key128.compare(edgeHigh[0], edgeLow[0], edgeHigh[1], edgeLow[1]) < 0) {
                         // leftEdge[0] < leftEdge[1]
                         // We are at the other end, so we are in [accuracy-1]
-                        moveTowardsAndUpdateCentersNotDeadOn(k, accuracy-1, d);
+                        moveTowardsAndUpdateCentersNotDeadOn(k, kLow, accuracy-1, d);
                         return;
                     }
                 } else if(idx == 0) {
                     // We are behind center #0
-                    if(leftEdge[0].compareTo(centers[0]) == 1) {
+                    if(compareEdgeToCenter(0, 0) > 0) {
                         // leftEdge[0] is on the other end so we are 
                         // definitely in sector 0
-                        moveTowardsAndUpdateCentersNotDeadOn(k, 0, d);
+                        moveTowardsAndUpdateCentersNotDeadOn(k, kLow, 0, d);
                         return;
                     }
                 }
                 idx = idx % accuracy;
                 int idxMinusOne = (idx + accuracy - 1) % accuracy;
-                int cmp = leftEdge[idx].compareTo(k);
+                int cmp = Key128.compare(edgeHigh[idx], edgeLow[idx], k, kLow);
                 if(cmp > 0) {
                     // leftEdge[idx] > k => we are in sector before.
                     // Not wrapped around because of above special cases.
-                    moveTowardsAndUpdateCentersNotDeadOn(k, idxMinusOne, d);
+                    moveTowardsAndUpdateCentersNotDeadOn(k, kLow, idxMinusOne, d);
                 } else if(cmp < 0) {
                     // We are in sector idx
-                    moveTowardsAndUpdateCentersNotDeadOn(k, idx, d);
+                    moveTowardsAndUpdateCentersNotDeadOn(k, kLow, idx, d);
                 } else {
                     // leftEdge[idx] == k - we are dead on
-                    moveTowardsAndUpdateCentersDeadOn(k, idx, d);
+                    moveTowardsAndUpdateCentersDeadOn(k, kLow, idx, d);
                 }
             }
 //            int idx = sidx;
@@ -756,7 +789,7 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
      * @param sector The sector the report falls into. 
      * @param d The value of the actual report.
      */
-    private void moveTowardsAndUpdateCentersNotDeadOn(BigInteger k, int sector, double d) {
+    private void moveTowardsAndUpdateCentersNotDeadOn(long k, long kLow, int sector, double d) {
         // We are between leftEdge[sector] and leftEdge[sector+1]
         int nextSector = sector + 1;
         int nextPlusSector = sector + 2;
@@ -764,8 +797,8 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
         if(prevSector < 0) prevSector += accuracy;
         if(nextSector >= accuracy) nextSector -= accuracy;
         if(nextPlusSector >= accuracy) nextPlusSector -= accuracy;
-        moveTowardsKDirectional(k, sector, true);
-        moveTowardsKDirectional(k, (sector + 1) % accuracy, false);
+        moveTowardsKDirectional(k, kLow, sector, true);
+        moveTowardsKDirectional(k, kLow, (sector + 1) % accuracy, false);
         ra[sector].report(d);
         updateCenter(sector);
         updateCenter(nextSector);
@@ -774,7 +807,7 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
         correctSlide();
         errorCheckConsistency();
         if(logDEBUG)
-            dump("Reported "+HexUtil.biToHex(k)+":"+d+
+            dump("Reported "+HexUtil.biToHex(Key128.toBigInteger(k, kLow))+":"+d+
                     " via moveTowardsAndUpdateCentersNotDeadOn(k,"+sector+
                     ",d): nextSector="+nextSector+", prevSector="+prevSector+
                     ", nextPlusSector="+nextPlusSector, Logger.DEBUG, false);
@@ -785,57 +818,36 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
      * @param forward If true, move in the positive direction only. If
      * false, move in the negative direction only.
      */
-    private void moveTowardsKDirectional(BigInteger k, int sector, boolean forward) {
-        BigInteger edge = leftEdge[sector];
-        BigInteger diff = edge.subtract(k);
+    private void moveTowardsKDirectional(long k, long kLow, int sector, boolean forward) {
+        long edge = edgeHigh[sector];
+        long edgeL = edgeLow[sector];
         /**
-         * If we are going forward, then we expect k > edge => diff<0
-         * If we are going backward, then we expect edge > k => diff>0
+         * The distance from the edge to k, going in the direction we are
+         * allowed to move. Because it is modulo the keyspace, it is always
+         * the right size and the right direction.
          */
-        if(forward) diff = diff.negate();
-        if(diff.signum() < 0) {
-            /**
-             * Going forward, k < edge:
-             * diff > 0
-             * Then diff < 0 (invert).
-             * Now diff < 0 so we are here.
-             * Adding a keyspace will make us go forward.
-             */
-            /** 
-             * Going backward, k > edge:
-             * diff < 0
-             * Then diff < 0 (don't invert).
-             * We are pointed in the right direction but by the wrong amount.
-             * If we add a keyspace we get the right amount.
-             */
-            diff = diff.add(Key.KEYSPACE_SIZE);
+        long diff;
+        long diffL;
+        if(forward) {
+            diff = Key128.subtractHigh(k, kLow, edge, edgeL);
+            diffL = kLow - edgeL;
         } else {
-            /**
-             * Going forward, k > edge:
-             * diff < 0
-             * Invert: diff > 0, so we are here.
-             * Right size, right direction.
-             */
-            /**
-             * Going backwards, k < edge:
-             * diff > 0
-             * diff > 0 because no invert.
-             * We are pointed in the wrong direction but we are the right size.
-             */
+            diff = Key128.subtractHigh(edge, edgeL, k, kLow);
+            diffL = edgeL - kLow;
         }
-        if(!forward) diff = diff.negate();
         
-        // Now diff is the right direction and the right size
         // Now scale it.
         
-        BigDecimal bd = new BigDecimal(diff);
-        bd = bd.multiply(movementFactor);
-        BigInteger result = edge.add(bd.toBigInteger());
-        
-        if(result.signum() == -1) result = result.add(Key.KEYSPACE_SIZE);
-        if(result.compareTo(Key.KEYSPACE_SIZE) == 1)
-            result = result.subtract(Key.KEYSPACE_SIZE);
-        leftEdge[sector] = result;
+        double move = Key128.toDouble(diff, diffL) * movementFactor;
+        long moveH = Key128.highOf(move);
+        long moveL = Key128.lowOf(move);
+        if(forward) {
+            edgeHigh[sector] = Key128.addHigh(edge, edgeL, moveH, moveL);
+            edgeLow[sector] = edgeL + moveL;
+        } else {
+            edgeHigh[sector] = Key128.subtractHigh(edge, edgeL, moveH, moveL);
+            edgeLow[sector] = edgeL - moveL;
+        }
     }
 
     /**
@@ -844,7 +856,7 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
      * @param sector The sector whose left boundary the key is equal to.
      * @param d The value being reported.
      */
-    private void moveTowardsAndUpdateCentersDeadOn(BigInteger k, int sector, double d) {
+    private void moveTowardsAndUpdateCentersDeadOn(long k, long kLow, int sector, double d) {
         // leftEdge[sector] should be unchanged
         int nextSector = sector + 1;
         int prevSector = sector - 1;
@@ -852,8 +864,8 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
         if(prevSector < 0) prevSector += accuracy;
         if(pprevSector < 0) pprevSector += accuracy;
         if(nextSector >= accuracy) nextSector -= accuracy;
-        moveTowardsKDirectional(k, prevSector, true);
-        moveTowardsKDirectional(k, nextSector, false);
+        moveTowardsKDirectional(k, kLow, prevSector, true);
+        moveTowardsKDirectional(k, kLow, nextSector, false);
         ra[sector].report(d);
         updateCenter(sector);
         updateCenter(prevSector);
@@ -862,7 +874,7 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
         correctSlide();
         errorCheckConsistency();
         if(logDEBUG)
-            dump("Reported "+HexUtil.biToHex(k)+":"+d+
+            dump("Reported "+HexUtil.biToHex(Key128.toBigInteger(k, kLow))+":"+d+
                     " via moveTowardsAndUpdateCentersNotDeadOn(k,"+sector+
                     ",d): nextSector="+nextSector+", prevSector="+prevSector+
                     ", nextPlusSector="+pprevSector, Logger.DEBUG, false);
@@ -880,33 +892,30 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
          */
         int count = 0;
         while(count < accuracy) {
-            if(centers[0].compareTo(centers[1]) == 1) {
+            if(Key128.compare(centerHigh[0], centerLow[0], centerHigh[1], centerLow[1]) > 0) {
                 count++;
                 // centers[0] > centers[1]
                 // [0] -> [15], [1] -> [0], [2] -> [1], ...
-                BigInteger oldCenter = centers[0];
-                BigInteger oldBorder = leftEdge[0];
+                rotateLeft(centerHigh);
+                rotateLeft(centerLow);
+                rotateLeft(edgeHigh);
+                rotateLeft(edgeLow);
                 RunningAverage oldRA = ra[0];
-                System.arraycopy(centers, 1, centers, 0, accuracy-1);
-                System.arraycopy(leftEdge, 1, leftEdge, 0, accuracy-1);
                 System.arraycopy(ra, 1, ra, 0, accuracy-1);
-                centers[accuracy-1] = oldCenter;
-                leftEdge[accuracy-1] = oldBorder;
                 ra[accuracy-1] = oldRA;
                 if(logDEBUG)
                     dump("After left shift "+count, Logger.DEBUG, false);
-            } else if(centers[accuracy-1].compareTo(centers[accuracy-2]) == -1) {
+            } else if(Key128.compare(centerHigh[accuracy-1], centerLow[accuracy-1],
+                    centerHigh[accuracy-2], centerLow[accuracy-2]) < 0) {
                 count++;
                 // centers[15] < centers[14]
                 // [15] -> [0], [0] -> [1], [1] -> [2], ...
-                BigInteger oldCenter = centers[accuracy-1];
-                BigInteger oldBorder = leftEdge[accuracy-1];
+                rotateRight(centerHigh);
+                rotateRight(centerLow);
+                rotateRight(edgeHigh);
+                rotateRight(edgeLow);
                 RunningAverage oldRA = ra[accuracy-1];
-                System.arraycopy(centers, 0, centers, 1, accuracy-1);
-                System.arraycopy(leftEdge, 0, leftEdge, 1, accuracy-1);
                 System.arraycopy(ra, 0, ra, 1, accuracy-1);
-                centers[0] = oldCenter;
-                leftEdge[0] = oldBorder;
                 ra[0] = oldRA;
                 if(logDEBUG)
                     dump("After right shift "+count, Logger.DEBUG, false);
@@ -915,6 +924,20 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
         Core.logger.log(this, "Too many shifts!: "+count+" for "+this, Logger.ERROR);
     }
 
+    /** [0] -> [end], [1] -> [0], ... */
+    private void rotateLeft(long[] a) {
+        long first = a[0];
+        System.arraycopy(a, 1, a, 0, accuracy-1);
+        a[accuracy-1] = first;
+    }
+
+    /** [end] -> [0], [0] -> [1], ... */
+    private void rotateRight(long[] a) {
+        long last = a[accuracy-1];
+        System.arraycopy(a, 0, a, 1, accuracy-1);
+        a[0] = last;
+    }
+
     private void errorCheckConsistency() {
         String s = checkConsistency();
         if(s != null)
@@ -930,39 +953,23 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
      * (with wraparound)
      */
     private synchronized String checkConsistency() {
-        BigInteger prevCenter = null;
         StringBuffer ret = null;
+        // Keys are unsigned and modulo the keyspace, so can't be negative
+        // or too high.
         for(int i=0;i<accuracy;i++) {
-            BigInteger center = centers[i];
-            if(center.signum() == -1) {
-                if(ret == null) ret = new StringBuffer();
-                ret.append("NEGATIVE CENTER: "+HexUtil.biToHex(center));
-            }
-            if(center.compareTo(Key.KEYSPACE_SIZE) == 1) {
-                if(ret == null) ret = new StringBuffer();
-                ret.append("TOO HIGH CENTER: "+HexUtil.biToHex(center));
-            }
-            if(prevCenter != null && i != (accuracy-1) &&
-                    prevCenter.compareTo(center) == 1) {
-                if(ret == null) ret = new StringBuffer();
-                ret.append("INCONSISTENT: ["+i+"]: "+HexUtil.biToHex(center)+
-                        " < prev "+HexUtil.biToHex(prevCenter)+"\n");
-            }
-            if(prevCenter != null && prevCenter.equals(center)) {
-                if(ret == null) ret = new StringBuffer();
-                ret.append("TWO SECTORS EQUAL CENTERS: "+HexUtil.biToHex(center)+" at "+i+"\n");
-            }
-            BigInteger boundary = leftEdge[i];
-            if(boundary.signum() == -1) {
-                if(ret == null) ret = new StringBuffer();
-                ret.append("NEGATIVE BOUNDARY: "+HexUtil.biToHex(boundary));
-            }
-            if(boundary.compareTo(Key.KEYSPACE_SIZE) == 1) {
-                if(ret == null) ret = new StringBuffer();
-                ret.append("TOO HIGH BOUNDARY: "+HexUtil.biToHex(boundary));
+            if(i != 0) {
+                int cmp = Key128.compare(centerHigh[i-1], centerLow[i-1], centerHigh[i], centerLow[i]);
+                if(i != (accuracy-1) && cmp > 0) {
+                    if(ret == null) ret = new StringBuffer();
+                    ret.append("INCONSISTENT: ["+i+"]: "+HexUtil.biToHex(center(i))+
+                            " < prev "+HexUtil.biToHex(center(i-1))+"\n");
+                }
+                if(cmp == 0) {
+                    if(ret == null) ret = new StringBuffer();
+                    ret.append("TWO SECTORS EQUAL CENTERS: "+HexUtil.biToHex(center(i))+" at "+i+"\n");
+                }
             }
-            if(i != (accuracy-1) && 
-                    boundary.compareTo(center) == 1) {
+            if(i != (accuracy-1) && compareEdgeToCenter(i, i) > 0) {
                 // boundary > center.
                 // Could be due to wraparound, IF it's the first element.
                 if(i == 0) continue;
@@ -971,14 +978,15 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
             }
             // Don't need to check next boundary because of centers check.
         }
-        if(centers[0].compareTo(centers[accuracy-1]) == 1) {
+        int cmp = Key128.compare(centerHigh[0], centerLow[0], centerHigh[accuracy-1], centerLow[accuracy-1]);
+        if(cmp > 0) {
            if(ret == null) ret = new StringBuffer();
-           ret.append("INCONSISTENT: [0] > [end]: [0] = "+HexUtil.biToHex(centers[0])+
-                   ", [end] = "+HexUtil.biToHex(centers[accuracy-1])+"\n");
+           ret.append("INCONSISTENT: [0] > [end]: [0] = "+HexUtil.biToHex(center(0))+
+                   ", [end] = "+HexUtil.biToHex(center(accuracy-1))+"\n");
         }
-        if(centers[0].equals(centers[accuracy-1])) {
+        if(cmp == 0) {
             if(ret == null) ret = new StringBuffer();
-            ret.append("INCONSISTENT: [0] == [end] = "+HexUtil.biToHex(centers[0])+"\n");
+            ret.append("INCONSISTENT: [0] == [end] = "+HexUtil.biToHex(center(0))+"\n");
         }
         return ret == null ? null : new String(ret);
     }
@@ -997,9 +1005,9 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
         for(int i=0;i<accuracy;i++) {
             sb.append(i);
             sb.append(": start ");
-            sb.append(HexUtil.biToHex(leftEdge[i]));
+            sb.append(HexUtil.biToHex(edge(i)));
             sb.append(" center ");
-            sb.append(HexUtil.biToHex(centers[i]));
+            sb.append(HexUtil.biToHex(center(i)));
             sb.append(" value ");
             sb.append(ra[i].toString());
             sb.append('\n');
@@ -1011,19 +1019,24 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
     }
 
     private synchronized void updateCenter(int c1) {
-        BigInteger lowerEdge = leftEdge[c1];
-        BigInteger upperEdge = leftEdge[(c1 + 1) % accuracy];
-        if(upperEdge.compareTo(lowerEdge) == 1) {
-            // lowerEdge < upperEdge, all is normal, no wraparound
-            centers[c1] = lowerEdge.add(upperEdge).shiftRight(1);
+        int c2 = (c1 + 1) % accuracy;
+        long lowerEdge = edgeHigh[c1];
+        long lowerEdgeL = edgeLow[c1];
+        // Width of the sector, around the keyspace if it wraps
+        long width = Key128.subtractHigh(edgeHigh[c2], edgeLow[c2], lowerEdge, lowerEdgeL);
+        long widthL = edgeLow[c2] - lowerEdgeL;
+        long half;
+        long halfL;
+        if(width == 0 && widthL == 0) {
+            // Equal edges: the sector is the whole keyspace
+            half = Long.MIN_VALUE;
+            halfL = 0;
         } else {
-            // upperEdge < lowerEdge, need to wrap around
-            upperEdge = upperEdge.add(Key.KEYSPACE_SIZE);
-            BigInteger movedTo = lowerEdge.add(upperEdge).shiftRight(1);
-            if(movedTo.compareTo(Key.KEYSPACE_SIZE) == 1)
-                movedTo = movedTo.subtract(Key.KEYSPACE_SIZE);
-            centers[c1] = movedTo;
+            half = width >>> 1;
+            halfL = (widthL >>> 1) | (width << 63);
         }
+        centerHigh[c1] = Key128.addHigh(lowerEdge, lowerEdgeL, half, halfL);
+        centerLow[c1] = lowerEdgeL + halfL;
     }
 
     public int maxAge() {
@@ -1031,7 +1044,7 @@ public class SlidingBucketsKeyspaceEstimator extends NumericKeyKeyspaceEstimator
     }
 
     protected double guessRaw(BigInteger b, int age) {
-        return guess(b, age);
+        return guess(Key128.highOf(b), Key128.lowOf(b), age);
     }
 
     public int countReports() {
@@ -914,35 +914,7 @@ class StandardNodeEstimator extends NodeEstimator {
 		double estimate = tSuccess + tFailure / pSuccess;
 		double typicalEstimate = tTypicalSuccess + tTypicalFailure / pSuccess;
 
-		lastEstimate = estimate;
-		lastTypicalEstimate = typicalEstimate;
-		synchronized(this) {
-		    if(rrh != null && !ignoreForStats) {
-		        averageTypicalEstimate.report(typicalEstimate);
-		        averageEstimate.report(estimate);
-		        counter++;
-		        if(logDEBUG)
-		            Core.logger.log(this, "Added "+estimate+":"+typicalEstimate+
-		                    " for "+this+" ("+rrh+"): counter="+counter, Logger.DEBUG);
-		    } else {
-		        if(logDEBUG)
-		            Core.logger.log(this, "Not adding point for "+this+": "+rrh+
-		                    ", counter="+counter, Logger.DEBUG);
-		        // otherwise no point as will be ignored
-		    }
-		}
-		if (successes > 0
-			&& (Math.abs(estimate) > (long) (Math.pow(10, 13)) || estimate < 0)) {
-			// Some of these will have the initial pessimistic estimators!
-			// It can be well below 0, because of new nodes with pDNF <<
-			// pDataNonexistant
-			if (logMINOR) {
-			Core.logger.log(
-				this,
-				"Unreasonable estimate: " + estimate + " for " + this,
-				Logger.MINOR);
-		}
-		}
+		recordEstimate(estimate, typicalEstimate, ignoreForStats, rrh);
 		fillIn.ne = this;
 		fillIn.value = estimate;
 		fillIn.normalizedValue = typicalEstimate;
@@ -1001,6 +973,46 @@ class StandardNodeEstimator extends NodeEstimator {
 		}
 	}
 
+	/**
+	 * Keep an estimate made by longEstimate() or by RoutingBatch for the
+	 * stats.
+	 */
+	void recordEstimate(
+		double estimate,
+		double typicalEstimate,
+		boolean ignoreForStats,
+		RecentRequestHistory rrh) {
+		lastEstimate = estimate;
+		lastTypicalEstimate = typicalEstimate;
+		synchronized(this) {
+		    if(rrh != null && !ignoreForStats) {
+		        averageTypicalEstimate.report(typicalEstimate);
+		        averageEstimate.report(estimate);
+		        counter++;
+		        if(logDEBUG)
+		            Core.logger.log(this, "Added "+estimate+":"+typicalEstimate+
+		                    " for "+this+" ("+rrh+"): counter="+counter, Logger.DEBUG);
+		    } else {
+		        if(logDEBUG)
+		            Core.logger.log(this, "Not adding point for "+this+": "+rrh+
+		                    ", counter="+counter, Logger.DEBUG);
+		        // otherwise no point as will be ignored
+		    }
+		}
+		if (successes > 0
+			&& (Math.abs(estimate) > (long) (Math.pow(10, 13)) || estimate < 0)) {
+			// Some of these will have the initial pessimistic estimators!
+			// It can be well below 0, because of new nodes with pDNF <<
+			// pDataNonexistant
+			if (logMINOR) {
+			Core.logger.log(
+				this,
+				"Unreasonable estimate: " + estimate + " for " + this,
+				Logger.MINOR);
+		}
+		}
+	}
+
 	public double totalTSuccess(Key k, long size) {
 		return totalTSuccess(
 			k,
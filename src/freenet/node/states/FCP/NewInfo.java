@@ -5,6 +5,7 @@ import freenet.FieldSet;
 import freenet.MessageObject;
 import freenet.PeerHandler;
 import freenet.diagnostics.Diagnostics;
+import freenet.fs.dir.LogStructuredDirectory;
 import freenet.fs.dir.NativeFSDirectory;
 import freenet.message.client.ClientInfo;
 import freenet.message.client.NodeInfo;
@@ -81,8 +82,13 @@ public class NewInfo extends NewClientRequest {
         fs.put("DatastoreFree", Long.toHexString(n.dir.available()));
         fs.put("DatastoreUsed", Long.toHexString(n.dir.used()));
         fs.put("MaxFileSize", Long.toHexString(((FSDataStore)(n.ds)).maxDataSize));
-        fs.put("MostRecentTimestamp", Long.toHexString(((NativeFSDirectory)n.dir).mostRecentlyUsedTime()));
-        fs.put("LeastRecentTimestamp", Long.toHexString(((NativeFSDirectory)n.dir).leastRecentlyUsedTime()));
+        if (n.dir instanceof NativeFSDirectory) {
+            fs.put("MostRecentTimestamp", Long.toHexString(((NativeFSDirectory)n.dir).mostRecentlyUsedTime()));
+            fs.put("LeastRecentTimestamp", Long.toHexString(((NativeFSDirectory)n.dir).leastRecentlyUsedTime()));
+        } else if (n.dir instanceof LogStructuredDirectory) {
+            fs.put("MostRecentTimestamp", Long.toHexString(((LogStructuredDirectory)n.dir).mostRecentlyUsedTime()));
+            fs.put("LeastRecentTimestamp", Long.toHexString(((LogStructuredDirectory)n.dir).leastRecentlyUsedTime()));
+        }
     
         fs.put("RoutingTime", Long.toHexString((long)Core.diagnostics.getContinuousValue("routingTime", Diagnostics.MINUTE, Diagnostics.MEAN_VALUE)));
         
@@ -1,6 +1,7 @@
 package freenet.node.states.data;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 import freenet.AlreadySendingTrailerChunkException;
@@ -18,6 +19,7 @@ import freenet.node.BadStateException;
 import freenet.node.Node;
 import freenet.node.State;
 import freenet.node.ds.KeyInputStream;
+import freenet.support.DirectBufferPool;
 import freenet.support.Irreversible;
 import freenet.support.Logger;
 
@@ -52,7 +54,10 @@ public class SendData extends DataState {
 	private final Node n;
 	boolean inWrite = false;
 	long moved = 0;
-	byte[] buffer = null;
+	/** Data read from the store and not yet sent, from position to limit */
+	ByteBuffer buffer = null;
+	/** Whether the network may still be reading the last chunk from buffer */
+	private boolean chunkInFlight = false;
 	int bufferEndPtr = 0;
 	int m = 0;
 	private boolean hadDSI = false;
@@ -62,6 +67,12 @@ public class SendData extends DataState {
 	private final boolean insertRelated;
 	private static final int PACKET_SIZE = Node.minPaddingChunkSize() - 
 		(TrailerChunkPacketMessage.headerSize() + MRIPacketMessage.length()); 
+	/** How much we read from the store at once. The chunks are much
+	 * smaller than this, and are sent straight out of the buffer. */
+	private static final int READ_AHEAD = 16384;
+	/** Buffers to read the store into with as few copies as possible */
+	private static final DirectBufferPool readAheadPool =
+		new DirectBufferPool(READ_AHEAD, 128);
 
 	public SendData(long id, long parent, TrailerWriter send, KeyInputStream in, 
 	        long length, long partSize, boolean insertRelated, Node n) {
@@ -177,11 +188,27 @@ public class SendData extends DataState {
 		}
 		if (closedSend.tryChange())
 			send.close();
+		releaseBuffer();
 		if (logStats && !loggedStats.state())
 		    Core.logger.log(this, "Finalized but haven't logged stats and do want to!: "+
 		            this, Logger.NORMAL);
 	}
 
+	/**
+	 * Give the buffer back to the pool, unless a chunk sent from it may
+	 * still be waiting to go out, in which case it is left to the GC.
+	 */
+	private final void releaseBuffer() {
+		ByteBuffer b = buffer;
+		buffer = null;
+		if (b == null)
+			return;
+		if (chunkInFlight)
+			readAheadPool.forget(b);
+		else
+			readAheadPool.release(b);
+	}
+
 	private final void closeSend() {
 		if(closedSend.tryChange())
 			send.close();
@@ -198,6 +225,7 @@ public class SendData extends DataState {
 			Core.logger.log(this, "I/O error closing KeyInputStream", e, Logger.ERROR);
 		}
 		closeSend();
+		releaseBuffer();
 	}
 
 	/*
@@ -225,7 +253,8 @@ public class SendData extends DataState {
 			hadDSI = true;
 			moved = 0;
 			m = 0;
-			buffer = new byte[PACKET_SIZE];
+			buffer = readAheadPool.allocate();
+			buffer.limit(0);
 		}
 
 		if (isTWCM) {
@@ -248,8 +277,10 @@ public class SendData extends DataState {
 			} else {
 				if (inPaddingMode && !lastNonPaddingChunk)
 					sentPadding += lastPacketLength;
-				else
+				else {
 					moved += lastPacketLength;
+					chunkInFlight = false;
+				}
 				lastNonPaddingChunk = false;
 			}
 		}
@@ -278,21 +309,31 @@ public class SendData extends DataState {
 	}
 
 	/**
-	 * Read bytes from the store into the buffer, starting at the beginning.
-	 * Return the number read.
+	 * Make sure the buffer holds the next chunk, reading ahead from the
+	 * store if it doesn't. Return the size of the chunk.
 	 * 
 	 * @throws IOException
 	 *                   if something breaks
 	 */
 	protected int doRead() throws IOException {
-	    int readLength = (int)Math.min(length - moved, buffer.length);
+	    int readLength = (int)Math.min(length - moved, PACKET_SIZE);
 	    if(readLength == 0) return 0;
-	    int countRead = 0;
-	    while(countRead < readLength) {
-	        int x = in.read(buffer, countRead, readLength - countRead);
-	        if(x == -1) break;
-	        countRead += x;
+	    if(buffer.remaining() < readLength) {
+	        // The last chunk has been sent, so we can move the rest down
+	        buffer.compact();
+	        // Everything left, including what we have, may be less than
+	        // the buffer
+	        buffer.limit((int)Math.min(buffer.capacity(), length - moved));
+	        try {
+	            while(buffer.position() < readLength) {
+	                int x = in.read(buffer);
+	                if(x == -1) break;
+	            }
+	        } finally {
+	            buffer.flip();
+	        }
 	    }
+	    int countRead = Math.min(readLength, buffer.remaining());
 	    if(countRead == 0) countRead = -1;
 	    return countRead;
 	}
@@ -310,7 +351,11 @@ public class SendData extends DataState {
 		myTWCM.reset();
 		lastPacketLength = bytes;
 		waitingForWriteNotify = true;
-			send.writeTrailing(buffer, 0, bytes, myTWCM);
+		chunkInFlight = true;
+		ByteBuffer chunk = buffer.slice();
+		chunk.limit(bytes);
+			send.writeTrailing(chunk, myTWCM);
+		buffer.position(buffer.position() + bytes);
 		if(logDEBUG) Core.logger.log(this, "Started write of "+bytes+" on "+this, Logger.DEBUG);
 	}
 
@@ -419,7 +464,7 @@ public class SendData extends DataState {
 			closeSend();
 		}
 
-		buffer = null; // early GC
+		releaseBuffer(); // early GC
 
 		// Won't go through finish(), so log the stat here
 		if(logStats)
@@ -510,7 +555,7 @@ public class SendData extends DataState {
 				Logger.DEBUG);
 		if (remainingPadding <= 0)
 			return; // we will get finished
-		if (remainingPadding < (buffer.length /* Key.getControlLength() */
+		if (remainingPadding < (PACKET_SIZE /* Key.getControlLength() */
 			)) {
 			// Last chunk, yay
 			stuffToSend = new byte[(int) remainingPadding];
@@ -525,11 +570,11 @@ public class SendData extends DataState {
 			lastPacketLength = stuffToSend.length;
 		} else {
 			// Just another chunk
-			stuffToSend = new byte[buffer.length];
+			stuffToSend = new byte[PACKET_SIZE];
 			Random r = new Random(Core.getRandSource().nextLong());
 			r.nextBytes(stuffToSend);
 			// is this necessary? it used to be 0 padded
-			lastPacketLength = buffer.length;
+			lastPacketLength = PACKET_SIZE;
 		}
 		myTWCM.reset();
 		waitingForWriteNotify = true;
@@ -584,6 +629,7 @@ public class SendData extends DataState {
 		} catch (IOException e) {
 			Core.logger.log(this, "Caught " + e + " closing input (successful): " + this, Logger.NORMAL);
 		}
+		releaseBuffer();
 		if (moved == length)
 			result = Presentation.CB_OK;
 		if(logStats) {
@@ -4,6 +4,7 @@ import freenet.*;
 import freenet.node.*;
 import freenet.support.Checkpointed;
 import freenet.support.Logger;
+import freenet.thread.JobPriority;
 
 /**
  * Generic periodic maintenance state.
@@ -63,7 +64,7 @@ public class Checkpoint extends State {
 
     //=== machinery for scheduling on the ticker ===============================
 
-    private final class CheckpointMemo implements NodeMessageObject {
+    private final class CheckpointMemo implements NodeMessageObject, JobPriority {
 
         public final long id() {
             return id;
@@ -82,6 +83,10 @@ public class Checkpoint extends State {
             n.ticker().addAbs(next_time, this);
         }
 
+        public final boolean isMaintenance() {
+            return true;
+        }
+
         public String toString() {
             return getName();
         }
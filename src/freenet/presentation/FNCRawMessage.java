@@ -47,6 +47,11 @@ import freenet.support.io.WriteOutputStream;
  * Methods are provided for manipulation of normal fields, however the type of
  * the message and the trailing field should be set by direct manipulation of
  * fields.
+ * <p>
+ * The fields are followed by a line with the trailing field name, or
+ * EndMessage, as in FNP. Older versions left that line out, and so wrote
+ * messages that could not be parsed; the two are not compatible.
+ * </p>
  * 
  * @author Thelema
  * @author Iakin
@@ -290,17 +295,6 @@ public final class FNCRawMessage extends RawMessage {
 			throw new UnknownEncodingException(
 				"Has no code table for encoding table '" + codeTable + "'");
 
-		//Dump codetable contents
-		for (int i = 0; i < ntable.length; i++) {
-			System.err.println(ntable[i].messageName + ":");
-			for (int i2 = 0; i2 < ntable[i].ctable.length; i2++)
-				System.err.println(
-					"   "
-						+ ntable[i].ctable[i2].fieldName
-						+ ":"
-						+ ntable[i].ctable[i2].fieldType.getName());
-		}
-
 		FieldDefinitionsTable.FieldNameAndFieldType[] ctable = null;
 
 		try {
@@ -312,7 +306,7 @@ public final class FNCRawMessage extends RawMessage {
 						(char) first //assumes first char is a single-byte
 		// UTF8
 	+ris.readToEOF('\n', '\r');
-			} else if (code > 0 && code < ntable.length) {
+			} else if (first != -1 && code < ntable.length) {
 				messageType = ntable[code].messageName;
 				ctable = ntable[code].ctable;
 			} else {
@@ -324,11 +318,11 @@ public final class FNCRawMessage extends RawMessage {
 				throw new EOFException("Missing ByteTwo in FNCRawMessage constructor");
 
 			close = (byteTwo & 1) == 1;
-			sustain = (byteTwo & 2) == 1;
+			sustain = (byteTwo & 2) != 0;
 			int count = 0;
-			if ((byteTwo & 12) == 1)
+			if ((byteTwo & 8) != 0)
 				count = 8;
-			else if ((byteTwo & 4) == 1)
+			else if ((byteTwo & 4) != 0)
 				count = 4;
 			for (int i = 0; i < count; i++) {
 				int r = ris.read();
@@ -367,7 +361,7 @@ public final class FNCRawMessage extends RawMessage {
 		return (Hashtable) knownInverseCodeTables.get(digest);
 	}
 
-	protected FNCRawMessage(
+	public FNCRawMessage(
 		String messageType,
 		boolean close,
 		boolean sustain,
@@ -448,6 +442,11 @@ public final class FNCRawMessage extends RawMessage {
 
 		// Output message fields
 		fs.writeCompressed(writer, ctable);
+		// A format change, see the class comment; the constructor has
+		// always needed this line to find the end of the fields
+		writer.writeUTF(
+			trailingFieldName == null ? "EndMessage" : trailingFieldName,
+			'\n');
 
 		// empty writer
 		writer.flush();
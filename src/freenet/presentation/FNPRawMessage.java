@@ -14,7 +14,6 @@ import java.io.OutputStream;
 import freenet.Core;
 import freenet.FieldSet;
 import freenet.RawMessage;
-import freenet.support.Fields;
 import freenet.support.Logger;
 import freenet.support.io.DiscontinueInputStream;
 import freenet.support.io.EOFingReadInputStream;
@@ -91,21 +90,11 @@ public final class FNPRawMessage extends RawMessage {
 		sustain = cvalue != null && cvalue.equals("sustain");
 
 		// setting DataLength and trailing
-		String dlvalue = fs.getString("DataLength");
-		if (dlvalue == null) {
-			trailingFieldLength = 0;
-		} else {
-			trailingFieldLength = Fields.hexToLong(dlvalue);
-			fs.remove("DataLength");
-		}
+		trailingFieldLength = fs.getLong("DataLength", 0);
+		fs.remove("DataLength");
 
-		String muxValue = fs.getString("TrailerMuxID");
-		if (muxValue == null) {
-			trailingFieldMuxID = 0;
-		} else {
-			trailingFieldMuxID = Fields.hexToInt(muxValue);
-			fs.remove("TrailerMuxID");
-		}
+		trailingFieldMuxID = (int) fs.getLong("TrailerMuxID", 0);
+		fs.remove("TrailerMuxID");
 		/*
 		 * trailingFieldLength = dlvalue == null ? 0 :
 		 * Fields.hexToLong(dlvalue); if (dlvalue != null)
@@ -152,8 +141,8 @@ public final class FNPRawMessage extends RawMessage {
 			fs.put("Connection", "sustain");
 
 		if (trailingFieldLength != 0) {
-			fs.put("DataLength", Long.toHexString(trailingFieldLength));
-			fs.put("TrailerMuxID", Long.toHexString(trailingFieldMuxID));
+			fs.put("DataLength", trailingFieldLength);
+			fs.put("TrailerMuxID", (long) trailingFieldMuxID);
 		}
 
 		// Output message fields
@@ -62,6 +62,9 @@ public final class FnpLink implements LinkConstants, Link {
 
 	protected boolean ready = false;
 
+	/** Whether we restarted an existing link rather than negotiating one */
+	private boolean restarted = false;
+
 	protected FnpLinkToken linkInfo;
 
 	protected FnpLinkManager linkManager;
@@ -128,6 +131,7 @@ public final class FnpLink implements LinkConstants, Link {
 							receiveRestartRequest(privMe, pubMe, paravect);
 						if (worked) {
 							Core.diagnostics.occurrenceBinomial("inboundRestartRatio", 1, 1);
+							restarted = true;
 							return;
 						} else {
 							// reread
@@ -187,6 +191,7 @@ public final class FnpLink implements LinkConstants, Link {
 									+ negotiatedRestartTime, negrestartlen > 500 ? Logger.MINOR : Logger.DEBUG);
 						if (worked) {
 							Core.diagnostics.occurrenceBinomial("outboundRestartRatio", 1, 1);
+							restarted = true;
 							return;
 						} else
 							linkManager.removeLink(linkInfo);
@@ -757,6 +762,14 @@ public final class FnpLink implements LinkConstants, Link {
 		conn.notifyAll();
 	}
 
+	/**
+	 * @return whether the link was made by restarting one we already had a
+	 * key for, rather than by a full negotiation.
+	 */
+	final boolean restarted() {
+		return restarted;
+	}
+
 	public final LinkManager getManager() {
 		return linkManager;
 	}
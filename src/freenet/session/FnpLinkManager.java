@@ -1,8 +1,13 @@
 package freenet.session;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Vector;
 
 import net.i2p.util.NativeBigInteger;
 
@@ -17,6 +22,8 @@ import freenet.Identity;
 import freenet.crypt.DiffieHellman;
 import freenet.crypt.Digest;
 import freenet.crypt.SHA1;
+import freenet.support.Checkpointed;
+import freenet.support.LoadSaveCheckpointed;
 import freenet.support.Logger;
 
 /**
@@ -29,9 +36,26 @@ public final class FnpLinkManager implements LinkConstants, LinkManager {
 
 	public static final int DESIGNATOR = 1;
 
+	/** The default for the most links to remember */
+	public static final int DEFAULT_MAX_LINKS = 1000;
+
+	/** How often to save the links, if they are saved, in milliseconds */
+	private static final int LINK_SAVE_PERIOD = 5 * 60 * 1000;
+
+	private static final int LINK_FILE_VERSION = 1;
+
+	private static final String[] linkFileNames = { "fnp_links" };
+
 	/** Stores the keys that are active at any given time. */
 	private final Hashtable activeLinks, activePeers;
 
+	/**
+	 * The most links to remember. When there are more, the one that
+	 * expires soonest is forgotten, and that peer will have to negotiate a
+	 * new key next time.
+	 */
+	private final int maxLinks;
+
 	private Object currentLock = new Object();
 	private int currentNegotiations = 0;
 
@@ -63,7 +87,12 @@ public final class FnpLinkManager implements LinkConstants, LinkManager {
 	}
 
 	public FnpLinkManager(int negotiationLimit) {
+		this(negotiationLimit, DEFAULT_MAX_LINKS);
+	}
+
+	public FnpLinkManager(int negotiationLimit, int maxLinks) {
 		this.negotiationLimit = negotiationLimit;
+		this.maxLinks = Math.max(1, maxLinks);
 		activePeers = new Hashtable(5);
 		activeLinks = new Hashtable(5);
 		DiffieHellman.init();
@@ -123,6 +152,7 @@ public final class FnpLinkManager implements LinkConstants, LinkManager {
 			Core.diagnostics.occurrenceContinuous(
 				"authorizeTime",
 				solicitTime - negUpTime);
+			countHandshake(l, solicitTime - negUpTime);
 			return l;
 		} finally {
 			synchronized (currentLock) {
@@ -163,9 +193,9 @@ public final class FnpLinkManager implements LinkConstants, LinkManager {
 			long time = System.currentTimeMillis();
 			FnpLink l = new FnpLink(this, c);
 			l.accept((DSAAuthentity) privMe, (DSAIdentity) pubMe, LAX);
-			Core.diagnostics.occurrenceContinuous(
-				"authorizeTime",
-				System.currentTimeMillis() - time);
+			time = System.currentTimeMillis() - time;
+			Core.diagnostics.occurrenceContinuous("authorizeTime", time);
+			countHandshake(l, time);
 			return l;
 		} finally {
 			synchronized (currentLock) {
@@ -174,25 +204,40 @@ public final class FnpLinkManager implements LinkConstants, LinkManager {
 		}
 	}
 
+	private void countHandshake(FnpLink l, long time) {
+		Core.diagnostics.occurrenceCounting("linkHandshakes", 1);
+		Core.diagnostics.occurrenceContinuous(
+			l.restarted() ? "resumedHandshakeTime" : "fullHandshakeTime",
+			time);
+	}
+
 	/**
 	 * Adds a key to the link manager. The key will be automatically expired by
 	 * the link manager when KEY_LIFETIME milliseconds pass.
 	 */
 	public FnpLinkToken addLink(Identity remotePK, Identity me, byte[] k) {
+		return addLink(
+			remotePK,
+			me,
+			k,
+			System.currentTimeMillis() + FnpLinkToken.KEY_LIFETIME);
+	}
+
+	private FnpLinkToken addLink(
+		Identity remotePK,
+		Identity me,
+		byte[] k,
+		long expires) {
 
 		Digest ctx = SHA1.getInstance();
 		byte[] hk = new byte[ctx.digestSize() >> 3];
 		ctx.update(k);
 		ctx.digest(true, hk, 0);
 
-		FnpLinkToken oldLt = (FnpLinkToken) activePeers.get(remotePK);
-		if (oldLt != null) {
-			removeLink(oldLt);
-		}
-
 		BigInteger linkIdentifier = new NativeBigInteger(1, hk);
 
-        FnpLinkToken lt = new FnpLinkToken(remotePK, me, k, linkIdentifier);
+		FnpLinkToken lt =
+			new FnpLinkToken(remotePK, me, k, linkIdentifier, expires);
 		if (Core.logger.shouldLog(Logger.DEBUG, this))
 			Core.logger.log(
 				this,
@@ -200,12 +245,39 @@ public final class FnpLinkManager implements LinkConstants, LinkManager {
 				Logger.DEBUG);
 		Core.diagnostics.occurrenceCounting("liveLinks", 1);
 		synchronized (this) {
+			// Only a new peer can push the table over maxLinks
+			FnpLinkToken oldLt = (FnpLinkToken) activePeers.get(remotePK);
+			if (oldLt != null)
+				removeLink(oldLt);
+			else if (activePeers.size() >= maxLinks)
+				removeOldestLink();
 			activeLinks.put(linkIdentifier, lt);
 			activePeers.put(remotePK, lt);
 		}
 		return lt;
 	}
 
+	/** Forget the link that expires soonest, to make room for another. */
+	private synchronized void removeOldestLink() {
+		FnpLinkToken oldest = null;
+		Enumeration e = activePeers.elements();
+		while (e.hasMoreElements()) {
+			FnpLinkToken l = (FnpLinkToken) e.nextElement();
+			if (oldest == null
+				|| l.outboundExpiresAt() < oldest.outboundExpiresAt())
+				oldest = l;
+		}
+		if (oldest != null) {
+			if (Core.logger.shouldLog(Logger.MINOR, this))
+				Core.logger.log(
+					this,
+					"Too many links (" + activePeers.size() + "/" + maxLinks
+						+ "), forgetting " + oldest,
+					Logger.MINOR);
+			removeLink(oldest);
+		}
+	}
+
 	public synchronized void removeLink(FnpLinkToken l) {
 		removeLink(l, l.getKeyHash());
 	}
@@ -245,4 +317,104 @@ public final class FnpLinkManager implements LinkConstants, LinkManager {
 	public final int designatorNum() {
 		return DESIGNATOR;
 	}
+
+	/**
+	 * Reads back the links to me that were saved in dir, and returns the
+	 * Checkpointed that saves them there. This lets the node restart its
+	 * links to the peers it was talking to before it was restarted, rather
+	 * than negotiating new keys with all of them at once. The file holds
+	 * the session keys, so it should be no easier to read than the node's
+	 * private key.
+	 */
+	public Checkpointed getCheckpointed(File dir, DSAIdentity me) {
+		LinkCheckpointed c = new LinkCheckpointed(dir, me);
+		c.load();
+		return c;
+	}
+
+	private class LinkCheckpointed extends LoadSaveCheckpointed {
+
+		private final DSAIdentity me;
+
+		LinkCheckpointed(File dir, DSAIdentity me) {
+			super(dir, linkFileNames);
+			this.me = me;
+		}
+
+		public String getCheckpointName() {
+			return "Saving FNP session keys";
+		}
+
+		protected int checkpointPeriod() {
+			return LINK_SAVE_PERIOD;
+		}
+
+		public void writeData(DataOutputStream dos) throws IOException {
+			long now = System.currentTimeMillis();
+			Vector links = new Vector();
+			synchronized (FnpLinkManager.this) {
+				Enumeration e = activePeers.elements();
+				while (e.hasMoreElements()) {
+					FnpLinkToken l = (FnpLinkToken) e.nextElement();
+					if (l.getPeerIdentity() instanceof DSAIdentity
+						&& me.equals(l.getMyIdentity())
+						&& l.inboundExpiresAt() > now)
+						links.addElement(l);
+				}
+			}
+			dos.writeInt(LINK_FILE_VERSION);
+			me.writeForWire(dos);
+			dos.writeInt(links.size());
+			for (int i = 0; i < links.size(); i++) {
+				FnpLinkToken l = (FnpLinkToken) links.elementAt(i);
+				byte[] k = l.getKey();
+				((DSAIdentity) l.getPeerIdentity()).writeForWire(dos);
+				dos.writeInt(k.length);
+				dos.write(k);
+				dos.writeLong(l.outboundExpiresAt());
+			}
+		}
+
+		protected void readFrom(DataInputStream dis) throws IOException {
+			if (dis.readInt() != LINK_FILE_VERSION)
+				throw new IOException("Unknown link file version");
+			if (!me.equals(DSAIdentity.read(dis))) {
+				Core.logger.log(
+					this,
+					"Saved links are for another identity, ignoring them",
+					Logger.NORMAL);
+				return;
+			}
+			int count = dis.readInt();
+			if (count < 0)
+				throw new IOException("Invalid link count " + count);
+			long now = System.currentTimeMillis();
+			int restored = 0;
+			for (int i = 0; i < count; i++) {
+				DSAIdentity peer = (DSAIdentity) DSAIdentity.read(dis);
+				int len = dis.readInt();
+				if (len <= 0 || len > 1024)
+					throw new IOException("Invalid key length " + len);
+				byte[] k = new byte[len];
+				dis.readFully(k);
+				long expires = dis.readLong();
+				if (expires + FnpLinkToken.GRACE_PERIOD > now
+					&& restored < maxLinks
+					&& searchOutboundLinks(peer) == null) {
+					addLink(peer, me, k, expires);
+					restored++;
+				}
+			}
+			Core.logger.log(
+				this,
+				"Restored " + restored + " of " + count + " saved links",
+				Logger.NORMAL);
+		}
+
+		protected void preload() {
+		}
+
+		protected void fillInBlanks() {
+		}
+	}
 }
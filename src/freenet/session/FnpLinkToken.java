@@ -20,11 +20,24 @@ final class FnpLinkToken {
 		Identity me,
 		byte[] key,
 		BigInteger hk) {
+        this(peer, me, key, hk, System.currentTimeMillis() + KEY_LIFETIME);
+    }
+
+	/**
+	 * For a link read back from disk, which expires when it would have
+	 * done had the node not been restarted.
+	 */
+	protected FnpLinkToken(
+		Identity peer,
+		Identity me,
+		byte[] key,
+		BigInteger hk,
+		long expires) {
         this.k=key;
         peerIdentity=peer;
         myIdentity=me;
         this.hk = hk;
-        expires = System.currentTimeMillis() + KEY_LIFETIME;
+        this.expires = expires;
     }
 
     public long inboundExpiresAt() {
@@ -0,0 +1,219 @@
+package freenet.support;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A pool of direct ByteBuffers of one size. Direct buffers are expensive to
+ * allocate and are only freed by the garbage collector, so we keep the ones
+ * we have made and hand them out again. At most maxDirect are ever made;
+ * after that we hand out heap buffers, which work the same but cost a copy
+ * when used for channel I/O.
+ *
+ * Only direct buffers that still exist count against maxDirect. Each one
+ * handed out is watched with a weak reference, so if a user drops it
+ * without release() or forget() its place is given back once the garbage
+ * collector has freed it.
+ *
+ * Synchronized.
+ */
+public class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int maxDirect;
+    private final LinkedList pool = new LinkedList();
+    /**
+     * A Lease for each direct buffer handed out, by identity hash code. It
+     * must not hold the buffers themselves, or they would never be freed.
+     */
+    private final HashMap leased = new HashMap();
+    private final ReferenceQueue abandoned = new ReferenceQueue();
+
+    private int direct = 0;
+    private int inUse = 0;
+    private long leases = 0;
+    private long heapLeases = 0;
+
+    /**
+     * Watches a buffer that has been handed out. Leases with the same hash
+     * code are chained.
+     */
+    private static class Lease extends WeakReference {
+        final Integer hash;
+        Lease next;
+
+        Lease(ByteBuffer buf, Integer hash, ReferenceQueue q) {
+            super(buf, q);
+            this.hash = hash;
+        }
+    }
+
+    public DirectBufferPool(int bufferSize, int maxDirect) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize " + bufferSize);
+        this.bufferSize = bufferSize;
+        this.maxDirect = maxDirect;
+    }
+
+    /**
+     * @return a cleared buffer of bufferSize() bytes. Give it back with
+     * release() when it is no longer used.
+     */
+    public ByteBuffer allocate() {
+        synchronized (this) {
+            leases++;
+            reclaim();
+            ByteBuffer buf = null;
+            if (!pool.isEmpty()) {
+                buf = (ByteBuffer) pool.removeFirst();
+            } else if (direct < maxDirect) {
+                direct++;
+                buf = ByteBuffer.allocateDirect(bufferSize);
+            }
+            if (buf != null) {
+                inUse++;
+                Integer hash = new Integer(System.identityHashCode(buf));
+                Lease l = new Lease(buf, hash, abandoned);
+                l.next = (Lease) leased.get(hash);
+                leased.put(hash, l);
+                return buf;
+            }
+            heapLeases++;
+        }
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Return a buffer got from allocate(). The caller must not use it, or
+     * anything sharing its content, afterwards. If something else might
+     * still be reading it, use forget() instead, or don't give it back at
+     * all; either way it will simply be garbage collected.
+     */
+    public void release(ByteBuffer buf) {
+        if (!buf.isDirect())
+            return;
+        buf.clear();
+        synchronized (this) {
+            if (!endLease(buf))
+                return;
+            inUse--;
+            pool.addFirst(buf);
+        }
+    }
+
+    /**
+     * Give up on a buffer got from allocate() that might still be used by
+     * something else, so can't be released. It is left to the garbage
+     * collector, and we may make another direct buffer in its place.
+     */
+    public void forget(ByteBuffer buf) {
+        if (!buf.isDirect())
+            return;
+        synchronized (this) {
+            if (!endLease(buf))
+                return;
+            inUse--;
+            direct--;
+        }
+    }
+
+    /**
+     * Stop watching a buffer that has come back.
+     *
+     * @return false if it wasn't handed out by this pool, or has already
+     * come back.
+     */
+    private boolean endLease(ByteBuffer buf) {
+        Integer hash = new Integer(System.identityHashCode(buf));
+        Lease l = (Lease) leased.get(hash);
+        while (l != null && l.get() != buf)
+            l = l.next;
+        if (l == null)
+            return false;
+        unlink(l);
+        // A cleared reference is never queued
+        l.clear();
+        return true;
+    }
+
+    /**
+     * @return false if the lease had already ended
+     */
+    private boolean unlink(Lease l) {
+        Lease first = (Lease) leased.get(l.hash);
+        if (first == l) {
+            if (l.next == null)
+                leased.remove(l.hash);
+            else
+                leased.put(l.hash, l.next);
+            return true;
+        }
+        for (Lease p = first; p != null; p = p.next) {
+            if (p.next == l) {
+                p.next = l.next;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Give back the places of buffers that were dropped without release()
+     * or forget() and have since been garbage collected.
+     */
+    private void reclaim() {
+        Reference ref;
+        while ((ref = abandoned.poll()) != null) {
+            if (unlink((Lease) ref)) {
+                inUse--;
+                direct--;
+            }
+        }
+    }
+
+    public final int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of direct buffers made, whether pooled or in use
+     */
+    public synchronized int directBuffers() {
+        reclaim();
+        return direct;
+    }
+
+    /**
+     * @return the number of direct buffers handed out and not yet released
+     */
+    public synchronized int buffersInUse() {
+        reclaim();
+        return inUse;
+    }
+
+    /**
+     * @return the number of direct buffers waiting in the pool
+     */
+    public synchronized int pooledBuffers() {
+        return pool.size();
+    }
+
+    /**
+     * @return the number of buffers handed out so far
+     */
+    public synchronized long leases() {
+        return leases;
+    }
+
+    /**
+     * @return the number of heap buffers handed out because we already had
+     * made maxDirect direct buffers
+     */
+    public synchronized long heapLeases() {
+        return heapLeases;
+    }
+}
@@ -3,6 +3,7 @@ package freenet.support;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 public class FakeRandomAccessFilePool implements RandomAccessFilePool {
     volatile int totalOpenFiles;
@@ -35,6 +36,10 @@ public class FakeRandomAccessFilePool implements RandomAccessFilePool {
             super.getFD().sync();
         }
 
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            return getChannel().read(dst);
+        }
+
         public void closeRAF() {}
 
         public synchronized void close() throws IOException {
@@ -60,7 +60,7 @@ public class LesserLockContentionHashTable {
 	//Returns a snapshot of all elements present in the table
 	//NOTE: the snapshot is not produced in an atomic fashion
 	public Hashtable snapshot(){
-		Hashtable retval = new Hashtable();
+		Hashtable retval = new Hashtable(Math.max(11, size() * 4 / 3 + 1));
 		for (int i = 0; i < pool.length; i++)
 			retval.putAll((Hashtable)pool[i].clone());
 		return retval;
@@ -0,0 +1,67 @@
+package freenet.support;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A write only bucket that passes everything written to it straight on to
+ * an OutputStream, such as an HTTP response, so that a download can be
+ * sent on as it arrives instead of being kept until it is complete.
+ * Closing the bucket's stream only flushes the underlying one, which is
+ * left for its owner to close.
+ */
+public class OutputStreamBucket implements Bucket {
+
+	private final OutputStream dest;
+
+	private long written = 0;
+
+	public OutputStreamBucket(OutputStream dest) {
+		this.dest = dest;
+	}
+
+	public OutputStream getOutputStream() {
+		return new FilterOutputStream(dest) {
+			public void write(int b) throws IOException {
+				out.write(b);
+				written++;
+			}
+
+			public void write(byte[] buf, int off, int len)
+				throws IOException {
+				out.write(buf, off, len);
+				written += len;
+			}
+
+			public void close() throws IOException {
+				out.flush();
+			}
+		};
+	}
+
+	/**
+	 * @throws IOException always, the data has already been sent on.
+	 */
+	public InputStream getInputStream() throws IOException {
+		throw new IOException("Can't read back from an OutputStreamBucket");
+	}
+
+	public String getName() {
+		return "OutputStreamBucket";
+	}
+
+	/**
+	 * @throws IOException if anything has been written, since it can't be
+	 *             taken back.
+	 */
+	public void resetWrite() throws IOException {
+		if (written != 0)
+			throw new IOException("Can't rewrite an OutputStreamBucket");
+	}
+
+	public long size() {
+		return written;
+	}
+}
@@ -1,6 +1,7 @@
 package freenet.support;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for pooled RandomAccessFile-like objects. Purpose of pooling is to
@@ -21,6 +22,13 @@ public interface PooledRandomAccessFile {
 	
     public int read() throws IOException;
     public int read(byte[] b, int off, int len) throws IOException;
+	
+	/**
+	 * Read into a ByteBuffer from the current position, through the file's
+	 * channel. Reading into a direct buffer saves a copy compared to
+	 * reading into an array.
+	 */
+    public int read(ByteBuffer dst) throws IOException;
     public void write(int b) throws IOException;
     public void write(byte[] b, int off, int len) throws IOException;
     public long getFilePointer() throws IOException;
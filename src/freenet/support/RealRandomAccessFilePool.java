@@ -1,6 +1,7 @@
 package freenet.support;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -130,6 +131,11 @@ public class RealRandomAccessFilePool implements RandomAccessFilePool {
             return raf.read(buf, off, len);
         }
     
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            reopen();
+            return raf.getChannel().read(dst);
+        }
+    
         public synchronized void write(int b) throws IOException {
             reopen();
             raf.write(b);
@@ -0,0 +1,166 @@
+package freenet.support;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Direct buffers of several sizes, shared by everything that wants one.
+ * There is a DirectBufferPool for each power of two between the smallest
+ * and largest sizes, and a buffer comes from the smallest that is big
+ * enough; so a buffer may be bigger than was asked for. Each size may make
+ * up to maxDirectBytes worth of direct buffers before it hands out heap
+ * buffers instead. Anything bigger than the largest size is always a heap
+ * buffer.
+ *
+ * Buffers are meant to be held only while they have data in them, and
+ * given back with release() as soon as they are empty, so that a lot of
+ * idle users don't hold a lot of memory between them.
+ *
+ * Thread safe: nothing here changes after construction, and each size's
+ * DirectBufferPool is synchronized.
+ */
+public class SizeClassedBufferPool {
+
+    private final int minSize;
+    private final DirectBufferPool[] classes;
+
+    /**
+     * @param minSize the smallest buffer handed out. Rounded up to a power
+     * of two.
+     * @param maxSize the largest buffer that will come from a pool.
+     * @param maxDirectBytes the most memory each size may make direct
+     * buffers from.
+     */
+    public SizeClassedBufferPool(int minSize, int maxSize, long maxDirectBytes) {
+        if (minSize <= 0 || maxSize < minSize)
+            throw new IllegalArgumentException("minSize " + minSize
+                    + " maxSize " + maxSize);
+        int size = 1;
+        while (size < minSize)
+            size <<= 1;
+        this.minSize = size;
+        int count = 1;
+        while ((size << (count - 1)) < maxSize)
+            count++;
+        classes = new DirectBufferPool[count];
+        for (int i = 0; i < count; i++) {
+            int bufferSize = size << i;
+            classes[i] = new DirectBufferPool(bufferSize,
+                    (int) Math.max(1, maxDirectBytes / bufferSize));
+        }
+    }
+
+    /**
+     * @return the pool for buffers of at least size bytes, or null if
+     * there is none that big.
+     */
+    private DirectBufferPool classFor(int size) {
+        int i = 0;
+        while (i < classes.length && classes[i].bufferSize() < size)
+            i++;
+        return i == classes.length ? null : classes[i];
+    }
+
+    /**
+     * @return the pool a buffer from allocate() came from, or null.
+     */
+    private DirectBufferPool classOf(ByteBuffer buf) {
+        DirectBufferPool p = classFor(buf.capacity());
+        return (p != null && p.bufferSize() == buf.capacity()) ? p : null;
+    }
+
+    /**
+     * @return a cleared buffer of at least size bytes. Give it back with
+     * release() when it is empty.
+     */
+    public ByteBuffer allocate(int size) {
+        DirectBufferPool p = classFor(size);
+        if (p == null)
+            return ByteBuffer.allocate(size);
+        return p.allocate();
+    }
+
+    /**
+     * Return a buffer got from allocate(). As DirectBufferPool.release(),
+     * nothing may use it afterwards.
+     */
+    public void release(ByteBuffer buf) {
+        DirectBufferPool p = classOf(buf);
+        if (p != null)
+            p.release(buf);
+    }
+
+    /**
+     * Give up on a buffer that can't be released because something might
+     * still be using it. See DirectBufferPool.forget().
+     */
+    public void forget(ByteBuffer buf) {
+        DirectBufferPool p = classOf(buf);
+        if (p != null)
+            p.forget(buf);
+    }
+
+    public final int minSize() {
+        return minSize;
+    }
+
+    public final int maxSize() {
+        return classes[classes.length - 1].bufferSize();
+    }
+
+    /**
+     * @return the number of buffers handed out so far
+     */
+    public long leases() {
+        long x = 0;
+        for (int i = 0; i < classes.length; i++)
+            x += classes[i].leases();
+        return x;
+    }
+
+    /**
+     * @return the number of heap buffers handed out because a size had
+     * made all the direct buffers it may
+     */
+    public long heapLeases() {
+        long x = 0;
+        for (int i = 0; i < classes.length; i++)
+            x += classes[i].heapLeases();
+        return x;
+    }
+
+    /**
+     * @return the bytes of direct buffers handed out and not yet released
+     */
+    public long bytesInUse() {
+        long x = 0;
+        for (int i = 0; i < classes.length; i++)
+            x += (long) classes[i].buffersInUse() * classes[i].bufferSize();
+        return x;
+    }
+
+    /**
+     * @return the bytes of direct buffers waiting in the pools
+     */
+    public long bytesPooled() {
+        long x = 0;
+        for (int i = 0; i < classes.length; i++)
+            x += (long) classes[i].pooledBuffers() * classes[i].bufferSize();
+        return x;
+    }
+
+    /**
+     * @return the bytes of direct buffers made, whether pooled or in use
+     */
+    public long directBytes() {
+        long x = 0;
+        for (int i = 0; i < classes.length; i++)
+            x += (long) classes[i].directBuffers() * classes[i].bufferSize();
+        return x;
+    }
+
+    public String toString() {
+        return super.toString() + ": " + bytesInUse() + " bytes in use, "
+                + bytesPooled() + " pooled, " + directBytes() + " direct, "
+                + leases() + " leases (" + heapLeases() + " heap)";
+    }
+}
@@ -7,20 +7,26 @@ import java.util.*;
 /* A Map implemented using both a Skiplist and a Hashtable
  * Keys MUST be AKO freenet.support.Comparable
  * Does not allow null keys
+ * The hash is split into several tables so that get() and containsKey()
+ * from many threads don't all wait for one lock; changes still lock the
+ * whole map because of the skiplist.
  */
 
 // FIXME: make the hash map to the nodes.. or use a HashSet of the nodes, for minimal memory use?
 
 public class SkiplistWithHashMap implements ReversibleSortedMap {
-    private Hashtable hash;
+    private LesserLockContentionHashTable hash;
+    private volatile int size = 0;
     private Skiplist sk = new Skiplist(32, new Random());
+    private final static int HASH_STRIPES = 64;
     
     private final static int ENTRIES = 0;
     private final static int KEYS = 1;
     private final static int VALUES = 2;
     
     public SkiplistWithHashMap(int hashsize) {
-	hash = new Hashtable(hashsize);
+	hash = new LesserLockContentionHashTable(HASH_STRIPES,
+		Math.max(hashsize, HASH_STRIPES));
     }
     
     public void clear() {
@@ -29,11 +35,11 @@ public class SkiplistWithHashMap implements ReversibleSortedMap {
     }
     
     public boolean containsKey(Object key) {
-	return hash.containsKey(key);
+	return hash.get(key) != null;
     }
     
     public boolean containsValue(Object val) {
-	return hash.containsValue(val);
+	return hash.snapshot().containsValue(val);
     }
     
     public synchronized Set entrySet() {
@@ -48,7 +54,7 @@ public class SkiplistWithHashMap implements ReversibleSortedMap {
     public synchronized boolean equals(Object o) {
 	if(o instanceof SkiplistWithHashMap) {
 	    SkiplistWithHashMap m = (SkiplistWithHashMap)o;
-	    return m.hash.equals(hash);
+	    return m.hash.snapshot().equals(hash.snapshot());
 	} else {
 	    if(o instanceof Map) {
 		return entrySet().equals(((Map)o).entrySet());
@@ -61,11 +67,11 @@ public class SkiplistWithHashMap implements ReversibleSortedMap {
     }
     
     public int hashCode() {
-	return hash.hashCode();
+	return hash.snapshot().hashCode();
     }
     
     public boolean isEmpty() {
-	return hash.isEmpty();
+	return size == 0;
     }
     
     public Set keySet() {
@@ -82,6 +88,7 @@ public class SkiplistWithHashMap implements ReversibleSortedMap {
 	// We do not allow null keys
 	Comparable c = (Comparable)key;
 	Object out = hash.put(c, value);
+	if(out == null) size++;
 	sk.treeInsert(new MySkipNodeImpl(c, value), true);
 	return out;
     }
@@ -93,20 +100,22 @@ public class SkiplistWithHashMap implements ReversibleSortedMap {
     public synchronized Object remove(Object key) {
 	Comparable c = (Comparable)key;
 	Object out = hash.remove(c);
+	if(out != null) size--;
 	sk.treeRemove(c);
 	return out;
     }
     
     public int size() {
-	return hash.size();
+	return size;
     }
     
     public Collection values() {
-	return hash.values();
+	// A snapshot, not a view
+	return hash.snapshot().values();
     }
     
     public Hashtable cloneHash() {
-	return (Hashtable)(hash.clone());
+	return hash.snapshot();
     }
     
     public java.util.Comparator comparator() {
@@ -0,0 +1,351 @@
+package freenet.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.Core;
+
+/*
+ * This code is distributed under the GNU Public Licence (GPL) version 2. See
+ * http://www.gnu.org/ for further details of the GPL.
+ */
+
+/**
+ * A temp bucket that keeps its data in memory, in chunks taken from a pool
+ * shared by all of them, and only moves it to its file when it grows past
+ * the largest size allowed in memory or the pool's budget runs out. Most
+ * temp buckets are small and short lived, so this saves creating, writing
+ * and deleting a file for each of them.
+ * <p>
+ * Once moved to disk the bucket behaves exactly like a TempFileBucket, and
+ * it never comes back. Anything that asks for the file with getFile() gets
+ * the data moved to disk first, so it can use the file as before.
+ * </p>
+ */
+public class SpillingTempBucket extends TempFileBucket {
+
+	/** The data while it is in memory, null once it is on disk */
+	private byte[][] chunks = new byte[4][];
+
+	private int chunkCount = 0;
+
+	private final long maxRAMSize;
+
+	/** Counts restarts in memory, so old streams can't write any more */
+	private long generation = 0;
+
+	/** fileRestartCounter just after the data was moved to disk */
+	private long spillRestartCounter;
+
+	SpillingTempBucket(
+		File f,
+		TempBucketHook hook,
+		long startLength,
+		long minAlloc,
+		float factor,
+		long maxRAMSize)
+		throws IOException {
+		super(f, hook, startLength, minAlloc, factor);
+		this.maxRAMSize = maxRAMSize;
+	}
+
+	/**
+	 * @return true if the data is still in memory
+	 */
+	public synchronized boolean inRAM() {
+		return chunks != null;
+	}
+
+	/**
+	 * Moves the data to disk, if it is still in memory.
+	 */
+	public synchronized void spill() throws IOException {
+		if (chunks == null || isReleased())
+			return;
+		long ramLength = length;
+		// restart also says whether the next stream in memory starts over,
+		// so it must be put back if the data stays there
+		boolean ramRestart = restart;
+		// The file is always written from the start
+		restart = true;
+		OutputStream os = null;
+		try {
+			os = super.getRealOutputStream();
+			for (int i = 0; i < chunkCount; i++)
+				os.write(
+					chunks[i],
+					0,
+					(int) Math.min(
+						TempBucketFactory.CHUNK_SIZE,
+						ramLength - (long) i * TempBucketFactory.CHUNK_SIZE));
+			os.close();
+		} catch (IOException e) {
+			// Still have it all in memory, try again next time
+			if (os != null) {
+				try {
+					os.close();
+				} catch (IOException ex) {
+				}
+			}
+			restart = ramRestart;
+			length = ramLength;
+			throw e;
+		}
+		spillRestartCounter = fileRestartCounter;
+		TempBucketFactory.giveChunks(chunks, chunkCount);
+		chunks = null;
+		chunkCount = 0;
+		if (Core.logger.shouldLog(Logger.DEBUG, this))
+			Core.logger.log(
+				this,
+				"Moved " + ramLength + " bytes to disk for " + file,
+				Logger.DEBUG);
+		if (Core.diagnostics != null)
+			Core.diagnostics.occurrenceCounting("tempBucketSpills", 1);
+	}
+
+	/**
+	 * Moves the data to disk, so that the caller can use the file directly.
+	 *
+	 * @throws RuntimeException
+	 *             if the data can't be written out.
+	 */
+	public File getFile() {
+		try {
+			spill();
+		} catch (IOException e) {
+			throw new RuntimeException(
+				"Could not move temp bucket to disk: " + e);
+		}
+		return super.getFile();
+	}
+
+	synchronized InputStream getRealInputStream() throws IOException {
+		if (chunks == null)
+			return super.getRealInputStream();
+		return new RAMInputStream();
+	}
+
+	synchronized OutputStream getRealOutputStream() throws IOException {
+		if (chunks == null)
+			return super.getRealOutputStream();
+		if (restart) {
+			restart = false;
+			generation++;
+			TempBucketFactory.giveChunks(chunks, chunkCount);
+			chunkCount = 0;
+			length = 0;
+		}
+		return new RAMOutputStream(generation);
+	}
+
+	public synchronized boolean release() {
+		if (chunks != null) {
+			TempBucketFactory.giveChunks(chunks, chunkCount);
+			chunks = null;
+			chunkCount = 0;
+		}
+		return super.release();
+	}
+
+	public void finalize() throws Throwable {
+		synchronized (this) {
+			if (chunks != null) {
+				TempBucketFactory.giveChunks(chunks, chunkCount);
+				chunks = null;
+			}
+		}
+		super.finalize();
+	}
+
+	public String toString() {
+		return "SpillingTempBucket (File: '"
+			+ file.getAbsolutePath()
+			+ "', "
+			+ (chunks != null ? "in RAM" : "on disk")
+			+ ", length: "
+			+ length
+			+ ")";
+	}
+
+	/**
+	 * Copies as much as will fit into memory to the end of the data.
+	 *
+	 * @return the number of bytes copied, less than len if the bucket is
+	 *         full or no more chunks are left.
+	 */
+	private int appendToRAM(byte[] b, int off, int len) {
+		int done = 0;
+		while (done < len && length < maxRAMSize) {
+			int idx = (int) (length / TempBucketFactory.CHUNK_SIZE);
+			int pos = (int) (length % TempBucketFactory.CHUNK_SIZE);
+			if (idx == chunkCount) {
+				byte[] chunk = TempBucketFactory.takeChunk();
+				if (chunk == null)
+					break;
+				if (chunkCount == chunks.length) {
+					byte[][] c = new byte[chunks.length * 2][];
+					System.arraycopy(chunks, 0, c, 0, chunkCount);
+					chunks = c;
+				}
+				chunks[chunkCount++] = chunk;
+			}
+			int n =
+				(int) Math.min(
+					Math.min(len - done, TempBucketFactory.CHUNK_SIZE - pos),
+					maxRAMSize - length);
+			System.arraycopy(b, off + done, chunks[idx], pos, n);
+			done += n;
+			length += n;
+		}
+		return done;
+	}
+
+	class RAMOutputStream extends OutputStream {
+
+		private final long myGeneration;
+
+		/** Where we write once the data has moved to disk */
+		private OutputStream fileOut = null;
+
+		private boolean closed = false;
+
+		RAMOutputStream(long generation) {
+			myGeneration = generation;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (SpillingTempBucket.this) {
+				if (closed)
+					throw new IOException("Stream closed");
+				if (myGeneration != generation)
+					throw new IllegalStateException("writing to bucket after restart");
+				if (chunks != null) {
+					int n = appendToRAM(b, off, len);
+					off += n;
+					len -= n;
+					if (len == 0)
+						return;
+					spill();
+				}
+				if (fileOut == null) {
+					if (restart || fileRestartCounter != spillRestartCounter)
+						throw new IllegalStateException("writing to file after restart");
+					fileOut = SpillingTempBucket.super.getRealOutputStream();
+				}
+				fileOut.write(b, off, len);
+			}
+		}
+
+		public void flush() throws IOException {
+			synchronized (SpillingTempBucket.this) {
+				if (fileOut != null)
+					fileOut.flush();
+			}
+		}
+
+		public void close() throws IOException {
+			synchronized (SpillingTempBucket.this) {
+				closed = true;
+				if (fileOut != null)
+					fileOut.close();
+			}
+		}
+	}
+
+	class RAMInputStream extends InputStream {
+
+		private long pos = 0;
+
+		/** Where we read once the data has moved to disk */
+		private InputStream fileIn = null;
+
+		private boolean closed = false;
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n;
+			while ((n = read(b, 0, 1)) == 0);
+			return n < 0 ? -1 : (b[0] & 0xff);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			synchronized (SpillingTempBucket.this) {
+				if (closed)
+					throw new IOException("Stream closed");
+				if (len == 0)
+					return 0;
+				if (chunks == null) {
+					if (fileIn == null) {
+						fileIn = SpillingTempBucket.super.getRealInputStream();
+						skipFully(fileIn, pos);
+					}
+					int n = fileIn.read(b, off, len);
+					if (n > 0)
+						pos += n;
+					return n;
+				}
+				if (pos >= length)
+					return -1;
+				int idx = (int) (pos / TempBucketFactory.CHUNK_SIZE);
+				int p = (int) (pos % TempBucketFactory.CHUNK_SIZE);
+				int n =
+					(int) Math.min(
+						Math.min(len, TempBucketFactory.CHUNK_SIZE - p),
+						length - pos);
+				System.arraycopy(chunks[idx], p, b, off, n);
+				pos += n;
+				return n;
+			}
+		}
+
+		public long skip(long n) throws IOException {
+			synchronized (SpillingTempBucket.this) {
+				if (n <= 0)
+					return 0;
+				if (chunks == null && fileIn != null) {
+					long skipped = fileIn.skip(n);
+					pos += skipped;
+					return skipped;
+				}
+				long skipped = Math.min(n, Math.max(0, length - pos));
+				pos += skipped;
+				return skipped;
+			}
+		}
+
+		public int available() throws IOException {
+			synchronized (SpillingTempBucket.this) {
+				if (chunks == null)
+					return fileIn == null ? 0 : fileIn.available();
+				return (int) Math.min(Integer.MAX_VALUE, Math.max(0, length - pos));
+			}
+		}
+
+		public void close() throws IOException {
+			synchronized (SpillingTempBucket.this) {
+				closed = true;
+				if (fileIn != null)
+					fileIn.close();
+			}
+		}
+
+		private void skipFully(InputStream in, long n) throws IOException {
+			while (n > 0) {
+				long skipped = in.skip(n);
+				if (skipped <= 0) {
+					if (in.read() < 0)
+						return;
+					skipped = 1;
+				}
+				n -= skipped;
+			}
+		}
+	}
+}
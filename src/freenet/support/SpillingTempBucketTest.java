@@ -0,0 +1,221 @@
+package freenet.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the temp buckets that keep their data in memory until they have to
+ * go to disk.
+ */
+public class SpillingTempBucketTest extends TestCase {
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(SpillingTempBucketTest.class);
+	}
+
+	private static final TempBucketHook hook = new TempBucketHook() {
+		public void enlargeFile(long curLength, long finalLength) {
+		}
+		public void shrinkFile(long curLength, long finalLength) {
+		}
+		public void deleteFile(long curLength) {
+		}
+		public void createFile(long curLength) {
+		}
+	};
+
+	private static final int CHUNK = TempBucketFactory.CHUNK_SIZE;
+
+	private int fileCount = 0;
+
+	private File lastFile;
+
+	protected void tearDown() {
+		TempBucketFactory.setRAMLimits(8 * 1024 * 1024, 1024 * 1024);
+	}
+
+	private SpillingTempBucket makeBucket(long maxRAMSize) throws IOException {
+		File f = lastFile =
+			new File(
+				System.getProperty("java.io.tmpdir"),
+				"stbt_" + System.currentTimeMillis() + "_" + fileCount++);
+		return new SpillingTempBucket(f, hook, 0, 4096, 1.25F, maxRAMSize);
+	}
+
+	/**
+	 * Small data stays in memory, and is read back the same.
+	 */
+	public void testInRAM() throws IOException {
+		setBudget(4 * CHUNK);
+		SpillingTempBucket b = makeBucket(CHUNK * 4);
+		try {
+			byte[] data = random(CHUNK * 2 + 100);
+			write(b, data);
+			assertTrue(b.inRAM());
+			assertEquals(data.length, b.size());
+			assertFalse(lastFile.exists());
+			assertTrue(Arrays.equals(data, read(b)));
+
+			b.resetWrite();
+			write(b, new byte[] { 1, 2, 3 });
+			assertEquals(3, b.size());
+			assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, read(b)));
+		} finally {
+			assertTrue(b.release());
+		}
+		// The chunks are back in the pool, ready for the next bucket
+		assertEquals(3 * CHUNK, TempBucketFactory.ramUsed());
+	}
+
+	/**
+	 * A bucket that grows past its limit, or can't get any more memory,
+	 * moves to disk without losing anything, even in the middle of reading
+	 * and writing.
+	 */
+	public void testSpill() throws IOException {
+		setBudget(2 * CHUNK);
+		SpillingTempBucket b = makeBucket(CHUNK * 4);
+		try {
+			byte[] data = random(CHUNK * 3);
+			OutputStream os = b.getOutputStream();
+			os.write(data, 0, CHUNK);
+			InputStream is = b.getInputStream();
+			byte[] first = new byte[100];
+			assertEquals(100, is.read(first));
+			os.write(data, CHUNK, CHUNK * 2);
+			os.close();
+			assertFalse(b.inRAM());
+			assertEquals(data.length, b.getFile().length());
+			byte[] rest = new byte[data.length - 100];
+			int off = 0, n;
+			while ((n = is.read(rest, off, rest.length - off)) > 0)
+				off += n;
+			is.close();
+			assertEquals(rest.length, off);
+			assertEquals(data[99], first[99]);
+			assertEquals(data[100], rest[0]);
+			assertTrue(Arrays.equals(data, read(b)));
+		} finally {
+			assertTrue(b.release());
+		}
+		assertFalse(b.getFile().exists());
+	}
+
+	/**
+	 * getFile() puts the data on disk, so the file can be used directly.
+	 */
+	public void testGetFile() throws IOException {
+		SpillingTempBucket b = makeBucket(CHUNK * 4);
+		try {
+			byte[] data = random(1000);
+			write(b, data);
+			assertTrue(b.inRAM());
+			File f = b.getFile();
+			assertFalse(b.inRAM());
+			assertEquals(1000, f.length());
+			assertTrue(Arrays.equals(data, read(b)));
+			write(b, new byte[] { 1 });
+			assertEquals(1, f.length());
+		} finally {
+			assertTrue(b.release());
+		}
+		assertFalse(b.getFile().exists());
+	}
+
+	/**
+	 * If the data can't be moved to disk it stays in memory, and the next
+	 * stream carries on after it rather than starting over.
+	 */
+	public void testSpillFails() throws IOException {
+		setBudget(4 * CHUNK);
+		// Refuses to let any file grow past its first allocation
+		TempBucketHook full = new TempBucketHook() {
+			public void enlargeFile(long curLength, long finalLength)
+				throws IOException {
+				throw new IOException("Out of temp space");
+			}
+			public void shrinkFile(long curLength, long finalLength) {
+			}
+			public void deleteFile(long curLength) {
+			}
+			public void createFile(long curLength) {
+			}
+		};
+		File f = lastFile =
+			new File(
+				System.getProperty("java.io.tmpdir"),
+				"stbt_" + System.currentTimeMillis() + "_" + fileCount++);
+		SpillingTempBucket b =
+			new SpillingTempBucket(f, full, 0, 4096, 1.25F, CHUNK * 4);
+		try {
+			byte[] data = random(8192);
+			write(b, data);
+			try {
+				b.spill();
+				fail("Spilled past the temp space");
+			} catch (IOException e) {
+				// Expected
+			}
+			assertTrue(b.inRAM());
+			assertEquals(data.length, b.size());
+			OutputStream os = b.getOutputStream();
+			os.write(new byte[] { 4, 5 });
+			os.close();
+			byte[] all = new byte[data.length + 2];
+			System.arraycopy(data, 0, all, 0, data.length);
+			all[data.length] = 4;
+			all[data.length + 1] = 5;
+			assertTrue(Arrays.equals(all, read(b)));
+		} finally {
+			b.release();
+		}
+	}
+
+	/**
+	 * Empties the pool and sets a new budget.
+	 */
+	private static void setBudget(long budget) {
+		TempBucketFactory.setRAMLimits(0, CHUNK * 4);
+		assertEquals(0, TempBucketFactory.ramUsed());
+		TempBucketFactory.setRAMLimits(budget, CHUNK * 4);
+	}
+
+	private static byte[] random(int len) {
+		byte[] data = new byte[len];
+		new Random(len).nextBytes(data);
+		return data;
+	}
+
+	private static void write(Bucket b, byte[] data) throws IOException {
+		b.resetWrite();
+		OutputStream os = b.getOutputStream();
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+
+	private static byte[] read(Bucket b) throws IOException {
+		byte[] buf = new byte[(int) b.size()];
+		InputStream in = b.getInputStream();
+		try {
+			int off = 0;
+			int read;
+			while (off < buf.length
+					&& (read = in.read(buf, off, buf.length - off)) > 0)
+				off += read;
+			assertEquals(buf.length, off);
+			assertEquals(-1, in.read());
+		} finally {
+			in.close();
+		}
+		return buf;
+	}
+}
@@ -2,6 +2,7 @@ package freenet.support;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedList;
 
 import freenet.Core;
 
@@ -36,6 +37,27 @@ public class TempBucketFactory implements BucketFactory {
 
 	public static long defaultIncrement = 4096;
 
+	/** The size of the pieces SpillingTempBuckets keep their data in */
+	static final int CHUNK_SIZE = 16384;
+
+	/** How many chunks' worth of hits and misses to report at once */
+	private static final int REPORT_INTERVAL = 64;
+
+	/** The most memory all the buckets may keep their data in, in bytes */
+	private static long ramBudget = 8 * 1024 * 1024;
+
+	/** Bigger buckets go straight to disk, smaller ones start in memory */
+	private static long maxRAMBucketSize = 1024 * 1024;
+
+	/** Chunks in use or waiting in the pool */
+	private static int chunksAllocated = 0;
+
+	private static final LinkedList freeChunks = new LinkedList();
+
+	private static int chunksTaken = 0;
+
+	private static int chunksReused = 0;
+
 	// Storage accounting disabled by default.
 	public TempBucketFactory(String temp) {
 		logDebug = Core.logger.shouldLog(Logger.DEBUG,this);
@@ -121,6 +143,14 @@ public class TempBucketFactory implements BucketFactory {
 				new Exception("creating TempBucket"),
 				Logger.DEBUG);
 
+		if (size <= maxRAMBucketSize && ramBudget >= CHUNK_SIZE)
+			return new SpillingTempBucket(
+				f,
+				hook,
+				size,
+				increment,
+				factor,
+				maxRAMBucketSize);
 		return new TempFileBucket(f, hook, size, increment, factor);
 	}
 
@@ -135,8 +165,7 @@ public class TempBucketFactory implements BucketFactory {
 			if (logDebug)
 				Core.logger.log(
 					this,
-					"Temp bucket released: "
-						+ ((TempFileBucket) b).getFile().getAbsolutePath(),
+					"Temp bucket released: " + b,
 					new Exception("debug"),
 					Logger.DEBUG);
 			if (!((TempFileBucket) b).release()) {
@@ -177,4 +206,87 @@ public class TempBucketFactory implements BucketFactory {
 			}
 		}
 	}
+
+	/**
+	 * Sets how much memory temp buckets may use before they are moved to
+	 * disk.
+	 * 
+	 * @param budget
+	 *            The most memory, in bytes, all the temp buckets may keep
+	 *            their data in between them. Less than one chunk means
+	 *            temp buckets always go straight to disk.
+	 * @param maxBucketSize
+	 *            The biggest a single bucket may grow to in memory. Buckets
+	 *            expected to be bigger than this are created on disk.
+	 */
+	public static void setRAMLimits(long budget, long maxBucketSize) {
+		synchronized (freeChunks) {
+			ramBudget = budget;
+			maxRAMBucketSize = maxBucketSize;
+			while (!freeChunks.isEmpty()
+				&& (long) chunksAllocated * CHUNK_SIZE > ramBudget) {
+				freeChunks.removeFirst();
+				chunksAllocated--;
+			}
+		}
+	}
+
+	/**
+	 * @return the memory, in bytes, currently used or pooled for temp
+	 *         buckets.
+	 */
+	public static long ramUsed() {
+		synchronized (freeChunks) {
+			return (long) chunksAllocated * CHUNK_SIZE;
+		}
+	}
+
+	/**
+	 * Gets a chunk for a SpillingTempBucket, from the pool if there is one
+	 * there.
+	 * 
+	 * @return a chunk of CHUNK_SIZE bytes, or null if the budget is used up
+	 *         and the bucket should go to disk instead.
+	 */
+	static byte[] takeChunk() {
+		byte[] chunk = null;
+		int taken = 0, reused = 0;
+		synchronized (freeChunks) {
+			if (!freeChunks.isEmpty()) {
+				chunk = (byte[]) freeChunks.removeFirst();
+				chunksReused++;
+			} else if ((long) (chunksAllocated + 1) * CHUNK_SIZE > ramBudget) {
+				return null;
+			} else {
+				chunksAllocated++;
+			}
+			if (++chunksTaken >= REPORT_INTERVAL) {
+				taken = chunksTaken;
+				reused = chunksReused;
+				chunksTaken = chunksReused = 0;
+			}
+		}
+		if (taken != 0 && Core.diagnostics != null)
+			Core.diagnostics.occurrenceBinomial(
+				"tempBucketPoolHitRatio",
+				taken,
+				reused);
+		return chunk == null ? new byte[CHUNK_SIZE] : chunk;
+	}
+
+	/**
+	 * Puts the first n chunks back in the pool, or frees them if the budget
+	 * has been lowered since they were taken.
+	 */
+	static void giveChunks(byte[][] chunks, int n) {
+		synchronized (freeChunks) {
+			for (int i = 0; i < n; i++) {
+				if ((long) chunksAllocated * CHUNK_SIZE > ramBudget)
+					chunksAllocated--;
+				else
+					freeChunks.addFirst(chunks[i]);
+				chunks[i] = null;
+			}
+		}
+	}
 }
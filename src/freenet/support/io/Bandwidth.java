@@ -53,6 +53,45 @@ public final class Bandwidth {
         Core.logger.log(this.getClass(),"new Bandwidth("+bandwidth+","+averageBandwidth+","+type+")",Logger.MINOR);
     }
     
+    /**
+     * Take up to desired bytes from the allowance without waiting, before
+     * they are sent. Unlike sizing a write from availableBandwidth() and
+     * charging for it afterwards, this is safe when several threads, such
+     * as the selector loops of a SelectorLoopGroup, use one Bandwidth:
+     * each reservation comes out of the allowance at once, so no two can
+     * be granted the same bytes. Give back what isn't used with refund().
+     * @param desired the number of bytes wanted
+     * @return the number of bytes reserved, 0 if none are available now
+     */
+    public synchronized int reserve(int desired) {
+        if (desired <= 0)
+            return 0;
+        if (available < desired && refillAvailableBandwidth(System.currentTimeMillis()) != 0)
+            return 0;
+        int result = Math.min(desired, Math.max(available, 0));
+        available -= result;
+        totalUsed += result;
+        return result;
+    }
+
+    /**
+     * Give back bytes that were reserved but not sent.
+     * @param unused the number of reserved bytes that weren't used
+     */
+    public synchronized void refund(int unused) {
+        if (unused <= 0)
+            return;
+        available += unused;
+        totalUsed -= unused;
+    }
+
+    /**
+     * @return when reserve() can next add to the allowance
+     */
+    public synchronized long nextRefillTime() {
+        return moreBandwidthTime;
+    }
+
     public int currentBandwidthPerSecondAllowed() {
 	return ticksPerSecond * bandwidthPerTick;
     }
@@ -0,0 +1,52 @@
+package freenet.support.io;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A BufferedInputStream over a stream that can also read into ByteBuffers.
+ * Small reads, e.g. parsing a header, go through the buffer as usual; bulk
+ * reads into a ByteBuffer take what is left in the buffer and then go
+ * straight to the underlying channel, so the data is not copied through
+ * the buffer.
+ */
+public class ChannelBufferedInputStream
+    extends BufferedInputStream
+    implements ReadableByteChannel {
+
+    private final ReadableByteChannel channel;
+
+    /**
+     * @param in the stream to read from, which must also implement
+     * ReadableByteChannel, reading from the same position.
+     */
+    public ChannelBufferedInputStream(InputStream in, int size) {
+        super(in, size);
+        if (!(in instanceof ReadableByteChannel))
+            throw new IllegalArgumentException(in + " is not a channel");
+        channel = (ReadableByteChannel) in;
+    }
+
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (buf == null)
+            throw new IOException("Stream closed");
+        int n = count - pos;
+        if (n > 0) {
+            if (n > dst.remaining())
+                n = dst.remaining();
+            dst.put(buf, pos, n);
+            pos += n;
+            return n;
+        }
+        // Can't mark across a direct read
+        markpos = -1;
+        return channel.read(dst);
+    }
+
+    public boolean isOpen() {
+        return buf != null;
+    }
+}
@@ -143,6 +143,19 @@ public final class NIOInputStream extends InputStream implements NIOReader {
 	
 	
 	public ByteBuffer getBuf() {return accumulator;}
+
+	/**
+	 * Forget the accumulator so that it can be used by another connection.
+	 * Only once switchReader() has handed the channel over: nothing should
+	 * read from us after that.
+	 */
+	public void releaseBuffer() {
+		ByteBuffer buf = accumulator;
+		synchronized(buf) {
+			accumulator = ByteBuffer.allocate(0);
+			buf.notifyAll();
+		}
+	}
 	
 	public int available() {
 		synchronized(accumulator) {
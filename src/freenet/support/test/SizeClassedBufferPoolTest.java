@@ -0,0 +1,84 @@
+package freenet.support.test;
+import junit.framework.*;
+import freenet.support.SizeClassedBufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that SizeClassedBufferPool hands out buffers of the right size,
+ * reuses them, and keeps count of what is in use.
+ */
+
+public class SizeClassedBufferPoolTest extends TestCase {
+
+    public static final void main(String[] args) {
+        SimpleTestRunner.main(
+            new String[] { SizeClassedBufferPoolTest.class.getName() }
+        );
+    }
+
+    public SizeClassedBufferPoolTest(String name) {
+        super(name);
+    }
+
+    public void testSizes() {
+        SizeClassedBufferPool pool = new SizeClassedBufferPool(1000, 16384, 65536);
+        assertEquals(1024, pool.minSize());
+        assertEquals(16384, pool.maxSize());
+        assertEquals(1024, pool.allocate(1).capacity());
+        assertEquals(2048, pool.allocate(1025).capacity());
+        assertEquals(16384, pool.allocate(16384).capacity());
+        ByteBuffer big = pool.allocate(16385);
+        assertEquals(16385, big.capacity());
+        assertFalse(big.isDirect());
+    }
+
+    public void testReuse() {
+        SizeClassedBufferPool pool = new SizeClassedBufferPool(1024, 4096, 8192);
+        ByteBuffer a = pool.allocate(3000);
+        assertTrue(a.isDirect());
+        assertEquals(4096, pool.bytesInUse());
+        a.put((byte) 1);
+        pool.release(a);
+        assertEquals(0, pool.bytesInUse());
+        assertEquals(4096, pool.bytesPooled());
+        ByteBuffer b = pool.allocate(4000);
+        assertSame(a, b);
+        assertEquals(0, b.position());
+        assertEquals(b.capacity(), b.limit());
+        assertEquals(4096, pool.directBytes());
+        assertEquals(2, pool.leases());
+    }
+
+    public void testLimit() {
+        SizeClassedBufferPool pool = new SizeClassedBufferPool(1024, 1024, 2048);
+        ByteBuffer a = pool.allocate(1024);
+        ByteBuffer b = pool.allocate(1024);
+        ByteBuffer c = pool.allocate(1024);
+        assertTrue(a.isDirect() && b.isDirect());
+        assertFalse(c.isDirect());
+        assertEquals(1, pool.heapLeases());
+        pool.release(c);
+        assertEquals(2048, pool.bytesInUse());
+        pool.forget(b);
+        assertEquals(1024, pool.bytesInUse());
+        assertEquals(1024, pool.directBytes());
+        assertTrue(pool.allocate(1024).isDirect());
+    }
+
+    public void testAbandoned() throws InterruptedException {
+        SizeClassedBufferPool pool = new SizeClassedBufferPool(1024, 1024, 1024);
+        ByteBuffer a = pool.allocate(1024);
+        assertTrue(a.isDirect());
+        assertFalse(pool.allocate(1024).isDirect());
+        // Dropped without release() or forget()
+        a = null;
+        for (int i = 0; i < 100 && pool.directBytes() != 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.bytesInUse());
+        assertEquals(0, pool.directBytes());
+        assertTrue(pool.allocate(1024).isDirect());
+    }
+}
@@ -0,0 +1,116 @@
+package freenet.thread;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Thread count and memory with N concurrent client requests blocked in
+ * their threads, as fproxy and FCP requests are while a download runs. Each
+ * simulated request runs in a WThreadFactory pool as used for clientThreads,
+ * recurses to a typical servlet/client stack depth and then waits until all
+ * N are running. Process memory is read from /proc, so is only shown on
+ * Linux. Run it once with the JVM's default stack size (0) and once with
+ * clientThreadStackSize to compare.
+ * <p>
+ * Usage: ClientThreadLoadTest [stack size in KiB, 0 for default]
+ * [stack depth] [N]
+ * </p>
+ */
+public class ClientThreadLoadTest {
+
+    private static final Object gate = new Object();
+
+    private static boolean open;
+
+    private static int running;
+
+    private static final class Request implements Runnable {
+        private final int depth;
+        Request(int depth) {
+            this.depth = depth;
+        }
+        public void run() {
+            descend(depth, new byte[64]);
+        }
+        private void descend(int n, byte[] frame) {
+            if (n > 0) {
+                descend(n - 1, new byte[64]);
+                return;
+            }
+            synchronized (gate) {
+                running++;
+                gate.notifyAll();
+                while (!open) {
+                    try {
+                        gate.wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                running--;
+                gate.notifyAll();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long stackKiB = args.length > 0 ? Long.parseLong(args[0]) : 128;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int n = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        System.out.println(
+            "Before: " + memory() + ", " + Thread.activeCount() + " threads");
+        ThreadGroup tg = new ThreadGroup("Client threads");
+        WThreadFactory tf =
+            new WThreadFactory(tg, n, "ClientThread-", stackKiB * 1024);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < n; i++)
+            tf.getThread(new Request(depth));
+        synchronized (gate) {
+            while (running < n)
+                gate.wait();
+        }
+        long time = System.currentTimeMillis() - start;
+        System.gc();
+        System.out.println(
+            n
+                + " requests, "
+                + (stackKiB == 0 ? "default" : stackKiB + " KiB")
+                + " stacks: "
+                + tg.activeCount()
+                + " threads, "
+                + memory()
+                + ", started in "
+                + time
+                + "ms");
+        synchronized (gate) {
+            open = true;
+            gate.notifyAll();
+            while (running > 0)
+                gate.wait();
+        }
+        System.exit(0);
+    }
+
+    private static String memory() {
+        Runtime r = Runtime.getRuntime();
+        String s =
+            "heap " + ((r.totalMemory() - r.freeMemory()) >> 20) + " MiB";
+        try {
+            BufferedReader in =
+                new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("VmRSS:") || line.startsWith("VmSize:"))
+                        s += ", " + line.replaceAll("\\s+", " ");
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Not Linux
+        }
+        return s;
+    }
+}
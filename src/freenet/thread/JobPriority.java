@@ -0,0 +1,15 @@
+package freenet.thread;
+
+/**
+ * Implemented by jobs, or by the MessageObjects the Ticker runs, that can
+ * tell a ThreadFactory how urgent they are. Jobs that don't implement it
+ * are treated as part of handling requests.
+ */
+public interface JobPriority {
+
+    /**
+     * @return true if this is routine maintenance, such as a checkpoint,
+     *         that can wait until request handling has caught up.
+     */
+    boolean isMaintenance();
+}
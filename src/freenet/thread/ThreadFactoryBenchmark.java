@@ -0,0 +1,115 @@
+package freenet.thread;
+
+/**
+ * Overloads each ThreadFactory with jobs that mostly compute for a moment
+ * and sometimes block, the way message handling does, and reports the job
+ * rate and how many threads the factory ended up with. Submitting threads
+ * start jobs as fast as they can, so a factory that doesn't push back
+ * either queues without limit or keeps creating threads.
+ * <p>
+ * Usage: ThreadFactoryBenchmark [seconds per run] [submitting threads]
+ * [targetMaxThreads]
+ * </p>
+ */
+public class ThreadFactoryBenchmark {
+
+    private static final String[] FACTORIES = { "Q", "Y", "W" };
+
+    private static volatile long sink;
+
+    private static final class Job implements Runnable {
+        private final boolean blocks;
+        private final long[] done;
+        Job(boolean blocks, long[] done) {
+            this.blocks = blocks;
+            this.done = done;
+        }
+        public void run() {
+            long x = 0;
+            for (int i = 0; i < 2000; i++)
+                x = x * 31 + i;
+            sink = x;
+            if (blocks) {
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                }
+            }
+            synchronized (done) {
+                done[0]++;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int submitters = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int target = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+
+        for (int f = 0; f < FACTORIES.length; f++) {
+            ThreadGroup tg = new ThreadGroup(FACTORIES[f]);
+            final ThreadFactory tf;
+            if (FACTORIES[f].equals("Q"))
+                tf = new QThreadFactory(tg, target);
+            else if (FACTORIES[f].equals("Y"))
+                tf = new YThreadFactory(tg, target, "YThread-", 200, 1000);
+            else
+                tf = new WThreadFactory(tg, target, "WThread-");
+            final long[] done = new long[1];
+            final long[] submitted = new long[submitters];
+            final long end = System.currentTimeMillis() + seconds * 1000L;
+            Thread[] threads = new Thread[submitters];
+            for (int i = 0; i < submitters; i++) {
+                final int me = i;
+                threads[i] = new Thread() {
+                    public void run() {
+                        long n = 0;
+                        while (System.currentTimeMillis() < end) {
+                            // Don't let the queue grow without limit
+                            for (int j = 0; j < 100; j++, n++)
+                                tf.getThread(new Job(n % 10 == 0, done));
+                            synchronized (done) {
+                                if (n * submitted.length - done[0] > 100000)
+                                    try {
+                                        done.wait(1);
+                                    } catch (InterruptedException e) {
+                                    }
+                            }
+                        }
+                        submitted[me] = n;
+                    }
+                };
+            }
+            int peak = 0;
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < submitters; i++)
+                threads[i].start();
+            while (System.currentTimeMillis() < end) {
+                Thread.sleep(100);
+                peak = Math.max(peak, tg.activeCount());
+            }
+            for (int i = 0; i < submitters; i++)
+                threads[i].join();
+            long time = System.currentTimeMillis() - start;
+            long jobs;
+            synchronized (done) {
+                jobs = done[0];
+            }
+            System.out.println(
+                FACTORIES[f]
+                    + ": "
+                    + (jobs * 1000 / time)
+                    + " jobs/sec, "
+                    + tg.activeCount()
+                    + " threads at the end, "
+                    + peak
+                    + " at most, "
+                    + tf.activeThreads()
+                    + " active");
+            // Let the backlog drain before the next run
+            while (tf.activeThreads() > 0)
+                Thread.sleep(100);
+        }
+        System.exit(0);
+    }
+}
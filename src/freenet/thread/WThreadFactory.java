@@ -0,0 +1,615 @@
+/* -*- Mode: java; c-basic-indent: 4; tab-width: 4 -*- */
+package freenet.thread;
+
+import java.util.Vector;
+
+import freenet.Core;
+import freenet.diagnostics.ExternalContinuous;
+import freenet.diagnostics.ExternalCounting;
+import freenet.support.Logger;
+
+/**
+ * A ThreadFactory with a bounded number of threads, each with its own
+ * bounded deque of jobs, that steal from each other when they run out.
+ *
+ * <p>
+ * Jobs started by one of our own threads go on that thread's deque, jobs
+ * from anywhere else are dealt round the deques. A thread takes the oldest
+ * job on its own deque first (these are mostly messages, which should be
+ * handled roughly in order), then the newest job on somebody else's. Only
+ * idle threads share a lock, so busy threads don't contend with each other
+ * or with the threads starting jobs.
+ * </p>
+ *
+ * <p>
+ * Threads are created as needed up to targetMaxThreads and never beyond,
+ * and idle ones above MINIMUM_THREADS exit after IDLE_TIMEOUT. When every
+ * deque is full the job is run by the thread that tried to start it, which
+ * slows down whoever is producing the work rather than creating more
+ * threads. That is no good for jobs that block for a long time, such as
+ * client connections, since the thread starting them is usually a listener
+ * that must keep accepting. So a factory made for blocking jobs never
+ * queues a job, or runs it on the caller: it hands the job straight to an
+ * idle thread, taking that thread off the idle list under the lock so that
+ * no two jobs can be given the same one. When no thread is idle and no
+ * more may be created it starts an extra thread just for that job, and the
+ * caller is expected to limit how many it starts.
+ * Some threads must never run a job themselves either, such as the Ticker,
+ * whose scheduled events would all wait for it; they call
+ * neverRunOnCaller(), and their jobs get an overflow thread when the
+ * deques are full.
+ * Jobs which are JobPriority.isMaintenance() go in a separate lane
+ * that is only served when there is no other work, or every
+ * MAINTENANCE_INTERVAL jobs so they don't starve.
+ * </p>
+ */
+public final class WThreadFactory implements ThreadFactory {
+
+	/** Jobs that can be queued on each thread's deque. Power of 2. */
+	private static final int DEQUE_SIZE = 64;
+
+	/** Jobs that can be queued in the maintenance lane. Power of 2. */
+	private static final int MAINTENANCE_SIZE = 256;
+
+	/** A thread looks at the maintenance lane first every this many jobs */
+	private static final int MAINTENANCE_INTERVAL = 16;
+
+	/** Never let idle threads exit below this many */
+	private static final int MINIMUM_THREADS = 4;
+
+	/** How long a thread waits for work before exiting */
+	private static final long IDLE_TIMEOUT = 60000;
+
+	private final ThreadGroup tg;
+
+	private final String prefix;
+
+	private final long stackSize;
+
+	/**
+	 * Idle threads wait on this, and it guards workers, total and the
+	 * creation of threads. Package-private for the tests.
+	 */
+	final Object idleLock = new Object();
+
+	/** Deque i belongs to workers[i], if there is one. Only ever grows. */
+	private volatile JobDeque[] deques;
+
+	private WThread[] workers;
+
+	private volatile int total = 0;
+
+	private volatile int idle = 0;
+
+	private volatile int targetMaxThreads;
+
+	private int threadNumber = 0;
+
+	/** Not synchronized, it only spreads jobs over the deques */
+	private int nextDeque = 0;
+
+	private final JobDeque maintenance = new JobDeque(MAINTENANCE_SIZE);
+
+	private final ExternalContinuous queueDelay =
+		Core.diagnostics.getExternalContinuousVariable("jobQueueDelayAllWThreads");
+
+	private final ExternalCounting jobsStolen =
+		Core.diagnostics.getExternalCountingVariable("jobsStolenByWThreads");
+
+	private final ExternalCounting callerRuns =
+		Core.diagnostics.getExternalCountingVariable("jobsRunByWThreadCaller");
+
+	private final ExternalCounting jobsExecuted =
+		Core.diagnostics.getExternalCountingVariable("jobsExecuted");
+
+	private final ExternalCounting overflowRuns =
+		Core.diagnostics.getExternalCountingVariable("jobsRunOnWThreadOverflow");
+
+	private final boolean logDEBUG;
+
+	/** Start overflow threads rather than queue or run jobs on the caller */
+	private final boolean blockingJobs;
+
+	private int overflowNumber = 0;
+
+	/** Set on threads that called neverRunOnCaller() */
+	private static final ThreadLocal noCallerRuns = new ThreadLocal();
+
+	/**
+	 * Idle threads waiting for a job to be handed to them, if blockingJobs.
+	 * Guarded by idleLock.
+	 */
+	private final Vector waiting = new Vector();
+
+	/**
+	 * @param tg
+	 *            ThreadGroup all created threads will belong to.
+	 * @param targetMaxThreads
+	 *            Never create more than this number of threads.
+	 * @param prefix
+	 *            Threads are named as prefix + threadNumber.
+	 */
+	public WThreadFactory(ThreadGroup tg, int targetMaxThreads, String prefix) {
+		this(tg, targetMaxThreads, prefix, 0);
+	}
+
+	/**
+	 * @param tg
+	 *            ThreadGroup all created threads will belong to.
+	 * @param targetMaxThreads
+	 *            Never create more than this number of threads.
+	 * @param prefix
+	 *            Threads are named as prefix + threadNumber.
+	 * @param stackSize
+	 *            Stack size of the threads in bytes, 0 for the JVM's
+	 *            default. Smaller stacks let us have more threads in the
+	 *            same memory, if the jobs don't recurse too deeply.
+	 */
+	public WThreadFactory(
+		ThreadGroup tg,
+		int targetMaxThreads,
+		String prefix,
+		long stackSize) {
+		this(tg, targetMaxThreads, prefix, stackSize, false);
+	}
+
+	/**
+	 * @param tg
+	 *            ThreadGroup all created threads will belong to.
+	 * @param targetMaxThreads
+	 *            Never create more than this number of pooled threads.
+	 * @param prefix
+	 *            Threads are named as prefix + threadNumber.
+	 * @param stackSize
+	 *            Stack size of the threads in bytes, 0 for the JVM's
+	 *            default.
+	 * @param blockingJobs
+	 *            If true, the jobs may block for a long time, so when
+	 *            every pooled thread is busy each new job gets an overflow
+	 *            thread of its own instead of waiting in a queue or being
+	 *            run by the caller.
+	 */
+	public WThreadFactory(
+		ThreadGroup tg,
+		int targetMaxThreads,
+		String prefix,
+		long stackSize,
+		boolean blockingJobs) {
+		this.tg = tg;
+		this.prefix = prefix;
+		this.stackSize = stackSize;
+		this.blockingJobs = blockingJobs;
+		this.targetMaxThreads = Math.max(targetMaxThreads, 1);
+		this.logDEBUG = Core.logger.shouldLog(Logger.DEBUG, this);
+		deques = new JobDeque[this.targetMaxThreads];
+		workers = new WThread[this.targetMaxThreads];
+		for (int i = 0; i < deques.length; i++)
+			deques[i] = new JobDeque(DEQUE_SIZE);
+	}
+
+	/**
+	 * @param target
+	 *            Never create more than this number of threads.
+	 * @param delay
+	 *            Ignored, jobs are queued as long as there is room.
+	 * @param absMaxThreads
+	 *            Also a limit on the number of threads.
+	 */
+	public final void configUpdater(int target, int delay, int absMaxThreads) {
+		target = Math.max(Math.min(target, absMaxThreads), 1);
+		synchronized (idleLock) {
+			if (target > deques.length) {
+				JobDeque[] d = new JobDeque[target];
+				WThread[] w = new WThread[target];
+				System.arraycopy(deques, 0, d, 0, deques.length);
+				System.arraycopy(workers, 0, w, 0, workers.length);
+				for (int i = deques.length; i < d.length; i++)
+					d[i] = new JobDeque(DEQUE_SIZE);
+				workers = w;
+				deques = d;
+			}
+			targetMaxThreads = target;
+		}
+	}
+
+	/**
+	 * @return the maximum number of threads, and so of executing jobs.
+	 *         Caller may use this, together with activeThreads(), to
+	 *         determine load.
+	 */
+	public final int maximumThreads() {
+		return targetMaxThreads;
+	}
+
+	/**
+	 * @return the number of currently executing jobs
+	 */
+	public final int activeThreads() {
+		return total - idle;
+	}
+
+	/**
+	 * @return the instantaneous number of idle threads
+	 */
+	public final int availableThreads() {
+		return idle;
+	}
+
+	/**
+	 * @param job
+	 *            The job to be executed.
+	 * @return null if the job was queued, the overflow thread running it,
+	 *         or the current thread if there was no room and it has run
+	 *         the job itself.
+	 */
+	public final Thread getThread(Runnable job) {
+		long now = System.currentTimeMillis();
+		boolean queued;
+		if (job instanceof JobPriority && ((JobPriority) job).isMaintenance()) {
+			queued = maintenance.offer(job, now);
+		} else if (blockingJobs) {
+			// Never queue, a job may never finish and leave others waiting
+			synchronized (idleLock) {
+				if (!waiting.isEmpty()) {
+					WThread w = (WThread) waiting.remove(waiting.size() - 1);
+					idle--;
+					w.handed = job;
+					w.queuedAt = now;
+					idleLock.notifyAll();
+					return null;
+				}
+				if (total < targetMaxThreads && createThread(job))
+					return null;
+			}
+			queued = false;
+		} else {
+			JobDeque[] d = deques;
+			int n = Math.max(Math.min(total, d.length), 1);
+			Thread t = Thread.currentThread();
+			int k;
+			if (t instanceof WThread && ((WThread) t).factory() == this)
+				k = ((WThread) t).index;
+			else
+				k = (nextDeque++ & Integer.MAX_VALUE) % n;
+			queued = d[k].offer(job, now);
+			for (int i = 1; !queued && i < d.length; i++)
+				queued = d[(k + i) % d.length].offer(job, now);
+		}
+		if (!queued && (blockingJobs || noCallerRuns.get() != null)) {
+			Thread t = startOverflowThread(job);
+			if (t != null)
+				return t;
+		}
+		if (!queued) {
+			callerRuns.count(1);
+			if (logDEBUG)
+				Core.logger.log(this, "Queues full, running " + job + " on "
+						+ Thread.currentThread(), Logger.DEBUG);
+			runJob(job);
+			return Thread.currentThread();
+		}
+		if (idle > 0) {
+			synchronized (idleLock) {
+				if (idle > 0) {
+					// Threads waiting for a handoff must all look
+					if (blockingJobs)
+						idleLock.notifyAll();
+					else
+						idleLock.notify();
+				}
+			}
+		} else if (total < targetMaxThreads) {
+			synchronized (idleLock) {
+				if (total < targetMaxThreads)
+					createThread(null);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Never run a job on the current thread when the deques are full, but
+	 * start an overflow thread for it. For threads that others depend on
+	 * to be prompt, such as the Ticker.
+	 */
+	public static void neverRunOnCaller() {
+		noCallerRuns.set(Boolean.TRUE);
+	}
+
+	/**
+	 * Start a thread in the first free slot. Caller must hold idleLock.
+	 *
+	 * @param job
+	 *            the first job the thread runs, or null
+	 * @return true if the thread was started
+	 */
+	private boolean createThread(Runnable job) {
+		for (int i = 0; i < workers.length; i++) {
+			if (workers[i] != null)
+				continue;
+			try {
+				workers[i] = new WThread(i, prefix + (threadNumber++), job);
+				total++;
+				return true;
+			} catch (OutOfMemoryError e) {
+				// It's possible to run out of VM when using a large thread
+				// stack size
+				Core.logger.log(this,
+						"Not enough virtual memory to create new thread.",
+						Logger.ERROR);
+			} catch (Throwable e) {
+				Core.logger.log(this,
+						"Unexpected exeption when creating thread.", e,
+						Logger.ERROR);
+			}
+			return false;
+		}
+		return false;
+	}
+
+	/**
+	 * Start a thread outside the pool that runs just this job.
+	 *
+	 * @return the thread, or null if it couldn't be created.
+	 */
+	private Thread startOverflowThread(final Runnable job) {
+		String name;
+		synchronized (idleLock) {
+			name = prefix + "overflow-" + (overflowNumber++);
+		}
+		try {
+			Thread t = new Thread(tg, new Runnable() {
+				public void run() {
+					runJob(job);
+				}
+			}, name, stackSize);
+			t.start();
+			overflowRuns.count(1);
+			if (logDEBUG)
+				Core.logger.log(this, "All threads busy, running " + job
+						+ " on " + name, Logger.DEBUG);
+			return t;
+		} catch (OutOfMemoryError e) {
+			Core.logger.log(this,
+					"Not enough virtual memory to create overflow thread.",
+					Logger.ERROR);
+		} catch (Throwable e) {
+			Core.logger.log(this,
+					"Unexpected exeption when creating overflow thread.", e,
+					Logger.ERROR);
+		}
+		return null;
+	}
+
+	private void runJob(Runnable job) {
+		try {
+			jobsExecuted.count(1);
+			job.run();
+		} catch (Throwable e) {
+			Core.logger.log(this, "Unhandled exception " + e + " in job "
+					+ job, e, Logger.ERROR);
+			freenet.node.Main.dumpInterestingObjects();
+		}
+	}
+
+	/**
+	 * @return true if any job is queued anywhere
+	 */
+	private boolean anyWork() {
+		if (!maintenance.isEmpty())
+			return true;
+		JobDeque[] d = deques;
+		for (int i = 0; i < d.length; i++)
+			if (!d[i].isEmpty())
+				return true;
+		return false;
+	}
+
+	private final class WThread extends Thread implements PooledThread {
+
+		private final int index;
+
+		private final JobDeque deque;
+
+		private Runnable job = null;
+
+		private int jobsDone = 0;
+
+		/** Set by JobDeque to when the job it returned was queued */
+		private long queuedAt;
+
+		/**
+		 * A job given to this thread while it was waiting, if blockingJobs.
+		 * Set under idleLock.
+		 */
+		private Runnable handed;
+
+		WThread(int index, String name, Runnable job) {
+			super(tg, null, name, stackSize);
+			this.index = index;
+			this.deque = deques[index];
+			this.handed = job;
+			this.queuedAt = System.currentTimeMillis();
+			super.start();
+		}
+
+		public Runnable job() {
+			return job;
+		}
+
+		WThreadFactory factory() {
+			return WThreadFactory.this;
+		}
+
+		private Runnable nextJob() {
+			Runnable r;
+			if (jobsDone % MAINTENANCE_INTERVAL == 0) {
+				r = maintenance.poll(this);
+				if (r != null)
+					return r;
+			}
+			r = deque.poll(this);
+			if (r != null)
+				return r;
+			JobDeque[] d = deques;
+			for (int i = 1; i < d.length; i++) {
+				r = d[(index + i) % d.length].steal(this);
+				if (r != null) {
+					jobsStolen.count(1);
+					return r;
+				}
+			}
+			return maintenance.poll(this);
+		}
+
+		/**
+		 * @return false if this thread has been idle long enough to exit
+		 */
+		private boolean waitForWork() {
+			if (blockingJobs)
+				return waitForHandoff();
+			synchronized (idleLock) {
+				idle++;
+				try {
+					if (anyWork())
+						return true;
+					long start = System.currentTimeMillis();
+					try {
+						idleLock.wait(IDLE_TIMEOUT);
+					} catch (InterruptedException e) {
+						return true;
+					}
+					if (System.currentTimeMillis() - start >= IDLE_TIMEOUT
+							&& total > MINIMUM_THREADS && !anyWork()) {
+						workers[index] = null;
+						total--;
+						return false;
+					}
+					return true;
+				} finally {
+					idle--;
+				}
+			}
+		}
+
+		/**
+		 * Wait on the idle list until a job is handed to us, or one is
+		 * queued in the maintenance lane.
+		 *
+		 * @return false if this thread has been idle long enough to exit
+		 */
+		private boolean waitForHandoff() {
+			synchronized (idleLock) {
+				if (anyWork())
+					return true;
+				waiting.addElement(this);
+				idle++;
+				long start = System.currentTimeMillis();
+				long left = IDLE_TIMEOUT;
+				try {
+					while (handed == null && left > 0 && !anyWork()) {
+						idleLock.wait(left);
+						left = IDLE_TIMEOUT
+								- (System.currentTimeMillis() - start);
+					}
+				} catch (InterruptedException e) {
+					// Just look for work
+				} finally {
+					if (handed == null) {
+						waiting.removeElement(this);
+						idle--;
+					}
+				}
+				if (handed == null && left <= 0 && total > MINIMUM_THREADS
+						&& !anyWork()) {
+					workers[index] = null;
+					total--;
+					return false;
+				}
+				return true;
+			}
+		}
+
+		public final void run() {
+			while (true) {
+				Runnable r = handed;
+				if (r != null)
+					handed = null;
+				else
+					r = nextJob();
+				if (r == null) {
+					if (!waitForWork())
+						break;
+					continue;
+				}
+				queueDelay.count(System.currentTimeMillis() - queuedAt);
+				job = r;
+				runJob(r);
+				job = null;
+				jobsDone++;
+			}
+			if (logDEBUG)
+				Core.logger.log(this, getName() + " ended after " + jobsDone
+						+ " jobs. " + total + " threads left.", Logger.DEBUG);
+		}
+	}
+
+	/**
+	 * A bounded ring of jobs. The owner takes from the head, thieves from
+	 * the tail.
+	 */
+	private static final class JobDeque {
+
+		private final Runnable[] jobs;
+
+		private final long[] times;
+
+		private final int mask;
+
+		private int head = 0;
+
+		private int size = 0;
+
+		JobDeque(int capacity) {
+			jobs = new Runnable[capacity];
+			times = new long[capacity];
+			mask = capacity - 1;
+		}
+
+		synchronized boolean offer(Runnable job, long now) {
+			if (size == jobs.length)
+				return false;
+			int i = (head + size) & mask;
+			jobs[i] = job;
+			times[i] = now;
+			size++;
+			return true;
+		}
+
+		synchronized Runnable poll(WThread t) {
+			if (size == 0)
+				return null;
+			Runnable r = jobs[head];
+			jobs[head] = null;
+			t.queuedAt = times[head];
+			head = (head + 1) & mask;
+			size--;
+			return r;
+		}
+
+		synchronized Runnable steal(WThread t) {
+			if (size == 0)
+				return null;
+			int i = (head + size - 1) & mask;
+			Runnable r = jobs[i];
+			jobs[i] = null;
+			t.queuedAt = times[i];
+			size--;
+			return r;
+		}
+
+		synchronized boolean isEmpty() {
+			return size == 0;
+		}
+	}
+}
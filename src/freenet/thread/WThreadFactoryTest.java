@@ -0,0 +1,195 @@
+package freenet.thread;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that a WThreadFactory never makes a thread that must stay prompt,
+ * such as a connection listener or the Ticker, run a job that blocks.
+ */
+public class WThreadFactoryTest extends TestCase {
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(WThreadFactoryTest.class);
+	}
+
+	private final Object gate = new Object();
+
+	private boolean open = false;
+
+	private int running = 0;
+
+	private final class Session implements Runnable {
+		public void run() {
+			synchronized (gate) {
+				running++;
+				gate.notifyAll();
+				while (!open) {
+					try {
+						gate.wait();
+					} catch (InterruptedException e) {
+					}
+				}
+				running--;
+				gate.notifyAll();
+			}
+		}
+	}
+
+	private int shortDone = 0;
+
+	/** Finishes at once, after a short sleep */
+	private final class ShortJob implements Runnable {
+		public void run() {
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+			}
+			synchronized (gate) {
+				shortDone++;
+				gate.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Every pooled thread is idle, but hasn't woken up yet for the short
+	 * jobs it was just given when the sessions arrive. No session may be
+	 * put behind a short job on a thread that then blocks in another
+	 * session; each must start at once, on an idle thread or an overflow
+	 * one.
+	 */
+	public void testIdleThreadsAreReserved() throws InterruptedException {
+		WThreadFactory tf =
+			new WThreadFactory(
+				new ThreadGroup("WThreadFactoryTest"),
+				4,
+				"WThreadFactoryTest-",
+				0,
+				true);
+		final int sessions = 8;
+		try {
+			// Start all four threads, and let them go idle
+			for (int i = 0; i < 4; i++)
+				assertNull(tf.getThread(new ShortJob()));
+			long deadline = System.currentTimeMillis() + 10000;
+			while (tf.availableThreads() < 4
+					&& System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(4, tf.availableThreads());
+
+			// Holding the lock, no idle thread can wake up in between
+			synchronized (tf.idleLock) {
+				for (int i = 0; i < 4; i++)
+					assertNull(tf.getThread(new ShortJob()));
+				for (int i = 0; i < sessions; i++) {
+					Thread t = tf.getThread(new Session());
+					assertNotSame(Thread.currentThread(), t);
+				}
+			}
+			deadline = System.currentTimeMillis() + 10000;
+			synchronized (gate) {
+				while ((running < sessions || shortDone < 8)
+						&& System.currentTimeMillis() < deadline)
+					gate.wait(100);
+				assertEquals(8, shortDone);
+				assertEquals(sessions, running);
+			}
+		} finally {
+			synchronized (gate) {
+				open = true;
+				gate.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Far more sessions than threads, all blocked: the listener never runs
+	 * one itself, and every one of them gets going without waiting for
+	 * another to finish.
+	 */
+	public void testSaturatedPoolStillAccepts() throws InterruptedException {
+		final int sessions = 200;
+		WThreadFactory tf =
+			new WThreadFactory(
+				new ThreadGroup("WThreadFactoryTest"),
+				4,
+				"WThreadFactoryTest-",
+				0,
+				true);
+		try {
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < sessions; i++) {
+				Thread t = tf.getThread(new Session());
+				assertNotSame(Thread.currentThread(), t);
+			}
+			// Accepting didn't wait for any session
+			assertTrue(System.currentTimeMillis() - start < 10000);
+			long deadline = System.currentTimeMillis() + 10000;
+			synchronized (gate) {
+				while (running < sessions
+						&& System.currentTimeMillis() < deadline)
+					gate.wait(100);
+				assertEquals(sessions, running);
+			}
+		} finally {
+			synchronized (gate) {
+				open = true;
+				gate.notifyAll();
+			}
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		synchronized (gate) {
+			while (running > 0 && System.currentTimeMillis() < deadline)
+				gate.wait(100);
+			assertEquals(0, running);
+		}
+	}
+
+	/**
+	 * With the only thread stuck and its deque full, a job from a thread
+	 * that called neverRunOnCaller(), such as the Ticker, gets an overflow
+	 * thread instead of being run, and blocking, on that thread.
+	 */
+	public void testNeverRunOnCaller() throws InterruptedException {
+		final WThreadFactory tf =
+			new WThreadFactory(
+				new ThreadGroup("WThreadFactoryTest"),
+				1,
+				"WThreadFactoryTest-");
+		try {
+			assertNull(tf.getThread(new Session()));
+			long deadline = System.currentTimeMillis() + 10000;
+			synchronized (gate) {
+				while (running < 1 && System.currentTimeMillis() < deadline)
+					gate.wait(100);
+				assertEquals(1, running);
+			}
+			// Fill the deque; the job that doesn't fit runs here
+			while (tf.getThread(new ShortJob()) != Thread.currentThread())
+				;
+			final Thread[] got = new Thread[1];
+			Thread ticker = new Thread() {
+				public void run() {
+					WThreadFactory.neverRunOnCaller();
+					got[0] = tf.getThread(new Session());
+				}
+			};
+			ticker.start();
+			ticker.join(10000);
+			assertFalse("Ran the job on the caller", ticker.isAlive());
+			assertNotNull(got[0]);
+			assertNotSame(ticker, got[0]);
+			deadline = System.currentTimeMillis() + 10000;
+			synchronized (gate) {
+				while (running < 2 && System.currentTimeMillis() < deadline)
+					gate.wait(100);
+				assertEquals(2, running);
+			}
+		} finally {
+			synchronized (gate) {
+				open = true;
+				gate.notifyAll();
+			}
+		}
+	}
+}
@@ -6,6 +6,7 @@
  * Window - Preferences - Java - Code Generation - Code and Comments
  */
 package freenet.transport;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Hashtable;
@@ -88,23 +89,11 @@ class CloseQueue {
 		while (it.hasNext()) {
 			current = (CloseQueueItem) it.next();
 			if (current.sc != null) {
-				SelectionKey k = null;
-				if (tcpConnection.getRSL() instanceof AbstractSelectorLoop)
-					k = ((AbstractSelectorLoop) tcpConnection.getRSL()).keyFor(current.sc);
-				else
-					logger.log(this, "tcpConnection.RSL nor an AbstractSelectorLoop!", 
-						   new Exception("debug"), 
-						   Logger.ERROR);
+				SelectionKey k = keyFor(tcpConnection.getRSL(), current.sc);
 				if (k != null) {
 					k.cancel();
 				} else {
-					if (tcpConnection.getWSL() instanceof AbstractSelectorLoop)
-						k = ((AbstractSelectorLoop) tcpConnection.getWSL()).keyFor(current.sc);
-					else
-						logger.log(this, 
-							   "tcpConnection.WSL nor an AbstractSelectorLoop!", 
-							   new Exception("debug"), 
-							   Logger.ERROR);
+					k = keyFor(tcpConnection.getWSL(), current.sc);
 					if (k != null) {
 						k.cancel();
 					}
@@ -120,6 +109,21 @@ class CloseQueue {
 		notifyCloseThread(); /* wake up processQueue */
 	}
 	
+	/**
+	 * @return the key for a channel on a selector loop, or on whichever loop
+	 * of a SelectorLoopGroup handles it.
+	 */
+	private SelectionKey keyFor(Object loop, SelectableChannel sc) {
+		if (loop instanceof AbstractSelectorLoop)
+			return ((AbstractSelectorLoop) loop).keyFor(sc);
+		if (loop instanceof SelectorLoopGroup)
+			return ((SelectorLoopGroup) loop).keyFor(sc);
+		logger.log(this, loop + " is neither an AbstractSelectorLoop nor a SelectorLoopGroup!",
+			   new Exception("debug"), 
+			   Logger.ERROR);
+		return null;
+	}
+
 	/**
 	 * Wake up processQueue to handle the new items in the queue.
 	 */
@@ -265,7 +265,7 @@ public final class ReadSelectorLoop extends ThrottledSelectorLoop implements Thr
 				continue;
 			}
 			
-			ByteBuffer bumper = nc.getBuf();
+			ByteBuffer bumper = null;
 			
 			SocketChannel sc = (SocketChannel) current.channel();
 			if (logDebug) logger.log(this," checking channel"+
@@ -273,23 +273,32 @@ public final class ReadSelectorLoop extends ThrottledSelectorLoop implements Thr
 			int size = 0;
 			boolean shouldThrottle = nc.shouldThrottle();
 			try {
-				synchronized (bumper) {
-					if (!current.isValid()) {
-						if (logDebug)
-							logger.log(this, "Channel invalid: " + bumper + ":" + sc + ":" + nc + " (" + iteration
-									+ ")", Logger.DEBUG);
-						size = 0;
-						continue;
-					} else if (noThrottled && shouldThrottle) {
-						if (logDebug)
-							logger.log(this, "Ignored throttled " + current, Logger.DEBUG);
-						// It will be put back onto the throttled queue later
-						// No need to cancel
-						size = 0;
-						continue; //<-- if all that are readable are
-						// throttled, we effectively cause the thread to sleep
-						// --zab
-					} else if (bumper.limit() == bumper.capacity()) {
+				if (!current.isValid()) {
+					if (logDebug)
+						logger.log(this, "Channel invalid: " + sc + ":" + nc + " (" + iteration
+								+ ")", Logger.DEBUG);
+					size = 0;
+					continue;
+				} else if (noThrottled && shouldThrottle) {
+					if (logDebug)
+						logger.log(this, "Ignored throttled " + current, Logger.DEBUG);
+					// It will be put back onto the throttled queue later
+					// No need to cancel
+					size = 0;
+					continue; //<-- if all that are readable are
+					// throttled, we effectively cause the thread to sleep
+					// --zab
+				}
+				// Only ask for the buffer once we are going to use it, as
+				// the reader may have to lease one
+				bumper = nc.getBuf();
+				if (bumper == null) {
+					// The reader has terminated
+					if (logDebug)
+						logger.log(this, "No buffer for " + nc, Logger.DEBUG);
+					size = -1;
+				} else synchronized (bumper) {
+					if (bumper.limit() == bumper.capacity()) {
 						logger.log(this, "BUFFER FULL (" + current + ":" + current.isValid() + ") for " + bumper + ":"
 								+ sc + ":" + nc + " (" + iteration + ")", Logger.ERROR);
 						noneWorking = false;
@@ -489,7 +498,8 @@ public final class ReadSelectorLoop extends ThrottledSelectorLoop implements Thr
 				int status = 1;
 				try {
 				    long startTime = System.currentTimeMillis();
-					status = nc.process(nc.getBuf());
+					ByteBuffer buf = nc.getBuf();
+					status = buf == null ? -1 : nc.process(buf);
 					if(loadCheck.value()) {
 					    long endTime = System.currentTimeMillis();
 					    long length = endTime - startTime;
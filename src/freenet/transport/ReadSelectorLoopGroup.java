@@ -0,0 +1,38 @@
+package freenet.transport;
+
+import java.nio.channels.SocketChannel;
+
+import freenet.support.Logger;
+
+/**
+ * Several ReadSelectorLoops, each reading, decrypting and parsing for its
+ * share of the connections. See SelectorLoopGroup.
+ */
+public final class ReadSelectorLoopGroup extends SelectorLoopGroup
+	implements ThrottledAsyncTCPReadManager {
+
+	private final ReadSelectorLoop[] readers;
+
+	public ReadSelectorLoopGroup(ReadSelectorLoop[] readers, Logger logger) {
+		super(readers, logger);
+		this.readers = readers;
+	}
+
+	public void scheduleMaintenance(SocketChannel cb, NIOReader attachment) {
+		readers[loopNumber(cb)].scheduleMaintenance(cb, attachment);
+	}
+
+	public long getTotalTransferedThrottlableBytes() {
+		long x = 0;
+		for (int i = 0; i < readers.length; i++)
+			x += readers[i].getTotalTransferedThrottlableBytes();
+		return x;
+	}
+
+	public long getTotalTransferedPseudoThrottlableBytes() {
+		long x = 0;
+		for (int i = 0; i < readers.length; i++)
+			x += readers[i].getTotalTransferedPseudoThrottlableBytes();
+		return x;
+	}
+}
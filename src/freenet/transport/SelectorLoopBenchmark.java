@@ -0,0 +1,285 @@
+package freenet.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import freenet.Core;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.diagnostics.Diagnostics;
+import freenet.diagnostics.VoidDiagnostics;
+import freenet.support.AlwaysFalseBooleanCallback;
+import freenet.support.VoidLogger;
+
+/**
+ * Loopback stress test for the selector loops. Opens a number of TCP
+ * connections to ourselves, and keeps every one of them busy writing
+ * fixed size messages through a WriteSelectorLoopGroup. The other end of
+ * each is read by a ReadSelectorLoopGroup, which decrypts and checks each
+ * message in the reading thread, as MuxConnectionHandler does. Reports
+ * the messages per second received by all connections together, for each
+ * number of selector loop pairs asked for.
+ * <p>
+ * Usage: SelectorLoopBenchmark [connections] [message size] [milliseconds
+ * per run] [selector loops ...]
+ * </p>
+ */
+public class SelectorLoopBenchmark {
+
+	/** Messages written per send() */
+	private static final int BATCH = 16;
+
+	private static int messageSize;
+
+	private static volatile boolean running;
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		messageSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+		long runtime = args.length > 2 ? Long.parseLong(args[2]) : 3000;
+		int[] loops;
+		if (args.length > 3) {
+			loops = new int[args.length - 3];
+			for (int i = 0; i < loops.length; i++)
+				loops[i] = Integer.parseInt(args[i + 3]);
+		} else
+			loops = new int[] { 1, 2, 4 };
+		System.out.println(connections + " connections, " + messageSize
+				+ " byte messages, "
+				+ Runtime.getRuntime().availableProcessors() + " CPUs");
+		for (int i = 0; i < loops.length; i++)
+			run(loops[i], connections, runtime);
+		System.exit(0);
+	}
+
+	private static void run(int loops, int connections, long runtime)
+			throws Exception {
+		Diagnostics d = new VoidDiagnostics();
+		ReadSelectorLoop[] readers = new ReadSelectorLoop[loops];
+		WriteSelectorLoop[] writers = new WriteSelectorLoop[loops];
+		for (int i = 0; i < loops; i++) {
+			readers[i] = new ReadSelectorLoop(Core.logger,
+					d.getExternalContinuousVariable("closePairLifetime"),
+					d.getExternalCountingVariable("inputBytes"),
+					d.getExternalCountingVariable("readinessSelectionScrewed"),
+					d.getExternalCountingVariable("connectionResetByPeer"),
+					new AlwaysFalseBooleanCallback(), false,
+					Core.getRandSource());
+			writers[i] = new WriteSelectorLoop(Core.logger,
+					d.getExternalContinuousVariable("closePairLifetime"),
+					d.getExternalCountingVariable("outputBytes"),
+					d.getExternalCountingVariable("outputBytesVeryHigh"),
+					d.getExternalCountingVariable("outputBytesHigh"),
+					d.getExternalCountingVariable("outputBytesNormal"),
+					d.getExternalCountingVariable("outputBytesLow"),
+					false, Core.getRandSource());
+		}
+		ReadSelectorLoopGroup rsl = new ReadSelectorLoopGroup(readers,
+				new VoidLogger());
+		WriteSelectorLoopGroup wsl = new WriteSelectorLoopGroup(writers,
+				new VoidLogger());
+		rsl.start("Benchmark reading thread");
+		wsl.start("Benchmark writing thread");
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		int port = server.socket().getLocalPort();
+		Reader[] in = new Reader[connections];
+		Writer[] out = new Writer[connections];
+		SocketChannel[] channels = new SocketChannel[connections * 2];
+		for (int i = 0; i < connections; i++) {
+			SocketChannel c = SocketChannel.open(new InetSocketAddress(
+					"127.0.0.1", port));
+			SocketChannel s = server.accept();
+			c.configureBlocking(false);
+			s.configureBlocking(false);
+			channels[2 * i] = c;
+			channels[2 * i + 1] = s;
+			in[i] = new Reader();
+			rsl.register(s, in[i]);
+			out[i] = new Writer(c, wsl);
+		}
+		running = true;
+		for (int i = 0; i < connections; i++)
+			out[i].send();
+		// Warm up
+		Thread.sleep(Math.min(runtime, 1000));
+		long before = count(in);
+		long start = System.currentTimeMillis();
+		Thread.sleep(runtime);
+		long received = count(in) - before;
+		long duration = System.currentTimeMillis() - start;
+		running = false;
+		boolean ok = true;
+		for (int i = 0; i < connections; i++)
+			ok &= !in[i].corrupt;
+		System.out.println(loops + " selector loops: "
+				+ (received * 1000 / duration) + " messages/s, "
+				+ (received * messageSize / 1024 * 1000 / duration)
+				+ " KiB/s" + (ok ? "" : ", CORRUPT MESSAGES"));
+		Thread.sleep(200);
+		for (int i = 0; i < channels.length; i++)
+			channels[i].close();
+		server.close();
+		for (int i = 0; i < loops; i++) {
+			readers[i].stop = true;
+			writers[i].stop = true;
+		}
+	}
+
+	private static long count(Reader[] in) {
+		long x = 0;
+		for (int i = 0; i < in.length; i++)
+			x += in[i].messages();
+		return x;
+	}
+
+	private static PCFBMode cipher() {
+		try {
+			Rijndael c = new Rijndael(128);
+			c.initialize(new byte[16]);
+			return new PCFBMode(c);
+		} catch (Exception e) {
+			throw new RuntimeException(e.toString());
+		}
+	}
+
+	/**
+	 * Writes batches of messages, each full of its sequence number, as fast
+	 * as the WSL will take them.
+	 */
+	private static class Writer implements NIOWriter {
+		private final SocketChannel chan;
+
+		private final WriteSelectorLoopGroup wsl;
+
+		private final PCFBMode ctx = cipher();
+
+		private final byte[] batch = new byte[BATCH * messageSize];
+
+		private int sequence = 0;
+
+		Writer(SocketChannel chan, WriteSelectorLoopGroup wsl) {
+			this.chan = chan;
+			this.wsl = wsl;
+		}
+
+		void send() throws IOException {
+			for (int i = 0; i < BATCH; i++) {
+				byte b = (byte) sequence++;
+				for (int j = 0; j < messageSize; j++)
+					batch[i * messageSize + j] = b;
+			}
+			ctx.blockEncipher(batch, 0, batch.length);
+			wsl.send(batch, chan, this, ThrottledAsyncTCPWriteManager.MESSAGE);
+		}
+
+		public void jobDone(int size, boolean status) {
+			if (!running || !status)
+				return;
+			try {
+				send();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		public void jobPartDone(int size) {
+		}
+
+		public void closed() {
+		}
+
+		public void queuedClose() {
+		}
+
+		public void registered() {
+		}
+
+		public void unregistered() {
+		}
+
+		public boolean shouldThrottle() {
+			return false;
+		}
+
+		public boolean countAsThrottled() {
+			return false;
+		}
+	}
+
+	/**
+	 * Decrypts what it reads, and counts and checks whole messages.
+	 */
+	private static class Reader implements NIOReader {
+		private final ByteBuffer buf = ByteBuffer.allocateDirect(16384);
+
+		private final PCFBMode ctx = cipher();
+
+		private final byte[] plain = new byte[16384];
+
+		private int partial = 0;
+
+		private int sequence = 0;
+
+		private long messages = 0;
+
+		volatile boolean corrupt = false;
+
+		Reader() {
+			buf.limit(0);
+		}
+
+		public ByteBuffer getBuf() {
+			return buf;
+		}
+
+		public int process(ByteBuffer b) {
+			int len = b.remaining();
+			b.get(plain, 0, len);
+			b.limit(0);
+			ctx.blockDecipher(plain, 0, len);
+			int count = 0;
+			for (int i = 0; i < len; i++) {
+				if (plain[i] != (byte) sequence)
+					corrupt = true;
+				if (++partial == messageSize) {
+					partial = 0;
+					sequence++;
+					count++;
+				}
+			}
+			synchronized (this) {
+				messages += count;
+			}
+			return 1;
+		}
+
+		synchronized long messages() {
+			return messages;
+		}
+
+		public void closed() {
+		}
+
+		public void queuedClose() {
+		}
+
+		public void registered() {
+		}
+
+		public void unregistered() {
+		}
+
+		public boolean shouldThrottle() {
+			return false;
+		}
+
+		public boolean countAsThrottled() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package freenet.transport;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import freenet.support.Logger;
+import freenet.support.io.Bandwidth;
+
+/**
+ * Several selector loops of the same kind, each running in its own thread,
+ * that look like one to the rest of the node. Each channel always goes to
+ * the same loop, chosen from its identity hash code, so a channel's reads
+ * are always handled by the same thread and the same loop number in the
+ * read and write groups; connections are spread across the threads, and so
+ * across CPUs. All the loops use the same Bandwidth, so a busy connection
+ * can have the whole limit while the other loops are idle; writes are
+ * reserved from it before they are made (see Bandwidth.reserve()), so
+ * together the loops keep to the limit.
+ */
+public abstract class SelectorLoopGroup {
+
+	protected final ThrottledSelectorLoop[] loops;
+
+	protected final Logger logger;
+
+	/** Which loop an attachment was registered on, for unregister(Object) */
+	private final Map attachments = new WeakHashMap();
+
+	protected SelectorLoopGroup(ThrottledSelectorLoop[] loops, Logger logger) {
+		if (loops.length == 0)
+			throw new IllegalArgumentException("no loops");
+		this.loops = loops;
+		this.logger = logger;
+	}
+
+	/**
+	 * @return the number of the loop that handles a channel.
+	 */
+	public final int loopNumber(SelectableChannel ch) {
+		return (System.identityHashCode(ch) & Integer.MAX_VALUE) % loops.length;
+	}
+
+	public final int countLoops() {
+		return loops.length;
+	}
+
+	/**
+	 * Start a daemon thread for each loop.
+	 * @param name the name of the threads, to which the loop number is added
+	 */
+	public final void start(String name) {
+		for (int i = 0; i < loops.length; i++) {
+			Thread t = new Thread(loops[i], name + " " + (i + 1));
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	public SelectionKey keyFor(SelectableChannel ch) {
+		return loops[loopNumber(ch)].keyFor(ch);
+	}
+
+	public void register(SelectableChannel ch, Object attachment) {
+		int i = loopNumber(ch);
+		if (attachment != null) {
+			synchronized (attachments) {
+				attachments.put(attachment, new Integer(i));
+			}
+		}
+		loops[i].register(ch, attachment);
+	}
+
+	public void unregister(SelectableChannel ch) {
+		loops[loopNumber(ch)].unregister(ch);
+	}
+
+	public void unregister(Object attachment) {
+		Integer i;
+		synchronized (attachments) {
+			i = (Integer) attachments.remove(attachment);
+		}
+		if (i == null) {
+			// The loop will still tell it it has been unregistered
+			logger.log(this, "Unregistering " + attachment
+					+ " which was not registered", Logger.MINOR);
+			loops[0].unregister(attachment);
+		} else
+			loops[i.intValue()].unregister(attachment);
+	}
+
+	public void queueClose(SocketChannel chan, NIOCallback nc) {
+		loops[chan == null ? 0 : loopNumber(chan)].queueClose(chan, nc);
+	}
+
+	public void onClosed(SelectableChannel sc) {
+		if (sc == null)
+			throw new NullPointerException();
+		loops[loopNumber(sc)].onClosed(sc);
+	}
+
+	/** The loop the next putBandwidth() goes to */
+	private int nextPut = 0;
+
+	/**
+	 * Each loop charges what it is given to the shared Bandwidth with its
+	 * next throttled bytes, so the calls go round the loops rather than
+	 * waiting on one that may be idle.
+	 */
+	public void putBandwidth(int bytes) {
+		int i;
+		synchronized (this) {
+			i = nextPut;
+			nextPut = (nextPut + 1) % loops.length;
+		}
+		loops[i].putBandwidth(bytes);
+	}
+
+	/**
+	 * Give every loop the same Bandwidth.
+	 */
+	public void setBandwidth(Bandwidth bw) {
+		for (int i = 0; i < loops.length; i++)
+			loops[i].setBandwidth(bw);
+	}
+
+	public int throttleQueueLength() {
+		int x = 0;
+		for (int i = 0; i < loops.length; i++)
+			x += loops[i].throttleQueueLength();
+		return x;
+	}
+
+	public boolean isOpen() {
+		for (int i = 0; i < loops.length; i++)
+			if (!loops[i].isOpen())
+				return false;
+		return true;
+	}
+
+	public void close() {
+		for (int i = 0; i < loops.length; i++)
+			loops[i].close();
+	}
+}
@@ -0,0 +1,158 @@
+package freenet.transport;
+
+import freenet.diagnostics.Diagnostics;
+import freenet.diagnostics.VoidDiagnostics;
+import freenet.support.VoidLogger;
+import freenet.support.io.Bandwidth;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that several selector loops together keep to one bandwidth limit.
+ */
+public class SelectorLoopGroupTest extends TestCase {
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(SelectorLoopGroupTest.class);
+	}
+
+	private static final int LOOPS = 3;
+
+	/** Bytes per second */
+	private static final int LIMIT = 30000;
+
+	private WriteSelectorLoop[] writers;
+
+	private WriteSelectorLoopGroup group;
+
+	protected void setUp() throws Exception {
+		Diagnostics d = new VoidDiagnostics();
+		writers = new WriteSelectorLoop[LOOPS];
+		for (int i = 0; i < LOOPS; i++)
+			writers[i] = new WriteSelectorLoop(new VoidLogger(),
+					d.getExternalContinuousVariable("closePairLifetime"),
+					d.getExternalCountingVariable("outputBytes"),
+					d.getExternalCountingVariable("outputBytesVeryHigh"),
+					d.getExternalCountingVariable("outputBytesHigh"),
+					d.getExternalCountingVariable("outputBytesNormal"),
+					d.getExternalCountingVariable("outputBytesLow"),
+					false, null);
+		group = new WriteSelectorLoopGroup(writers, new VoidLogger());
+	}
+
+	protected void tearDown() {
+		group.close();
+	}
+
+	/**
+	 * Every loop uses the same Bandwidth.
+	 */
+	public void testSharedBandwidth() {
+		Bandwidth bw = new Bandwidth(LIMIT, 0, Bandwidth.SENT);
+		group.setBandwidth(bw);
+		for (int i = 0; i < LOOPS; i++)
+			assertSame(bw, writers[i].bw);
+		group.setBandwidth(null);
+		for (int i = 0; i < LOOPS; i++)
+			assertNull(writers[i].bw);
+	}
+
+	/**
+	 * Every loop sends as fast as the Bandwidth lets it, all at once.
+	 * Between them they send no more than the limit allows, over the whole
+	 * run or in any half second of it.
+	 */
+	public void testAggregateLimit() throws InterruptedException {
+		long[] sent = run(LOOPS);
+		for (int i = 0; i < LOOPS; i++)
+			assertTrue("Loop " + i + " sent nothing", sent[i] > 0);
+	}
+
+	/**
+	 * One busy connection, with the other loops idle, can use the whole
+	 * limit, not just its loop's fraction of it.
+	 */
+	public void testOneHotLoop() throws InterruptedException {
+		long[] sent = run(1);
+		long least = LIMIT * (sent[LOOPS] - 500) / 1000;
+		assertTrue("Sent " + sent[0] + " in " + sent[LOOPS] + "ms, expected "
+				+ least, sent[0] >= least);
+	}
+
+	/**
+	 * Writes flat out on the first busy loops for three seconds, checking
+	 * the limit as testAggregateLimit describes.
+	 * @return the bytes each loop sent, then the elapsed time
+	 */
+	private long[] run(final int busy) throws InterruptedException {
+		group.setBandwidth(new Bandwidth(LIMIT, 0, Bandwidth.SENT));
+		final long runTime = 3000;
+		final long[] sent = new long[LOOPS + 1];
+		// When each write was made, and how big it was
+		final long[] times = new long[100000];
+		final int[] sizes = new int[times.length];
+		final int[] writes = new int[1];
+		Thread[] threads = new Thread[busy];
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < busy; i++) {
+			final int loop = i;
+			threads[i] = new Thread() {
+				public void run() {
+					while (System.currentTimeMillis() - start < runTime) {
+						int want = write(writers[loop].bw);
+						sent[loop] += want;
+						synchronized (writes) {
+							if (writes[0] < times.length) {
+								times[writes[0]] = System.currentTimeMillis();
+								sizes[writes[0]++] = want;
+							}
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < busy; i++)
+			threads[i].join();
+		long elapsed = System.currentTimeMillis() - start;
+		sent[LOOPS] = elapsed;
+		long total = 0;
+		for (int i = 0; i < LOOPS; i++)
+			total += sent[i];
+		// Allow a tick's worth and one packet extra for each loop
+		int slack = LOOPS * (LIMIT / 10 + 1500);
+		long allowed = LIMIT * elapsed / 1000 + slack;
+		assertTrue("Sent " + total + " in " + elapsed + "ms, allowed "
+				+ allowed, total <= allowed);
+
+		long window = 500;
+		long most = 0;
+		for (int i = 0, j = 0; i < writes[0]; i++) {
+			long inWindow = 0;
+			for (j = i; j < writes[0] && times[j] - times[i] < window; j++)
+				inWindow += sizes[j];
+			most = Math.max(most, inWindow);
+		}
+		allowed = LIMIT * window / 1000 + slack;
+		assertTrue("Sent " + most + " in " + window + "ms, allowed "
+				+ allowed, most <= allowed);
+		return sent;
+	}
+
+	/**
+	 * One write as WriteSelectorLoop makes it: reserved from the Bandwidth
+	 * first, or, if none is left, not made until the Bandwidth refills.
+	 * @return the size of the write
+	 */
+	private static int write(Bandwidth bw) {
+		int reserved = bw.reserve(bw.maximumPacketLength());
+		if (reserved == 0) {
+			try {
+				Thread.sleep(Math.max(1,
+						bw.nextRefillTime() - System.currentTimeMillis()));
+			} catch (InterruptedException e) {
+			}
+		}
+		return reserved;
+	}
+}
@@ -4,6 +4,7 @@
 package freenet.transport;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 
 /**
@@ -28,6 +29,14 @@ public interface ThrottledAsyncTCPWriteManager extends ThrottledAsyncTCPCommunic
 	public boolean send(byte [] data, SelectableChannel destination, NIOWriter client, 
 							   int priority) throws IOException;
 	
+	/**
+	 * Send several buffers, in order, with a gathering write rather than
+	 * one write per buffer.
+	 * return value: false if there's a job already on this channel.
+	 */
+	public boolean send(ByteBuffer[] data, SelectableChannel destination,
+			   NIOWriter client, int priority) throws IOException;
+	
 	//TODO: Where to put this one??
 	public void onClosed(SelectableChannel sc);
 }
@@ -117,6 +117,8 @@ public abstract class ThrottledSelectorLoop extends AbstractSelectorLoop {
 						} else {
 							reregister(now);
 						}
+					} else {
+						reregister(now);
 					}
 				}
 			}
@@ -313,71 +315,92 @@ public abstract class ThrottledSelectorLoop extends AbstractSelectorLoop {
 						+ ")",
 					Logger.MINOR);
 				throttling = true;
-				// Now iterate through registered keys, and disable
-				// those which belong to throttled connections
-				Set allKeys = sel.keys();
-				Iterator it = allKeys.iterator();
-				int deregistered = 0;
-				while (it.hasNext()) {
-					SelectionKey curKey = (SelectionKey) (it.next());
-					if (!curKey.isValid()) {
-						if (logDebug)
-							logger.log(
-								this,
-								"Invalid "
-									+ curKey
-									+ "("
-									+ curKey.channel()
-									+ ","
-									+ curKey.attachment()
-									+ " on selector in throttleConnections, ignoring",
-								Logger.DEBUG);
-						onInvalidKey(curKey);
-						continue;
-					}
-					SocketChannel sc = (SocketChannel) (curKey.channel());
-					if (sc == null || (!sc.isOpen()) || (!sc.isConnected())) {
-						logger.log(
-							this,
-							"Closing " + sc + " (" + curKey.attachment() + ")",
-							Logger.DEBUG);
-						queueClose(
-							((SocketChannel) (curKey.channel())),
-							(NIOCallback) (curKey.attachment()));
-						continue;
-					}
-					if (shouldThrottle(curKey.attachment())) {
-						SocketChannel channel =
-							(SocketChannel) (curKey.channel());
-						ChannelAttachmentPair pair =
-							new ChannelAttachmentPair(
-								channel,
-								curKey.attachment());
-						// 						logger.log(this, "Deregistering "+pair,
-						// 										Logger.DEBUG);
-						curKey.cancel();
-						synchronized (throttleLock) {
-							throttleDisabledQueue.add(pair);
-							throttleQueueLength = throttleDisabledQueue.size();
-							deregistered++;
-						}
-						if (logDebug)
-							logger.log(
-								this,
-								"Deregistered " + curKey.attachment(),
-								Logger.DEBUG);
-					}
+				deregisterThrottled();
+			}
+		}
+	}
+
+	/**
+	 * Stop throttled connections until the Bandwidth has more to give, when
+	 * a write could not reserve any of it. Nothing is owed, so they are
+	 * reregistered as soon as the time is up.
+	 * @param time when the Bandwidth next refills
+	 */
+	protected final void throttleUntil(long time) {
+		if (throttling || time <= System.currentTimeMillis())
+			return;
+		reregisterThrottledTime = time;
+		bytesRemainingOnThrottle = 0;
+		throttling = true;
+		deregisterThrottled();
+	}
+
+	/**
+	 * Iterate through registered keys, and disable those which belong to
+	 * throttled connections.
+	 */
+	private void deregisterThrottled() {
+		Set allKeys = sel.keys();
+		Iterator it = allKeys.iterator();
+		int deregistered = 0;
+		while (it.hasNext()) {
+			SelectionKey curKey = (SelectionKey) (it.next());
+			if (!curKey.isValid()) {
+				if (logDebug)
+					logger.log(
+						this,
+						"Invalid "
+							+ curKey
+							+ "("
+							+ curKey.channel()
+							+ ","
+							+ curKey.attachment()
+							+ " on selector in throttleConnections, ignoring",
+						Logger.DEBUG);
+				onInvalidKey(curKey);
+				continue;
+			}
+			SocketChannel sc = (SocketChannel) (curKey.channel());
+			if (sc == null || (!sc.isOpen()) || (!sc.isConnected())) {
+				logger.log(
+					this,
+					"Closing " + sc + " (" + curKey.attachment() + ")",
+					Logger.DEBUG);
+				queueClose(
+					((SocketChannel) (curKey.channel())),
+					(NIOCallback) (curKey.attachment()));
+				continue;
+			}
+			if (shouldThrottle(curKey.attachment())) {
+				SocketChannel channel =
+					(SocketChannel) (curKey.channel());
+				ChannelAttachmentPair pair =
+					new ChannelAttachmentPair(
+						channel,
+						curKey.attachment());
+				// 						logger.log(this, "Deregistering "+pair,
+				// 										Logger.DEBUG);
+				curKey.cancel();
+				synchronized (throttleLock) {
+					throttleDisabledQueue.add(pair);
+					throttleQueueLength = throttleDisabledQueue.size();
+					deregistered++;
 				}
 				if (logDebug)
 					logger.log(
 						this,
-						"Deregistered "
-							+ deregistered
-							+ " keys, TDQ.size="
-							+ throttleDisabledQueue.size(),
+						"Deregistered " + curKey.attachment(),
 						Logger.DEBUG);
 			}
 		}
+		if (logDebug)
+			logger.log(
+				this,
+				"Deregistered "
+					+ deregistered
+					+ " keys, TDQ.size="
+					+ throttleDisabledQueue.size(),
+				Logger.DEBUG);
 	}
 
 	protected void onInvalidKey(SelectionKey key) {
@@ -128,10 +128,14 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 	 */
 	private final class SendJob implements NIOCallback, 
 										   Comparable {
-		public final ByteBuffer data;
+		/** Written in order, with one gathering write if there are several */
+		public final ByteBuffer[] data;
 		public final SelectableChannel destination;
 		public final NIOWriter client;
-		public final int position;
+		/** The first buffer with anything left to write */
+		private int current = 0;
+		private final long length;
+		private long written = 0;
 		public long id;
 		public final long writtenThrottledBytesAtStart;
 		public final long writtenPseudoThrottledBytesAtStart;
@@ -204,8 +208,17 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 		
 		public SendJob(byte [] _data, int offset, int length, SelectableChannel destination, 
 					   NIOWriter client, int priority) {
-			this.data=ByteBuffer.wrap(_data,offset,length);
-			this.position = offset;
+			this(new ByteBuffer[] { ByteBuffer.wrap(_data,offset,length) },
+				 destination, client, priority);
+		}
+		
+		public SendJob(ByteBuffer[] data, SelectableChannel destination,
+					   NIOWriter client, int priority) {
+			this.data=data;
+			long l = 0;
+			for(int i=0;i<data.length;i++)
+				l += data[i].remaining();
+			this.length = l;
 			this.destination = destination;
 			if(destination == null){
 				logger.log(this,"SendJob with destination == null created",new Exception("debug"),Logger.ERROR);
@@ -224,9 +237,61 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 			switchAfter = -1;
 		}
 		
+		/** @return the number of bytes left to write */
+		public final long remaining() {
+			return length - written;
+		}
+		
+		/** @return the number of bytes written so far */
+		public final int written() {
+			return (int)written;
+		}
+		
+		/**
+		 * Write as much as the channel will take, up to limit bytes, in one
+		 * system call however many buffers are left.
+		 * @return the number of bytes written.
+		 */
+		final int write(SocketChannel chan, int limit) throws IOException {
+			// Find the last buffer we can write, and cut it short if
+			// writing all of it would go over the limit
+			int last = current;
+			long left = limit;
+			ByteBuffer cut = null;
+			int oldLimit = 0;
+			while(true) {
+				int r = data[last].remaining();
+				if(r > left) {
+					cut = data[last];
+					oldLimit = cut.limit();
+					cut.limit(cut.position() + (int)left);
+					break;
+				}
+				left -= r;
+				if(left == 0 || last == data.length-1) break;
+				last++;
+			}
+			long sent;
+			try {
+				if(last == current)
+					sent = chan.write(data[current]);
+				else
+					sent = chan.write(data, current, last - current + 1);
+			} finally {
+				if(cut != null)
+					cut.limit(oldLimit);
+			}
+			written += sent;
+			while(current < data.length-1 && !data[current].hasRemaining())
+				current++;
+			return (int)sent;
+		}
+		
 		public final String toString() {
-			return SendJob.this.getClass().getName()+": "+data+","+destination+
-				","+client+","+position+","+id+",prio="+priority;
+			return SendJob.this.getClass().getName()+": "+
+				(data.length == 1 ? data[0].toString() : (data.length+" buffers"))+
+				", "+written+"/"+length+","+destination+
+				","+client+","+id+",prio="+priority;
 		}
 		
 		public final void closed() {
@@ -327,6 +392,36 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 		return true;
 	 }
 	 
+	 /**
+	  * Queue several buffers to be sent to a Channel, in order, with one
+	  * gathering write each time the channel is writable rather than one
+	  * write per buffer. The buffers must not be changed until the client
+	  * is told the job is done.
+	  * @return false if there's a job already on this channel.
+	  */
+	 public final boolean send(ByteBuffer[] data, SelectableChannel destination,
+							   NIOWriter client, int priority) throws IOException {
+	 
+	 	logDebug = logger.shouldLog(Logger.DEBUG, this);
+		if (data.length==0 || destination==null) throw new IOException ("no data to send?");
+		
+	 	if (!checkValid(destination, client))
+			return false;
+		
+		SendJob job = new SendJob(data,destination,client,priority);
+		if (job.remaining()==0) throw new IOException ("no data to send?");
+		
+		//it doesn't really matter what the actual mapping is
+		uniqueness.put(destination,job);
+		if (logDebug)logger.log(this, "Added "+destination+","+job+" to uniqueness, now "+uniqueness.size(), Logger.DEBUG);
+		
+		//because the objects are removed from this queue
+		jobs.enqueue(job);
+		if (logDebug)logger.log(this, "Queued "+destination+","+job,
+						Logger.DEBUG);
+		return true;
+	 }
+	 
 	 private final boolean checkValid(SelectableChannel destination,
 									  NIOWriter client) {
 		//if we are already registered, return false
@@ -554,6 +649,10 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 		boolean success = true;
 		int throttledBytes = 0;
 		int pseudoThrottledBytes = 0;
+		// Throttled bytes reserved from bw before they were sent
+		int prepaidBytes = 0;
+		// Whether a throttled write found nothing left to reserve
+		boolean starved = false;
 		int bytesSent = 0;
 		Iterator i = currentSet.iterator();
 		//Iterator i = sel.keys().iterator();
@@ -579,7 +678,7 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 			SendJob currentJob = (SendJob)(i.next());
 			SelectionKey curKey = currentJob.destination.keyFor(sel);
 			if(logDebug) logger.log(this, "Current job: "+currentJob+", curKey: "+curKey, Logger.DEBUG);
-			if(currentJob == null || currentJob.data.remaining() <= 0) {
+			if(currentJob == null || currentJob.remaining() <= 0) {
 				curKey.cancel(); // leave running, but cancel
 				if(curKey.channel() != null) {
 					uniqueness.remove(curKey.channel());
@@ -593,6 +692,7 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 			
 			//do the write.. 
 			int sent = 0;
+			int reserved = 0;
 			try {
 				if(!currentJob.destination.isOpen())
 					throw new IOException("closed");
@@ -623,39 +723,34 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 						continue;
 					}
 				}
-				int oldLimit = currentJob.data.limit();
+				int lim = Integer.MAX_VALUE;
 				if(bw != null && currentJob.client.shouldThrottle() &&
 				   currentJob.shouldFragment()) {
-					int lim = bw.maximumPacketLength();
-					int av = bw.availableBandwidth();
-					if(av >= 1 && lim > av) lim = av;
-					// it is not refilled in bytes - one tick should be a fair chunk
-					if(currentJob.data.remaining() > lim) {
-						currentJob.data.limit(currentJob.data.position() +
-											  lim);
-						if(logDebug)
-							logger.log(this, "Limited: "+currentJob.data+
-											" for "+currentJob.client+
-											", limit was "+oldLimit, Logger.DEBUG);
+					lim = bw.maximumPacketLength();
+					// Reserve the write up front: other loops in a
+					// SelectorLoopGroup take from the same Bandwidth
+					reserved = bw.reserve(lim);
+					if(reserved == 0) {
+						// None left; throttle until it refills
+						starved = true;
+						continue;
 					}
+					lim = reserved;
+					// it is not refilled in bytes - one tick should be a fair chunk
+					if(logDebug && currentJob.remaining() > lim)
+						logger.log(this, "Limited: "+currentJob+
+										" to "+lim+" for "+currentJob.client,
+										Logger.DEBUG);
 				} else {
 					if(logDebug)
 						logger.log(this, "Did not limit, "+
-										currentJob.data.remaining()+"/"+
+										currentJob.remaining()+"/"+
 										(bw==null?"(null)": Integer.
 										 toString(bw.maximumPacketLength()))+
 										" for "+currentJob.client, 
 										Logger.DEBUG);
 				}
-				try {
-					sent = ((SocketChannel)curKey.channel()).
-						write(currentJob.data);
-					//this should be here, not in finally
-					//if (sent==0) currentSet.remove(curKey);
-				} finally {
-					if(currentJob.data.limit() != oldLimit)
-						currentJob.data.limit(oldLimit);
-				}
+				sent = currentJob.write((SocketChannel)curKey.channel(), lim);
 				//if this was an incomplete write, leave the buffer as it is
 			} catch (IOException e) {
 				localSuccess=false;
@@ -664,6 +759,11 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 				queueClose((SocketChannel)currentJob.destination,
 						   currentJob.client);
 			} finally {
+				if(reserved > 0) {
+					// Paid for already; only the overhead is charged later
+					bw.refund(reserved - Math.max(sent, 0));
+					prepaidBytes += Math.max(sent, 0);
+				}
 				if(sent > 0) {
 					bytesSent+=(sent+OVERHEAD);
 					if(currentJob.client.shouldThrottle()) {
@@ -716,7 +816,7 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 												 ", psuedoThrottledBytes="+
 												 pseudoThrottledBytes, Logger.DEBUG);
 					// In any case, demote it
-					if(currentJob.data.remaining() > 0)
+					if(currentJob.remaining() > 0)
 						synchronized(idSync) {
 							currentJob.id = idCount++;
 						}
@@ -724,7 +824,7 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 				//cancel the key and remove it from the uniqueness
 				//and notify Callback 
 				//also notify if we get an exception
-				if ((!localSuccess) || currentJob.data.remaining() == 0) {
+				if ((!localSuccess) || currentJob.remaining() == 0) {
 					if (logDebug)logger.log(this, "Finishing "+currentJob,
 									Logger.DEBUG);
 					curKey.cancel();
@@ -742,9 +842,7 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 											", currentJob.client="+currentJob.client,
 											Logger.ERROR);
 						else {
-							int delta = currentJob.data.position() -
-								currentJob.position;
-							currentJob.client.jobDone(delta, localSuccess);
+							currentJob.client.jobDone(currentJob.written(), localSuccess);
 						}
 					} catch (Throwable t) {
 						logger.log(this, "Caught "+t+" notifying "+
@@ -759,7 +857,7 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 					if (logDebug)logger.log(this, "Not finished "+currentJob,
 									Logger.DEBUG);
 					if (sent > 0 && localSuccess)
-						currentJob.client.jobPartDone(currentJob.data.position()-currentJob.position);
+						currentJob.client.jobPartDone(currentJob.written());
 				}
 			}
 		}
@@ -774,9 +872,11 @@ public final class WriteSelectorLoop extends ThrottledSelectorLoop implements Th
 			int bytes = throttledBytes + pseudoThrottledBytes;
 			if(logOutputBytes && logBytes != null)
 			    logBytes.count(bytes);
-			throttleConnections(bytesSent, throttledBytes,
+			throttleConnections(bytesSent, throttledBytes - prepaidBytes,
 								pseudoThrottledBytes);
 		}
+		if(starved)
+			throttleUntil(bw.nextRefillTime());
 		} catch(Throwable e) {
 			logger.log(this, "Exception in processConnections(): "+
 							e, e, Logger.ERROR);
@@ -0,0 +1,70 @@
+package freenet.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+
+import freenet.support.Logger;
+
+/**
+ * Several WriteSelectorLoops, each writing to its share of the
+ * connections. A channel is written by the loop with the same number as
+ * the ReadSelectorLoop that reads it. See SelectorLoopGroup.
+ */
+public final class WriteSelectorLoopGroup extends SelectorLoopGroup
+	implements ThrottledAsyncTCPWriteManager {
+
+	private final WriteSelectorLoop[] writers;
+
+	public WriteSelectorLoopGroup(WriteSelectorLoop[] writers, Logger logger) {
+		super(writers, logger);
+		this.writers = writers;
+	}
+
+	public boolean send(byte[] data, int offset, int len,
+			SelectableChannel destination, NIOWriter client, int priority)
+			throws IOException {
+		return writers[loopNumber(destination)].send(data, offset, len,
+				destination, client, priority);
+	}
+
+	public boolean send(byte[] data, SelectableChannel destination,
+			NIOWriter client, int priority) throws IOException {
+		return writers[loopNumber(destination)].send(data, destination,
+				client, priority);
+	}
+
+	public boolean send(ByteBuffer[] data, SelectableChannel destination,
+			NIOWriter client, int priority) throws IOException {
+		return writers[loopNumber(destination)].send(data, destination,
+				client, priority);
+	}
+
+	public long getTotalTransferedThrottlableBytes() {
+		long x = 0;
+		for (int i = 0; i < writers.length; i++)
+			x += writers[i].getTotalTransferedThrottlableBytes();
+		return x;
+	}
+
+	public long getTotalTransferedPseudoThrottlableBytes() {
+		long x = 0;
+		for (int i = 0; i < writers.length; i++)
+			x += writers[i].getTotalTransferedPseudoThrottlableBytes();
+		return x;
+	}
+
+	public int uniquenessLength() {
+		int x = 0;
+		for (int i = 0; i < writers.length; i++)
+			x += writers[i].uniquenessLength();
+		return x;
+	}
+
+	public String analyzeUniqueness() {
+		StringBuffer out = new StringBuffer();
+		for (int i = 0; i < writers.length; i++)
+			out.append(writers[i].analyzeUniqueness());
+		return out.toString();
+	}
+}
@@ -0,0 +1,218 @@
+package freenet.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+
+import freenet.crypt.RandomSource;
+import freenet.crypt.RandomSourcePool;
+import freenet.crypt.Yarrow;
+import freenet.support.VoidLogger;
+import freenet.support.io.Bandwidth;
+
+import junit.framework.TestCase;
+
+/**
+ * Sends jobs of several buffers, like a mux packet batch of headers and
+ * trailer chunks, over a loopback connection with small socket buffers
+ * and a slow reader, so that most gathering writes only take part of the
+ * job and stop in the middle of a buffer.
+ */
+public class WriteSelectorLoopTest extends TestCase {
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(WriteSelectorLoopTest.class);
+	}
+
+	/** Header, trailer, header, nothing, header, trailer */
+	private static final int[] SIZES = { 40, 60000, 40, 0, 7, 30000 };
+
+	private static RandomSourcePool pool;
+
+	private WriteSelectorLoop loop;
+
+	private ServerSocketChannel server;
+
+	private SocketChannel out;
+
+	private SocketChannel in;
+
+	private final class Writer implements NIOWriter {
+
+		private final boolean throttle;
+
+		int done = -1;
+
+		boolean status;
+
+		/** The totals passed to jobPartDone() */
+		final Vector parts = new Vector();
+
+		Writer(boolean throttle) {
+			this.throttle = throttle;
+		}
+
+		public synchronized void jobDone(int size, boolean status) {
+			done = size;
+			this.status = status;
+			notifyAll();
+		}
+
+		public void jobPartDone(int size) {
+			parts.addElement(new Integer(size));
+		}
+
+		public void closed() {
+		}
+
+		public void queuedClose() {
+		}
+
+		public void registered() {
+		}
+
+		public void unregistered() {
+		}
+
+		public boolean shouldThrottle() {
+			return throttle;
+		}
+
+		public boolean countAsThrottled() {
+			return throttle;
+		}
+	}
+
+	protected void setUp() {
+		if (pool == null)
+			pool = new RandomSourcePool(new RandomSource[] { new Yarrow() });
+	}
+
+	protected void tearDown() throws IOException {
+		if (loop != null)
+			loop.stop = true;
+		if (in != null)
+			in.close();
+		if (out != null)
+			out.close();
+		if (server != null)
+			server.close();
+	}
+
+	public void testUnthrottled() throws IOException, InterruptedException {
+		loop =
+			new WriteSelectorLoop(new VoidLogger(), null, null, null, null,
+					null, null, false, pool);
+		send(false);
+	}
+
+	/**
+	 * Throttled writes are also cut short to what the bandwidth allows,
+	 * which can end them inside any buffer.
+	 */
+	public void testThrottled() throws IOException, InterruptedException {
+		loop =
+			new WriteSelectorLoop(new VoidLogger(), null, null, null, null,
+					null, null, false, new Bandwidth(100000, 100000,
+							Bandwidth.SENT), 20, pool);
+		send(true);
+	}
+
+	private void send(boolean throttle) throws IOException,
+			InterruptedException {
+		Thread t = new Thread(loop, "WriteSelectorLoopTest");
+		t.setDaemon(true);
+		t.start();
+		connect();
+
+		// Each buffer is a slice of a bigger array, as packets in a batch
+		// are
+		Random r = new Random(SIZES.length);
+		ByteBuffer[] bufs = new ByteBuffer[SIZES.length];
+		int total = 0;
+		for (int i = 0; i < SIZES.length; i++)
+			total += SIZES[i];
+		byte[] expected = new byte[total];
+		for (int i = 0, off = 0; i < SIZES.length; i++) {
+			byte[] b = new byte[SIZES[i] + 6];
+			r.nextBytes(b);
+			bufs[i] = ByteBuffer.wrap(b, 3, SIZES[i]);
+			System.arraycopy(b, 3, expected, off, SIZES[i]);
+			off += SIZES[i];
+		}
+
+		final byte[] got = new byte[total];
+		final IOException[] failed = new IOException[1];
+		Thread reader = new Thread() {
+			public void run() {
+				ByteBuffer bb = ByteBuffer.wrap(got);
+				try {
+					while (bb.position() < got.length) {
+						// Read a little at a time, so the writer has to stop
+						bb.limit(Math.min(got.length, bb.position() + 2000));
+						if (in.read(bb) < 0)
+							break;
+						Thread.sleep(2);
+					}
+				} catch (IOException e) {
+					failed[0] = e;
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		reader.start();
+
+		Writer w = new Writer(throttle);
+		assertTrue(loop.send(bufs, out, w, 1));
+		long deadline = System.currentTimeMillis() + 20000;
+		synchronized (w) {
+			while (w.done < 0 && System.currentTimeMillis() < deadline)
+				w.wait(1000);
+		}
+		reader.join(20000);
+		assertNull(failed[0]);
+		assertTrue(w.status);
+		assertEquals(total, w.done);
+		assertTrue(Arrays.equals(expected, got));
+
+		// It took several writes, each going further, and at least one
+		// went from one buffer into another and stopped partway through it
+		assertTrue(w.parts.size() > 1);
+		boolean spanned = false;
+		int last = 0;
+		for (int i = 0; i < w.parts.size(); i++) {
+			int p = ((Integer) w.parts.elementAt(i)).intValue();
+			assertTrue(p > last);
+			assertTrue(p < total);
+			int end = 0;
+			for (int j = 0; j < SIZES.length; j++) {
+				int start = end;
+				end += SIZES[j];
+				if (last < start && p > start && p < end)
+					spanned = true;
+			}
+			last = p;
+		}
+		assertTrue(spanned);
+		// Nothing was left in the buffers' positions but the end
+		for (int i = 0; i < SIZES.length; i++)
+			assertFalse(bufs[i].hasRemaining());
+	}
+
+	private void connect() throws IOException {
+		server = ServerSocketChannel.open();
+		server.socket().setReceiveBufferSize(4096);
+		server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		out = SocketChannel.open();
+		out.socket().setSendBufferSize(4096);
+		out.connect(new InetSocketAddress("127.0.0.1", server.socket()
+				.getLocalPort()));
+		in = server.accept();
+		out.configureBlocking(false);
+	}
+}
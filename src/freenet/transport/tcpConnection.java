@@ -9,7 +9,6 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.util.Hashtable;
-import java.util.LinkedList;
 
 import freenet.Address;
 import freenet.BadAddressException;
@@ -25,6 +24,7 @@ import freenet.node.rt.ValueConsumer;
 import freenet.support.BooleanCallback;
 import freenet.support.IntervalledSum;
 import freenet.support.Logger;
+import freenet.support.SizeClassedBufferPool;
 import freenet.support.io.Bandwidth;
 import freenet.support.io.NIOInputStream;
 import freenet.support.io.NIOOutputStream;
@@ -67,7 +67,7 @@ public final class tcpConnection extends Connection {
 	private final InetAddress peerAddr; //The address of the peer that we are connected against 
 	private InputStream in;
 	private OutputStream out;
-	private final ByteBuffer accumulator;
+	private volatile ByteBuffer accumulator;
 	private NIOInputStream nioin;
 	private NIOOutputStream nioout;
 	private final Object closeLock= new Object();
@@ -99,21 +99,52 @@ public final class tcpConnection extends Connection {
 	private static Bandwidth ibw = null;
 	private static Bandwidth obw = null;
 	
-	//Set to false for now since the code doesn't safely guarantee that everyone forgets the accumulator
-	//and we _dont_ want multiple connections sharing a buffer 
-	private static final boolean POOL_BUFFERS = false; 
-	private static final LinkedList bufferPool = new LinkedList();
-	private static boolean USE_DIRECT_BUFFERS = true;
 	public static int BUFFER_SIZE = 16384;
 
+	/**
+	 * Read buffers for every connection. The accumulator comes from here, and
+	 * goes back once a multiplexing connection has taken over the channel and
+	 * emptied it; the multiplexing connection then leases a buffer only while
+	 * it has data waiting to be processed.
+	 */
+	private static final SizeClassedBufferPool buffers =
+		new SizeClassedBufferPool(1024, 65536, 16 * 1024 * 1024);
+
 	private static final int streamBufferSize() {
 		return 2048; // this is only used for negotiations and fproxy! 
 	}
 
-	public static int bufferPoolSize() {
-		synchronized (bufferPool) {
-			return bufferPool.size();
+	public static SizeClassedBufferPool bufferPool() {
+		return buffers;
+	}
+
+	/**
+	 * @return a cleared buffer of at least size bytes from the shared pool.
+	 *         Give it back with releaseBuffer() when it is empty.
+	 */
+	public static ByteBuffer leaseBuffer(int size) {
+		long direct = buffers.directBytes();
+		ByteBuffer buf = buffers.allocate(size);
+		if (Core.diagnostics != null) {
+			Core.diagnostics.occurrenceCounting("bufferPoolLeases", 1);
+			if (buffers.directBytes() != direct)
+				Core.diagnostics.occurrenceCounting("bufferPoolAllocations", 1);
+			Core.diagnostics.occurrenceContinuous(
+				"bufferPoolBytesInUse",
+				buffers.bytesInUse());
 		}
+		return buf;
+	}
+
+	public static void releaseBuffer(ByteBuffer buf) {
+		buffers.release(buf);
+	}
+
+	/**
+	 * Give up on a leased buffer that something might still be using.
+	 */
+	public static void forgetBuffer(ByteBuffer buf) {
+		buffers.forget(buf);
 	}
 
 	private static final Hashtable socketConnectionMap = new Hashtable();
@@ -132,65 +163,52 @@ public final class tcpConnection extends Connection {
 
 	static synchronized public void startSelectorLoops(Logger logger,
 	        Diagnostics d, BooleanCallback cbLoad, boolean logInputBytes, boolean logOutputBytes) {
+		startSelectorLoops(logger, d, cbLoad, logInputBytes, logOutputBytes, 1);
+	}
+
+	/**
+	 * Start the network reading and writing threads.
+	 * @param loops the number of reading/writing thread pairs. If more than
+	 * one, each connection is pinned to one pair, see SelectorLoopGroup.
+	 */
+	static synchronized public void startSelectorLoops(Logger logger,
+	        Diagnostics d, BooleanCallback cbLoad, boolean logInputBytes, boolean logOutputBytes,
+	        int loops) {
 		// Start NIO loops
 		try {
 			if (rsl == null) {
 			    ExternalCounting ec = d.getExternalCountingVariable("inputBytes");
 			    ec.relayReportsTo(maxSeenBytesPerMinuteSeenTracker,Diagnostics.COUNT_CHANGE);
-			    ReadSelectorLoop rsl;
-				if (ibw != null)
-					rsl = new ReadSelectorLoop(logger, 
-					        d.getExternalContinuousVariable("closePairLifetime"),
-					        ec,
-					        d.getExternalCountingVariable("readinessSelectionScrewed"),
-					        d.getExternalCountingVariable("connectionResetByPeer"),
-					        cbLoad,
-					        logInputBytes,
-					        ibw, Main.getTimerGranularity(),
-					        Core.getRandSource());
-				else
-					rsl = new ReadSelectorLoop(logger, 
-					        d.getExternalContinuousVariable("closePairLifetime"),
-					        ec,
-					        d.getExternalCountingVariable("readinessSelectionScrewed"),
-					        d.getExternalCountingVariable("connectionResetByPeer"),
-					        cbLoad,
-					        logInputBytes,
-					        Core.getRandSource());
-				tcpConnection.rsl = rsl;	        
-				Thread rslThread = new Thread(rsl, "Network reading thread");
-				rslThread.setDaemon(true);
-				//rslThread.setPriority(Thread.MAX_PRIORITY);
-				rslThread.start(); // inactive until given registrations
+			    ReadSelectorLoop[] readers = new ReadSelectorLoop[loops];
+			    for (int i = 0; i < loops; i++)
+			    	readers[i] = newReadSelectorLoop(logger, d, ec, cbLoad, logInputBytes);
+			    if (loops == 1) {
+			    	tcpConnection.rsl = readers[0];
+			    	Thread rslThread = new Thread(readers[0], "Network reading thread");
+			    	rslThread.setDaemon(true);
+			    	//rslThread.setPriority(Thread.MAX_PRIORITY);
+			    	rslThread.start(); // inactive until given registrations
+			    } else {
+			    	ReadSelectorLoopGroup group = new ReadSelectorLoopGroup(readers, logger);
+			    	tcpConnection.rsl = group;
+			    	group.start("Network reading thread");
+			    }
 			}
 			if (wsl == null) {
-				WriteSelectorLoop wsl;
-				if (obw != null)
-					wsl = new WriteSelectorLoop(logger,
-					        d.getExternalContinuousVariable("closePairLifetime"),
-					        d.getExternalCountingVariable("outputBytes"),
-					        d.getExternalCountingVariable("outputBytesVeryHigh"),
-					        d.getExternalCountingVariable("outputBytesHigh"),
-					        d.getExternalCountingVariable("outputBytesNormal"),
-					        d.getExternalCountingVariable("outputBytesLow"),
-					        logOutputBytes,
-					        obw, Main.getTimerGranularity(),
-					        Core.getRandSource());
-				else
-					wsl = new WriteSelectorLoop(logger,
-					        d.getExternalContinuousVariable("closePairLifetime"),
-					        d.getExternalCountingVariable("outputBytes"),
-					        d.getExternalCountingVariable("outputBytesVeryHigh"),
-					        d.getExternalCountingVariable("outputBytesHigh"),
-					        d.getExternalCountingVariable("outputBytesNormal"),
-					        d.getExternalCountingVariable("outputBytesLow"),
-					        logOutputBytes,
-					        Core.getRandSource());
-				tcpConnection.wsl = wsl;
-				Thread wslThread = new Thread(wsl, "Network writing thread");
-				wslThread.setDaemon(true);
-				//wslThread.setPriority(Thread.MAX_PRIORITY);
-				wslThread.start(); // inactive until given jobs
+				WriteSelectorLoop[] writers = new WriteSelectorLoop[loops];
+				for (int i = 0; i < loops; i++)
+					writers[i] = newWriteSelectorLoop(logger, d, logOutputBytes);
+				if (loops == 1) {
+					tcpConnection.wsl = writers[0];
+					Thread wslThread = new Thread(writers[0], "Network writing thread");
+					wslThread.setDaemon(true);
+					//wslThread.setPriority(Thread.MAX_PRIORITY);
+					wslThread.start(); // inactive until given jobs
+				} else {
+					WriteSelectorLoopGroup group = new WriteSelectorLoopGroup(writers, logger);
+					tcpConnection.wsl = group;
+					group.start("Network writing thread");
+				}
 			}
 		} catch (Throwable t) {
 			System.err.println(
@@ -200,6 +218,56 @@ public final class tcpConnection extends Connection {
 		}
 	}
 
+	private static ReadSelectorLoop newReadSelectorLoop(Logger logger,
+	        Diagnostics d, ExternalCounting ec, BooleanCallback cbLoad,
+	        boolean logInputBytes) throws IOException {
+		// All loops share ibw, so the limit is for all of them
+		if (ibw != null)
+			return new ReadSelectorLoop(logger, 
+			        d.getExternalContinuousVariable("closePairLifetime"),
+			        ec,
+			        d.getExternalCountingVariable("readinessSelectionScrewed"),
+			        d.getExternalCountingVariable("connectionResetByPeer"),
+			        cbLoad,
+			        logInputBytes,
+			        ibw, Main.getTimerGranularity(),
+			        Core.getRandSource());
+		else
+			return new ReadSelectorLoop(logger, 
+			        d.getExternalContinuousVariable("closePairLifetime"),
+			        ec,
+			        d.getExternalCountingVariable("readinessSelectionScrewed"),
+			        d.getExternalCountingVariable("connectionResetByPeer"),
+			        cbLoad,
+			        logInputBytes,
+			        Core.getRandSource());
+	}
+
+	private static WriteSelectorLoop newWriteSelectorLoop(Logger logger,
+	        Diagnostics d, boolean logOutputBytes) throws IOException {
+		if (obw != null)
+			return new WriteSelectorLoop(logger,
+			        d.getExternalContinuousVariable("closePairLifetime"),
+			        d.getExternalCountingVariable("outputBytes"),
+			        d.getExternalCountingVariable("outputBytesVeryHigh"),
+			        d.getExternalCountingVariable("outputBytesHigh"),
+			        d.getExternalCountingVariable("outputBytesNormal"),
+			        d.getExternalCountingVariable("outputBytesLow"),
+			        logOutputBytes,
+			        obw, Main.getTimerGranularity(),
+			        Core.getRandSource());
+		else
+			return new WriteSelectorLoop(logger,
+			        d.getExternalContinuousVariable("closePairLifetime"),
+			        d.getExternalCountingVariable("outputBytes"),
+			        d.getExternalCountingVariable("outputBytesVeryHigh"),
+			        d.getExternalCountingVariable("outputBytesHigh"),
+			        d.getExternalCountingVariable("outputBytesNormal"),
+			        d.getExternalCountingVariable("outputBytesLow"),
+			        logOutputBytes,
+			        Core.getRandSource());
+	}
+
 	static public ThrottledAsyncTCPReadManager getRSL() {
 		return rsl;
 	}
@@ -261,22 +329,40 @@ public final class tcpConnection extends Connection {
 	public static boolean logBytes = false;
 
 	private final ByteBuffer getAccumulator() {
-		if (POOL_BUFFERS) {
-			synchronized (bufferPool) {
-				if (!bufferPool.isEmpty()) {
-					ByteBuffer retval = (ByteBuffer) bufferPool.removeFirst();
-					if (logDEBUG)
-						Core.logger.log(this, "Reused buffer from pool: " + retval, Logger.DEBUG);
-					return retval;
-				}
-			}
-		}
-		ByteBuffer retval = USE_DIRECT_BUFFERS ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+		ByteBuffer retval = leaseBuffer(BUFFER_SIZE);
 		if (logDEBUG)
-			Core.logger.log(this, "Allocated new buffer: " + retval, Logger.DEBUG);
+			Core.logger.log(this, "Leased buffer: " + retval, Logger.DEBUG);
 		return retval;
 	}
 
+	/**
+	 * @return the accumulator, which is then no longer ours, or null if it
+	 *         has already been taken.
+	 */
+	private synchronized ByteBuffer takeAccumulator() {
+		ByteBuffer buf = accumulator;
+		accumulator = null;
+		return buf;
+	}
+
+	/**
+	 * Give the accumulator back to the pool, once the channel has been
+	 * switched to another reader (see NIOInputStream.switchReader()) and
+	 * everything in it has been processed. getInputBuffer() returns null
+	 * afterwards.
+	 */
+	public void releaseInputBuffer() {
+		ByteBuffer buf = takeAccumulator();
+		if (buf == null)
+			return;
+		NIOInputStream is = nioin;
+		if (is != null)
+			is.releaseBuffer();
+		if (logDEBUG)
+			Core.logger.log(this, "Releasing buffer: " + buf, Logger.DEBUG);
+		releaseBuffer(buf);
+	}
+
 	/**
 	 * Used to create an outbound connection.
 	 */
@@ -635,6 +721,10 @@ public final class tcpConnection extends Connection {
 			if (ni != null)
 				ni.closed();
 			nioin = null;
+			// Someone may still be reading the stream
+			ByteBuffer buf = takeAccumulator();
+			if (buf != null)
+				forgetBuffer(buf);
 			NIOOutputStream no = nioout;
 			if (no != null)
 				no.closed();
@@ -676,20 +766,6 @@ public final class tcpConnection extends Connection {
 				this,
 				"finalized without being closed!" + this,
 				Logger.NORMAL);
-		// Accumulator will not be reused after closure
-		if (POOL_BUFFERS) {
-			if (accumulator != null) {
-				synchronized (bufferPool) {
-					bufferPool.addLast(accumulator);
-				}
-			} else {
-				if (logDEBUG)
-					Core.logger.log(
-						this,
-						"Not repooling accumulator because is null: " + this,
-						Logger.DEBUG);
-			}
-		}
 		try {
 			close(true);
 		} catch (Throwable t) {